@@ -90,6 +90,11 @@ public class FileState {
 	
 	private long m_tmo;
 	
+	//	State cache that checks this file state for expiry, and the timer wheel tick it is due to be checked in
+	
+	private volatile FileStateCache m_expiryCache;
+	private volatile long m_expiryTick;
+	
 	//	File status, indicates if the file/folder exists and if it is a file or folder.
 	//	Constants are defined in the FileStatus class.
 	
@@ -402,6 +407,15 @@ public class FileState {
 		return ( m_tmo - curTime)/1000L;
 	}
 	
+	/**
+	 * Return the file state expiry time, or NoTimeout
+	 * 
+	 * @return long
+	 */
+	public final long getExpiryTime() {
+		return m_tmo;
+	}
+	
 	/**
 	 * Return a file status code as a string
 	 * 
@@ -438,6 +452,42 @@ public class FileState {
 	 */
 	public final void setExpiryTime(long expire) {
 		m_tmo = expire;
+		
+		//	Let the state cache check the file state sooner if the expiry time has been brought forward
+		
+		FileStateCache expiryCache = m_expiryCache;
+		if ( expiryCache != null)
+			expiryCache.expiryTimeChanged( this, expire);
+	}
+	
+	/**
+	 * Return the state cache that checks this file state for expiry
+	 * 
+	 * @return FileStateCache
+	 */
+	final FileStateCache getExpiryCache() {
+		return m_expiryCache;
+	}
+	
+	/**
+	 * Return the timer wheel tick that the file state is due to be checked in
+	 * 
+	 * @return long
+	 */
+	final long getExpiryTick() {
+		return m_expiryTick;
+	}
+	
+	/**
+	 * Set the state cache that checks this file state for expiry, and the timer wheel tick it is due
+	 * to be checked in
+	 * 
+	 * @param expiryCache FileStateCache
+	 * @param tick long
+	 */
+	final void setExpiryTick(FileStateCache expiryCache, long tick) {
+		m_expiryCache = expiryCache;
+		m_expiryTick = tick;
 	}
 
 	/**
@@ -20,8 +20,11 @@
 package org.alfresco.jlan.server.filesys.cache;
 
 import java.io.PrintStream;
+import java.util.ArrayList;
 import java.util.Enumeration;
-import java.util.Hashtable;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 import org.alfresco.jlan.debug.Debug;
 import org.alfresco.jlan.server.filesys.FileName;
@@ -34,6 +37,13 @@ import org.alfresco.jlan.server.filesys.FileStatus;
  * Contains a cache of file/directory information for recently accessed files/directories to reduce
  * the calls made by the core server code to the database.
  * 
+ * <p>
+ * The cache can be used by many session threads at once without locking the whole cache. Lookups
+ * do not lock, while adding, creating and renaming file states lock the cache so that a file state
+ * being added under a name cannot replace one that another thread has just created for it. File
+ * states are also held in a timer wheel, by expiry time, so that the expired file state check only
+ * looks at the file states that are due to expire rather than at the whole cache.
+ * 
  * @author gkspencer
  */
 public class FileStateCache {
@@ -42,6 +52,15 @@ public class FileStateCache {
 
 	private static final int INITIAL_SIZE = 500;
 
+	// Number of threads expected to update the state cache at once
+
+	private static final int CONCURRENCY_LEVEL = 32;
+
+	// Timer wheel slot count and the time covered by each slot, in milliseconds
+
+	private static final int WHEEL_SIZE = 512;
+	private static final long WHEEL_TICK = 1000L;
+
 	// Default expire check thread interval
 
 	private static final long DEFAULT_EXPIRECHECK = 3000; // 60000; // 1 minute
@@ -52,7 +71,20 @@ public class FileStateCache {
 
 	// File state cache, keyed by file path
 
-	private Hashtable<String, FileState> m_stateCache;
+	private ConcurrentHashMap<String, FileState> m_stateCache;
+
+	// Lock held while file states are added to the cache or renamed
+
+	private final Object m_updateLock = new Object();
+
+	// Timer wheel of file states by the tick they are due to be checked in
+
+	private ConcurrentLinkedQueue<WheelEntry>[] m_expiryWheel;
+
+	// Last timer wheel tick checked for expired file states, guarded by m_expiryLock
+
+	private long m_lastTick;
+	private final Object m_expiryLock = new Object();
 
 	// Wakeup interval for the expire file state checker thread
 
@@ -64,7 +96,7 @@ public class FileStateCache {
 
 	// File state listener
 
-	private FileStateListener m_stateListener;
+	private volatile FileStateListener m_stateListener;
 
 	// Debug enable and output stream
 
@@ -73,8 +105,14 @@ public class FileStateCache {
 	/**
 	 * Class constructor
 	 */
+	@SuppressWarnings("unchecked")
 	public FileStateCache() {
-		m_stateCache = new Hashtable<String, FileState>(INITIAL_SIZE);
+		m_stateCache = new ConcurrentHashMap<String, FileState>(INITIAL_SIZE, 0.75f, CONCURRENCY_LEVEL);
+
+		m_expiryWheel = new ConcurrentLinkedQueue[WHEEL_SIZE];
+		for ( int i = 0; i < WHEEL_SIZE; i++)
+			m_expiryWheel[i] = new ConcurrentLinkedQueue<WheelEntry>();
+		m_lastTick = System.currentTimeMillis() / WHEEL_TICK;
 	}
 
 	/**
@@ -145,7 +183,7 @@ public class FileStateCache {
 	 * 
 	 * @param fstate FileState
 	 */
-	public final synchronized void addFileState(FileState fstate) {
+	public final void addFileState(FileState fstate) {
 
 		// Check if the file state already exists in the cache
 
@@ -162,7 +200,11 @@ public class FileStateCache {
 		// Set the file state timeout and add to the cache
 
 		fstate.setExpiryTime(System.currentTimeMillis() + getCacheTimer());
-		m_stateCache.put(fstate.getPath(), fstate);
+
+		synchronized (m_updateLock) {
+			m_stateCache.put(fstate.getPath(), fstate);
+			scheduleExpiry(fstate, fstate.getExpiryTime());
+		}
 	}
 
 	/**
@@ -171,7 +213,7 @@ public class FileStateCache {
 	 * @param path String
 	 * @return FileState
 	 */
-	public final synchronized FileState findFileState(String path) {
+	public final FileState findFileState(String path) {
 		return m_stateCache.get(FileState.normalizePath(path));
 	}
 
@@ -183,7 +225,7 @@ public class FileStateCache {
 	 * @param create boolean
 	 * @return FileState
 	 */
-	public final synchronized FileState findFileState(String path, boolean create) {
+	public final FileState findFileState(String path, boolean create) {
 
 		// Find the required file state, if it exists
 
@@ -197,10 +239,10 @@ public class FileStateCache {
 
 			state = m_stateFactory.createFileState(path);
 
-			// Set the file state timeout and add to the cache
+			// Set the file state timeout and add to the cache, unless another thread has just added one
 
 			state.setExpiryTime(System.currentTimeMillis() + getCacheTimer());
-			m_stateCache.put(state.getPath(), state);
+			state = addIfAbsent(state);
 		}
 
 		// Return the file state
@@ -217,7 +259,7 @@ public class FileStateCache {
      * @param status int
      * @return FileState
      */
-    public final synchronized FileState findFileState(String path, boolean create, int status) {
+    public final FileState findFileState(String path, boolean create, int status) {
 
         // Find the required file state, if it exists
 
@@ -235,7 +277,7 @@ public class FileStateCache {
 
             state.setExpiryTime(System.currentTimeMillis() + getCacheTimer());
             state.setFileStatus( status);
-            m_stateCache.put(state.getPath(), state);
+            state = addIfAbsent(state);
         }
 
         // Return the file state
@@ -250,17 +292,23 @@ public class FileStateCache {
 	 * @param newName String
 	 * @return FileState
 	 */
-	public final synchronized FileState updateFileState(String oldName, String newName) {
+	public final FileState updateFileState(String oldName, String newName) {
+
+		// Find the current file state, a file state cannot be created for the new name until it has been
+		// added back into the cache
 
-		// Find the current file state
+		FileState state = null;
 
-		FileState state = m_stateCache.remove(FileState.normalizePath(oldName));
+		synchronized (m_updateLock) {
 
-		// Rename the file state and add it back into the cache using the new name
+			state = m_stateCache.remove(FileState.normalizePath(oldName));
 
-		if ( state != null) {
-			state.setPath(newName);
-			addFileState(state);
+			// Rename the file state and add it back into the cache using the new name
+
+			if ( state != null) {
+				state.setPath(newName);
+				addFileState(state);
+			}
 		}
 
 		// Return the updated file state
@@ -283,16 +331,17 @@ public class FileStateCache {
 	 * @param path String
 	 * @return FileState
 	 */
-	public final synchronized FileState removeFileState(String path) {
+	public final FileState removeFileState(String path) {
 
-		// Remove the file state from the cache
+		// Remove the file state from the cache, the timer wheel entry is dropped when it is next checked
 
 		FileState state = m_stateCache.remove(FileState.normalizePath(path));
 
 		// Check if there is a state listener
 
-		if ( m_stateListener != null && state != null)
-			m_stateListener.fileStateClosed(state);
+		FileStateListener listener = m_stateListener;
+		if ( listener != null && state != null)
+			listener.fileStateClosed(state);
 
 		// Return the removed file state
 
@@ -313,18 +362,21 @@ public class FileStateCache {
 
 		String oldPath = state.getPath();
 
-		synchronized (m_stateCache) {
+		synchronized (m_updateLock) {
+			synchronized (state) {
 
-			// Remove the existing file state from the cache, using the original name
+				// Remove the existing file state from the cache, using the original name
 
-			m_stateCache.remove(state.getPath());
+				m_stateCache.remove(state.getPath(), state);
 
-			// Update the file state path and add it back to the cache using the new name
+				// Update the file state path and add it back to the cache using the new name
 
-			state.setPath(newPath);
-			state.setFileStatus(isDir ? FileStatus.DirectoryExists : FileStatus.FileExists);
+				state.setPath(newPath);
+				state.setFileStatus(isDir ? FileStatus.DirectoryExists : FileStatus.FileExists);
 
-			m_stateCache.put(state.getPath(), state);
+				m_stateCache.put(state.getPath(), state);
+				scheduleExpiry(state, state.getExpiryTime());
+			}
 		}
 
 		// If the path is to a folder we must change the file status of all file states that are
@@ -352,15 +404,15 @@ public class FileStateCache {
 
 				if ( statePath.length() > oldPath.length() && statePath.startsWith(oldPath)) {
 
-					// Get the associated file state, update and put back into the cache
+					// Get the associated file state and update it, it may have been removed by another thread
 
-					FileState renState = (FileState) m_stateCache.remove(statePath);
+					FileState renState = m_stateCache.get(statePath);
+					if ( renState == null)
+						continue;
 
 					renState.setFileStatus(FileStatus.NotExist);
 					renState.setFileId(FileState.UnknownFileId);
 
-					m_stateCache.put(renState.getPath(), renState);
-
 					// DEBUG
 
 					if ( Debug.EnableInfo && hasDebug())
@@ -373,27 +425,30 @@ public class FileStateCache {
 	/**
 	 * Remove all file states from the cache
 	 */
-	public final synchronized void removeAllFileStates() {
+	public final void removeAllFileStates() {
 
 		// Check if there are any items in the cache
 
 		if ( m_stateCache == null || m_stateCache.size() == 0)
 			return;
 
-		// Enumerate the file state cache and remove expired file state objects
+		// Enumerate the file state cache and remove all file state objects
 
 		Enumeration<String> enm = m_stateCache.keys();
+		FileStateListener listener = m_stateListener;
 
 		while (enm.hasMoreElements()) {
 
-			// Get the file state
+			// Remove the file state, unless another thread has already removed it
 
-			FileState state = m_stateCache.get(enm.nextElement());
+			FileState state = m_stateCache.remove(enm.nextElement());
+			if ( state == null)
+				continue;
 
 			// Check if there is a state listener
 
-			if ( m_stateListener != null)
-				m_stateListener.fileStateClosed(state);
+			if ( listener != null)
+				listener.fileStateClosed(state);
 
 			// DEBUG
 
@@ -401,14 +456,22 @@ public class FileStateCache {
 				Debug.println("++ Closed: " + state.getPath());
 		}
 
-		// Remove all the file states
+		// Clear the timer wheel
 
-		m_stateCache.clear();
+		synchronized ( m_expiryLock) {
+			for ( int i = 0; i < WHEEL_SIZE; i++)
+				m_expiryWheel[i].clear();
+		}
 	}
 
 	/**
 	 * Remove expired file states from the cache
 	 * 
+	 * <p>
+	 * Only the file states in the timer wheel slots that have come due since the last check are
+	 * looked at. File states that have not expired, because their expiry time has been extended or
+	 * they are open, are put back into the wheel.
+	 * 
 	 * @return int
 	 */
 	public final int removeExpiredFileStates() {
@@ -418,51 +481,100 @@ public class FileStateCache {
 		if ( m_stateCache == null || m_stateCache.size() == 0)
 			return 0;
 
-		// Enumerate the file state cache and remove expired file state objects
-
-		Enumeration<String> enm = m_stateCache.keys();
 		long curTime = System.currentTimeMillis();
+		long curTick = curTime / WHEEL_TICK;
 
 		int expiredCnt = 0;
 		int openCnt = 0;
 
-		while (enm.hasMoreElements()) {
+		synchronized ( m_expiryLock) {
+
+			// Check each slot once, even if the checker has not run for a whole turn of the wheel
+
+			long firstTick = Math.max(m_lastTick + 1, curTick - WHEEL_SIZE + 1);
+			List<FileState> reschedule = new ArrayList<FileState>();
+			List<WheelEntry> nextTurn = new ArrayList<WheelEntry>();
+
+			for ( long tick = firstTick; tick <= curTick; tick++) {
+
+				ConcurrentLinkedQueue<WheelEntry> slot = m_expiryWheel[(int) (tick % WHEEL_SIZE)];
+				WheelEntry entry = slot.poll();
+
+				while ( entry != null) {
+
+					// Drop entries for file states that have since been moved to another slot, or are no
+					// longer in the cache
 
-			// Get the file state
+					FileState state = entry.getFileState();
 
-			FileState state = m_stateCache.get(enm.nextElement());
+					if ( state.getExpiryTick() == entry.getTick() && m_stateCache.get(state.getPath()) == state) {
 
-			if ( state != null && state.hasNoTimeout() == false) {
+						if ( entry.getTick() > curTick) {
 
-				synchronized (state) {
+							// Due in a later turn of the wheel
 
-					// Check if the file state has expired and there are no open references to the
-					// file
+							nextTurn.add(entry);
+						}
+						else if ( state.hasNoTimeout()) {
+
+							// Check again later in case a timeout is set
+
+							reschedule.add(state);
+						}
+						else {
+
+							synchronized (state) {
 
-					if ( state.hasExpired(curTime) && state.getOpenCount() == 0) {
+								// Check if the file state has expired and there are no open references to the
+								// file
 
-						// Check if there is a state listener
+								if ( state.hasExpired(curTime) && state.getOpenCount() == 0) {
 
-						if ( m_stateListener == null || m_stateListener.fileStateExpired(state) == true) {
+									// Check if there is a state listener
 
-							// Remove the expired file state
+									FileStateListener listener = m_stateListener;
 
-							m_stateCache.remove(state.getPath());
+									if ( listener == null || listener.fileStateExpired(state) == true) {
 
-							// DEBUG
+										// Remove the expired file state
 
-							// if ( m_debug)
-							// Debug.println("++ Expired file state: " + state);
+										m_stateCache.remove(state.getPath(), state);
 
-							// Update the expired count
+										// Update the expired count
 
-							expiredCnt++;
+										expiredCnt++;
+									}
+									else
+										reschedule.add(state);
+								}
+								else {
+									if ( state.getOpenCount() > 0)
+										openCnt++;
+									reschedule.add(state);
+								}
+							}
 						}
 					}
-					else if ( state.getOpenCount() > 0)
-						openCnt++;
+
+					// Next file state in this slot
+
+					entry = slot.poll();
 				}
 			}
+
+			m_lastTick = curTick;
+
+			// Put back the file states that are still in use, after the slots have been emptied
+
+			for ( WheelEntry laterEntry : nextTurn)
+				m_expiryWheel[(int) (laterEntry.getTick() % WHEEL_SIZE)].add(laterEntry);
+
+			for ( FileState state : reschedule) {
+				long expiry = state.getExpiryTime();
+				if ( state.hasNoTimeout() || expiry <= curTime)
+					expiry = curTime + (state.hasNoTimeout() ? getCacheTimer() : getCheckInterval());
+				scheduleExpiry(state, expiry);
+			}
 		}
 
 		// DEBUG
@@ -477,6 +589,63 @@ public class FileStateCache {
 		return expiredCnt;
 	}
 
+	/**
+	 * Add a new file state to the cache, unless there is already a file state for the path
+	 * 
+	 * @param fstate FileState
+	 * @return FileState
+	 */
+	private final FileState addIfAbsent(FileState fstate) {
+		synchronized (m_updateLock) {
+			FileState curState = m_stateCache.putIfAbsent(fstate.getPath(), fstate);
+			if ( curState != null)
+				return curState;
+			scheduleExpiry(fstate, fstate.getExpiryTime());
+			return fstate;
+		}
+	}
+
+	/**
+	 * Add a file state to the timer wheel slot for the specified expiry time, unless it is already due
+	 * to be checked by then
+	 * 
+	 * @param fstate FileState
+	 * @param expiry long
+	 */
+	private final void scheduleExpiry(FileState fstate, long expiry) {
+
+		// File states without a timeout are checked again after the cache timer
+
+		if ( expiry == FileState.NoTimeout)
+			expiry = System.currentTimeMillis() + getCacheTimer();
+
+		// The slot is checked in the tick after the expiry time, as a file state expires after that time
+
+		long nextTick = System.currentTimeMillis() / WHEEL_TICK + 1;
+		long tick = Math.max(expiry / WHEEL_TICK + 1, nextTick);
+
+		long curTick = fstate.getExpiryTick();
+		if ( fstate.getExpiryCache() == this && curTick >= nextTick && curTick <= tick)
+			return;
+
+		fstate.setExpiryTick(this, tick);
+		m_expiryWheel[(int) (tick % WHEEL_SIZE)].add(new WheelEntry(fstate, tick));
+	}
+
+	/**
+	 * Called when the expiry time of a file state in the timer wheel has changed
+	 * 
+	 * @param fstate FileState
+	 * @param expiry long
+	 */
+	final void expiryTimeChanged(FileState fstate, long expiry) {
+
+		// A later expiry time is picked up when the file state is checked
+
+		if ( expiry != FileState.NoTimeout && expiry / WHEEL_TICK + 1 < fstate.getExpiryTick())
+			scheduleExpiry(fstate, expiry);
+	}
+
 	/**
 	 * Add a file state listener
 	 * 
@@ -533,4 +702,44 @@ public class FileStateCache {
 				state.DumpAttributes(out);
 		}
 	}
+
+	/**
+	 * Timer wheel entry, for the tick that a file state was due to be checked in when it was added
+	 */
+	private static final class WheelEntry {
+
+		// File state and timer wheel tick
+
+		private final FileState m_state;
+		private final long m_tick;
+
+		/**
+		 * Class constructor
+		 * 
+		 * @param state FileState
+		 * @param tick long
+		 */
+		WheelEntry(FileState state, long tick) {
+			m_state = state;
+			m_tick = tick;
+		}
+
+		/**
+		 * Return the file state
+		 * 
+		 * @return FileState
+		 */
+		final FileState getFileState() {
+			return m_state;
+		}
+
+		/**
+		 * Return the timer wheel tick
+		 * 
+		 * @return long
+		 */
+		final long getTick() {
+			return m_tick;
+		}
+	}
 }
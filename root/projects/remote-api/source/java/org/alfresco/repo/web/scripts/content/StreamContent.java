@@ -27,6 +27,7 @@ import java.net.SocketException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 
@@ -35,6 +36,8 @@ import javax.servlet.http.HttpServletResponse;
 import org.alfresco.model.ContentModel;
 import org.alfresco.repo.content.MimetypeMap;
 import org.alfresco.repo.content.filestore.FileContentReader;
+import org.alfresco.repo.web.util.HttpRangeProcessor;
+import org.alfresco.repo.web.util.HttpRangeProcessor.Range;
 import org.alfresco.service.cmr.repository.ContentIOException;
 import org.alfresco.service.cmr.repository.ContentReader;
 import org.alfresco.service.cmr.repository.ContentService;
@@ -505,10 +508,41 @@ public class StreamContent extends AbstractWebScript
             }
         }
 
+        // only honour a byte range request if the client's copy of the content is still current
+        long size = reader.getSize();
+        List<Range> ranges = null;
+        String rangeHeader = req.getHeader(HttpRangeProcessor.HEADER_RANGE);
+        if (rangeHeader != null && HttpRangeProcessor.isIfRangeSatisfied(
+                req.getHeader(HttpRangeProcessor.HEADER_IF_RANGE), eTag, modified != null ? modified.getTime() : -1L))
+        {
+            ranges = HttpRangeProcessor.parseRanges(rangeHeader, size);
+        }
+        res.setHeader(HttpRangeProcessor.HEADER_ACCEPT_RANGES, HttpRangeProcessor.RANGE_UNIT_BYTES);
+        if (ranges != null && ranges.isEmpty())
+        {
+            res.setHeader(HttpRangeProcessor.HEADER_CONTENT_RANGE, HttpRangeProcessor.RANGE_UNIT_BYTES + " */" + size);
+            res.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+            return;
+        }
+        
         // set mimetype for the content and the character encoding + length for the stream
-        res.setContentType(mimetype);
-        res.setContentEncoding(reader.getEncoding());
-        res.setHeader("Content-Length", Long.toString(reader.getSize()));
+        if (ranges == null)
+        {
+            res.setContentType(mimetype);
+            res.setContentEncoding(reader.getEncoding());
+            res.setHeader("Content-Length", Long.toString(size));
+        }
+        else
+        {
+            res.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+            res.setContentType(HttpRangeProcessor.getContentType(ranges, mimetype));
+            if (ranges.size() == 1)
+            {
+                res.setContentEncoding(reader.getEncoding());
+                res.setHeader(HttpRangeProcessor.HEADER_CONTENT_RANGE, ranges.get(0).getContentRange(size));
+            }
+            res.setHeader("Content-Length", Long.toString(HttpRangeProcessor.getContentLength(ranges, mimetype, size)));
+        }
         
         // set caching
         Cache cache = new Cache();
@@ -524,7 +558,14 @@ public class StreamContent extends AbstractWebScript
         // to be streamed directly to the browser response stream.
         try
         {
-            reader.getContent(res.getOutputStream());
+            if (ranges == null)
+            {
+                reader.getContent(res.getOutputStream());
+            }
+            else
+            {
+                HttpRangeProcessor.writeRanges(reader, ranges, mimetype, res.getOutputStream());
+            }
         }
         catch (SocketException e1)
         {
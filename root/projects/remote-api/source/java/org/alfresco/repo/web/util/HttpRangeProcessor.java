@@ -0,0 +1,381 @@
+/*
+ * Copyright (C) 2005-2010 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.repo.web.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.StringTokenizer;
+import java.util.TimeZone;
+
+import org.alfresco.service.cmr.repository.ContentReader;
+
+/**
+ * HTTP byte range support (RFC 2616 section 14.35) for streaming content back to a client.
+ *
+ * Parses <code>Range</code> and <code>If-Range</code> headers and writes the requested ranges
+ * of a content reader, either as a single part or as <code>multipart/byteranges</code>.  The
+ * content is read through {@link ContentReader#getFileChannel()} using positional reads, so
+ * only the requested bytes are read.
+ *
+ * Typical use:
+ *
+ * List&lt;Range&gt; ranges = HttpRangeProcessor.parseRanges(rangeHeader, reader.getSize());
+ * if (ranges == null)         ...stream the whole content with a 200...
+ * else if (ranges.isEmpty())  ...416 with a "Content-Range: bytes *&#47;size" header...
+ * else                        ...206 with the headers given by this class, then writeRanges(...)
+ */
+public class HttpRangeProcessor
+{
+    public static final String HEADER_RANGE = "Range";
+    public static final String HEADER_IF_RANGE = "If-Range";
+    public static final String HEADER_CONTENT_RANGE = "Content-Range";
+    public static final String HEADER_ACCEPT_RANGES = "Accept-Ranges";
+    public static final String RANGE_UNIT_BYTES = "bytes";
+    public static final String MULTIPART_BYTERANGES = "multipart/byteranges";
+    public static final String MULTIPART_BOUNDARY = "ALFRESCO_BYTERANGE_BOUNDARY";
+
+    /** Requests with more ranges than this are answered with the whole content */
+    public static final int MAX_RANGES = 32;
+
+    private static final String HTTP_DATE_FORMAT = "EEE, dd MMM yyyy HH:mm:ss zzz";
+    private static final String CRLF = "\r\n";
+    private static final int BUFFER_SIZE = 32 * 1024;
+
+    /**
+     * An inclusive range of bytes
+     */
+    public static class Range
+    {
+        private final long start;
+        private final long end;
+
+        public Range(long start, long end)
+        {
+            this.start = start;
+            this.end = end;
+        }
+
+        /**
+         * @return  first byte position
+         */
+        public long getStart()
+        {
+            return start;
+        }
+
+        /**
+         * @return  last byte position (inclusive)
+         */
+        public long getEnd()
+        {
+            return end;
+        }
+
+        /**
+         * @return  number of bytes in the range
+         */
+        public long getLength()
+        {
+            return end - start + 1;
+        }
+
+        /**
+         * @param size  total size of the content
+         * @return  value of the Content-Range header for this range
+         */
+        public String getContentRange(long size)
+        {
+            return RANGE_UNIT_BYTES + " " + start + "-" + end + "/" + size;
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            if (!(obj instanceof Range))
+            {
+                return false;
+            }
+            Range that = (Range)obj;
+            return this.start == that.start && this.end == that.end;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return (int)(start ^ (end >>> 32) ^ end);
+        }
+
+        @Override
+        public String toString()
+        {
+            return start + "-" + end;
+        }
+    }
+
+    /**
+     * Parse a Range header against content of the given size.
+     *
+     * @param rangeHeader  the Range header value (may be null)
+     * @param size  the size of the content
+     * @return  the satisfiable ranges in request order, an empty list if none of the ranges can be satisfied,
+     *          or <code>null</code> if the header is absent, malformed or should be ignored
+     */
+    public static List<Range> parseRanges(String rangeHeader, long size)
+    {
+        if (rangeHeader == null)
+        {
+            return null;
+        }
+        String header = rangeHeader.trim();
+        if (!header.startsWith(RANGE_UNIT_BYTES + "="))
+        {
+            // unknown range units are ignored
+            return null;
+        }
+
+        List<Range> ranges = new ArrayList<Range>(4);
+        StringTokenizer tokenizer = new StringTokenizer(header.substring(RANGE_UNIT_BYTES.length() + 1), ",");
+        if (!tokenizer.hasMoreTokens())
+        {
+            return null;
+        }
+        while (tokenizer.hasMoreTokens())
+        {
+            String spec = tokenizer.nextToken().trim();
+            int dash = spec.indexOf('-');
+            if (dash == -1)
+            {
+                return null;
+            }
+            long start;
+            long end;
+            try
+            {
+                String first = spec.substring(0, dash).trim();
+                String last = spec.substring(dash + 1).trim();
+                if (first.length() == 0)
+                {
+                    // suffix range - the last N bytes
+                    long suffix = Long.parseLong(last);
+                    if (suffix < 0)
+                    {
+                        return null;
+                    }
+                    if (suffix == 0 || size == 0)
+                    {
+                        continue;
+                    }
+                    start = Math.max(0L, size - suffix);
+                    end = size - 1;
+                }
+                else
+                {
+                    start = Long.parseLong(first);
+                    end = last.length() == 0 ? size - 1 : Long.parseLong(last);
+                    if (start < 0 || end < start)
+                    {
+                        return null;
+                    }
+                    if (start >= size)
+                    {
+                        continue;
+                    }
+                    end = Math.min(end, size - 1);
+                }
+            }
+            catch (NumberFormatException e)
+            {
+                return null;
+            }
+            ranges.add(new Range(start, end));
+            if (ranges.size() > MAX_RANGES)
+            {
+                return null;
+            }
+        }
+        return ranges;
+    }
+
+    /**
+     * Checks an If-Range header against the current entity.  The header holds either an entity tag,
+     * which must match exactly, or an HTTP date, which must match the last modified time to the second.
+     *
+     * @param ifRangeHeader  the If-Range header value (may be null)
+     * @param eTag  the current entity tag, quoted or not (may be null)
+     * @param lastModified  the current last modified time or -1 if not known
+     * @return  <code>true</code> if the Range header should be honoured
+     */
+    public static boolean isIfRangeSatisfied(String ifRangeHeader, String eTag, long lastModified)
+    {
+        if (ifRangeHeader == null || ifRangeHeader.trim().length() == 0)
+        {
+            return true;
+        }
+        String ifRange = ifRangeHeader.trim();
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/"))
+        {
+            // weak entity tags cannot be used for sub-ranges
+            return eTag != null && !ifRange.startsWith("W/") && unquote(ifRange).equals(unquote(eTag));
+        }
+        if (lastModified < 0)
+        {
+            return false;
+        }
+        SimpleDateFormat format = new SimpleDateFormat(HTTP_DATE_FORMAT, Locale.ENGLISH);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        try
+        {
+            long date = format.parse(ifRange).getTime();
+            return (date / 1000L) == (lastModified / 1000L);
+        }
+        catch (ParseException e)
+        {
+            // not a date, so treat it as an unquoted tag
+            return eTag != null && ifRange.equals(unquote(eTag));
+        }
+    }
+
+    /**
+     * @param ranges  the ranges to send
+     * @param mimetype  the mimetype of the content
+     * @param size  the size of the content
+     * @return  the Content-Length of the response for the given ranges
+     */
+    public static long getContentLength(List<Range> ranges, String mimetype, long size)
+    {
+        if (ranges.size() == 1)
+        {
+            return ranges.get(0).getLength();
+        }
+        long length = 0L;
+        for (Range range : ranges)
+        {
+            length += getPartHeader(range, mimetype, size).length() + range.getLength();
+        }
+        return length + getMultipartTrailer().length();
+    }
+
+    /**
+     * @param ranges  the ranges to send
+     * @param mimetype  the mimetype of the content
+     * @return  the Content-Type of the response for the given ranges
+     */
+    public static String getContentType(List<Range> ranges, String mimetype)
+    {
+        return ranges.size() == 1 ? mimetype : MULTIPART_BYTERANGES + "; boundary=" + MULTIPART_BOUNDARY;
+    }
+
+    /**
+     * Write the given ranges of the content to a stream.  A single range is written as is, several
+     * ranges are written as the parts of a <code>multipart/byteranges</code> body.
+     *
+     * @param reader  the content reader, whose file channel is read from and then closed
+     * @param ranges  the ranges to send, as returned by {@link #parseRanges(String, long)}
+     * @param mimetype  the mimetype of the content
+     * @param os  the response stream
+     * @throws IOException
+     */
+    public static void writeRanges(ContentReader reader, List<Range> ranges, String mimetype, OutputStream os)
+        throws IOException
+    {
+        long size = reader.getSize();
+        FileChannel channel = reader.getFileChannel();
+        try
+        {
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            if (ranges.size() == 1)
+            {
+                copyRange(channel, ranges.get(0), buffer, os);
+            }
+            else
+            {
+                for (Range range : ranges)
+                {
+                    os.write(getBytes(getPartHeader(range, mimetype, size)));
+                    copyRange(channel, range, buffer, os);
+                }
+                os.write(getBytes(getMultipartTrailer()));
+            }
+            os.flush();
+        }
+        finally
+        {
+            channel.close();
+        }
+    }
+
+    /**
+     * Copy a range of a channel using positional reads, which leave the channel position alone
+     */
+    private static void copyRange(FileChannel channel, Range range, ByteBuffer buffer, OutputStream os) throws IOException
+    {
+        byte[] bytes = buffer.array();
+        long position = range.getStart();
+        long remaining = range.getLength();
+        while (remaining > 0)
+        {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), remaining));
+            int count = channel.read(buffer, position);
+            if (count <= 0)
+            {
+                throw new IOException("Content ended before the end of range " + range);
+            }
+            os.write(bytes, 0, count);
+            position += count;
+            remaining -= count;
+        }
+    }
+
+    private static String getPartHeader(Range range, String mimetype, long size)
+    {
+        return CRLF + "--" + MULTIPART_BOUNDARY + CRLF +
+               "Content-Type: " + mimetype + CRLF +
+               HEADER_CONTENT_RANGE + ": " + range.getContentRange(size) + CRLF + CRLF;
+    }
+
+    private static String getMultipartTrailer()
+    {
+        return CRLF + "--" + MULTIPART_BOUNDARY + "--" + CRLF;
+    }
+
+    private static byte[] getBytes(String str) throws UnsupportedEncodingException
+    {
+        // part headers are plain ASCII, so the lengths above are byte counts
+        return str.getBytes("US-ASCII");
+    }
+
+    private static String unquote(String tag)
+    {
+        String value = tag.trim();
+        if (value.length() >= 2 && value.startsWith("\"") && value.endsWith("\""))
+        {
+            value = value.substring(1, value.length() - 1);
+        }
+        return value;
+    }
+}
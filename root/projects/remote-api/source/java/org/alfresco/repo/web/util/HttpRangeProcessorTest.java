@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2005-2010 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.repo.web.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.alfresco.repo.content.filestore.FileContentReader;
+import org.alfresco.repo.content.filestore.FileContentWriter;
+import org.alfresco.repo.web.util.HttpRangeProcessor.Range;
+import org.alfresco.util.TempFileProvider;
+
+
+/**
+ * Test HTTP byte range parsing and streaming
+ */
+public class HttpRangeProcessorTest extends TestCase
+{
+    private static final String CONTENT = "0123456789abcdefghijklmnopqrstuvwxyz";
+
+    public void testParseRanges()
+    {
+        long size = CONTENT.length();
+        assertNull(HttpRangeProcessor.parseRanges(null, size));
+        assertNull(HttpRangeProcessor.parseRanges("lines=1-2", size));
+        assertNull(HttpRangeProcessor.parseRanges("bytes=", size));
+        assertNull(HttpRangeProcessor.parseRanges("bytes=a-b", size));
+        assertNull(HttpRangeProcessor.parseRanges("bytes=5-2", size));
+
+        List<Range> ranges = HttpRangeProcessor.parseRanges("bytes=0-9", size);
+        assertEquals(1, ranges.size());
+        assertEquals(new Range(0, 9), ranges.get(0));
+        assertEquals("bytes 0-9/36", ranges.get(0).getContentRange(size));
+
+        // open ended, suffix and overlong ranges are limited to the content
+        ranges = HttpRangeProcessor.parseRanges("bytes=30-, -4, 20-100", size);
+        assertEquals(3, ranges.size());
+        assertEquals(new Range(30, 35), ranges.get(0));
+        assertEquals(new Range(32, 35), ranges.get(1));
+        assertEquals(new Range(20, 35), ranges.get(2));
+        assertEquals(new Range(0, 35), HttpRangeProcessor.parseRanges("bytes=-100", size).get(0));
+
+        // unsatisfiable ranges are dropped
+        ranges = HttpRangeProcessor.parseRanges("bytes=36-40,-0", size);
+        assertNotNull(ranges);
+        assertTrue(ranges.isEmpty());
+        assertEquals(1, HttpRangeProcessor.parseRanges("bytes=50-60,1-1", size).size());
+
+        // too many ranges
+        StringBuilder many = new StringBuilder("bytes=0-0");
+        for (int i = 0; i < HttpRangeProcessor.MAX_RANGES; i++)
+        {
+            many.append(",0-0");
+        }
+        assertNull(HttpRangeProcessor.parseRanges(many.toString(), size));
+    }
+
+    public void testIfRange()
+    {
+        long modified = 1262347200000L;  // Fri, 01 Jan 2010 12:00:00 GMT
+        assertTrue(HttpRangeProcessor.isIfRangeSatisfied(null, "\"abc\"", modified));
+        assertTrue(HttpRangeProcessor.isIfRangeSatisfied("\"abc\"", "\"abc\"", modified));
+        assertTrue(HttpRangeProcessor.isIfRangeSatisfied("\"abc\"", "abc", modified));
+        assertTrue(HttpRangeProcessor.isIfRangeSatisfied("abc", "abc", modified));
+        assertFalse(HttpRangeProcessor.isIfRangeSatisfied("\"abd\"", "\"abc\"", modified));
+        assertFalse(HttpRangeProcessor.isIfRangeSatisfied("W/\"abc\"", "\"abc\"", modified));
+        assertTrue(HttpRangeProcessor.isIfRangeSatisfied("Fri, 01 Jan 2010 12:00:00 GMT", null, modified + 500L));
+        assertFalse(HttpRangeProcessor.isIfRangeSatisfied("Fri, 01 Jan 2010 12:00:01 GMT", null, modified));
+        assertFalse(HttpRangeProcessor.isIfRangeSatisfied("Fri, 01 Jan 2010 12:00:00 GMT", null, -1L));
+    }
+
+    public void testWriteSingleRange() throws Exception
+    {
+        List<Range> ranges = HttpRangeProcessor.parseRanges("bytes=10-15", CONTENT.length());
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        HttpRangeProcessor.writeRanges(createReader(), ranges, "text/plain", os);
+        assertEquals("abcdef", os.toString("US-ASCII"));
+        assertEquals(os.size(), HttpRangeProcessor.getContentLength(ranges, "text/plain", CONTENT.length()));
+        assertEquals("text/plain", HttpRangeProcessor.getContentType(ranges, "text/plain"));
+    }
+
+    public void testWriteMultipleRanges() throws Exception
+    {
+        List<Range> ranges = HttpRangeProcessor.parseRanges("bytes=0-1,-2", CONTENT.length());
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        HttpRangeProcessor.writeRanges(createReader(), ranges, "text/plain", os);
+        String boundary = HttpRangeProcessor.MULTIPART_BOUNDARY;
+        String expected =
+            "\r\n--" + boundary + "\r\nContent-Type: text/plain\r\nContent-Range: bytes 0-1/36\r\n\r\n01" +
+            "\r\n--" + boundary + "\r\nContent-Type: text/plain\r\nContent-Range: bytes 34-35/36\r\n\r\nyz" +
+            "\r\n--" + boundary + "--\r\n";
+        assertEquals(expected, os.toString("US-ASCII"));
+        assertEquals(os.size(), HttpRangeProcessor.getContentLength(ranges, "text/plain", CONTENT.length()));
+        assertEquals("multipart/byteranges; boundary=" + boundary, HttpRangeProcessor.getContentType(ranges, "text/plain"));
+    }
+
+    private FileContentReader createReader()
+    {
+        File file = TempFileProvider.createTempFile("httpRangeProcessorTest", ".txt");
+        FileContentWriter writer = new FileContentWriter(file);
+        writer.setEncoding("US-ASCII");
+        writer.putContent(CONTENT);
+        return new FileContentReader(file);
+    }
+}
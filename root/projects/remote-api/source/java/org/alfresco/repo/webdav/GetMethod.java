@@ -31,6 +31,8 @@ import javax.servlet.http.HttpServletResponse;
 
 import org.springframework.extensions.surf.util.I18NUtil;
 import org.alfresco.repo.content.filestore.FileContentReader;
+import org.alfresco.repo.web.util.HttpRangeProcessor;
+import org.alfresco.repo.web.util.HttpRangeProcessor.Range;
 import org.alfresco.service.cmr.model.FileFolderService;
 import org.alfresco.service.cmr.model.FileInfo;
 import org.alfresco.service.cmr.model.FileNotFoundException;
@@ -53,6 +55,8 @@ public class GetMethod extends WebDAVMethod
     private ArrayList ifNoneMatchTags = null;
     private Date m_ifModifiedSince = null;
     private Date m_ifUnModifiedSince = null;
+    private String m_strRange = null;
+    private String m_strIfRange = null;
 
     protected boolean m_returnContent = true;
 
@@ -70,13 +74,14 @@ public class GetMethod extends WebDAVMethod
      */
     protected void parseRequestHeaders() throws WebDAVServerException
     {
-        // If the range header is present output a warning, add support later
+        // Capture the range headers, the ranges are parsed once the content size is known
 
         String strRange = m_request.getHeader(WebDAV.HEADER_RANGE);
 
         if (strRange != null && strRange.length() > 0)
         {
-            logger.warn("Range header (" + strRange + ") not supported");
+            m_strRange = strRange;
+            m_strIfRange = m_request.getHeader(WebDAV.HEADER_IF_RANGE);
         }
 
         // Capture all the If headers, process later
@@ -188,12 +193,14 @@ public class GetMethod extends WebDAVMethod
             checkPreConditions(nodeInfo);
 
             // Build the response header
-            m_response.setHeader(WebDAV.HEADER_ETAG, getDAVHelper().makeQuotedETag(pathNodeRef));
+            String strETag = getDAVHelper().makeQuotedETag(pathNodeRef);
+            m_response.setHeader(WebDAV.HEADER_ETAG, strETag);
 
+            long modDate = -1L;
             Date modifiedDate = nodeInfo.getModifiedDate();
             if (modifiedDate != null)
             {
-                long modDate = DefaultTypeConverter.INSTANCE.longValue(modifiedDate);
+                modDate = DefaultTypeConverter.INSTANCE.longValue(modifiedDate);
                 m_response.setHeader(WebDAV.HEADER_LAST_MODIFIED, WebDAV.formatHeaderDate(modDate));
             }
 
@@ -203,14 +210,49 @@ public class GetMethod extends WebDAVMethod
                     (ContentReader) reader,
                     I18NUtil.getMessage(FileContentReader.MSG_MISSING_CONTENT),
                     nodeInfo.getNodeRef(), reader);
-            // there is content associated with the node
-            m_response.setHeader(WebDAV.HEADER_CONTENT_LENGTH, Long.toString(reader.getSize()));
-            m_response.setHeader(WebDAV.HEADER_CONTENT_TYPE, reader.getMimetype());
-            
-            if (m_returnContent)
+            m_response.setHeader(HttpRangeProcessor.HEADER_ACCEPT_RANGES, HttpRangeProcessor.RANGE_UNIT_BYTES);
+
+            // Only honour the ranges if the client's copy of the content is still current
+            List<Range> ranges = null;
+            if (m_strRange != null && HttpRangeProcessor.isIfRangeSatisfied(m_strIfRange, strETag, modDate))
+            {
+                ranges = HttpRangeProcessor.parseRanges(m_strRange, reader.getSize());
+            }
+
+            if (ranges == null)
             {
-                // copy the content to the response output stream
-                reader.getContent(m_response.getOutputStream());
+                // there is content associated with the node
+                m_response.setHeader(WebDAV.HEADER_CONTENT_LENGTH, Long.toString(reader.getSize()));
+                m_response.setHeader(WebDAV.HEADER_CONTENT_TYPE, reader.getMimetype());
+                
+                if (m_returnContent)
+                {
+                    // copy the content to the response output stream
+                    reader.getContent(m_response.getOutputStream());
+                }
+            }
+            else if (ranges.isEmpty())
+            {
+                // none of the requested ranges overlap the content
+                m_response.setHeader(HttpRangeProcessor.HEADER_CONTENT_RANGE, HttpRangeProcessor.RANGE_UNIT_BYTES + " */" + reader.getSize());
+                throw new WebDAVServerException(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+            }
+            else
+            {
+                // send back the requested parts of the content
+                m_response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+                if (ranges.size() == 1)
+                {
+                    m_response.setHeader(HttpRangeProcessor.HEADER_CONTENT_RANGE, ranges.get(0).getContentRange(reader.getSize()));
+                }
+                m_response.setHeader(WebDAV.HEADER_CONTENT_LENGTH,
+                        Long.toString(HttpRangeProcessor.getContentLength(ranges, reader.getMimetype(), reader.getSize())));
+                m_response.setHeader(WebDAV.HEADER_CONTENT_TYPE, HttpRangeProcessor.getContentType(ranges, reader.getMimetype()));
+
+                if (m_returnContent)
+                {
+                    HttpRangeProcessor.writeRanges(reader, ranges, reader.getMimetype(), m_response.getOutputStream());
+                }
             }
         }
     }
@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2005-2010 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.filesys;
+
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import junit.framework.TestCase;
+
+import org.alfresco.jlan.server.filesys.cache.FileState;
+import org.alfresco.jlan.server.filesys.cache.FileStateCache;
+import org.alfresco.jlan.server.filesys.cache.FileStateListener;
+
+/**
+ * Stress test of the file server state cache, with many session threads opening, renaming and closing
+ * files while the expired file state checker runs.
+ */
+public class FileStateCacheStressTestP extends TestCase
+{
+    private static final int THREADS = 32;
+    private static final int OPERATIONS = 200000;
+    private static final int PATHS = 5000;
+    
+    private FileStateCache stateCache;
+    private CountingListener listener;
+    
+    @Override
+    protected void setUp() throws Exception
+    {
+        stateCache = new FileStateCache();
+        listener = new CountingListener();
+        stateCache.addStateListener(listener);
+    }
+    
+    public void testExpiry() throws Exception
+    {
+        stateCache.setCacheTimer(1000L);
+        FileState kept = stateCache.findFileState("\\kept.txt", true);
+        FileState open = stateCache.findFileState("\\open.txt", true);
+        FileState deleted = stateCache.findFileState("\\deleted.txt", true);
+        FileState forever = stateCache.findFileState("\\forever.txt", true);
+        open.incrementOpenCount();
+        forever.setExpiryTime(FileState.NoTimeout);
+        kept.setExpiryTime(System.currentTimeMillis() + 60000L);
+        
+        // Bringing the expiry time forward is picked up by the timer wheel
+        stateCache.setCacheTimer(60000L);
+        deleted.setExpiryTime(System.currentTimeMillis() + 100L);
+        
+        Thread.sleep(2500L);
+        assertEquals(1, stateCache.removeExpiredFileStates());
+        assertNull(stateCache.findFileState("\\deleted.txt"));
+        assertEquals(1, listener.expired.get());
+        
+        // Once closed, the open file expires
+        open.setExpiryTime(System.currentTimeMillis());
+        open.decrementOpenCount();
+        Thread.sleep(3000L + stateCache.getCheckInterval());
+        assertEquals(1, stateCache.removeExpiredFileStates());
+        assertNull(stateCache.findFileState("\\open.txt"));
+        assertSame(kept, stateCache.findFileState("\\kept.txt"));
+        assertSame(forever, stateCache.findFileState("\\forever.txt"));
+        
+        stateCache.removeAllFileStates();
+        assertEquals(0, stateCache.numberOfStates());
+        assertEquals(2, listener.closed.get());
+    }
+    
+    public void testConcurrentAccess() throws Throwable
+    {
+        stateCache.setCacheTimer(2000L);
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Throwable> errors = new ArrayList<Throwable>();
+        final AtomicLong operations = new AtomicLong();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < THREADS; i++)
+        {
+            final long seed = i;
+            Thread thread = new Thread("FileStateCacheStress-" + i)
+            {
+                @Override
+                public void run()
+                {
+                    Random random = new Random(seed);
+                    try
+                    {
+                        start.await();
+                        for (int op = 0; op < OPERATIONS; op++)
+                        {
+                            String path = "\\folder" + random.nextInt(50) + "\\file" + random.nextInt(PATHS) + ".txt";
+                            int choice = random.nextInt(100);
+                            if (choice < 70)
+                            {
+                                stateCache.findFileState(path);
+                            }
+                            else if (choice < 90)
+                            {
+                                FileState state = stateCache.findFileState(path, true);
+                                assertNotNull(state);
+                            }
+                            else if (choice < 95)
+                            {
+                                stateCache.updateFileState(path, path + ".renamed");
+                            }
+                            else
+                            {
+                                stateCache.removeFileState(path);
+                            }
+                            operations.incrementAndGet();
+                        }
+                    }
+                    catch (Throwable e)
+                    {
+                        synchronized (errors)
+                        {
+                            errors.add(e);
+                        }
+                    }
+                }
+            };
+            threads.add(thread);
+            thread.start();
+        }
+        
+        // The expired file state checker runs alongside the sessions
+        Thread reaper = new Thread("FileStateCacheStress-Reaper")
+        {
+            @Override
+            public void run()
+            {
+                while (!isInterrupted())
+                {
+                    stateCache.removeExpiredFileStates();
+                    try
+                    {
+                        Thread.sleep(200L);
+                    }
+                    catch (InterruptedException e)
+                    {
+                        return;
+                    }
+                }
+            }
+        };
+        reaper.start();
+        
+        long startTime = System.nanoTime();
+        start.countDown();
+        for (Thread thread : threads)
+        {
+            thread.join();
+        }
+        long elapsedMs = (System.nanoTime() - startTime) / 1000000L;
+        reaper.interrupt();
+        reaper.join();
+        if (!errors.isEmpty())
+        {
+            throw errors.get(0);
+        }
+        
+        System.out.println(
+                "FileStateCache: " + operations.get() + " operations by " + THREADS + " threads in " + elapsedMs + "ms (" +
+                (operations.get() * 1000L / Math.max(1L, elapsedMs)) + " ops/s), " +
+                stateCache.numberOfStates() + " states, " + listener.expired.get() + " expired, " +
+                listener.closed.get() + " closed");
+        assertEquals((long) THREADS * OPERATIONS, operations.get());
+        
+        // Every state is still found by its path, and all of them expire
+        Enumeration<String> paths = stateCache.enumerate();
+        while (paths.hasMoreElements())
+        {
+            String path = paths.nextElement();
+            assertEquals(path, stateCache.findFileState(path).getPath());
+        }
+        Thread.sleep(4000L);
+        stateCache.removeExpiredFileStates();
+        assertEquals(0, stateCache.numberOfStates());
+    }
+    
+    /**
+     * Counts the state listener callbacks
+     */
+    private static class CountingListener implements FileStateListener
+    {
+        private final AtomicInteger expired = new AtomicInteger();
+        private final AtomicInteger closed = new AtomicInteger();
+        
+        public boolean fileStateExpired(FileState state)
+        {
+            expired.incrementAndGet();
+            return true;
+        }
+        
+        public void fileStateClosed(FileState state)
+        {
+            closed.incrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2005-2010 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.repo.action;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A class of asynchronous actions, given by action definition name, that share a priority and a limit
+ * on how many of them may run at once.
+ * <p>
+ * Queued actions of a class with a higher priority are started first.  Actions that are not in any
+ * class have priority 0 and no limit of their own.
+ *
+ * @see AsynchronousActionExecutionQueueImpl#setActionClasses(List)
+ */
+public class AsynchronousActionClass
+{
+    private String name;
+    private int priority = 0;
+    private int maxActiveActions = -1;
+    private int maxWaitingActions = -1;
+    private List<String> actionDefinitionNames = Collections.emptyList();
+
+    /**
+     * @return  the name of the class, used in statistics
+     */
+    public String getName()
+    {
+        return name;
+    }
+
+    /**
+     * @param name  the name of the class, used in statistics
+     */
+    public void setName(String name)
+    {
+        this.name = name;
+    }
+
+    /**
+     * @return  the priority, higher values being started first
+     */
+    public int getPriority()
+    {
+        return priority;
+    }
+
+    /**
+     * @param priority  the priority, higher values being started first
+     */
+    public void setPriority(int priority)
+    {
+        this.priority = priority;
+    }
+
+    /**
+     * @return  the most actions of this class to run at once, or -1 for no limit
+     */
+    public int getMaxActiveActions()
+    {
+        return maxActiveActions;
+    }
+
+    /**
+     * @param maxActiveActions  the most actions of this class to run at once, or -1 for no limit
+     */
+    public void setMaxActiveActions(int maxActiveActions)
+    {
+        this.maxActiveActions = maxActiveActions;
+    }
+
+    /**
+     * @return  the most actions of this class that may wait to run, or -1 for the queue's default
+     */
+    public int getMaxWaitingActions()
+    {
+        return maxWaitingActions;
+    }
+
+    /**
+     * @param maxWaitingActions  the most actions of this class that may wait to run, or -1 for the queue's default
+     */
+    public void setMaxWaitingActions(int maxWaitingActions)
+    {
+        this.maxWaitingActions = maxWaitingActions;
+    }
+
+    /**
+     * @return  the names of the action definitions in this class
+     */
+    public List<String> getActionDefinitionNames()
+    {
+        return actionDefinitionNames;
+    }
+
+    /**
+     * @param actionDefinitionNames  the names of the action definitions in this class
+     */
+    public void setActionDefinitionNames(List<String> actionDefinitionNames)
+    {
+        this.actionDefinitionNames = actionDefinitionNames;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "AsynchronousActionClass[name=" + name + ", priority=" + priority + ", maxActiveActions=" + maxActiveActions +
+                ", maxWaitingActions=" + maxWaitingActions + "]";
+    }
+}
@@ -18,18 +18,40 @@
  */
 package org.alfresco.repo.action;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.Vector;
 import java.util.Map.Entry;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicLong;
 
+import org.alfresco.error.AlfrescoRuntimeException;
 import org.alfresco.error.StackTraceUtil;
 import org.alfresco.repo.action.AsynchronousActionExecutionQueuePolicies.OnAsyncActionExecute;
+import org.alfresco.repo.action.executer.CompositeActionExecuter;
 import org.alfresco.repo.policy.ClassPolicyDelegate;
 import org.alfresco.repo.policy.PolicyComponent;
 import org.alfresco.repo.rule.RuleServiceImpl;
@@ -40,6 +62,7 @@ import org.alfresco.repo.transaction.AlfrescoTransactionSupport;
 import org.alfresco.repo.transaction.TransactionListenerAdapter;
 import org.alfresco.repo.transaction.RetryingTransactionHelper.RetryingTransactionCallback;
 import org.alfresco.service.cmr.action.Action;
+import org.alfresco.service.cmr.action.ActionCondition;
 import org.alfresco.service.cmr.action.ActionServiceException;
 import org.alfresco.service.cmr.repository.InvalidNodeRefException;
 import org.alfresco.service.cmr.repository.NodeRef;
@@ -48,16 +71,44 @@ import org.alfresco.service.namespace.QName;
 import org.alfresco.service.transaction.TransactionService;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.springframework.context.ApplicationEvent;
+import org.springframework.extensions.surf.util.AbstractLifecycleBean;
 
 /**
  * The asynchronous action execution queue implementation
+ * <p>
+ * Actions wait in this queue, rather than in the thread pool's, so that they can be started in order of
+ * the priority of their {@link AsynchronousActionClass class} and so that each class can be limited in how
+ * many of its actions run at once.  No more than {@link #setMaxActiveActions(int) maxActiveActions} are
+ * handed to the thread pool at any time.  An action that is the same as one still waiting on the same node
+ * is dropped.
+ * <p>
+ * The actions waiting in each class are limited to {@link #setMaxWaitingActions(int) maxWaitingActions},
+ * or the class's own limit.  When a class is full the {@link OverflowPolicy} decides whether a new action
+ * is run in the thread that queued it or is dropped.
+ * <p>
+ * If a {@link #setJournalDirectory(String) journal directory} is given, each queued action is written to it
+ * until it has been run, and actions left there by a previous run of the server are queued again on startup.
  * 
  * @author Roy Wetherall
  */
-public class AsynchronousActionExecutionQueueImpl implements AsynchronousActionExecutionQueue
+public class AsynchronousActionExecutionQueueImpl extends AbstractLifecycleBean implements AsynchronousActionExecutionQueue
 {
     private static Log logger = LogFactory.getLog(AsynchronousActionExecutionQueueImpl.class);
     
+    private static final String JOURNAL_SUFFIX = ".action";
+    
+    /**
+     * What to do with an action when the queue of its class is full
+     */
+    public static enum OverflowPolicy
+    {
+        /** Run the action in the thread that queued it */
+        CALLER_RUNS,
+        /** Drop the action */
+        DISCARD
+    }
+    
     /** Services */
     private ThreadPoolExecutor threadPoolExecutor;
     private TransactionService transactionService;
@@ -77,6 +128,36 @@ public class AsynchronousActionExecutionQueueImpl implements AsynchronousActionE
     
     // Policy delegates
     private ClassPolicyDelegate<OnAsyncActionExecute> onAsyncActionExecuteDelegate; 
+    
+    /** Configuration */
+    private RuntimeActionService actionService;
+    private List<AsynchronousActionClass> actionClasses = Collections.emptyList();
+    private int maxActiveActions = -1;
+    private int maxWaitingActions = -1;
+    private OverflowPolicy overflowPolicy = OverflowPolicy.CALLER_RUNS;
+    private boolean deduplicate = true;
+    private File journalDirectory;
+    
+    /** Queued actions by class, with the classes in priority order (guarded by queueLock) */
+    private final Object queueLock = new Object();
+    private List<ActionClassQueue> classQueues = Collections.emptyList();
+    private Map<String, ActionClassQueue> classQueuesByActionName = Collections.emptyMap();
+    private ActionClassQueue defaultClassQueue;
+    private final Map<String, ActionExecutionWrapper> waitingActions = new HashMap<String, ActionExecutionWrapper>();
+    private int activeCount = 0;
+    
+    /** Statistics */
+    private final AtomicLong journalSequence = new AtomicLong();
+    private final AtomicLong queuedCount = new AtomicLong();
+    private final AtomicLong completedCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+    private final AtomicLong filteredCount = new AtomicLong();
+    private final AtomicLong deduplicatedCount = new AtomicLong();
+    private final AtomicLong recoveredCount = new AtomicLong();
+    private final AtomicLong callerRunCount = new AtomicLong();
+    private final AtomicLong discardedCount = new AtomicLong();
+    private final AtomicLong queueWaitTime = new AtomicLong();
+    private final AtomicLong executionTime = new AtomicLong();
 
     /**
      * Default constructor
@@ -92,6 +173,47 @@ public class AsynchronousActionExecutionQueueImpl implements AsynchronousActionE
     {
         // Register the policies
         onAsyncActionExecuteDelegate = policyComponent.registerClassPolicy(OnAsyncActionExecute.class);
+        
+        // Set up the queues of each action class, highest priority first
+        AsynchronousActionClass defaultClass = new AsynchronousActionClass();
+        defaultClass.setName("default");
+        List<ActionClassQueue> queues = new ArrayList<ActionClassQueue>(actionClasses.size() + 1);
+        Map<String, ActionClassQueue> queuesByActionName = new HashMap<String, ActionClassQueue>(17);
+        for (AsynchronousActionClass actionClass : actionClasses)
+        {
+            ActionClassQueue queue = new ActionClassQueue(actionClass);
+            queues.add(queue);
+            for (String actionDefinitionName : actionClass.getActionDefinitionNames())
+            {
+                queuesByActionName.put(actionDefinitionName, queue);
+            }
+        }
+        defaultClassQueue = new ActionClassQueue(defaultClass);
+        queues.add(defaultClassQueue);
+        Collections.sort(queues, new Comparator<ActionClassQueue>()
+        {
+            public int compare(ActionClassQueue queue1, ActionClassQueue queue2)
+            {
+                int priority1 = queue1.actionClass.getPriority();
+                int priority2 = queue2.actionClass.getPriority();
+                return (priority1 > priority2) ? -1 : ((priority1 == priority2) ? 0 : 1);
+            }
+        });
+        synchronized (queueLock)
+        {
+            classQueues = queues;
+            classQueuesByActionName = queuesByActionName;
+        }
+        
+        if (maxActiveActions <= 0)
+        {
+            // Queuing in the thread pool would defeat the priorities
+            maxActiveActions = Math.max(1, threadPoolExecutor.getCorePoolSize());
+        }
+        if (journalDirectory != null && !journalDirectory.exists() && !journalDirectory.mkdirs())
+        {
+            logger.warn("Unable to create the asynchronous action journal directory: " + journalDirectory);
+        }
     }
 
     /**
@@ -140,6 +262,142 @@ public class AsynchronousActionExecutionQueueImpl implements AsynchronousActionE
         this.nodeService = nodeService;
     }
     
+    /**
+     * Set the action service that runs the actions recovered from the journal
+     * 
+     * @param actionService     the runtime action service
+     */
+    public void setActionService(RuntimeActionService actionService)
+    {
+        this.actionService = actionService;
+    }
+    
+    /**
+     * Set the classes of actions that have their own priority or limit on concurrent execution
+     * 
+     * @param actionClasses     the action classes
+     */
+    public void setActionClasses(List<AsynchronousActionClass> actionClasses)
+    {
+        this.actionClasses = actionClasses;
+    }
+    
+    /**
+     * Set the most actions that are handed to the thread pool at once.  The default is the
+     * core size of the thread pool.
+     * 
+     * @param maxActiveActions  the limit, or -1 for the default
+     */
+    public void setMaxActiveActions(int maxActiveActions)
+    {
+        this.maxActiveActions = maxActiveActions;
+    }
+    
+    /**
+     * Set the most actions of a class that may wait to run, for classes that do not have
+     * their own limit
+     * 
+     * @param maxWaitingActions the limit, or -1 for no limit
+     */
+    public void setMaxWaitingActions(int maxWaitingActions)
+    {
+        this.maxWaitingActions = maxWaitingActions;
+    }
+    
+    /**
+     * Set what is done with an action when its class already has as many actions waiting as it may
+     * 
+     * @param overflowPolicy    the policy (default {@link OverflowPolicy#CALLER_RUNS})
+     */
+    public void setOverflowPolicy(OverflowPolicy overflowPolicy)
+    {
+        this.overflowPolicy = overflowPolicy;
+    }
+    
+    /**
+     * Set whether an action that is already waiting to run on the same node is dropped
+     * 
+     * @param deduplicate       <tt>true</tt> to drop duplicate actions
+     */
+    public void setDeduplicate(boolean deduplicate)
+    {
+        this.deduplicate = deduplicate;
+    }
+    
+    /**
+     * Set the directory in which queued actions are kept until they have run.  Each server keeps its
+     * actions in a subdirectory named after its IP address, so the directory may be shared by the
+     * servers in a cluster, but it must not be shared by two queues.
+     * 
+     * @param journalDirectory  the directory, or empty for no journal
+     */
+    public void setJournalDirectory(String journalDirectory)
+    {
+        if (journalDirectory == null || journalDirectory.trim().length() == 0)
+        {
+            this.journalDirectory = null;
+            return;
+        }
+        String serverAddress;
+        try
+        {
+            serverAddress = InetAddress.getLocalHost().getHostAddress();
+        }
+        catch (UnknownHostException e)
+        {
+            throw new AlfrescoRuntimeException("Failed to get server IP address", e);
+        }
+        // IPv6 addresses are not valid file names everywhere
+        this.journalDirectory = new File(journalDirectory, serverAddress.replace(':', '-'));
+    }
+    
+    /**
+     * @return  the directory of this server's journal, or <tt>null</tt> if there is no journal
+     */
+    public File getJournalDirectory()
+    {
+        return journalDirectory;
+    }
+    
+    /**
+     * Get the queue statistics: counts of the actions queued, running, completed, failed and dropped
+     * since startup, and of those run by the caller or dropped because their class was full; the total times in milliseconds actions spent waiting and running; and the number
+     * of actions waiting and running for each action class.
+     * 
+     * @return  the statistics by name
+     */
+    public Map<String, Long> getStatistics()
+    {
+        Map<String, Long> statistics = new LinkedHashMap<String, Long>(31);
+        synchronized (queueLock)
+        {
+            long waiting = 0;
+            for (ActionClassQueue queue : classQueues)
+            {
+                waiting += queue.waiting.size();
+            }
+            statistics.put("WaitingActions", waiting);
+            statistics.put("ActiveActions", (long) activeCount);
+            statistics.put("MaxActiveActions", (long) maxActiveActions);
+            statistics.put("QueuedActions", queuedCount.get());
+            statistics.put("CompletedActions", completedCount.get());
+            statistics.put("FailedActions", failedCount.get());
+            statistics.put("FilteredActions", filteredCount.get());
+            statistics.put("DeduplicatedActions", deduplicatedCount.get());
+            statistics.put("RecoveredActions", recoveredCount.get());
+            statistics.put("CallerRunActions", callerRunCount.get());
+            statistics.put("DiscardedActions", discardedCount.get());
+            statistics.put("QueueWaitTimeMs", queueWaitTime.get());
+            statistics.put("ExecutionTimeMs", executionTime.get());
+            for (ActionClassQueue queue : classQueues)
+            {
+                statistics.put("WaitingActions." + queue.actionClass.getName(), (long) queue.waiting.size());
+                statistics.put("ActiveActions." + queue.actionClass.getName(), (long) queue.active);
+            }
+        }
+        return statistics;
+    }
+    
     private void invokeOnAsyncActionExecutePolicy(Action action, NodeRef actionedUponNodeRef)
     {
         // get qnames to invoke against
@@ -239,11 +497,15 @@ public class AsynchronousActionExecutionQueueImpl implements AsynchronousActionE
     	    msg = new StringBuilder();
     	    msg.append("ThreadPool's queue size = ").append(this.threadPoolExecutor.getQueue().size());
     	    logger.debug(msg.toString());
+
+    	    msg = new StringBuilder();
+    	    msg.append("Queue statistics = ").append(getStatistics());
+    	    logger.debug(msg.toString());
     	}
 
     	Set<RuleServiceImpl.ExecutedRuleData> executedRules =
             (Set<RuleServiceImpl.ExecutedRuleData>) AlfrescoTransactionSupport.getResource("RuleServiceImpl.ExecutedRules");
-        Runnable runnable = new ActionExecutionWrapper(
+        ActionExecutionWrapper runnable = new ActionExecutionWrapper(
                 actionService,
                 action,
                 actionedUponNodeRef,
@@ -294,6 +556,7 @@ public class AsynchronousActionExecutionQueueImpl implements AsynchronousActionE
         		msg.append("Dropping action ").append(action).append(" as equivalent is ongoing.");
         		logger.debug(msg.toString());
         	}
+        	filteredCount.incrementAndGet();
         	return;
         }
         else
@@ -306,8 +569,10 @@ public class AsynchronousActionExecutionQueueImpl implements AsynchronousActionE
         	}
 
         	// Queue it and do it.
-        	ongoingActions.add(nodeBeingNewlyActioned);
-        	threadPoolExecutor.execute(runnable);
+        	if (!queueAction(runnable, true))
+        	{
+        	    return;
+        	}
         }
 
         // Done
@@ -328,15 +593,322 @@ public class AsynchronousActionExecutionQueueImpl implements AsynchronousActionE
         }
     }
     
-    private void handleAsyncActionIsCompleted(NodeRef n, Action action) {
+    /**
+     * Queue an action in its class, unless the same action is already waiting on the node.  If the
+     * class is full the action is run now or dropped, according to the {@link OverflowPolicy}.
+     * 
+     * @param wrapper               the action to queue
+     * @param journal               <tt>true</tt> to write the action to the journal
+     * @return                      <tt>true</tt> if the action was queued or run
+     */
+    private boolean queueAction(ActionExecutionWrapper wrapper, boolean journal)
+    {
+        boolean full;
+        synchronized (queueLock)
+        {
+            if (deduplicate)
+            {
+                ActionExecutionWrapper waiting = waitingActions.get(wrapper.key);
+                if (waiting != null)
+                {
+                    if (logger.isDebugEnabled())
+                    {
+                        StringBuilder msg = new StringBuilder();
+                        msg.append("Dropping action ").append(wrapper.action).append(" as it is already waiting to run.");
+                        logger.debug(msg.toString());
+                    }
+                    deduplicatedCount.incrementAndGet();
+                    deleteJournal(wrapper);
+                    return false;
+                }
+            }
+            ActionClassQueue queue = classQueuesByActionName.get(wrapper.action.getActionDefinitionName());
+            if (queue == null)
+            {
+                queue = defaultClassQueue;
+            }
+            wrapper.classQueue = queue;
+            wrapper.queuedTime = System.currentTimeMillis();
+            full = queue.isFull(maxWaitingActions);
+            if (full && overflowPolicy == OverflowPolicy.DISCARD)
+            {
+                discardedCount.incrementAndGet();
+                logger.warn("Dropping action " + wrapper.action + " as there are already " + queue.waiting.size() +
+                        " " + queue.actionClass.getName() + " actions waiting to run.");
+                deleteJournal(wrapper);
+                return false;
+            }
+            else if (full)
+            {
+                // Counted as running, so that completion is handled as for a pooled action
+                queue.active++;
+                activeCount++;
+            }
+            else
+            {
+                // Hold the place while the journal is written
+                queue.reserved++;
+                if (deduplicate)
+                {
+                    waitingActions.put(wrapper.key, wrapper);
+                }
+            }
+            ongoingActions.add(new OngoingAsyncAction(wrapper.actionedUponNodeRef, wrapper.action));
+        }
+        
+        if (full)
+        {
+            if (logger.isDebugEnabled())
+            {
+                logger.debug("Running action " + wrapper.action + " in the calling thread as its queue is full.");
+            }
+            callerRunCount.incrementAndGet();
+            wrapper.run();
+            return true;
+        }
+        
+        if (journal)
+        {
+            writeJournal(wrapper);
+        }
+        
+        synchronized (queueLock)
+        {
+            wrapper.classQueue.reserved--;
+            wrapper.classQueue.waiting.add(wrapper);
+            queuedCount.incrementAndGet();
+        }
+        dispatch();
+        return true;
+    }
+    
+    /**
+     * Hand waiting actions to the thread pool, highest priority first, while there is room
+     */
+    private void dispatch()
+    {
+        List<ActionExecutionWrapper> toRun = new ArrayList<ActionExecutionWrapper>();
+        synchronized (queueLock)
+        {
+            for (ActionClassQueue queue : classQueues)
+            {
+                while (activeCount < maxActiveActions && queue.canStart())
+                {
+                    ActionExecutionWrapper wrapper = queue.waiting.removeFirst();
+                    if (waitingActions.get(wrapper.key) == wrapper)
+                    {
+                        // From now on the same action is queued again
+                        waitingActions.remove(wrapper.key);
+                    }
+                    queue.active++;
+                    activeCount++;
+                    toRun.add(wrapper);
+                }
+                if (activeCount >= maxActiveActions)
+                {
+                    break;
+                }
+            }
+        }
+        for (ActionExecutionWrapper wrapper : toRun)
+        {
+            try
+            {
+                threadPoolExecutor.execute(wrapper);
+            }
+            catch (RejectedExecutionException e)
+            {
+                logger.error("Failed to execute asynchronous action: " + wrapper.action, e);
+                handleAsyncActionIsCompleted(wrapper, false, 0L);
+            }
+        }
+    }
+    
+    private void handleAsyncActionIsCompleted(ActionExecutionWrapper wrapper, boolean succeeded, long elapsed) {
     	if (logger.isDebugEnabled())
     	{
     		StringBuilder msg = new StringBuilder();
-    		msg.append("Completed action ").append(action);
+    		msg.append("Completed action ").append(wrapper.action);
     		logger.debug(msg.toString());
     	}
-    	OngoingAsyncAction ongoing = new OngoingAsyncAction(n, action);
+    	OngoingAsyncAction ongoing = new OngoingAsyncAction(wrapper.actionedUponNodeRef, wrapper.action);
     	ongoingActions.remove(ongoing);
+    	deleteJournal(wrapper);
+    	(succeeded ? completedCount : failedCount).incrementAndGet();
+    	executionTime.addAndGet(elapsed);
+    	synchronized (queueLock)
+    	{
+    	    wrapper.classQueue.active--;
+    	    activeCount--;
+    	}
+    	dispatch();
+    }
+    
+    /**
+     * Write a queued action to the journal.  Actions that cannot be written are run all the same.
+     */
+    private void writeJournal(ActionExecutionWrapper wrapper)
+    {
+        if (journalDirectory == null)
+        {
+            return;
+        }
+        String fileName = String.format("%013d-%09d%s", System.currentTimeMillis(), journalSequence.incrementAndGet(), JOURNAL_SUFFIX);
+        File file = new File(journalDirectory, fileName);
+        ObjectOutputStream os = null;
+        try
+        {
+            os = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+            os.writeObject(new JournalEntry(wrapper));
+            os.close();
+            os = null;
+            wrapper.journalFile = file;
+        }
+        catch (IOException e)
+        {
+            logger.warn("Unable to journal asynchronous action " + wrapper.action + ": " + e.getMessage());
+            if (os != null)
+            {
+                try { os.close(); } catch (IOException ee) {}
+            }
+            file.delete();
+        }
+    }
+    
+    private void deleteJournal(ActionExecutionWrapper wrapper)
+    {
+        if (wrapper.journalFile != null && !wrapper.journalFile.delete() && wrapper.journalFile.exists())
+        {
+            logger.warn("Unable to delete asynchronous action journal file: " + wrapper.journalFile);
+        }
+    }
+    
+    /**
+     * Queue the actions left in the journal by the last run of the server
+     */
+    @Override
+    protected void onBootstrap(ApplicationEvent event)
+    {
+        if (journalDirectory == null)
+        {
+            return;
+        }
+        if (actionService == null)
+        {
+            logger.warn("No action service to run the actions in " + journalDirectory);
+            return;
+        }
+        File[] files = journalDirectory.listFiles();
+        if (files == null)
+        {
+            return;
+        }
+        Arrays.sort(files);
+        for (File file : files)
+        {
+            if (!file.getName().endsWith(JOURNAL_SUFFIX))
+            {
+                continue;
+            }
+            JournalEntry entry = null;
+            ObjectInputStream is = null;
+            try
+            {
+                is = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)));
+                entry = (JournalEntry) is.readObject();
+            }
+            catch (Exception e)
+            {
+                logger.warn("Discarding unreadable asynchronous action journal file " + file + ": " + e.getMessage());
+            }
+            finally
+            {
+                if (is != null)
+                {
+                    try { is.close(); } catch (IOException e) {}
+                }
+            }
+            if (entry == null)
+            {
+                file.delete();
+                continue;
+            }
+            ActionExecutionWrapper wrapper = new ActionExecutionWrapper(
+                    actionService,
+                    entry.action,
+                    entry.actionedUponNodeRef,
+                    entry.checkConditions,
+                    entry.actionExecutionHistoryNodeRef,
+                    entry.actionChain,
+                    null);
+            wrapper.journalFile = file;
+            if (queueAction(wrapper, false))
+            {
+                recoveredCount.incrementAndGet();
+            }
+        }
+        if (logger.isInfoEnabled() && recoveredCount.get() > 0)
+        {
+            logger.info("Queued " + recoveredCount.get() + " asynchronous actions from " + journalDirectory);
+        }
+    }
+
+    @Override
+    protected void onShutdown(ApplicationEvent event)
+    {
+        // Queued actions stay in the journal
+    }
+    
+    /**
+     * The actions of one class waiting to run, the number about to be added and the number running
+     * (guarded by queueLock)
+     */
+    private static class ActionClassQueue
+    {
+        private final AsynchronousActionClass actionClass;
+        private final LinkedList<ActionExecutionWrapper> waiting = new LinkedList<ActionExecutionWrapper>();
+        private int active = 0;
+        private int reserved = 0;
+        
+        private ActionClassQueue(AsynchronousActionClass actionClass)
+        {
+            this.actionClass = actionClass;
+        }
+        
+        private boolean canStart()
+        {
+            int max = actionClass.getMaxActiveActions();
+            return !waiting.isEmpty() && (max < 0 || active < max);
+        }
+        
+        private boolean isFull(int defaultMaxWaiting)
+        {
+            int max = actionClass.getMaxWaitingActions() < 0 ? defaultMaxWaiting : actionClass.getMaxWaitingActions();
+            return max >= 0 && waiting.size() + reserved >= max;
+        }
+    }
+    
+    /**
+     * What is needed to run a queued action after a restart
+     */
+    private static class JournalEntry implements Serializable
+    {
+        private static final long serialVersionUID = -5313407453264858170L;
+        
+        private final Action action;
+        private final NodeRef actionedUponNodeRef;
+        private final boolean checkConditions;
+        private final NodeRef actionExecutionHistoryNodeRef;
+        private final Set<String> actionChain;
+        
+        private JournalEntry(ActionExecutionWrapper wrapper)
+        {
+            this.action = wrapper.action;
+            this.actionedUponNodeRef = wrapper.actionedUponNodeRef;
+            this.checkConditions = wrapper.checkConditions;
+            this.actionExecutionHistoryNodeRef = wrapper.actionExecutionHistoryNodeRef;
+            this.actionChain = (wrapper.actionChain == null) ? null : new HashSet<String>(wrapper.actionChain);
+        }
     }
     
     /**
@@ -383,6 +955,12 @@ public class AsynchronousActionExecutionQueueImpl implements AsynchronousActionE
         private NodeRef actionExecutionHistoryNodeRef;
         private Set<String> actionChain;
         private Set<RuleServiceImpl.ExecutedRuleData> executedRules;
+        
+        /** Queue state */
+        private final String key;
+        private ActionClassQueue classQueue;
+        private long queuedTime;
+        private File journalFile;
 
         /**
          * @param actionService                     the action service
@@ -409,6 +987,36 @@ public class AsynchronousActionExecutionQueueImpl implements AsynchronousActionE
             this.actionExecutionHistoryNodeRef = actionExecutionHistoryNodeRef;
             this.actionChain = actionChain;
             this.executedRules = executedRules;
+            
+            this.key = getKey(action, actionedUponNodeRef, checkConditions);
+        }
+
+        /**
+         * The same action, with the same parameters and conditions, run as the same user on the same node.
+         * Actions are usually created afresh each time they are queued, so their ids are only used for composite
+         * actions, whose parameters do not identify the actions they contain.
+         */
+        private String getKey(Action action, NodeRef actionedUponNodeRef, boolean checkConditions)
+        {
+            StringBuilder key = new StringBuilder(128);
+            key.append(actionedUponNodeRef).append('|')
+               .append(action.getActionDefinitionName()).append('|');
+            if (CompositeActionExecuter.NAME.equals(action.getActionDefinitionName()))
+            {
+                key.append(action.getId()).append('|');
+            }
+            key.append(((ActionImpl) action).getRunAsUser()).append('|')
+               .append(new TreeMap<String, Serializable>(action.getParameterValues()));
+            if (checkConditions)
+            {
+                for (ActionCondition condition : action.getActionConditions())
+                {
+                    key.append('|').append(condition.getActionConditionDefinitionName())
+                       .append('|').append(condition.getInvertCondition())
+                       .append('|').append(new TreeMap<String, Serializable>(condition.getParameterValues()));
+                }
+            }
+            return key.toString();
         }
 
         /**
@@ -468,6 +1076,9 @@ public class AsynchronousActionExecutionQueueImpl implements AsynchronousActionE
          */
         public void run()
         {
+            long startTime = System.currentTimeMillis();
+            queueWaitTime.addAndGet(startTime - queuedTime);
+            boolean succeeded = false;
             try
             {
                 // Get the run as user name
@@ -504,12 +1115,13 @@ public class AsynchronousActionExecutionQueueImpl implements AsynchronousActionE
                     }
                 };
                 AuthenticationUtil.runAs(actionRunAs, userName);
+                succeeded = true;
             }
             catch (Throwable exception)
             {
                 logger.error("Failed to execute asynchronous action: " + action, exception);
             }
-            handleAsyncActionIsCompleted(actionedUponNodeRef, action);
+            handleAsyncActionIsCompleted(this, succeeded, System.currentTimeMillis() - startTime);
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,320 @@
+/*
+ * Copyright (C) 2005-2010 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.repo.action;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.alfresco.repo.action.executer.CompositeActionExecuter;
+import org.alfresco.repo.policy.PolicyComponent;
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.repo.transaction.RetryingTransactionHelper;
+import org.alfresco.repo.transaction.RetryingTransactionHelper.RetryingTransactionCallback;
+import org.alfresco.service.cmr.action.Action;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.StoreRef;
+import org.alfresco.service.transaction.TransactionService;
+import org.alfresco.util.GUID;
+import org.alfresco.util.TempFileProvider;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * Checks the ordering, limits, overflow, de-duplication and journal of the asynchronous action queue, using a
+ * thread pool that only runs actions when told to.
+ * 
+ * @see AsynchronousActionExecutionQueueImpl
+ */
+public class AsynchronousActionExecutionQueueImplTest extends TestCase
+{
+    private static final NodeRef NODE = new NodeRef(StoreRef.STORE_REF_WORKSPACE_SPACESSTORE, "node");
+    
+    private RuntimeActionService actionService;
+    private TransactionService transactionService;
+    private HeldThreadPoolExecutor threadPool;
+    private File journalDirectory;
+    private List<String> executed;
+    
+    @Override
+    protected void setUp() throws Exception
+    {
+        executed = new ArrayList<String>();
+        actionService = mock(RuntimeActionService.class);
+        doAnswer(new Answer<Object>()
+        {
+            public Object answer(InvocationOnMock invocation) throws Throwable
+            {
+                Action action = (Action) invocation.getArguments()[0];
+                executed.add(action.getActionDefinitionName());
+                return null;
+            }
+        }).when(actionService).executeActionImpl(any(Action.class), any(NodeRef.class), anyBoolean(), anyBoolean(), any(Set.class));
+        
+        RetryingTransactionHelper txnHelper = mock(RetryingTransactionHelper.class);
+        when(txnHelper.doInTransaction(any(RetryingTransactionCallback.class))).thenAnswer(new Answer<Object>()
+        {
+            public Object answer(InvocationOnMock invocation) throws Throwable
+            {
+                return ((RetryingTransactionCallback<?>) invocation.getArguments()[0]).execute();
+            }
+        });
+        transactionService = mock(TransactionService.class);
+        when(transactionService.getRetryingTransactionHelper()).thenReturn(txnHelper);
+        
+        threadPool = new HeldThreadPoolExecutor();
+        journalDirectory = new File(TempFileProvider.getTempDir(), "asyncactions-" + GUID.generate());
+        
+        // Queuing looks for the rules executed by the caller's transaction
+        TransactionSynchronizationManager.initSynchronization();
+    }
+    
+    @Override
+    protected void tearDown() throws Exception
+    {
+        TransactionSynchronizationManager.clear();
+        for (Object key : new ArrayList<Object>(TransactionSynchronizationManager.getResourceMap().keySet()))
+        {
+            TransactionSynchronizationManager.unbindResource(key);
+        }
+        threadPool.shutdownNow();
+        delete(journalDirectory);
+    }
+    
+    private void delete(File file)
+    {
+        File[] files = file.listFiles();
+        if (files != null)
+        {
+            for (File child : files)
+            {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+    
+    private AsynchronousActionExecutionQueueImpl makeQueue(int maxActiveActions)
+    {
+        AsynchronousActionClass rules = new AsynchronousActionClass();
+        rules.setName("rules");
+        rules.setPriority(10);
+        rules.setActionDefinitionNames(Arrays.asList("rule"));
+        AsynchronousActionClass thumbnails = new AsynchronousActionClass();
+        thumbnails.setName("thumbnails");
+        thumbnails.setMaxActiveActions(1);
+        thumbnails.setActionDefinitionNames(Arrays.asList("thumbnail"));
+        
+        AsynchronousActionExecutionQueueImpl queue = new AsynchronousActionExecutionQueueImpl();
+        queue.setThreadPoolExecutor(threadPool);
+        queue.setTransactionService(transactionService);
+        queue.setPolicyComponent(mock(PolicyComponent.class));
+        queue.setActionService(actionService);
+        queue.setActionClasses(Arrays.asList(thumbnails, rules));
+        queue.setMaxActiveActions(maxActiveActions);
+        queue.setJournalDirectory(journalDirectory.getPath());
+        queue.init();
+        return queue;
+    }
+    
+    private Action makeAction(String name, String value)
+    {
+        ActionImpl action = new ActionImpl(null, GUID.generate(), name);
+        action.setParameterValue("value", value);
+        action.setRunAsUser(AuthenticationUtil.getSystemUserName());
+        return action;
+    }
+    
+    public void testHigherPriorityActionsStartFirst() throws Exception
+    {
+        AsynchronousActionExecutionQueueImpl queue = makeQueue(1);
+        queue.executeAction(actionService, makeAction("other", "1"), NODE, false, null);
+        queue.executeAction(actionService, makeAction("other", "2"), NODE, false, null);
+        queue.executeAction(actionService, makeAction("rule", "3"), NODE, false, null);
+        
+        // Only one action is handed to the thread pool at a time
+        assertEquals(1, threadPool.held.size());
+        assertEquals(2L, queue.getStatistics().get("WaitingActions").longValue());
+        threadPool.runAll();
+        assertEquals(Arrays.asList("other", "rule", "other"), executed);
+        
+        Map<String, Long> statistics = queue.getStatistics();
+        assertEquals(3L, statistics.get("CompletedActions").longValue());
+        assertEquals(0L, statistics.get("WaitingActions").longValue());
+        assertEquals(0L, statistics.get("ActiveActions").longValue());
+    }
+    
+    public void testClassLimit() throws Exception
+    {
+        AsynchronousActionExecutionQueueImpl queue = makeQueue(5);
+        queue.executeAction(actionService, makeAction("thumbnail", "1"), NODE, false, null);
+        queue.executeAction(actionService, makeAction("thumbnail", "2"), NODE, false, null);
+        queue.executeAction(actionService, makeAction("other", "3"), NODE, false, null);
+        
+        // The second thumbnail waits for the first
+        assertEquals(2, threadPool.held.size());
+        Map<String, Long> statistics = queue.getStatistics();
+        assertEquals(1L, statistics.get("ActiveActions.thumbnails").longValue());
+        assertEquals(1L, statistics.get("WaitingActions.thumbnails").longValue());
+        threadPool.runAll();
+        assertEquals(3, executed.size());
+    }
+    
+    public void testWaitingDuplicatesAreDropped() throws Exception
+    {
+        AsynchronousActionExecutionQueueImpl queue = makeQueue(1);
+        Action running = makeAction("other", "1");
+        Action waiting = makeAction("other", "2");
+        queue.executeAction(actionService, running, NODE, false, null);
+        queue.executeAction(actionService, waiting, NODE, false, null);
+        queue.executeAction(actionService, waiting, NODE, false, null);
+        
+        // An action that has started can be queued again
+        queue.executeAction(actionService, running, NODE, false, null);
+        assertEquals(1L, queue.getStatistics().get("DeduplicatedActions").longValue());
+        threadPool.runAll();
+        assertEquals(3, executed.size());
+    }
+    
+    public void testFreshDuplicatesAreDropped() throws Exception
+    {
+        AsynchronousActionExecutionQueueImpl queue = makeQueue(1);
+        queue.executeAction(actionService, makeAction("other", "1"), NODE, false, null);
+        
+        // A new action with a new id, but the same definition, parameters and user
+        queue.executeAction(actionService, makeAction("thumbnail", "2"), NODE, false, null);
+        queue.executeAction(actionService, makeAction("thumbnail", "2"), NODE, false, null);
+        assertEquals(1L, queue.getStatistics().get("DeduplicatedActions").longValue());
+        
+        // Run as another user, or on another node, it is not a duplicate
+        Action otherUser = makeAction("thumbnail", "2");
+        ((ActionImpl) otherUser).setRunAsUser("other");
+        queue.executeAction(actionService, otherUser, NODE, false, null);
+        queue.executeAction(actionService, makeAction("thumbnail", "2"), new NodeRef(StoreRef.STORE_REF_WORKSPACE_SPACESSTORE, "other"), false, null);
+        
+        // Composite actions are told apart by their contents, so only by id
+        Action composite = makeAction(CompositeActionExecuter.NAME, "3");
+        queue.executeAction(actionService, composite, NODE, false, null);
+        queue.executeAction(actionService, makeAction(CompositeActionExecuter.NAME, "3"), NODE, false, null);
+        queue.executeAction(actionService, composite, NODE, false, null);
+        Map<String, Long> statistics = queue.getStatistics();
+        assertEquals(2L, statistics.get("DeduplicatedActions").longValue());
+        assertEquals(6L, statistics.get("QueuedActions").longValue());
+    }
+    
+    public void testFullClassRunsInCaller() throws Exception
+    {
+        AsynchronousActionExecutionQueueImpl queue = makeQueue(1);
+        queue.setMaxWaitingActions(1);
+        queue.executeAction(actionService, makeAction("other", "1"), NODE, false, null);
+        queue.executeAction(actionService, makeAction("other", "2"), NODE, false, null);
+        assertTrue(executed.isEmpty());
+        
+        // The class already has an action waiting, so this one runs now
+        queue.executeAction(actionService, makeAction("rule", "3"), NODE, false, null);
+        queue.executeAction(actionService, makeAction("other", "4"), NODE, false, null);
+        assertEquals(Arrays.asList("other"), executed);
+        Map<String, Long> statistics = queue.getStatistics();
+        assertEquals(1L, statistics.get("CallerRunActions").longValue());
+        assertEquals(2L, statistics.get("WaitingActions").longValue());
+        assertEquals(1L, statistics.get("ActiveActions").longValue());
+        
+        threadPool.runAll();
+        assertEquals(4, executed.size());
+        assertEquals(0L, queue.getStatistics().get("ActiveActions").longValue());
+        assertEquals(0, queue.getJournalDirectory().listFiles().length);
+    }
+    
+    public void testFullClassDiscards() throws Exception
+    {
+        AsynchronousActionExecutionQueueImpl queue = makeQueue(1);
+        queue.setMaxWaitingActions(1);
+        queue.setOverflowPolicy(AsynchronousActionExecutionQueueImpl.OverflowPolicy.DISCARD);
+        queue.executeAction(actionService, makeAction("other", "1"), NODE, false, null);
+        queue.executeAction(actionService, makeAction("other", "2"), NODE, false, null);
+        queue.executeAction(actionService, makeAction("other", "3"), NODE, false, null);
+        assertEquals(1L, queue.getStatistics().get("DiscardedActions").longValue());
+        assertEquals(2, queue.getJournalDirectory().listFiles().length);
+        
+        threadPool.runAll();
+        assertEquals(2, executed.size());
+    }
+    
+    public void testJournalledActionsAreRecovered() throws Exception
+    {
+        AsynchronousActionExecutionQueueImpl queue = makeQueue(1);
+        queue.executeAction(actionService, makeAction("other", "1"), NODE, false, null);
+        queue.executeAction(actionService, makeAction("rule", "2"), NODE, false, null);
+        // Each server has its own journal
+        assertEquals(journalDirectory, queue.getJournalDirectory().getParentFile());
+        assertEquals(2, queue.getJournalDirectory().listFiles().length);
+        
+        // The server stops before the actions run
+        threadPool.held.clear();
+        AsynchronousActionExecutionQueueImpl restarted = makeQueue(1);
+        restarted.onBootstrap(null);
+        assertEquals(2L, restarted.getStatistics().get("RecoveredActions").longValue());
+        threadPool.runAll();
+        assertEquals(Arrays.asList("other", "rule"), executed);
+        assertEquals(0, restarted.getJournalDirectory().listFiles().length);
+    }
+    
+    /**
+     * Holds actions until {@link #runAll()} is called
+     */
+    private static class HeldThreadPoolExecutor extends ThreadPoolExecutor
+    {
+        private final LinkedList<Runnable> held = new LinkedList<Runnable>();
+        
+        private HeldThreadPoolExecutor()
+        {
+            super(1, 1, 0L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+        }
+        
+        @Override
+        public void execute(Runnable command)
+        {
+            held.add(command);
+        }
+        
+        private void runAll()
+        {
+            while (!held.isEmpty())
+            {
+                held.removeFirst().run();
+            }
+        }
+    }
+}
@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2005-2010 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.repo.activities;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.alfresco.repo.activities.ActivityServiceImpl.CachedUserFeed;
+import org.alfresco.repo.cache.MemoryCache;
+import org.alfresco.repo.domain.activities.ActivityFeedDAO;
+import org.alfresco.repo.domain.activities.ActivityFeedEntity;
+import org.alfresco.repo.domain.activities.FeedControlDAO;
+import org.alfresco.repo.domain.activities.FeedControlEntity;
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.repo.tenant.SingleTServiceImpl;
+import org.alfresco.service.cmr.activities.FeedControl;
+import org.alfresco.service.cmr.security.AuthorityService;
+import org.alfresco.service.cmr.site.SiteInfo;
+import org.alfresco.service.cmr.site.SiteService;
+import org.json.JSONObject;
+
+/**
+ * Checks that site feeds are merged into user feeds when fanning out on read, and that merged
+ * feeds are cached until the user's feed controls change, without a repository.
+ *
+ * @see ActivityServiceImpl
+ */
+public class ActivityServiceFanOutOnReadTest extends TestCase
+{
+    private static final String USER = "alice";
+    private static final String OTHER_USER = "bob";
+    private static final String FORMAT = "json";
+    private static final String DOCLIB = "documentlibrary";
+    private static final String BLOG = "blog";
+
+    private ActivityFeedDAO feedDAO;
+    private FeedControlDAO feedControlDAO;
+    private SiteService siteService;
+    private ActivityServiceImpl activityService;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        feedDAO = mock(ActivityFeedDAO.class);
+        feedControlDAO = mock(FeedControlDAO.class);
+        when(feedControlDAO.selectFeedControls(USER)).thenReturn(new ArrayList<FeedControlEntity>());
+        when(feedControlDAO.selectFeedControl(any(FeedControlEntity.class))).thenReturn(-1L);
+        siteService = mock(SiteService.class);
+        List<SiteInfo> sites = Arrays.asList(makeSite("site1"), makeSite("site2"));
+        when(siteService.listSites(USER)).thenReturn(sites);
+        when(siteService.isMember("site1", USER)).thenReturn(true);
+
+        activityService = new ActivityServiceImpl();
+        activityService.setFeedDAO(feedDAO);
+        activityService.setFeedControlDAO(feedControlDAO);
+        activityService.setAuthorityService(mock(AuthorityService.class));
+        activityService.setTenantService(new SingleTServiceImpl());
+        activityService.setSiteService(siteService);
+        activityService.setFanOutOnRead(true);
+        activityService.setUserFeedCache(new MemoryCache<String, CachedUserFeed>());
+
+        AuthenticationUtil authUtil = new AuthenticationUtil();
+        authUtil.setDefaultAdminUserName("admin");
+        authUtil.setDefaultGuestUserName("guest");
+        authUtil.afterPropertiesSet();
+        AuthenticationUtil.setFullyAuthenticatedUser(USER);
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        AuthenticationUtil.clearCurrentSecurityContext();
+    }
+
+    public void testMergeOrderAndDuplicates() throws Exception
+    {
+        // Posts 1 and 3 were fanned out to the user before fanning out on read was switched on
+        setUserFeed(makeFeed(101L, 1L, OTHER_USER, "site1", DOCLIB), makeFeed(103L, 3L, OTHER_USER, "site1", DOCLIB));
+        setSiteFeed("site1",
+                makeFeed(205L, 5L, OTHER_USER, "site1", DOCLIB),
+                makeFeed(203L, 3L, OTHER_USER, "site1", DOCLIB),
+                makeFeed(202L, 2L, OTHER_USER, "site1", DOCLIB));
+        setSiteFeed("site2", makeFeed(204L, 4L, OTHER_USER, "site2", DOCLIB));
+
+        List<JSONObject> entries = getUserFeed(null, false, false);
+
+        // Newest first, with the user feed row for post 3 kept and the site feed row dropped
+        assertEquals(Arrays.asList(205L, 204L, 103L, 202L, 101L), getIds(entries));
+        for (JSONObject entry : entries)
+        {
+            assertEquals(USER, entry.getString("feedUserId"));
+        }
+    }
+
+    public void testFeedControlsExcludeSiteEntries() throws Exception
+    {
+        setUserFeed();
+        setSiteFeed("site1", makeFeed(203L, 3L, OTHER_USER, "site1", BLOG), makeFeed(201L, 1L, OTHER_USER, "site1", DOCLIB));
+        setSiteFeed("site2", makeFeed(204L, 4L, OTHER_USER, "site2", DOCLIB), makeFeed(202L, 2L, OTHER_USER, "site2", BLOG));
+        // Opt out of the blog of site1, and of the whole of site2
+        when(feedControlDAO.selectFeedControls(USER)).thenReturn(Arrays.asList(
+                new FeedControlEntity(USER, new FeedControl("site1", BLOG)),
+                new FeedControlEntity(USER, new FeedControl("site2", null))));
+
+        assertEquals(Arrays.asList(201L), getIds(getUserFeed(null, false, false)));
+    }
+
+    public void testThisUserAndOtherUsersFilters() throws Exception
+    {
+        setUserFeed();
+        setSiteFeed("site1", makeFeed(202L, 2L, USER, "site1", DOCLIB), makeFeed(201L, 1L, OTHER_USER, "site1", DOCLIB));
+        setSiteFeed("site2", makeFeed(204L, 4L, OTHER_USER, "site2", DOCLIB), makeFeed(203L, 3L, USER, "site2", DOCLIB));
+
+        assertEquals(Arrays.asList(204L, 201L), getIds(getUserFeed(null, true, false)));
+        assertEquals(Arrays.asList(203L, 202L), getIds(getUserFeed(null, false, true)));
+        assertEquals(Arrays.asList(204L, 203L, 202L, 201L), getIds(getUserFeed(null, false, false)));
+    }
+
+    public void testOnlyMemberSitesAreMerged() throws Exception
+    {
+        setUserFeed();
+        setSiteFeed("site1", makeFeed(201L, 1L, OTHER_USER, "site1", DOCLIB));
+        setSiteFeed("site3", makeFeed(202L, 2L, OTHER_USER, "site3", DOCLIB));
+
+        assertEquals(Arrays.asList(201L), getIds(getUserFeed("site1", false, false)));
+        assertEquals(0, getUserFeed("site3", false, false).size());
+    }
+
+    public void testCacheDroppedOnFeedControlChange() throws Exception
+    {
+        setUserFeed();
+        setSiteFeed("site1", makeFeed(201L, 1L, OTHER_USER, "site1", DOCLIB));
+        setSiteFeed("site2", makeFeed(202L, 2L, OTHER_USER, "site2", DOCLIB));
+
+        assertEquals(Arrays.asList(202L, 201L), getIds(getUserFeed(null, false, false)));
+        // Read again from the cache
+        assertEquals(Arrays.asList(202L, 201L), getIds(getUserFeed(null, false, false)));
+        verify(feedDAO, times(1)).selectSiteFeedEntries("site2", FORMAT);
+
+        // Opting out of site2 drops the cached feed
+        FeedControl feedControl = new FeedControl("site2", null);
+        when(feedControlDAO.selectFeedControls(USER)).thenReturn(Arrays.asList(new FeedControlEntity(USER, feedControl)));
+        activityService.setFeedControl(feedControl);
+        assertEquals(Arrays.asList(201L), getIds(getUserFeed(null, false, false)));
+        verify(feedDAO, times(2)).selectSiteFeedEntries("site2", FORMAT);
+
+        // As does opting back in
+        when(feedControlDAO.selectFeedControls(USER)).thenReturn(new ArrayList<FeedControlEntity>());
+        activityService.unsetFeedControl(feedControl);
+        assertEquals(Arrays.asList(202L, 201L), getIds(getUserFeed(null, false, false)));
+        verify(feedDAO, times(3)).selectSiteFeedEntries("site2", FORMAT);
+    }
+
+    private List<JSONObject> getUserFeed(String siteId, boolean excludeThisUser, boolean excludeOtherUsers) throws Exception
+    {
+        List<JSONObject> entries = new ArrayList<JSONObject>();
+        for (String entry : activityService.getUserFeedEntries(USER, FORMAT, siteId, excludeThisUser, excludeOtherUsers))
+        {
+            entries.add(new JSONObject(entry));
+        }
+        return entries;
+    }
+
+    private List<Long> getIds(List<JSONObject> entries) throws Exception
+    {
+        List<Long> ids = new ArrayList<Long>(entries.size());
+        for (JSONObject entry : entries)
+        {
+            ids.add(entry.getLong("id"));
+        }
+        return ids;
+    }
+
+    private void setUserFeed(ActivityFeedEntity... feeds) throws Exception
+    {
+        when(feedDAO.selectUserFeedEntries(anyString(), anyString(), (String) any(), anyBoolean(), anyBoolean())).thenReturn(Arrays.asList(feeds));
+    }
+
+    private void setSiteFeed(String siteNetwork, ActivityFeedEntity... feeds) throws Exception
+    {
+        when(feedDAO.selectSiteFeedEntries(siteNetwork, FORMAT)).thenReturn(Arrays.asList(feeds));
+    }
+
+    private ActivityFeedEntity makeFeed(long id, long postId, String postUserId, String siteNetwork, String appTool)
+    {
+        ActivityFeedEntity feed = new ActivityFeedEntity();
+        feed.setId(id);
+        feed.setPostId(postId);
+        feed.setPostUserId(postUserId);
+        feed.setFeedUserId(id < 200L ? USER : "");
+        feed.setSiteNetwork(siteNetwork);
+        feed.setAppTool(appTool);
+        feed.setActivityType("org.alfresco." + appTool + ".added");
+        feed.setActivitySummaryFormat(FORMAT);
+        feed.setActivitySummary("{}");
+        // Later posts are newer
+        feed.setPostDate(new Date(postId * 60000L));
+        return feed;
+    }
+
+    private SiteInfo makeSite(String shortName)
+    {
+        SiteInfo siteInfo = mock(SiteInfo.class);
+        when(siteInfo.getShortName()).thenReturn(shortName);
+        return siteInfo;
+    }
+}
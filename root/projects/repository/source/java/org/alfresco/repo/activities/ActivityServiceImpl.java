@@ -18,16 +18,23 @@
  */
 package org.alfresco.repo.activities;
 
+import java.io.Serializable;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import org.alfresco.error.AlfrescoRuntimeException;
+import org.alfresco.repo.cache.SimpleCache;
 import org.alfresco.repo.domain.activities.ActivityFeedDAO;
 import org.alfresco.repo.domain.activities.ActivityFeedEntity;
 import org.alfresco.repo.domain.activities.FeedControlDAO;
 import org.alfresco.repo.domain.activities.FeedControlEntity;
 import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.repo.security.authentication.AuthenticationUtil.RunAsWork;
 import org.alfresco.repo.security.permissions.AccessDeniedException;
 import org.alfresco.repo.tenant.TenantService;
 import org.alfresco.service.cmr.activities.ActivityPostService;
@@ -45,6 +52,10 @@ import org.json.JSONException;
 
 /**
  * Activity Service Implementation
+ * <p>
+ * When fanning out on read, site activities are only stored in the site feeds and are merged into a
+ * user feed, for the sites the user is a member of, when it is read.  The merged feeds are cached for
+ * a short time.
  * 
  * @author janv
  */
@@ -52,6 +63,14 @@ public class ActivityServiceImpl implements ActivityService
 {
     private static final Log logger = LogFactory.getLog(ActivityServiceImpl.class);
     
+    private static final Comparator<ActivityFeedEntity> POST_DATE_DESCENDING = new Comparator<ActivityFeedEntity>()
+    {
+        public int compare(ActivityFeedEntity feed1, ActivityFeedEntity feed2)
+        {
+            return feed2.getPostDate().compareTo(feed1.getPostDate());
+        }
+    };
+    
     private ActivityFeedDAO feedDAO;
     private FeedControlDAO feedControlDAO;
     private AuthorityService authorityService;
@@ -62,12 +81,40 @@ public class ActivityServiceImpl implements ActivityService
     private int maxFeedItems = 100;
     
     private boolean userNamesAreCaseSensitive = false;
+    
+    private boolean fanOutOnRead = false;
+    private SimpleCache<String, CachedUserFeed> userFeedCache;
+    private long userFeedCacheTimeoutMs = 60000L;
 
     public void setMaxFeedItems(int maxFeedItems)
     {
         this.maxFeedItems = maxFeedItems;
     }
     
+    /**
+     * @param fanOutOnRead  true to merge the feeds of the user's sites into the user feed when it is read
+     */
+    public void setFanOutOnRead(boolean fanOutOnRead)
+    {
+        this.fanOutOnRead = fanOutOnRead;
+    }
+    
+    /**
+     * @param userFeedCache the cache of merged user feeds, used when fanning out on read (optional)
+     */
+    public void setUserFeedCache(SimpleCache<String, CachedUserFeed> userFeedCache)
+    {
+        this.userFeedCache = userFeedCache;
+    }
+    
+    /**
+     * @param userFeedCacheTimeoutSecs  how long a merged user feed is reused for
+     */
+    public void setUserFeedCacheTimeoutSecs(int userFeedCacheTimeoutSecs)
+    {
+        this.userFeedCacheTimeoutMs = userFeedCacheTimeoutSecs * 1000L;
+    }
+    
     public void setUserNamesAreCaseSensitive(boolean userNamesAreCaseSensitive)
     {
         this.userNamesAreCaseSensitive = userNamesAreCaseSensitive;
@@ -173,9 +220,21 @@ public class ActivityServiceImpl implements ActivityService
             throw new AccessDeniedException("Unable to get user feed entries for '" + feedUserId + "' - currently logged in as '" + currentUser +"'");
         }
         
+        String cacheKey = null;
+        if (fanOutOnRead && (userFeedCache != null))
+        {
+            cacheKey = getUserFeedCacheKey(feedUserId, format, siteId, excludeThisUser, excludeOtherUsers);
+            CachedUserFeed cachedFeed = userFeedCache.get(cacheKey);
+            if ((cachedFeed != null) && (System.currentTimeMillis() - cachedFeed.created < userFeedCacheTimeoutMs))
+            {
+                return new ArrayList<String>(cachedFeed.entries);
+            }
+        }
+        
         try
         {
             List<ActivityFeedEntity> activityFeeds = null;
+            String siteShortName = siteId;
             if (siteId != null)
             {
                 siteId = tenantService.getName(siteId);
@@ -183,6 +242,11 @@ public class ActivityServiceImpl implements ActivityService
             
             activityFeeds = feedDAO.selectUserFeedEntries(feedUserId, format, siteId, excludeThisUser, excludeOtherUsers);
             
+            if (fanOutOnRead)
+            {
+                activityFeeds = mergeSiteFeedEntries(activityFeeds, feedUserId, format, siteShortName, excludeThisUser, excludeOtherUsers);
+            }
+            
             int count = 0;
             for (ActivityFeedEntity activityFeed : activityFeeds)
             {
@@ -209,9 +273,131 @@ public class ActivityServiceImpl implements ActivityService
             throw are;
         }
         
+        if (cacheKey != null)
+        {
+            userFeedCache.put(cacheKey, new CachedUserFeed(activityFeedEntries));
+        }
+        
         return activityFeedEntries;
     }
     
+    /**
+     * Merge the site feed entries of the user's sites (or the given site, if the user is a member)
+     * with the entries in the user's own feed, newest first.  Site entries that the user has opted out of,
+     * or that are already in the user feed, are left out.
+     */
+    private List<ActivityFeedEntity> mergeSiteFeedEntries(List<ActivityFeedEntity> userFeeds, String feedUserId, String format, String siteShortName, boolean excludeThisUser, boolean excludeOtherUsers) throws SQLException
+    {
+        List<String> siteNetworks = getMemberSiteNetworks(feedUserId, siteShortName);
+        if (siteNetworks.size() == 0)
+        {
+            return userFeeds;
+        }
+        
+        List<FeedControlEntity> feedControls = feedControlDAO.selectFeedControls(feedUserId);
+        
+        // activities posted before fanning out on read are also in the user feed
+        Set<Long> postIds = new HashSet<Long>(userFeeds.size() * 2);
+        for (ActivityFeedEntity userFeed : userFeeds)
+        {
+            postIds.add(userFeed.getPostId());
+        }
+        
+        List<ActivityFeedEntity> activityFeeds = new ArrayList<ActivityFeedEntity>(userFeeds);
+        for (String siteNetwork : siteNetworks)
+        {
+            for (ActivityFeedEntity siteFeed : feedDAO.selectSiteFeedEntries(siteNetwork, format))
+            {
+                boolean postedByThisUser = feedUserId.equals(siteFeed.getPostUserId());
+                if ((excludeThisUser && postedByThisUser) || (excludeOtherUsers && (! postedByThisUser)))
+                {
+                    continue;
+                }
+                
+                boolean excluded = false;
+                for (FeedControlEntity feedControl : feedControls)
+                {
+                    if (feedControl.excludes(siteFeed.getSiteNetwork(), siteFeed.getAppTool()))
+                    {
+                        excluded = true;
+                        break;
+                    }
+                }
+                
+                if ((! excluded) && postIds.add(siteFeed.getPostId()))
+                {
+                    siteFeed.setFeedUserId(feedUserId);
+                    activityFeeds.add(siteFeed);
+                }
+            }
+        }
+        
+        Collections.sort(activityFeeds, POST_DATE_DESCENDING);
+        
+        return activityFeeds;
+    }
+    
+    /**
+     * Get the (tenant-specific) site networks of the user's sites, or just of the given site if the user is a member
+     */
+    private List<String> getMemberSiteNetworks(final String feedUserId, final String siteShortName)
+    {
+        if (siteService == null)
+        {
+            return Collections.emptyList();
+        }
+        
+        // site membership is checked regardless of whether the current user can read the sites
+        String systemUser = tenantService.getDomainUser(AuthenticationUtil.getSystemUserName(), tenantService.getCurrentUserDomain());
+        return AuthenticationUtil.runAs(new RunAsWork<List<String>>()
+        {
+            public List<String> doWork() throws Exception
+            {
+                List<String> siteNetworks = new ArrayList<String>();
+                if (siteShortName != null)
+                {
+                    if (siteService.isMember(siteShortName, feedUserId))
+                    {
+                        siteNetworks.add(tenantService.getName(siteShortName));
+                    }
+                }
+                else
+                {
+                    for (SiteInfo siteInfo : siteService.listSites(feedUserId))
+                    {
+                        siteNetworks.add(tenantService.getName(siteInfo.getShortName()));
+                    }
+                }
+                return siteNetworks;
+            }
+        }, systemUser);
+    }
+    
+    private String getUserFeedCacheKey(String feedUserId, String format, String siteId, boolean excludeThisUser, boolean excludeOtherUsers)
+    {
+        return feedUserId + "|" + format + "|" + siteId + "|" + excludeThisUser + "|" + excludeOtherUsers;
+    }
+    
+    /**
+     * Drop the cached merged feeds of the given user, eg. when the user's feed controls change
+     */
+    private void clearUserFeedCache(String feedUserId)
+    {
+        if (userFeedCache == null)
+        {
+            return;
+        }
+        
+        String prefix = feedUserId + "|";
+        for (String key : new ArrayList<String>(userFeedCache.getKeys()))
+        {
+            if (key.startsWith(prefix))
+            {
+                userFeedCache.remove(key);
+            }
+        }
+    }
+    
     /* (non-Javadoc)
      * @see org.alfresco.service.cmr.activities.ActivityService#getSiteFeedEntries(java.lang.String, java.lang.String)
      */
@@ -285,6 +471,7 @@ public class ActivityServiceImpl implements ActivityService
             if (! existsFeedControl(feedControl))
             {
                 feedControlDAO.insertFeedControl(new FeedControlEntity(userId, feedControl));
+                clearUserFeedCache(userId);
             }
         }
         catch (SQLException e) 
@@ -366,6 +553,7 @@ public class ActivityServiceImpl implements ActivityService
         try
         {
             feedControlDAO.deleteFeedControl(new FeedControlEntity(userId, feedControl));
+            clearUserFeedCache(userId);
         }
         catch (SQLException e) 
         {
@@ -420,4 +608,21 @@ public class ActivityServiceImpl implements ActivityService
         // TODO
         return null;
     }
+    
+    /**
+     * A merged user feed and when it was read
+     */
+    public static class CachedUserFeed implements Serializable
+    {
+        private static final long serialVersionUID = -3460917043158417526L;
+        
+        private final long created;
+        private final List<String> entries;
+        
+        public CachedUserFeed(List<String> entries)
+        {
+            this.created = System.currentTimeMillis();
+            this.entries = new ArrayList<String>(entries);
+        }
+    }
 }
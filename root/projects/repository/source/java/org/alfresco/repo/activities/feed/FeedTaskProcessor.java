@@ -74,6 +74,30 @@ public abstract class FeedTaskProcessor
     private static final String URL_SERVICE_TEMPLATES = "/api/activities/templates";
     private static final String URL_SERVICE_TEMPLATE  = "/api/activities/template";
     
+    private int batchSize = 500;
+    
+    private boolean fanOutOnRead = false;
+    
+    /**
+     * Set the number of feed entries that are inserted in one batch
+     * 
+     * @param batchSize     the batch size
+     */
+    public void setBatchSize(int batchSize)
+    {
+        this.batchSize = batchSize;
+    }
+    
+    /**
+     * Set whether site activities are only stored once, in the site feed, and merged into the user feeds
+     * when they are read rather than copied to the feed of every site member
+     * 
+     * @param fanOutOnRead  true to write site activities to the site feed only
+     */
+    public void setFanOutOnRead(boolean fanOutOnRead)
+    {
+        this.fanOutOnRead = fanOutOnRead;
+    }
   
     public void process(int jobTaskNode, long minSeq, long maxSeq, RepoCtx ctx) throws Exception
     {
@@ -94,6 +118,8 @@ public abstract class FeedTaskProcessor
         
         List<ActivityPostEntity> activityPosts = null;
         int totalGenerated = 0;
+        int totalRendered = 0;
+        int siteMemberLookups = 0;
         
         try
         {
@@ -109,6 +135,11 @@ public abstract class FeedTaskProcessor
             
             Map<String, Template> templateCache = new TreeMap<String, Template>();
             
+            // Feed controls of the connected users, for this invocation
+            Map<String, List<FeedControlEntity>> userFeedControls = new HashMap<String, List<FeedControlEntity>>();
+            
+            List<ActivityFeedEntity> feedEntries = new ArrayList<ActivityFeedEntity>(batchSize);
+            
             // for each activity post ...
             for (ActivityPostEntity activityPost : activityPosts)
             {
@@ -208,8 +239,9 @@ public abstract class FeedTaskProcessor
                 Set<String> connectedUsers = siteConnectedUsers.get(thisSite);
                 if (connectedUsers == null)
                 {
-                    if ((thisSite == null) || (thisSite.length() == 0))
+                    if ((thisSite == null) || (thisSite.length() == 0) || fanOutOnRead)
                     {
+                        // site members read site activities from the site feed, when fanning out on read
                         connectedUsers = Collections.singleton(""); // add empty posting userid - to represent site feed !
                     }
                     else
@@ -217,6 +249,7 @@ public abstract class FeedTaskProcessor
                         try
                         {
                             // Repository callback to get site members
+                            siteMemberLookups++;
                             connectedUsers = getSiteMembers(ctx, thisSite);
                             connectedUsers.add(""); // add empty posting userid - to represent site feed !
                             
@@ -232,6 +265,57 @@ public abstract class FeedTaskProcessor
                     }
                 }
                 
+                // Render each template once, since the model is the same for every connected user
+                List<String> summaryFormats = new ArrayList<String>(fmTemplates.size());
+                List<String> activitySummaries = new ArrayList<String>(fmTemplates.size());
+                for (String fmTemplate : fmTemplates)
+                {
+                    // determine format - based on template naming convention
+                    String formatFound = null;
+                    for (String format : formats)
+                    {
+                        if (fmTemplate.contains("."+format+"."))
+                        {
+                            formatFound = format;
+                            break;
+                        }
+                    }
+                    
+                    if (formatFound == null)
+                    {
+                        formatFound = defaultFormat;
+                        logger.warn("Unknown format for: " + fmTemplate + " default to '"+formatFound+"'");
+                    }
+                    
+                    if (formatFound.equals("json"))
+                    {
+                        // allows generic JSON template to simply pass straight through
+                        model.put("activityData", activityPost.getActivityData());
+                    }
+                    
+                    String activitySummary = processFreemarker(templateCache, fmTemplate, cfg, model);
+                    totalRendered++;
+                    if (! activitySummary.equals(""))
+                    {
+                        if (activitySummary.length() > ActivityFeedDAO.MAX_LEN_ACTIVITY_SUMMARY)
+                        {
+                            logger.warn("Skip feed entry (activity post " + activityPost.getId() + ") since activity summary - exceeds " + ActivityFeedDAO.MAX_LEN_ACTIVITY_SUMMARY + " chars: " + activitySummary);
+                        }
+                        else
+                        {
+                            summaryFormats.add(formatFound);
+                            activitySummaries.add(activitySummary);
+                        }
+                    }
+                    else
+                    {
+                        if (logger.isDebugEnabled())
+                        {
+                            logger.debug("Empty template result for activityType '" + activityType + "' using format '" + formatFound + "' hence skip feed entry (activity post " + activityPost.getId() + ")");
+                        }
+                    }
+                }
+                
                 try 
                 { 
                     startTransaction();
@@ -242,13 +326,18 @@ public abstract class FeedTaskProcessor
                     }
                     
                     int excludedConnections = 0;
+                    Date feedDate = new Date();
                     
                     for (String connectedUser : connectedUsers)
                     {
                         List<FeedControlEntity> feedControls = null;
                         if (! connectedUser.equals(""))
                         {
-                            feedControls = getFeedControls(connectedUser);
+                            if (! userFeedControls.containsKey(connectedUser))
+                            {
+                                userFeedControls.put(connectedUser, getFeedControls(connectedUser));
+                            }
+                            feedControls = userFeedControls.get(connectedUser);
                         }
                         
                         // filter based on opt-out feed controls (if any)
@@ -258,72 +347,41 @@ public abstract class FeedTaskProcessor
                         }
                         else
                         { 
-                            for (String fmTemplate : fmTemplates)
+                            for (int i = 0; i < activitySummaries.size(); i++)
                             {
-                                // determine format - based on template naming convention
-                                String formatFound = null;
-                                for (String format : formats)
-                                {
-                                    if (fmTemplate.contains("."+format+"."))
-                                    {
-                                        formatFound = format;
-                                        break;
-                                    }
-                                }
-                                
-                                if (formatFound == null)
-                                {
-                                    formatFound = defaultFormat;
-                                    logger.warn("Unknown format for: " + fmTemplate + " default to '"+formatFound+"'");
-                                }
-                                
                                 ActivityFeedEntity feed = new ActivityFeedEntity();
                                 
                                 // Generate activity feed summary 
                                 feed.setFeedUserId(connectedUser);
                                 feed.setPostUserId(postingUserId);
                                 feed.setActivityType(activityType);
+                                feed.setActivitySummary(activitySummaries.get(i));
+                                feed.setActivitySummaryFormat(summaryFormats.get(i));
+                                feed.setSiteNetwork(thisSite);
+                                feed.setAppTool(activityPost.getAppTool());
+                                feed.setPostDate(activityPost.getPostDate());
+                                feed.setPostId(activityPost.getId());
+                                feed.setFeedDate(feedDate);
                                 
-                                if (formatFound.equals("json"))
-                                {
-                                    // allows generic JSON template to simply pass straight through
-                                    model.put("activityData", activityPost.getActivityData());
-                                }
-                                
-                                String activitySummary = processFreemarker(templateCache, fmTemplate, cfg, model);
-                                if (! activitySummary.equals(""))
-                                {
-                                    if (activitySummary.length() > ActivityFeedDAO.MAX_LEN_ACTIVITY_SUMMARY)
-                                    {
-                                        logger.warn("Skip feed entry (activity post " + activityPost.getId() + ") since activity summary - exceeds " + ActivityFeedDAO.MAX_LEN_ACTIVITY_SUMMARY + " chars: " + activitySummary);
-                                    }
-                                    else
-                                    {
-                                        feed.setActivitySummary(activitySummary);
-                                        feed.setActivitySummaryFormat(formatFound);
-                                        feed.setSiteNetwork(thisSite);
-                                        feed.setAppTool(activityPost.getAppTool());
-                                        feed.setPostDate(activityPost.getPostDate());
-                                        feed.setPostId(activityPost.getId());
-                                        feed.setFeedDate(new Date());
-                                        
-                                        // Insert activity feed
-                                        insertFeedEntry(feed); // ignore returned feedId
-                                        
-                                        totalGenerated++;
-                                    }
-                                }
-                                else
+                                feedEntries.add(feed);
+                                if (feedEntries.size() >= batchSize)
                                 {
-                                    if (logger.isDebugEnabled())
-                                    {
-                                        logger.debug("Empty template result for activityType '" + activityType + "' using format '" + formatFound + "' hence skip feed entry (activity post " + activityPost.getId() + ")");
-                                    }
+                                    // Insert activity feeds
+                                    insertFeedEntries(feedEntries);
+                                    totalGenerated += feedEntries.size();
+                                    feedEntries.clear();
                                 }
                             }
                         }
                     }
                     
+                    if (feedEntries.size() > 0)
+                    {
+                        insertFeedEntries(feedEntries);
+                        totalGenerated += feedEntries.size();
+                        feedEntries.clear();
+                    }
+                    
                     updatePostStatus(activityPost.getId(), ActivityPostEntity.STATUS.PROCESSED);
                     
                     commitTransaction();
@@ -335,6 +393,8 @@ public abstract class FeedTaskProcessor
                 } 
                 finally 
                 { 
+                    // entries not inserted are rolled back with the transaction
+                    feedEntries.clear();
                     endTransaction();
                 } 
             }
@@ -346,7 +406,9 @@ public abstract class FeedTaskProcessor
         }
         finally
         {
-            logger.info(">>> Generated " + totalGenerated + " activity feed entries for " + (activityPosts == null ? 0 : activityPosts.size()) + " activity posts (in " + (System.currentTimeMillis() - startTime) + " msecs)");
+            long elapsedTime = System.currentTimeMillis() - startTime;
+            logger.info(">>> Generated " + totalGenerated + " activity feed entries for " + (activityPosts == null ? 0 : activityPosts.size()) + " activity posts (in " + elapsedTime + " msecs, " +
+                        (totalGenerated * 1000L / Math.max(elapsedTime, 1L)) + " entries/sec, " + totalRendered + " templates rendered, " + siteMemberLookups + " site member lookups)");
         }
     }
     
@@ -362,6 +424,19 @@ public abstract class FeedTaskProcessor
     
     public abstract long insertFeedEntry(ActivityFeedEntity feed) throws SQLException;
     
+    /**
+     * Insert a batch of activity feed entries, by default one at a time
+     * 
+     * @param feeds     the activity feed entries
+     */
+    public void insertFeedEntries(List<ActivityFeedEntity> feeds) throws SQLException
+    {
+        for (ActivityFeedEntity feed : feeds)
+        {
+            insertFeedEntry(feed); // ignore returned feedId
+        }
+    }
+    
     public abstract int updatePostStatus(long id, ActivityPostEntity.STATUS status) throws SQLException;
     
     
@@ -551,7 +626,6 @@ public abstract class FeedTaskProcessor
     
     protected List<FeedControlEntity> getFeedControls(String connectedUser) throws SQLException
     {
-        // TODO cache for this run
         return selectUserFeedControls(connectedUser);
     }
     
@@ -564,31 +638,9 @@ public abstract class FeedTaskProcessor
         
         for (FeedControlEntity feedControl : feedControls)
         {
-            if (((feedControl.getSiteNetwork() == null) || (feedControl.getSiteNetwork().length() == 0)) && (feedControl.getAppTool() != null))
+            if (feedControl.excludes(activityPost.getSiteNetwork(), activityPost.getAppTool()))
             {
-                if (feedControl.getAppTool().equals(activityPost.getAppTool()))
-                {
-                    // exclude this appTool (across sites)
-                    return false;
-                }
-            }
-            else if (((feedControl.getAppTool() == null) || (feedControl.getAppTool().length() == 0)) && (feedControl.getSiteNetwork() != null))
-            {
-                if (feedControl.getSiteNetwork().equals(activityPost.getSiteNetwork()))
-                {
-                    // exclude this site (across appTools)
-                    return false;
-                }
-            }
-            else if (((feedControl.getSiteNetwork() != null) && (feedControl.getSiteNetwork().length() > 0)) &&
-                     ((feedControl.getAppTool() != null) && (feedControl.getAppTool().length() > 0)))
-            {
-                if ((feedControl.getSiteNetwork().equals(activityPost.getSiteNetwork())) &&
-                    (feedControl.getAppTool().equals(activityPost.getAppTool())))
-                {
-                    // exclude this appTool for this site
-                    return false;
-                }
+                return false;
             }
         }
         
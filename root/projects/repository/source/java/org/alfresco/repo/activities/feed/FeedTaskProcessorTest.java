@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2005-2010 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.repo.activities.feed;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import org.alfresco.repo.domain.activities.ActivityFeedEntity;
+import org.alfresco.repo.domain.activities.ActivityPostEntity;
+import org.alfresco.repo.domain.activities.FeedControlEntity;
+
+import freemarker.cache.StringTemplateLoader;
+import freemarker.template.Configuration;
+import freemarker.template.DefaultObjectWrapper;
+import freemarker.template.Template;
+
+/**
+ * Checks that the feed task processor renders each template once per post and inserts the feed
+ * entries in batches, without a repository.
+ * 
+ * @see org.alfresco.repo.activities.feed.FeedTaskProcessor
+ */
+public class FeedTaskProcessorTest extends TestCase
+{
+    private static final String[] MEMBERS = {"alice", "bob", "carol", "dave", "eve"};
+    
+    private TestFeedTaskProcessor processor;
+    
+    @Override
+    protected void setUp() throws Exception
+    {
+        processor = new TestFeedTaskProcessor();
+        processor.setBatchSize(4);
+        processor.posts.add(makePost(1L, "site1", "org.alfresco.documentlibrary.file-added"));
+        processor.posts.add(makePost(2L, "site1", "org.alfresco.documentlibrary.file-added"));
+        processor.posts.add(makePost(3L, "site2", "org.alfresco.documentlibrary.file-added"));
+    }
+    
+    public void testRenderOncePerPost() throws Exception
+    {
+        processor.process(0, 0L, 10L, new RepoCtx("http://localhost:8080/alfresco"));
+        
+        // Each template is rendered once for each post, not once per member
+        assertEquals(3 * 2, processor.renders);
+        
+        // Site members are looked up once per site
+        assertEquals(2, processor.siteMemberLookups);
+        
+        // The members, plus the site feed, get both formats of each post
+        int expected = 3 * (MEMBERS.length + 1) * 2;
+        assertEquals(expected, processor.inserted.size());
+        for (List<ActivityFeedEntity> batch : processor.batches)
+        {
+            assertTrue(batch.size() <= 4);
+        }
+        ActivityFeedEntity feed = processor.inserted.get(0);
+        assertTrue(feed.getActivitySummary().startsWith("added "));
+        assertEquals(3, processor.processed.size());
+        
+        // Feed controls are read once per user
+        assertEquals(MEMBERS.length, processor.feedControlLookups);
+    }
+    
+    public void testFeedControlsExcludeUsers() throws Exception
+    {
+        FeedControlEntity control = new FeedControlEntity("bob");
+        control.setSiteNetwork("site1");
+        processor.feedControls.put("bob", Arrays.asList(control));
+        
+        processor.process(0, 0L, 10L, new RepoCtx("http://localhost:8080/alfresco"));
+        for (ActivityFeedEntity feed : processor.inserted)
+        {
+            assertFalse("bob".equals(feed.getFeedUserId()) && "site1".equals(feed.getSiteNetwork()));
+        }
+        assertEquals(3 * (MEMBERS.length + 1) * 2 - 2 * 2, processor.inserted.size());
+    }
+    
+    public void testFanOutOnRead() throws Exception
+    {
+        processor.setFanOutOnRead(true);
+        processor.process(0, 0L, 10L, new RepoCtx("http://localhost:8080/alfresco"));
+        
+        // Only the site feeds are written, so the members are not needed
+        assertEquals(0, processor.siteMemberLookups);
+        assertEquals(0, processor.feedControlLookups);
+        assertEquals(3 * 2, processor.inserted.size());
+        for (ActivityFeedEntity feed : processor.inserted)
+        {
+            assertEquals("", feed.getFeedUserId());
+        }
+        assertEquals(3, processor.processed.size());
+    }
+    
+    private ActivityPostEntity makePost(long id, String siteId, String activityType)
+    {
+        ActivityPostEntity post = new ActivityPostEntity();
+        post.setId(id);
+        post.setUserId("alice");
+        post.setSiteNetwork(siteId);
+        post.setActivityType(activityType);
+        post.setActivityData("{\"title\":\"doc" + id + ".txt\"}");
+        post.setPostDate(new Date());
+        post.setAppTool("documentlibrary");
+        return post;
+    }
+    
+    /**
+     * Processes posts held in memory, with templates held in memory
+     */
+    private static class TestFeedTaskProcessor extends FeedTaskProcessor
+    {
+        private List<ActivityPostEntity> posts = new ArrayList<ActivityPostEntity>();
+        private Map<String, List<FeedControlEntity>> feedControls = new HashMap<String, List<FeedControlEntity>>();
+        private List<ActivityFeedEntity> inserted = new ArrayList<ActivityFeedEntity>();
+        private List<List<ActivityFeedEntity>> batches = new ArrayList<List<ActivityFeedEntity>>();
+        private List<Long> processed = new ArrayList<Long>();
+        private int renders;
+        private int siteMemberLookups;
+        private int feedControlLookups;
+        
+        public void startTransaction() throws SQLException
+        {
+        }
+        
+        public void commitTransaction() throws SQLException
+        {
+        }
+        
+        public void endTransaction() throws SQLException
+        {
+        }
+        
+        public List<ActivityPostEntity> selectPosts(ActivityPostEntity selector) throws SQLException
+        {
+            return posts;
+        }
+        
+        public List<FeedControlEntity> selectUserFeedControls(String userId) throws SQLException
+        {
+            feedControlLookups++;
+            return feedControls.get(userId);
+        }
+        
+        public long insertFeedEntry(ActivityFeedEntity feed) throws SQLException
+        {
+            fail("Feed entries should be inserted in batches");
+            return -1;
+        }
+        
+        @Override
+        public void insertFeedEntries(List<ActivityFeedEntity> feeds) throws SQLException
+        {
+            batches.add(new ArrayList<ActivityFeedEntity>(feeds));
+            inserted.addAll(feeds);
+        }
+        
+        public int updatePostStatus(long id, ActivityPostEntity.STATUS status) throws SQLException
+        {
+            if (status == ActivityPostEntity.STATUS.PROCESSED)
+            {
+                processed.add(id);
+            }
+            return 1;
+        }
+        
+        @Override
+        protected Map<String, List<String>> getActivityTypeTemplates(String repoEndPoint, String ticket, String subPath) throws Exception
+        {
+            if (! subPath.equals("/org/alfresco/documentlibrary/"))
+            {
+                return null;
+            }
+            return getActivityTemplates(Arrays.asList(
+                    "org/alfresco/documentlibrary/file-added.text.ftl",
+                    "org/alfresco/documentlibrary/file-added.html.ftl"));
+        }
+        
+        @Override
+        protected Set<String> getSiteMembers(RepoCtx ctx, String siteId) throws Exception
+        {
+            siteMemberLookups++;
+            return new HashSet<String>(Arrays.asList(MEMBERS));
+        }
+        
+        @Override
+        protected Configuration getFreemarkerConfiguration(RepoCtx ctx)
+        {
+            StringTemplateLoader loader = new StringTemplateLoader();
+            loader.putTemplate("org/alfresco/documentlibrary/file-added.text.ftl", "added ${title}");
+            loader.putTemplate("org/alfresco/documentlibrary/file-added.html.ftl", "<b>added ${title}</b>");
+            Configuration cfg = new Configuration();
+            cfg.setObjectWrapper(new DefaultObjectWrapper());
+            cfg.setTemplateLoader(loader);
+            cfg.setLocalizedLookup(false);
+            return cfg;
+        }
+        
+        @Override
+        protected String processFreemarker(Map<String, Template> templateCache, String fmTemplate, Configuration cfg, Map<String, Object> model) throws Exception
+        {
+            renders++;
+            return super.processFreemarker(templateCache, fmTemplate, cfg, model);
+        }
+    }
+}
@@ -157,6 +157,12 @@ public class LocalFeedTaskProcessor extends FeedTaskProcessor implements Applica
         return feedDAO.insertFeedEntry(feed);
     }
     
+    @Override
+    public void insertFeedEntries(List<ActivityFeedEntity> feeds) throws SQLException
+    {
+        feedDAO.insertFeedEntries(feeds);
+    }
+    
     public int updatePostStatus(long id, ActivityPostEntity.STATUS status) throws SQLException
     {
         return postDAO.updatePostStatus(id, status);
@@ -880,6 +880,7 @@ public class AuditComponentImpl implements AuditComponent
     
     private AuditModelRegistry auditModelRegistry;
     private PropertyValueDAO propertyValueDAO;
+    private BatchingAuditRecorder auditRecorder;
 
     /**
      * Set the registry holding the audit models
@@ -899,6 +900,16 @@ public class AuditComponentImpl implements AuditComponent
         this.propertyValueDAO = propertyValueDAO;
     }
     
+    /**
+     * Set the recorder that writes audit entries in batches.  The entries are written
+     * as they are recorded if there is no recorder or it is not enabled.
+     * @since 3.3
+     */
+    public void setAuditRecorder(BatchingAuditRecorder auditRecorder)
+    {
+        this.auditRecorder = auditRecorder;
+    }
+    
     /**
      * {@inheritDoc}
      * @since 3.2
@@ -1349,8 +1360,16 @@ public class AuditComponentImpl implements AuditComponent
         Long entryId = null;
         if (!auditData.isEmpty())
         {
-            // Persist the values
-            entryId = auditDAO.createAuditEntry(applicationId, time, username, auditData);
+            if (auditRecorder != null && auditRecorder.isEnabled())
+            {
+                // Persist the values later
+                auditRecorder.recordAuditEntry(applicationId, time, username, auditData);
+            }
+            else
+            {
+                // Persist the values
+                entryId = auditDAO.createAuditEntry(applicationId, time, username, auditData);
+            }
         }
         
         // Done
@@ -0,0 +1,497 @@
+/*
+ * Copyright (C) 2005-2010 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.repo.audit;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.alfresco.repo.domain.audit.AuditDAO;
+import org.alfresco.repo.transaction.AlfrescoTransactionSupport;
+import org.alfresco.repo.transaction.TransactionListenerAdapter;
+import org.alfresco.repo.transaction.RetryingTransactionHelper.RetryingTransactionCallback;
+import org.alfresco.service.transaction.TransactionService;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.context.ApplicationEvent;
+import org.springframework.extensions.surf.util.AbstractLifecycleBean;
+
+/**
+ * Persists audit entries in batches, away from the code that records them.
+ * <p>
+ * The entries recorded in a transaction are held until it commits.  With {@link Durability#COMMIT} they
+ * are written together just before the transaction commits, so they are kept or rolled back with the
+ * audited work.  With {@link Durability#ASYNC} they are put on a bounded queue once the transaction has
+ * committed and a background thread writes them, a batch per transaction.  Entries that are still queued
+ * when the server stops abnormally are lost.  When the queue is full, the {@link OverflowPolicy} decides
+ * what happens to an entry.
+ * 
+ * @see AuditComponentImpl#setAuditRecorder(BatchingAuditRecorder)
+ * 
+ * @since 3.3
+ */
+public class BatchingAuditRecorder extends AbstractLifecycleBean
+{
+    /**
+     * When the entries recorded in a transaction are written
+     */
+    public static enum Durability
+    {
+        /** In one batch, in the transaction that recorded them, when it commits */
+        COMMIT,
+        /** By the background writer, after the transaction that recorded them has committed */
+        ASYNC
+    }
+    
+    /**
+     * What to do with an entry when the queue is full
+     */
+    public static enum OverflowPolicy
+    {
+        /** Write the entry in the thread that recorded it */
+        CALLER_RUNS,
+        /** Wait for the writer to make room */
+        BLOCK,
+        /** Drop the entry */
+        DISCARD
+    }
+    
+    private static final String KEY_TXN_ENTRIES = "BatchingAuditRecorder.entries";
+    
+    /** At most one warning a minute about discarded entries */
+    private static final long DISCARD_WARNING_INTERVAL_MS = 60000L;
+    
+    private static Log logger = LogFactory.getLog(BatchingAuditRecorder.class);
+    
+    private AuditDAO auditDAO;
+    private TransactionService transactionService;
+    private boolean enabled = false;
+    private Durability durability = Durability.ASYNC;
+    private OverflowPolicy overflowPolicy = OverflowPolicy.CALLER_RUNS;
+    private int batchSize = 100;
+    private BlockingQueue<QueuedAuditEntry> queue = new LinkedBlockingQueue<QueuedAuditEntry>(10000);
+    
+    private final TransactionListenerAdapter transactionListener = new AuditEntryTransactionListener();
+    private volatile boolean running = false;
+    private Thread writerThread;
+    
+    private final AtomicLong recordedCount = new AtomicLong();
+    private final AtomicLong writtenCount = new AtomicLong();
+    private final AtomicLong batchCount = new AtomicLong();
+    private final AtomicLong callerWrittenCount = new AtomicLong();
+    private final AtomicLong discardedCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+    private final AtomicLong lastBatchLag = new AtomicLong();
+    private final AtomicLong lastDiscardWarning = new AtomicLong();
+    private final AtomicLong discardedSinceWarning = new AtomicLong();
+    
+    /**
+     * Set the DAO that persists the entries
+     */
+    public void setAuditDAO(AuditDAO auditDAO)
+    {
+        this.auditDAO = auditDAO;
+    }
+
+    /**
+     * Set the service that provides the writer's transactions
+     */
+    public void setTransactionService(TransactionService transactionService)
+    {
+        this.transactionService = transactionService;
+    }
+
+    /**
+     * @param enabled           <tt>false</tt> (the default) to have entries written as they are recorded
+     */
+    public void setEnabled(boolean enabled)
+    {
+        this.enabled = enabled;
+    }
+
+    /**
+     * @return                  <tt>true</tt> if entries should be given to this recorder
+     */
+    public boolean isEnabled()
+    {
+        return enabled;
+    }
+
+    /**
+     * @param durability        when entries are written (default {@link Durability#ASYNC})
+     */
+    public void setDurability(Durability durability)
+    {
+        this.durability = durability;
+    }
+
+    /**
+     * @param overflowPolicy    what to do when the queue is full (default {@link OverflowPolicy#CALLER_RUNS})
+     */
+    public void setOverflowPolicy(OverflowPolicy overflowPolicy)
+    {
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    /**
+     * @param queueSize         the most entries waiting for the writer (default 10000)
+     */
+    public void setQueueSize(int queueSize)
+    {
+        this.queue = new LinkedBlockingQueue<QueuedAuditEntry>(queueSize);
+    }
+
+    /**
+     * @param batchSize         the most entries the writer persists in one transaction (default 100)
+     */
+    public void setBatchSize(int batchSize)
+    {
+        this.batchSize = batchSize;
+    }
+    
+    /**
+     * Record an audit entry.  The entry is written according to the {@link Durability}.
+     * 
+     * @param applicationId     the ID of the application
+     * @param time              the time of the entry
+     * @param username          the user that the entry is for
+     * @param values            the values to persist, keyed by full path
+     */
+    public void recordAuditEntry(Long applicationId, long time, String username, Map<String, Serializable> values)
+    {
+        recordedCount.incrementAndGet();
+        QueuedAuditEntry entry = new QueuedAuditEntry(applicationId, time, username, values);
+        if (AlfrescoTransactionSupport.getTransactionId() == null)
+        {
+            // Nothing to wait for
+            if (durability == Durability.COMMIT)
+            {
+                writeInTransaction(singletonList(entry));
+            }
+            else
+            {
+                queueEntry(entry);
+            }
+            return;
+        }
+        List<QueuedAuditEntry> entries = AlfrescoTransactionSupport.getResource(KEY_TXN_ENTRIES);
+        if (entries == null)
+        {
+            entries = new ArrayList<QueuedAuditEntry>(8);
+            AlfrescoTransactionSupport.bindResource(KEY_TXN_ENTRIES, entries);
+            AlfrescoTransactionSupport.bindListener(transactionListener);
+        }
+        entries.add(entry);
+    }
+    
+    /**
+     * Gives the statistics of the recorder: the number of entries waiting to be written, the capacity of
+     * the queue and the age in milliseconds of the oldest waiting entry; the numbers of entries recorded,
+     * written (and in how many batches), written by the recording thread, discarded and failed since
+     * startup; and how long the last batch written had waited.
+     * 
+     * @return                  the statistics by name
+     */
+    public Map<String, Long> getStatistics()
+    {
+        Map<String, Long> statistics = new LinkedHashMap<String, Long>(17);
+        QueuedAuditEntry oldest = queue.peek();
+        statistics.put("QueuedEntries", (long) queue.size());
+        statistics.put("QueueCapacity", (long) (queue.size() + queue.remainingCapacity()));
+        statistics.put("QueueLagMs", oldest == null ? 0L : System.currentTimeMillis() - oldest.queuedTime);
+        statistics.put("RecordedEntries", recordedCount.get());
+        statistics.put("WrittenEntries", writtenCount.get());
+        statistics.put("WrittenBatches", batchCount.get());
+        statistics.put("CallerWrittenEntries", callerWrittenCount.get());
+        statistics.put("DiscardedEntries", discardedCount.get());
+        statistics.put("FailedEntries", failedCount.get());
+        statistics.put("LastBatchLagMs", lastBatchLag.get());
+        return statistics;
+    }
+    
+    /**
+     * Write all the queued entries in the calling thread
+     */
+    public void flush()
+    {
+        List<QueuedAuditEntry> batch = new ArrayList<QueuedAuditEntry>(batchSize);
+        while (queue.drainTo(batch, batchSize) > 0)
+        {
+            writeBatch(batch);
+            batch.clear();
+        }
+    }
+    
+    private void queueEntry(QueuedAuditEntry entry)
+    {
+        entry.queuedTime = System.currentTimeMillis();
+        if (queue.offer(entry))
+        {
+            return;
+        }
+        switch (overflowPolicy)
+        {
+        case BLOCK:
+            try
+            {
+                queue.put(entry);
+                return;
+            }
+            catch (InterruptedException e)
+            {
+                // Write it ourselves rather than lose it
+                Thread.currentThread().interrupt();
+            }
+            break;
+        case DISCARD:
+            discardedCount.incrementAndGet();
+            discardedSinceWarning.incrementAndGet();
+            long now = System.currentTimeMillis();
+            long lastWarning = lastDiscardWarning.get();
+            if (now - lastWarning >= DISCARD_WARNING_INTERVAL_MS && lastDiscardWarning.compareAndSet(lastWarning, now))
+            {
+                logger.warn("Audit queue is full.  Discarded " + discardedSinceWarning.getAndSet(0) +
+                        " audit entries since the last warning.");
+            }
+            return;
+        case CALLER_RUNS:
+            break;
+        default:
+            throw new IllegalStateException("Unknown overflow policy: " + overflowPolicy);
+        }
+        writeInTransaction(singletonList(entry));
+        callerWrittenCount.incrementAndGet();
+    }
+    
+    /**
+     * Writes a batch taken from the queue in a new transaction.  If the batch fails, its entries are
+     * written one at a time so that one bad entry does not lose the others.
+     */
+    private void writeBatch(List<QueuedAuditEntry> batch)
+    {
+        lastBatchLag.set(System.currentTimeMillis() - batch.get(0).queuedTime);
+        try
+        {
+            writeInTransaction(batch);
+        }
+        catch (Throwable e)
+        {
+            if (batch.size() == 1)
+            {
+                failedCount.incrementAndGet();
+                logger.error("Failed to write audit entry for application " + batch.get(0).applicationId, e);
+                return;
+            }
+            logger.warn("Failed to write a batch of " + batch.size() + " audit entries.  Writing them one at a time.", e);
+            for (QueuedAuditEntry entry : batch)
+            {
+                try
+                {
+                    writeInTransaction(singletonList(entry));
+                }
+                catch (Throwable ee)
+                {
+                    failedCount.incrementAndGet();
+                    logger.error("Failed to write audit entry for application " + entry.applicationId, ee);
+                }
+            }
+        }
+    }
+    
+    private void writeInTransaction(final List<QueuedAuditEntry> entries)
+    {
+        RetryingTransactionCallback<Void> callback = new RetryingTransactionCallback<Void>()
+        {
+            public Void execute() throws Throwable
+            {
+                writeEntries(entries);
+                return null;
+            }
+        };
+        transactionService.getRetryingTransactionHelper().doInTransaction(callback, false, true);
+    }
+    
+    /**
+     * Persist the entries in the current transaction
+     */
+    private void writeEntries(List<QueuedAuditEntry> entries)
+    {
+        for (QueuedAuditEntry entry : entries)
+        {
+            auditDAO.createAuditEntry(entry.applicationId, entry.time, entry.username, entry.values);
+        }
+        // Only counted once the whole batch has gone in
+        writtenCount.addAndGet(entries.size());
+        batchCount.incrementAndGet();
+    }
+    
+    private static List<QueuedAuditEntry> singletonList(QueuedAuditEntry entry)
+    {
+        List<QueuedAuditEntry> entries = new ArrayList<QueuedAuditEntry>(1);
+        entries.add(entry);
+        return entries;
+    }
+    
+    /**
+     * Start the background writer
+     */
+    @Override
+    protected void onBootstrap(ApplicationEvent event)
+    {
+        if (!enabled || durability != Durability.ASYNC)
+        {
+            return;
+        }
+        running = true;
+        writerThread = new Thread(new AuditEntryWriter(), "AuditEntryWriter");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    /**
+     * Stop the background writer and write what is left on the queue
+     */
+    @Override
+    protected void onShutdown(ApplicationEvent event)
+    {
+        running = false;
+        if (writerThread != null)
+        {
+            try
+            {
+                writerThread.join(30000L);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+            writerThread = null;
+        }
+        flush();
+    }
+    
+    /**
+     * Writes the queued entries in batches until the recorder is shut down
+     */
+    private class AuditEntryWriter implements Runnable
+    {
+        public void run()
+        {
+            List<QueuedAuditEntry> batch = new ArrayList<QueuedAuditEntry>(batchSize);
+            while (running)
+            {
+                try
+                {
+                    QueuedAuditEntry entry = queue.poll(1L, TimeUnit.SECONDS);
+                    if (entry == null)
+                    {
+                        continue;
+                    }
+                    batch.add(entry);
+                    queue.drainTo(batch, batchSize - 1);
+                    writeBatch(batch);
+                }
+                catch (InterruptedException e)
+                {
+                    // Check if we are still running
+                }
+                catch (Throwable e)
+                {
+                    logger.error("Audit entry writer failed", e);
+                }
+                finally
+                {
+                    batch.clear();
+                }
+            }
+        }
+    }
+    
+    /**
+     * Writes or queues the entries recorded in a transaction when it commits
+     */
+    private class AuditEntryTransactionListener extends TransactionListenerAdapter
+    {
+        @Override
+        public void beforeCommit(boolean readOnly)
+        {
+            if (durability != Durability.COMMIT)
+            {
+                return;
+            }
+            List<QueuedAuditEntry> entries = AlfrescoTransactionSupport.getResource(KEY_TXN_ENTRIES);
+            if (entries != null && !entries.isEmpty())
+            {
+                writeEntries(entries);
+                entries.clear();
+            }
+        }
+
+        @Override
+        public void afterCommit()
+        {
+            List<QueuedAuditEntry> entries = AlfrescoTransactionSupport.getResource(KEY_TXN_ENTRIES);
+            if (entries == null)
+            {
+                return;
+            }
+            for (QueuedAuditEntry entry : entries)
+            {
+                // An entry the caller fails to write must not stop the others being queued
+                try
+                {
+                    queueEntry(entry);
+                }
+                catch (Throwable e)
+                {
+                    failedCount.incrementAndGet();
+                    logger.error("Failed to write audit entry for application " + entry.applicationId, e);
+                }
+            }
+        }
+    }
+    
+    /**
+     * An audit entry waiting to be written
+     */
+    private static class QueuedAuditEntry
+    {
+        private final Long applicationId;
+        private final long time;
+        private final String username;
+        private final Map<String, Serializable> values;
+        private long queuedTime;
+        
+        private QueuedAuditEntry(Long applicationId, long time, String username, Map<String, Serializable> values)
+        {
+            this.applicationId = applicationId;
+            this.time = time;
+            this.username = username;
+            // The caller is given the values back, so keep our own copy
+            this.values = new HashMap<String, Serializable>(values);
+        }
+    }
+}
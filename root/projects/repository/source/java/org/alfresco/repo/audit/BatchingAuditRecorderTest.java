@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2005-2010 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.repo.audit;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyMap;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.alfresco.repo.domain.audit.AuditDAO;
+import org.alfresco.repo.transaction.RetryingTransactionHelper;
+import org.alfresco.repo.transaction.RetryingTransactionHelper.RetryingTransactionCallback;
+import org.alfresco.service.transaction.TransactionService;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * Checks the queueing, batching and overflow handling of the batching audit recorder, without a database.
+ * 
+ * @see BatchingAuditRecorder
+ * 
+ * @since 3.3
+ */
+public class BatchingAuditRecorderTest extends TestCase
+{
+    private static final Map<String, Serializable> VALUES = Collections.<String, Serializable>singletonMap("/test/a", "A");
+    
+    private AuditDAO auditDAO;
+    private BatchingAuditRecorder recorder;
+    
+    @SuppressWarnings("unchecked")
+    @Override
+    protected void setUp() throws Exception
+    {
+        auditDAO = mock(AuditDAO.class);
+        RetryingTransactionHelper txnHelper = mock(RetryingTransactionHelper.class);
+        when(txnHelper.doInTransaction(any(RetryingTransactionCallback.class), anyBoolean(), anyBoolean())).thenAnswer(new Answer<Object>()
+        {
+            public Object answer(InvocationOnMock invocation) throws Throwable
+            {
+                return ((RetryingTransactionCallback<Object>) invocation.getArguments()[0]).execute();
+            }
+        });
+        TransactionService transactionService = mock(TransactionService.class);
+        when(transactionService.getRetryingTransactionHelper()).thenReturn(txnHelper);
+        
+        recorder = new BatchingAuditRecorder();
+        recorder.setAuditDAO(auditDAO);
+        recorder.setTransactionService(transactionService);
+        recorder.setEnabled(true);
+        recorder.setQueueSize(10);
+        recorder.setBatchSize(4);
+    }
+    
+    @Override
+    protected void tearDown() throws Exception
+    {
+        recorder.onShutdown(null);
+    }
+    
+    public void testEntriesWrittenInBatches() throws Exception
+    {
+        for (int i = 0; i < 10; i++)
+        {
+            recorder.recordAuditEntry(1L, i, "fred", VALUES);
+        }
+        // Nothing is written until the writer runs
+        verify(auditDAO, times(0)).createAuditEntry(anyLong(), anyLong(), anyString(), anyMap());
+        assertEquals(10L, recorder.getStatistics().get("QueuedEntries").longValue());
+        
+        recorder.onBootstrap(null);
+        recorder.onShutdown(null);
+        verify(auditDAO, times(10)).createAuditEntry(eq(1L), anyLong(), eq("fred"), eq(VALUES));
+        Map<String, Long> statistics = recorder.getStatistics();
+        assertEquals(0L, statistics.get("QueuedEntries").longValue());
+        assertEquals(10L, statistics.get("WrittenEntries").longValue());
+        assertEquals(3L, statistics.get("WrittenBatches").longValue());
+    }
+    
+    public void testOverflowCallerRuns() throws Exception
+    {
+        for (int i = 0; i < 15; i++)
+        {
+            recorder.recordAuditEntry(1L, i, "fred", VALUES);
+        }
+        verify(auditDAO, times(5)).createAuditEntry(anyLong(), anyLong(), anyString(), anyMap());
+        Map<String, Long> statistics = recorder.getStatistics();
+        assertEquals(10L, statistics.get("QueuedEntries").longValue());
+        assertEquals(5L, statistics.get("CallerWrittenEntries").longValue());
+        assertEquals(15L, statistics.get("RecordedEntries").longValue());
+    }
+    
+    public void testOverflowDiscard() throws Exception
+    {
+        recorder.setOverflowPolicy(BatchingAuditRecorder.OverflowPolicy.DISCARD);
+        for (int i = 0; i < 15; i++)
+        {
+            recorder.recordAuditEntry(1L, i, "fred", VALUES);
+        }
+        verify(auditDAO, times(0)).createAuditEntry(anyLong(), anyLong(), anyString(), anyMap());
+        assertEquals(5L, recorder.getStatistics().get("DiscardedEntries").longValue());
+        recorder.flush();
+        verify(auditDAO, times(10)).createAuditEntry(anyLong(), anyLong(), anyString(), anyMap());
+    }
+    
+    public void testFailedBatchWrittenOneAtATime() throws Exception
+    {
+        when(auditDAO.createAuditEntry(anyLong(), eq(2L), anyString(), anyMap())).thenThrow(new RuntimeException("Bad entry"));
+        for (int i = 0; i < 4; i++)
+        {
+            recorder.recordAuditEntry(1L, i, "fred", VALUES);
+        }
+        recorder.flush();
+        Map<String, Long> statistics = recorder.getStatistics();
+        assertEquals(1L, statistics.get("FailedEntries").longValue());
+        assertEquals(3L, statistics.get("WrittenEntries").longValue());
+    }
+    
+    public void testCallerFailureAfterCommitQueuesTheRest() throws Exception
+    {
+        when(auditDAO.createAuditEntry(anyLong(), eq(20L), anyString(), anyMap())).thenThrow(new RuntimeException("Bad entry"));
+        for (int i = 0; i < 10; i++)
+        {
+            recorder.recordAuditEntry(1L, i, "fred", VALUES);
+        }
+        TransactionSynchronizationManager.initSynchronization();
+        try
+        {
+            for (int i = 20; i < 23; i++)
+            {
+                recorder.recordAuditEntry(1L, i, "fred", VALUES);
+            }
+            // The queue is full, so the entries are written as the transaction completes
+            for (Object synchronization : TransactionSynchronizationManager.getSynchronizations())
+            {
+                ((TransactionSynchronization) synchronization).afterCompletion(TransactionSynchronization.STATUS_COMMITTED);
+            }
+        }
+        finally
+        {
+            TransactionSynchronizationManager.clear();
+        }
+        verify(auditDAO, times(1)).createAuditEntry(anyLong(), eq(21L), anyString(), anyMap());
+        verify(auditDAO, times(1)).createAuditEntry(anyLong(), eq(22L), anyString(), anyMap());
+        Map<String, Long> statistics = recorder.getStatistics();
+        assertEquals(1L, statistics.get("FailedEntries").longValue());
+        assertEquals(2L, statistics.get("CallerWrittenEntries").longValue());
+    }
+    
+    public void testCommitDurabilityWritesImmediatelyWithoutTransaction() throws Exception
+    {
+        recorder.setDurability(BatchingAuditRecorder.Durability.COMMIT);
+        recorder.recordAuditEntry(1L, 0L, "fred", VALUES);
+        verify(auditDAO, times(1)).createAuditEntry(anyLong(), anyLong(), anyString(), anyMap());
+        assertEquals(0L, recorder.getStatistics().get("QueuedEntries").longValue());
+    }
+}
@@ -96,4 +96,18 @@ public interface BatchMonitor
      * @return the end time
      */
     public Date getEndTime();
+
+    /**
+     * Gets the number of entries processed per second since the start.
+     * 
+     * @return the throughput in entries per second
+     */
+    public int getThroughput();
+
+    /**
+     * Gets the number of worker threads currently allowed to process entries.
+     * 
+     * @return the number of worker threads
+     */
+    public int getWorkerThreads();
 }
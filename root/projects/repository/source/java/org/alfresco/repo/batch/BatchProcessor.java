@@ -23,9 +23,10 @@ import java.io.StringWriter;
 import java.io.Writer;
 import java.text.NumberFormat;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
-import java.util.Iterator;
 import java.util.List;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ExecutorService;
@@ -51,6 +52,11 @@ import org.springframework.context.ApplicationEventPublisher;
  * ERROR level. Each individual error is logged at WARN level and progress information is logged at INFO level. Through
  * the {@link BatchMonitor} interface, it also supports the real-time monitoring of batch metrics (e.g. over JMX in the
  * Enterprise Edition).
+ * <p>
+ * Work can be supplied as a collection or pulled in chunks from a {@link BatchProcessWorkProvider}, so that very large
+ * jobs do not have to be held in memory. When transactions are split, completed batches can be recorded against a
+ * {@link BatchProcessCheckpoint} so that a restarted process skips the batches completed by an earlier run, and the
+ * number of worker threads can be made to adapt to the rate of transaction retries.
  * 
  * @author dward
  */
@@ -65,8 +71,8 @@ public class BatchProcessor<T> implements BatchMonitor
     /** The retrying transaction helper. */
     private final RetryingTransactionHelper retryingTransactionHelper;
 
-    /** The collection. */
-    private final Collection<T> collection;
+    /** The source of the work. */
+    private final BatchProcessWorkProvider<T> workProvider;
 
     /** The process name. */
     private final String processName;
@@ -104,6 +110,33 @@ public class BatchProcessor<T> implements BatchMonitor
     /** The end time. */
     private Date endTime;
 
+    /** Where completed batches are recorded (may be <tt>null</tt>). */
+    private BatchProcessCheckpoint checkpoint;
+
+    /** Should the number of worker threads be reduced when transactions are retried? */
+    private boolean adaptiveWorkerThreads;
+
+    /** The thread pool of the current run (may be <tt>null</tt>). */
+    private ThreadPoolExecutor executorService;
+
+    /** The number of worker threads currently allowed. */
+    private int currentWorkerThreads;
+
+    /** The number of consecutive batches that did not need a retry. */
+    private int batchesWithoutRetry;
+
+    /** The number of leading batches, counted from the start of the first run, that have completed. */
+    private int completedBatches;
+
+    /** The batches that have completed without failures in this run, counted from the start of the first run. */
+    private final BitSet finishedBatches = new BitSet();
+
+    /** The last completed batch count passed to the checkpoint. */
+    private int savedCompletedBatches;
+
+    /** Guards the checkpoint updates. */
+    private final Object checkpointLock = new Object();
+
     /**
      * Instantiates a new batch processor using a the default logger, which references
      * this class as the log category.
@@ -152,6 +185,46 @@ public class BatchProcessor<T> implements BatchMonitor
             ApplicationEventPublisher applicationEventPublisher,
             Log logger,
             int loggingInterval)
+    {
+        this(
+                processName,
+                retryingTransactionHelper,
+                new CollectionWorkProvider<T>(collection),
+                workerThreads,
+                batchSize,
+                applicationEventPublisher,
+                logger,
+                loggingInterval);
+    }
+
+    /**
+     * Instantiates a new batch processor that pulls its work from a provider.
+     * 
+     * @param processName
+     *            the process name
+     * @param retryingTransactionHelper
+     *            the retrying transaction helper
+     * @param workProvider
+     *            the provider of the entries to process
+     * @param workerThreads
+     *            the number of worker threads
+     * @param batchSize
+     *            the number of entries we process at a time in a transaction
+     * @param applicationEventPublisher
+     *            the application event publisher (may be <tt>null</tt>)
+     * @param logger
+     *            the logger to use (may be <tt>null</tt>)
+     * @param loggingInterval
+     *            the number of entries to process before reporting progress
+     */
+    public BatchProcessor(
+            String processName,
+            RetryingTransactionHelper retryingTransactionHelper,
+            BatchProcessWorkProvider<T> workProvider,
+            int workerThreads, int batchSize,
+            ApplicationEventPublisher applicationEventPublisher,
+            Log logger,
+            int loggingInterval)
     {
         this.threadFactory = new TraceableThreadFactory();
         this.threadFactory.setNamePrefix(processName);
@@ -159,7 +232,7 @@ public class BatchProcessor<T> implements BatchMonitor
         
         this.processName = processName;
         this.retryingTransactionHelper = retryingTransactionHelper;
-        this.collection = collection;
+        this.workProvider = workProvider;
         this.workerThreads = workerThreads;
         this.batchSize = batchSize;
         if (logger == null)
@@ -179,6 +252,33 @@ public class BatchProcessor<T> implements BatchMonitor
         }
     }
 
+    /**
+     * Sets where completed batches are recorded. When transactions are split, a run skips the batches recorded by an
+     * earlier run that did not finish, so the work provider must supply the entries in the same order each time and
+     * the worker must tolerate entries being processed again. A batch with failed entries is not recorded, so the next
+     * run starts again from it. The checkpoint is reset when a run finishes without failures.
+     * 
+     * @param checkpoint
+     *            the checkpoint (may be <tt>null</tt>)
+     */
+    public void setCheckpoint(BatchProcessCheckpoint checkpoint)
+    {
+        this.checkpoint = checkpoint;
+    }
+
+    /**
+     * Sets whether the number of worker threads adapts to contention. If <code>true</code>, the number of threads is
+     * halved each time a batch has to be retried and increased by one after a run of batches without retries, up to
+     * the configured number of worker threads.
+     * 
+     * @param adaptiveWorkerThreads
+     *            <code>true</code> to adapt the number of worker threads
+     */
+    public void setAdaptiveWorkerThreads(boolean adaptiveWorkerThreads)
+    {
+        this.adaptiveWorkerThreads = adaptiveWorkerThreads;
+    }
+
     /*
      * (non-Javadoc)
      * @see org.alfresco.repo.security.sync.BatchMonitor#getCurrentEntryId()
@@ -238,7 +338,7 @@ public class BatchProcessor<T> implements BatchMonitor
      */
     public synchronized String getPercentComplete()
     {
-        int totalResults = this.collection.size();
+        int totalResults = this.workProvider.getTotalEstimatedWorkSize();
         int processed = this.successfullyProcessedEntries + this.totalErrors;
         return processed <= totalResults ? NumberFormat.getPercentInstance().format(
                 totalResults == 0 ? 1.0F : (float) processed / totalResults) : "Unknown";
@@ -259,7 +359,32 @@ public class BatchProcessor<T> implements BatchMonitor
      */
     public int getTotalResults()
     {
-        return this.collection.size();
+        return this.workProvider.getTotalEstimatedWorkSize();
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.alfresco.repo.batch.BatchMonitor#getThroughput()
+     */
+    public synchronized int getThroughput()
+    {
+        if (this.startTime == null)
+        {
+            return 0;
+        }
+        long end = this.endTime == null ? System.currentTimeMillis() : this.endTime.getTime();
+        long duration = end - this.startTime.getTime();
+        int processed = this.successfullyProcessedEntries + this.totalErrors;
+        return duration > 0 ? (int) (processed * 1000L / duration) : 0;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.alfresco.repo.batch.BatchMonitor#getWorkerThreads()
+     */
+    public synchronized int getWorkerThreads()
+    {
+        return this.executorService == null ? 1 : this.currentWorkerThreads;
     }
 
     /*
@@ -297,7 +422,8 @@ public class BatchProcessor<T> implements BatchMonitor
     @SuppressWarnings("serial")
     public int process(final BatchProcessWorker<T> worker, final boolean splitTxns)
     {
-        int count = this.collection.size();
+        int count = this.workProvider.getTotalEstimatedWorkSize();
+        int resumeBatches = splitTxns && this.checkpoint != null ? this.checkpoint.getCompletedBatchCount() : 0;
         synchronized (this)
         {
             this.startTime = new Date();
@@ -312,11 +438,19 @@ public class BatchProcessor<T> implements BatchMonitor
                     this.logger.info(getProcessName() + ": Commencing batch");
 
                 }
+                if (resumeBatches > 0)
+                {
+                    this.logger.info(getProcessName() + ": Skipping " + resumeBatches + " batches completed by an earlier run");
+                }
             }
+            this.completedBatches = this.savedCompletedBatches = resumeBatches;
+            this.finishedBatches.clear();
+            this.currentWorkerThreads = this.workerThreads;
+            this.batchesWithoutRetry = 0;
         }
 
         // Create a thread pool executor with the specified number of threads and a finite blocking queue of jobs
-        ExecutorService executorService = splitTxns && this.workerThreads > 1 ?
+        ThreadPoolExecutor executorService = splitTxns && this.workerThreads > 1 ?
                 new ThreadPoolExecutor(
                         this.workerThreads, this.workerThreads, 0L, TimeUnit.MILLISECONDS,
                         new ArrayBlockingQueue<Runnable>(this.workerThreads * this.batchSize * 10)
@@ -338,33 +472,37 @@ public class BatchProcessor<T> implements BatchMonitor
 
                 },
                 threadFactory) : null;
+        synchronized (this)
+        {
+            this.executorService = executorService;
+        }
+        boolean finished = false;
+        int total = 0;
+        int batchNumber = 0;
         try
         {
-            Iterator<T> iterator = this.collection.iterator();
             List<T> batch = new ArrayList<T>(this.batchSize);
-            while (iterator.hasNext())
+            // Pull the work in chunks; the blocking job queue stops us getting too far ahead of the workers
+            for (Collection<T> work = this.workProvider.getNextWork(); work != null && !work.isEmpty(); work = this.workProvider
+                    .getNextWork())
             {
-                batch.add(iterator.next());
-                boolean hasNext = iterator.hasNext();
-                if (batch.size() >= this.batchSize || !hasNext)
+                for (T entry : work)
                 {
-                    final TxnCallback callback = new TxnCallback(worker, batch, splitTxns);
-                    if (hasNext)
+                    batch.add(entry);
+                    total++;
+                    if (batch.size() >= this.batchSize)
                     {
+                        submit(new TxnCallback(worker, batch, batchNumber++, splitTxns), executorService, resumeBatches);
                         batch = new ArrayList<T>(this.batchSize);
                     }
-                    
-                    if (executorService == null)
-                    {
-                        callback.run();
-                    }
-                    else
-                    {
-                        executorService.execute(callback);
-                    }
                 }
             }
-            return count;
+            if (!batch.isEmpty())
+            {
+                submit(new TxnCallback(worker, batch, batchNumber++, splitTxns), executorService, resumeBatches);
+            }
+            finished = true;
+            return total;
         }
         finally
         {
@@ -379,8 +517,38 @@ public class BatchProcessor<T> implements BatchMonitor
                 {
                 }
             }
+            if (finished && splitTxns && this.checkpoint != null)
+            {
+                int completed;
+                synchronized (this)
+                {
+                    completed = this.completedBatches;
+                }
+                synchronized (this.checkpointLock)
+                {
+                    if (completed < batchNumber)
+                    {
+                        // The next run starts from the first batch that failed
+                        if (this.logger.isInfoEnabled())
+                        {
+                            this.logger.info(getProcessName() + ": The next run will start from batch " + completed);
+                        }
+                    }
+                    else if (this.savedCompletedBatches > 0)
+                    {
+                        // The next run starts from the beginning
+                        this.checkpoint.setCompletedBatchCount(0);
+                        this.savedCompletedBatches = 0;
+                    }
+                }
+            }
             synchronized (this)
             {
+                this.executorService = null;
+                if (count < 0)
+                {
+                    count = total;
+                }
                 reportProgress(true);
                 this.endTime = new Date();
                 if (this.logger.isInfoEnabled())
@@ -405,6 +573,101 @@ public class BatchProcessor<T> implements BatchMonitor
         }
     }
 
+    /**
+     * Runs a batch, unless it was completed by an earlier run.
+     */
+    private void submit(TxnCallback callback, ExecutorService executorService, int resumeBatches)
+    {
+        if (callback.batchNumber < resumeBatches)
+        {
+            return;
+        }
+        if (executorService == null)
+        {
+            callback.run();
+        }
+        else
+        {
+            executorService.execute(callback);
+        }
+    }
+
+    /**
+     * Records a batch that finished without failures, moving the checkpoint on past any leading run of such batches.
+     * 
+     * @param batchNumber
+     *            the batch number, counted from the start of the first run
+     */
+    private void completeBatch(int batchNumber)
+    {
+        int completed;
+        synchronized (this)
+        {
+            this.finishedBatches.set(batchNumber);
+            while (this.finishedBatches.get(this.completedBatches))
+            {
+                this.completedBatches++;
+            }
+            completed = this.completedBatches;
+        }
+        // Record the checkpoint outside the main lock, but never move it backwards
+        synchronized (this.checkpointLock)
+        {
+            if (completed > this.savedCompletedBatches)
+            {
+                this.checkpoint.setCompletedBatchCount(completed);
+                this.savedCompletedBatches = completed;
+            }
+        }
+    }
+
+    /**
+     * Adapts the number of worker threads after a batch. Halves the number of threads after a batch that had to be
+     * retried, and adds a thread after twice as many batches as there are threads complete without retries.
+     * 
+     * @param retried
+     *            did the batch have to be retried?
+     */
+    private synchronized void adaptWorkerThreads(boolean retried)
+    {
+        if (this.executorService == null)
+        {
+            return;
+        }
+        int threads = this.currentWorkerThreads;
+        if (retried)
+        {
+            this.batchesWithoutRetry = 0;
+            threads = Math.max(1, threads / 2);
+        }
+        else if (++this.batchesWithoutRetry >= threads * 2 && threads < this.workerThreads)
+        {
+            this.batchesWithoutRetry = 0;
+            threads++;
+        }
+        if (threads < this.currentWorkerThreads)
+        {
+            // Excess threads finish their current batch and then exit
+            this.executorService.setCorePoolSize(threads);
+            this.executorService.setMaximumPoolSize(threads);
+        }
+        else if (threads > this.currentWorkerThreads)
+        {
+            this.executorService.setMaximumPoolSize(threads);
+            this.executorService.setCorePoolSize(threads);
+        }
+        else
+        {
+            return;
+        }
+        if (this.logger.isDebugEnabled())
+        {
+            this.logger.debug(getProcessName() + ": Changing from " + this.currentWorkerThreads + " to " + threads
+                    + " worker threads");
+        }
+        this.currentWorkerThreads = threads;
+    }
+
     /**
      * Reports the current progress.
      * 
@@ -420,7 +683,7 @@ public class BatchProcessor<T> implements BatchMonitor
         {
             StringBuilder message = new StringBuilder(100).append(getProcessName()).append(": Processed ").append(
                     processed).append(" entries");
-            int totalResults = this.collection.size();
+            int totalResults = this.workProvider.getTotalEstimatedWorkSize();
             if (totalResults >= processed)
             {
                 message.append(" out of ").append(totalResults).append(". ").append(
@@ -437,6 +700,80 @@ public class BatchProcessor<T> implements BatchMonitor
         }
     }
 
+    /**
+     * An interface that provides the work for a {@link BatchProcessor} in chunks, so that it does not all have to be held
+     * in memory.
+     */
+    public interface BatchProcessWorkProvider<T>
+    {
+        /**
+         * Gets an estimate of the total number of entries (for monitoring / logging purposes).
+         * 
+         * @return the estimated number of entries or <tt>-1</tt> if not known
+         */
+        public int getTotalEstimatedWorkSize();
+
+        /**
+         * Gets the next chunk of entries. This is called on the thread that called
+         * {@link BatchProcessor#process(BatchProcessWorker, boolean)}.
+         * 
+         * @return the next entries or an empty collection when there are no more
+         */
+        public Collection<T> getNextWork();
+    }
+
+    /**
+     * Persists the progress of a {@link BatchProcessor} so that a restarted process can resume.
+     */
+    public interface BatchProcessCheckpoint
+    {
+        /**
+         * Gets the number of batches, counted from the start of the work, that are known to have completed.
+         * 
+         * @return the number of completed batches
+         */
+        public int getCompletedBatchCount();
+
+        /**
+         * Records the number of batches, counted from the start of the work, that have completed. This is called
+         * outside of any transaction.
+         * 
+         * @param completedBatchCount
+         *            the number of completed batches, or <tt>0</tt> to start again from the beginning
+         */
+        public void setCompletedBatchCount(int completedBatchCount);
+    }
+
+    /**
+     * Provides all the entries of a collection as a single chunk.
+     */
+    private static class CollectionWorkProvider<TT> implements BatchProcessWorkProvider<TT>
+    {
+        private final Collection<TT> collection;
+
+        private boolean supplied;
+
+        public CollectionWorkProvider(Collection<TT> collection)
+        {
+            this.collection = collection;
+        }
+
+        public int getTotalEstimatedWorkSize()
+        {
+            return this.collection.size();
+        }
+
+        public Collection<TT> getNextWork()
+        {
+            if (this.supplied)
+            {
+                return Collections.emptyList();
+            }
+            this.supplied = true;
+            return this.collection;
+        }
+    }
+
     /**
      * An interface for workers to be invoked by the {@link BatchProcessor}.
      */
@@ -515,13 +852,16 @@ public class BatchProcessor<T> implements BatchMonitor
          *            the worker
          * @param batch
          *            the batch to process
+         * @param batchNumber
+         *            the number of the batch, counted from the start of the work
          * @param splitTxns
          *            If <code>true</code>, the worker invocation is made in a new transaction.
          */
-        public TxnCallback(BatchProcessWorker<T> worker, List<T> batch, boolean splitTxns)
+        public TxnCallback(BatchProcessWorker<T> worker, List<T> batch, int batchNumber, boolean splitTxns)
         {
             this.worker = worker;
             this.batch = batch;
+            this.batchNumber = batchNumber;
             this.splitTxns = splitTxns;
         }
 
@@ -531,6 +871,9 @@ public class BatchProcessor<T> implements BatchMonitor
         /** The batch. */
         private final List<T> batch;
 
+        /** The number of the batch, counted from the start of the work. */
+        private final int batchNumber;
+
         /** If <code>true</code>, the worker invocation is made in a new transaction. */
         private final boolean splitTxns;
 
@@ -674,7 +1017,20 @@ public class BatchProcessor<T> implements BatchMonitor
                 }
             }
 
+            boolean failed = this.txnErrors > 0;
             commitProgress();
+            if (this.splitTxns)
+            {
+                if (BatchProcessor.this.adaptiveWorkerThreads)
+                {
+                    adaptWorkerThreads(this.hadRetryFailure);
+                }
+                // A batch with failures stays in front of the checkpoint, so that it is tried again
+                if (BatchProcessor.this.checkpoint != null && !failed)
+                {
+                    completeBatch(this.batchNumber);
+                }
+            }
         }
 
         /**
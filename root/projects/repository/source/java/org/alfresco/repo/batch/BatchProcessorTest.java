@@ -0,0 +1,263 @@
+/*
+ * Copyright (C) 2005-2010 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.repo.batch;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.alfresco.repo.batch.BatchProcessor.BatchProcessCheckpoint;
+import org.alfresco.repo.batch.BatchProcessor.BatchProcessWorkerAdaptor;
+import org.alfresco.repo.transaction.RetryingTransactionHelper;
+import org.springframework.dao.ConcurrencyFailureException;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * Checks the checkpoints and worker thread adaptation of the {@link BatchProcessor}, using transactions that only
+ * exist in memory.
+ *
+ * @see BatchProcessor
+ */
+public class BatchProcessorTest extends TestCase
+{
+    private LocalTransactionHelper txnHelper;
+    private MemoryCheckpoint checkpoint;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        txnHelper = new LocalTransactionHelper();
+        checkpoint = new MemoryCheckpoint();
+    }
+
+    private List<Integer> makeEntries(int count)
+    {
+        List<Integer> entries = new ArrayList<Integer>(count);
+        for (int i = 0; i < count; i++)
+        {
+            entries.add(i);
+        }
+        return entries;
+    }
+
+    public void testResumeAfterFailure() throws Exception
+    {
+        final List<Integer> processed = Collections.synchronizedList(new ArrayList<Integer>());
+        BatchProcessor<Integer> processor = new BatchProcessor<Integer>("Test", txnHelper, makeEntries(10), 1, 2);
+        processor.setCheckpoint(checkpoint);
+        processor.process(new BatchProcessWorkerAdaptor<Integer>()
+        {
+            public void process(Integer entry) throws Throwable
+            {
+                if (entry == 5)
+                {
+                    throw new IllegalStateException("Entry " + entry);
+                }
+                processed.add(entry);
+            }
+        }, true);
+        assertEquals(1, processor.getTotalErrors());
+        assertEquals(9, processed.size());
+        // The batch holding the failed entry, and so those after it, are not recorded
+        assertEquals(2, checkpoint.getCompletedBatchCount());
+
+        processed.clear();
+        processor = new BatchProcessor<Integer>("Test", txnHelper, makeEntries(10), 1, 2);
+        processor.setCheckpoint(checkpoint);
+        processor.process(new BatchProcessWorkerAdaptor<Integer>()
+        {
+            public void process(Integer entry) throws Throwable
+            {
+                processed.add(entry);
+            }
+        }, true);
+        assertEquals(0, processor.getTotalErrors());
+        assertEquals(makeEntries(10).subList(4, 10), processed);
+        // A clean run resets the checkpoint
+        assertEquals(0, checkpoint.getCompletedBatchCount());
+    }
+
+    public void testCheckpointOrderAcrossWorkers() throws Exception
+    {
+        final CountDownLatch othersDone = new CountDownLatch(3);
+        final List<Integer> recordedWhileFirstBlocked = new ArrayList<Integer>();
+        BatchProcessor<Integer> processor = new BatchProcessor<Integer>("Test", txnHelper, makeEntries(8), 4, 1);
+        processor.setCheckpoint(checkpoint);
+        processor.process(new BatchProcessWorkerAdaptor<Integer>()
+        {
+            public void process(Integer entry) throws Throwable
+            {
+                if (entry == 0)
+                {
+                    // Hold the first batch until the other workers have finished theirs
+                    assertTrue(othersDone.await(10, TimeUnit.SECONDS));
+                    // Let them record their batches, if they are going to
+                    Thread.sleep(100);
+                    recordedWhileFirstBlocked.addAll(checkpoint.getRecorded());
+                }
+                else if (entry <= 3)
+                {
+                    othersDone.countDown();
+                }
+            }
+        }, true);
+        assertEquals(0, processor.getTotalErrors());
+        assertTrue("Recorded " + recordedWhileFirstBlocked, recordedWhileFirstBlocked.isEmpty());
+
+        List<Integer> recorded = checkpoint.getRecorded();
+        int last = 0;
+        for (int i = 0; i < recorded.size() - 1; i++)
+        {
+            assertTrue("Checkpoint moved backwards: " + recorded, recorded.get(i) > last);
+            last = recorded.get(i);
+        }
+        assertEquals(8, last);
+        assertEquals(0, recorded.get(recorded.size() - 1).intValue());
+    }
+
+    public void testWorkerThreadsAdapt() throws Exception
+    {
+        final Set<Integer> retried = Collections.synchronizedSet(new HashSet<Integer>());
+        final CountDownLatch shrunk = new CountDownLatch(1);
+        final List<Integer> threadCounts = Collections.synchronizedList(new ArrayList<Integer>());
+        final BatchProcessor<Integer> processor = new BatchProcessor<Integer>("Test", txnHelper, makeEntries(60), 4, 1);
+        processor.setAdaptiveWorkerThreads(true);
+        processor.process(new BatchProcessWorkerAdaptor<Integer>()
+        {
+            @Override
+            public void beforeProcess() throws Throwable
+            {
+                // The retry waits for the running batches, so hold back new ones until it is done
+                long giveUp = System.currentTimeMillis() + 10000L;
+                while (!retried.isEmpty() && shrunk.getCount() > 0 && System.currentTimeMillis() < giveUp)
+                {
+                    if (processor.getWorkerThreads() < 4)
+                    {
+                        shrunk.countDown();
+                    }
+                    Thread.sleep(1);
+                }
+            }
+
+            public void process(Integer entry) throws Throwable
+            {
+                threadCounts.add(processor.getWorkerThreads());
+                if (entry == 8 && retried.add(entry))
+                {
+                    throw new ConcurrencyFailureException("Entry " + entry);
+                }
+            }
+        }, true);
+        assertEquals(0, processor.getTotalErrors());
+        assertEquals(1, txnHelper.retries);
+        assertEquals(4, threadCounts.get(0).intValue());
+        // Halved after the retry, then back up to the limit
+        assertTrue("Thread counts " + threadCounts, threadCounts.contains(2));
+        assertEquals(4, threadCounts.get(threadCounts.size() - 1).intValue());
+        for (Integer threadCount : threadCounts)
+        {
+            assertTrue("Thread counts " + threadCounts, threadCount >= 2 && threadCount <= 4);
+        }
+    }
+
+    /**
+     * Keeps the checkpoint, and each value it was given, in memory
+     */
+    private static class MemoryCheckpoint implements BatchProcessCheckpoint
+    {
+        private final List<Integer> recorded = new ArrayList<Integer>();
+        private int completedBatchCount;
+
+        public synchronized int getCompletedBatchCount()
+        {
+            return completedBatchCount;
+        }
+
+        public synchronized void setCompletedBatchCount(int completedBatchCount)
+        {
+            this.completedBatchCount = completedBatchCount;
+            recorded.add(completedBatchCount);
+        }
+
+        private synchronized List<Integer> getRecorded()
+        {
+            return new ArrayList<Integer>(recorded);
+        }
+    }
+
+    /**
+     * Runs callbacks in transactions that only exist as thread synchronizations, retrying them as the real helper would
+     */
+    private static class LocalTransactionHelper extends RetryingTransactionHelper
+    {
+        private volatile int retries;
+
+        @Override
+        public <R> R doInTransaction(RetryingTransactionCallback<R> cb, boolean readOnly, boolean requiresNew)
+        {
+            while (true)
+            {
+                TransactionSynchronizationManager.initSynchronization();
+                boolean committed = false;
+                try
+                {
+                    R result = cb.execute();
+                    committed = true;
+                    return result;
+                }
+                catch (Throwable e)
+                {
+                    if (RetryingTransactionHelper.extractRetryCause(e) == null)
+                    {
+                        if (e instanceof RuntimeException)
+                        {
+                            throw (RuntimeException) e;
+                        }
+                        throw new RuntimeException(e);
+                    }
+                    synchronized (this)
+                    {
+                        retries++;
+                    }
+                }
+                finally
+                {
+                    for (Object synch : TransactionSynchronizationManager.getSynchronizations())
+                    {
+                        ((TransactionSynchronization) synch).afterCompletion(committed
+                                ? TransactionSynchronization.STATUS_COMMITTED
+                                : TransactionSynchronization.STATUS_ROLLED_BACK);
+                    }
+                    TransactionSynchronizationManager.clear();
+                    for (Object key : new ArrayList<Object>(TransactionSynchronizationManager.getResourceMap().keySet()))
+                    {
+                        TransactionSynchronizationManager.unbindResource(key);
+                    }
+                }
+            }
+        }
+    }
+}
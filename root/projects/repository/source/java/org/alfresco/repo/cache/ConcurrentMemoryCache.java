@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2005-2010 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.repo.cache;
+
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A thread-safe, size-bounded cache backed by a <code>ConcurrentHashMap</code>.
+ * <p>
+ * Reads and writes only lock a stripe of the map, so the cache suits heavily shared, node-local data such as the
+ * shared cache behind a {@link TransactionalCache}.  When the cache grows beyond its maximum size, entries are
+ * evicted using the CLOCK (second chance) algorithm: an entry that has been read since the eviction sweep last
+ * passed it is kept for another round.  Only one thread sweeps at a time; other writers carry on without waiting.
+ * <p>
+ * The {@link #replace(Serializable, Object, Object) replace} operation allows the transactional cache to transfer
+ * committed values without a separate read and write.
+ * <p>
+ * <b>Note:</b> The cache is local to the VM.  Do not use it for data that must be invalidated across a cluster.
+ *
+ * @since 3.3
+ */
+public class ConcurrentMemoryCache<K extends Serializable, V extends Object> implements SimpleCache<K, V>
+{
+    private final ConcurrentHashMap<K, CacheEntry<V>> map;
+    private final AtomicInteger size;
+    private final AtomicLong evictionCount;
+    private final ReentrantLock evictionLock;
+    /** the eviction sweep position, only used while holding the eviction lock */
+    private Iterator<Map.Entry<K, CacheEntry<V>>> clockHand;
+
+    private int maxItems;
+
+    /**
+     * Construct an unbounded cache with the default number of map stripes
+     */
+    public ConcurrentMemoryCache()
+    {
+        this(64);
+    }
+
+    /**
+     * @param concurrencyLevel      the estimated number of threads updating the cache at the same time
+     */
+    public ConcurrentMemoryCache(int concurrencyLevel)
+    {
+        map = new ConcurrentHashMap<K, CacheEntry<V>>(256, 0.75F, concurrencyLevel);
+        size = new AtomicInteger();
+        evictionCount = new AtomicLong();
+        evictionLock = new ReentrantLock();
+        maxItems = 0;
+    }
+
+    /**
+     * @param maxItems              the maximum number of entries to hold or <tt>0</tt> for no limit
+     */
+    public void setMaxItems(int maxItems)
+    {
+        this.maxItems = maxItems;
+    }
+
+    public boolean contains(K key)
+    {
+        return map.containsKey(key);
+    }
+
+    public Collection<K> getKeys()
+    {
+        return map.keySet();
+    }
+
+    public V get(K key)
+    {
+        CacheEntry<V> entry = map.get(key);
+        if (entry == null)
+        {
+            return null;
+        }
+        entry.referenced = true;
+        return entry.value;
+    }
+
+    public void put(K key, V value)
+    {
+        CacheEntry<V> previous = map.put(key, new CacheEntry<V>(value));
+        if (previous == null && size.incrementAndGet() > maxItems && maxItems > 0)
+        {
+            evict();
+        }
+    }
+
+    /**
+     * Replace the value stored against a key, but only if the current value is the expected instance.
+     *
+     * @param key                   the cache key
+     * @param expectedValue         the value instance (compared by identity) that must currently be cached.
+     *                              A <tt>null</tt> value never matches.
+     * @param value                 the new value
+     * @return                      Returns <tt>true</tt> if the value was replaced
+     */
+    public boolean replace(K key, Object expectedValue, V value)
+    {
+        CacheEntry<V> entry = map.get(key);
+        if (entry == null || entry.value == null || entry.value != expectedValue)
+        {
+            return false;
+        }
+        return map.replace(key, entry, new CacheEntry<V>(value));
+    }
+
+    public void remove(K key)
+    {
+        if (map.remove(key) != null)
+        {
+            size.decrementAndGet();
+        }
+    }
+
+    public void clear()
+    {
+        for (K key : map.keySet())
+        {
+            remove(key);
+        }
+    }
+
+    /**
+     * @return                      Returns the approximate number of entries in the cache
+     */
+    public int getSize()
+    {
+        return size.get();
+    }
+
+    /**
+     * @return                      Returns the number of entries evicted to keep the cache within its limit
+     */
+    public long getEvictionCount()
+    {
+        return evictionCount.get();
+    }
+
+    /**
+     * Sweep the entries, clearing the reference flags and removing unreferenced entries, until the cache is
+     * back within its limit.  Entries are removed regardless of their flags once the whole cache has been swept
+     * twice, so that concurrent readers cannot stall the sweep.
+     */
+    private void evict()
+    {
+        if (!evictionLock.tryLock())
+        {
+            // Another thread is already sweeping
+            return;
+        }
+        try
+        {
+            int scanLimit = 2 * size.get();
+            int scanned = 0;
+            while (size.get() > maxItems)
+            {
+                if (clockHand == null || !clockHand.hasNext())
+                {
+                    clockHand = map.entrySet().iterator();
+                    if (!clockHand.hasNext())
+                    {
+                        break;
+                    }
+                }
+                Map.Entry<K, CacheEntry<V>> next = clockHand.next();
+                CacheEntry<V> entry = next.getValue();
+                if (entry.referenced && scanned++ < scanLimit)
+                {
+                    // Give it a second chance
+                    entry.referenced = false;
+                    continue;
+                }
+                if (map.remove(next.getKey(), entry))
+                {
+                    size.decrementAndGet();
+                    evictionCount.incrementAndGet();
+                }
+            }
+        }
+        finally
+        {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * Holds a value, which may be <tt>null</tt>, along with its CLOCK reference flag
+     */
+    private static class CacheEntry<EV>
+    {
+        private final EV value;
+        private volatile boolean referenced;
+
+        private CacheEntry(EV value)
+        {
+            this.value = value;
+        }
+    }
+}
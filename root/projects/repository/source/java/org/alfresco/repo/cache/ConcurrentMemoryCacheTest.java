@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2005-2010 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.repo.cache;
+
+import java.io.Serializable;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import net.sf.ehcache.Cache;
+import net.sf.ehcache.CacheManager;
+
+/**
+ * @see ConcurrentMemoryCache
+ */
+public class ConcurrentMemoryCacheTest extends TestCase
+{
+    private CacheManager cacheManager;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        cacheManager = new CacheManager();
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        cacheManager.shutdown();
+    }
+
+    public void testNullValues() throws Exception
+    {
+        ConcurrentMemoryCache<String, Object> cache = new ConcurrentMemoryCache<String, Object>();
+        cache.put("A", null);
+        assertTrue(cache.contains("A"));
+        assertNull(cache.get("A"));
+        assertFalse(cache.contains("B"));
+        cache.remove("A");
+        assertFalse(cache.contains("A"));
+        assertEquals(0, cache.getSize());
+    }
+
+    public void testReplace() throws Exception
+    {
+        ConcurrentMemoryCache<String, Object> cache = new ConcurrentMemoryCache<String, Object>();
+        Object original = new TransactionalCache.NullValueMarker();
+        cache.put("A", original);
+        // Only the same instance matches
+        assertFalse(cache.replace("A", new TransactionalCache.NullValueMarker(), "X"));
+        assertTrue(cache.replace("A", original, "B"));
+        assertEquals("B", cache.get("A"));
+        assertFalse(cache.replace("A", original, "C"));
+        // Missing entries and null values are never replaced
+        assertFalse(cache.replace("Z", null, "C"));
+        cache.put("N", null);
+        assertFalse(cache.replace("N", null, "C"));
+        assertNull(cache.get("N"));
+    }
+
+    public void testMaxItems() throws Exception
+    {
+        ConcurrentMemoryCache<String, Object> cache = new ConcurrentMemoryCache<String, Object>();
+        cache.setMaxItems(100);
+        for (int i = 0; i < 100; i++)
+        {
+            cache.put("" + i, Integer.valueOf(i));
+        }
+        // Read an entry to give it a second chance
+        cache.get("0");
+        for (int i = 100; i < 150; i++)
+        {
+            cache.put("" + i, Integer.valueOf(i));
+        }
+        assertEquals(100, cache.getSize());
+        assertEquals(50, cache.getEvictionCount());
+        assertTrue("Recently read entry was evicted", cache.contains("0"));
+        cache.clear();
+        assertEquals(0, cache.getSize());
+        assertEquals(0, cache.getKeys().size());
+    }
+
+    /**
+     * Compares the cache against an Ehcache adapter for a mix of reads, writes and
+     * transaction commit style updates on several threads.
+     */
+    public void testPerformanceAgainstEhCache() throws Exception
+    {
+        int threadCount = 16;
+        int keyCount = 10000;
+        int opCount = 50000;
+
+        Cache ehCache = new Cache("concurrentMemoryCacheTest", keyCount / 2, false, true, 0, 0);
+        cacheManager.addCache(ehCache);
+        EhCacheAdapter<Serializable, Object> ehCacheAdapter = new EhCacheAdapter<Serializable, Object>();
+        ehCacheAdapter.setCache(ehCache);
+        ConcurrentMemoryCache<Serializable, Object> concurrentCache = new ConcurrentMemoryCache<Serializable, Object>();
+        concurrentCache.setMaxItems(keyCount / 2);
+
+        for (int i = 0; i < 3; i++)
+        {
+            long timeEhCache = runPerformanceTestOnCache(ehCacheAdapter, threadCount, keyCount, opCount);
+            long timeConcurrent = runPerformanceTestOnCache(concurrentCache, threadCount, keyCount, opCount);
+            // report
+            System.out.println("Concurrent cache performance test: \n" +
+                    "   threads: " + threadCount + "\n" +
+                    "   operations: " + (threadCount * opCount) + "\n" +
+                    "   ehcache: " + timeEhCache / (threadCount * opCount) + " ns\\op \n" +
+                    "   concurrent: " + timeConcurrent / (threadCount * opCount) + " ns\\op");
+        }
+        assertTrue(concurrentCache.getSize() <= keyCount / 2 + threadCount);
+    }
+
+    /**
+     * 80% reads, 15% writes and 5% commit updates (a read followed by a conditional write)
+     *
+     * @return Returns the time it took in <b>nanoseconds</b>.
+     */
+    private long runPerformanceTestOnCache(
+            final SimpleCache<Serializable, Object> cache,
+            int threadCount,
+            final int keyCount,
+            final int opCount) throws Exception
+    {
+        final Object marker = new TransactionalCache.NullValueMarker();
+        Thread[] threads = new Thread[threadCount];
+        for (int i = 0; i < threadCount; i++)
+        {
+            final Random random = new Random(i);
+            threads[i] = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    for (int op = 0; op < opCount; op++)
+                    {
+                        String key = Integer.toString(random.nextInt(keyCount));
+                        int mix = random.nextInt(100);
+                        if (mix < 80)
+                        {
+                            cache.get(key);
+                        }
+                        else if (mix < 95)
+                        {
+                            cache.put(key, marker);
+                        }
+                        else if (cache instanceof ConcurrentMemoryCache)
+                        {
+                            ConcurrentMemoryCache<Serializable, Object> concurrentCache = (ConcurrentMemoryCache<Serializable, Object>) cache;
+                            if (!concurrentCache.replace(key, marker, key))
+                            {
+                                concurrentCache.remove(key);
+                            }
+                        }
+                        else
+                        {
+                            Object value = cache.get(key);
+                            if (value == marker)
+                            {
+                                cache.put(key, key);
+                            }
+                            else if (value != null)
+                            {
+                                cache.remove(key);
+                            }
+                        }
+                    }
+                }
+            };
+        }
+        long start = System.nanoTime();
+        for (Thread thread : threads)
+        {
+            thread.start();
+        }
+        for (Thread thread : threads)
+        {
+            thread.join();
+        }
+        return System.nanoTime() - start;
+    }
+}
@@ -713,6 +713,18 @@ public class TransactionalCache<K extends Serializable, V extends Object>
         public void doPostCommit(SimpleCache<Serializable, Object> sharedCache, Serializable key);
     }
     
+    /**
+     * Flush a value to a concurrent shared cache in a single step, if the shared value is still the one seen
+     * during the transaction.  Otherwise the shared value has moved on since and is removed.
+     */
+    private static void flushToConcurrentCache(ConcurrentMemoryCache<Serializable, Object> sharedCache, Serializable key, Object expectedValue, Object value)
+    {
+        if (!sharedCache.replace(key, expectedValue, value))
+        {
+            sharedCache.remove(key);
+        }
+    }
+    
     /**
      * A bucket class to hold values for the caches.<br/>
      * The cache assumes the presence of a marker object to 
@@ -734,8 +746,14 @@ public class TransactionalCache<K extends Serializable, V extends Object>
         {
             return value;
         }
+        @SuppressWarnings("unchecked")
         public void doPostCommit(SimpleCache<Serializable, Object> sharedCache, Serializable key)
         {
+            if (sharedCache instanceof ConcurrentMemoryCache)
+            {
+                flushToConcurrentCache((ConcurrentMemoryCache<Serializable, Object>) sharedCache, key, nullMarker, value);
+                return;
+            }
             Object sharedValue = sharedCache.get(key);
             if (sharedValue != null)
             {
@@ -777,8 +795,14 @@ public class TransactionalCache<K extends Serializable, V extends Object>
         {
             return value;
         }
+        @SuppressWarnings("unchecked")
         public void doPostCommit(SimpleCache<Serializable, Object> sharedCache, Serializable key)
         {
+            if (sharedCache instanceof ConcurrentMemoryCache)
+            {
+                flushToConcurrentCache((ConcurrentMemoryCache<Serializable, Object>) sharedCache, key, originalValue, value);
+                return;
+            }
             Object sharedValue = sharedCache.get(key);
             if (sharedValue != null)
             {
@@ -27,9 +27,11 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.Reader;
+import java.nio.ByteBuffer;
 import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
 import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -60,6 +62,9 @@ public abstract class AbstractContentReader extends AbstractContentAccessor impl
 {
     private static final Log logger = LogFactory.getLog(AbstractContentReader.class);
     
+    /** size of the buffer used when content cannot be transferred directly between channels */
+    private static final int BUFFER_SIZE = 32 * 1024;
+    
     private List<ContentStreamListener> listeners;
     private ReadableByteChannel channel;
     
@@ -336,15 +341,42 @@ public abstract class AbstractContentReader extends AbstractContentAccessor impl
     }
 
     /**
-     * Copies the {@link #getContentInputStream() input stream} to the given
-     * <code>OutputStream</code>
+     * Copies the content to the given <code>OutputStream</code>.  Where the underlying
+     * channel is a <code>FileChannel</code>, content going to a file is handed to
+     * {@link FileChannel#transferTo(long, long, WritableByteChannel)} so that the operating
+     * system can move it without any copy in the VM, and content going to any other stream
+     * (e.g. a servlet response) is read straight into a single block buffer.  Otherwise the
+     * {@link #getContentInputStream() input stream} is copied.  Both streams are closed.
      */
     public final void getContent(OutputStream os) throws ContentIOException
     {
         try
         {
-            InputStream is = getContentInputStream();
-            FileCopyUtils.copy(is, os);  // both streams are closed
+            ReadableByteChannel readChannel = getReadableChannel();
+            if (readChannel instanceof FileChannel)
+            {
+                try
+                {
+                    if (os instanceof FileOutputStream)
+                    {
+                        transferContent((FileChannel) readChannel, ((FileOutputStream) os).getChannel());
+                    }
+                    else
+                    {
+                        copyContent((FileChannel) readChannel, os);
+                    }
+                }
+                finally
+                {
+                    try { readChannel.close(); } catch (IOException e) {}
+                    try { os.close(); } catch (IOException e) {}
+                }
+            }
+            else
+            {
+                InputStream is = new BufferedInputStream(Channels.newInputStream(readChannel));
+                FileCopyUtils.copy(is, os);  // both streams are closed
+            }
             // done
         }
         catch (IOException e)
@@ -359,9 +391,8 @@ public abstract class AbstractContentReader extends AbstractContentAccessor impl
     {
         try
         {
-            InputStream is = getContentInputStream();
             FileOutputStream os = new FileOutputStream(file);
-            FileCopyUtils.copy(is, os);  // both streams are closed
+            getContent(os);  // both streams are closed
             // done
         }
         catch (IOException e)
@@ -372,6 +403,56 @@ public abstract class AbstractContentReader extends AbstractContentAccessor impl
                     e);
         }
     }
+
+    /**
+     * Copies a file channel to a stream through a single buffer.  The stream's own buffering is
+     * bypassed as each write is a large block.
+     */
+    private static void copyContent(FileChannel readChannel, OutputStream os) throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        byte[] bytes = buffer.array();
+        int count;
+        while ((count = readChannel.read(buffer)) != -1)
+        {
+            os.write(bytes, 0, count);
+            buffer.clear();
+        }
+        os.flush();
+    }
+
+    /**
+     * Transfers the whole of a file channel, falling back to a buffered copy of whatever the
+     * platform will not transfer directly.
+     */
+    private static void transferContent(FileChannel readChannel, WritableByteChannel writeChannel) throws IOException
+    {
+        long size = readChannel.size();
+        long position = 0L;
+        while (position < size)
+        {
+            long count = readChannel.transferTo(position, size - position, writeChannel);
+            if (count <= 0L)
+            {
+                break;
+            }
+            position += count;
+        }
+        if (position < size)
+        {
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            readChannel.position(position);
+            while (readChannel.read(buffer) != -1)
+            {
+                buffer.flip();
+                while (buffer.hasRemaining())
+                {
+                    writeChannel.write(buffer);
+                }
+                buffer.clear();
+            }
+        }
+    }
     
     public final String getContentString(int length) throws ContentIOException
     {
@@ -35,6 +35,7 @@ import org.alfresco.repo.content.transform.HtmlParserContentTransformerTest;
 import org.alfresco.repo.content.transform.MailContentTransformerTest;
 import org.alfresco.repo.content.transform.MediaWikiContentTransformerTest;
 import org.alfresco.repo.content.transform.OpenOfficeContentTransformerTest;
+import org.alfresco.repo.content.transform.OpenOfficeContentTransformerWorkerPoolTest;
 import org.alfresco.repo.content.transform.PdfBoxContentTransformerTest;
 import org.alfresco.repo.content.transform.PoiHssfContentTransformerTest;
 import org.alfresco.repo.content.transform.RuntimeExecutableContentTransformerTest;
@@ -100,6 +101,7 @@ public class ContentMinimalContextTestSuite extends TestSuite
        suite.addTestSuite(MailContentTransformerTest.class);
        suite.addTestSuite(MediaWikiContentTransformerTest.class);
        suite.addTestSuite(OpenOfficeContentTransformerTest.class);
+       suite.addTestSuite(OpenOfficeContentTransformerWorkerPoolTest.class);
        suite.addTestSuite(PdfBoxContentTransformerTest.class);
        suite.addTestSuite(PoiHssfContentTransformerTest.class);
        suite.addTestSuite(RuntimeExecutableContentTransformerTest.class);
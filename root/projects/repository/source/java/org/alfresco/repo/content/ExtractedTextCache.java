@@ -0,0 +1,266 @@
+/*
+ * Copyright (C) 2005-2010 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.repo.content;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import org.alfresco.repo.content.cleanup.ContentStoreCleanerListener;
+import org.alfresco.repo.content.filestore.FileContentReader;
+import org.alfresco.service.cmr.repository.ContentIOException;
+import org.alfresco.service.cmr.repository.ContentReader;
+import org.alfresco.util.GUID;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * A persistent cache of the plain text extracted from content, keyed by content URL.
+ * <p>
+ * Content URLs never point to different binaries over time, so text extracted once for a URL
+ * (and source mimetype and encoding) can be used for every later index, reindex or index
+ * recovery of that content without running the transformer again.  The text is held in files
+ * below a root directory, laid out like the content store, and is removed when the
+ * {@link org.alfresco.repo.content.cleanup.ContentStoreCleaner cleaner} deletes the content
+ * it was extracted from; this bean must be registered as one of the cleaner's listeners.
+ * <p>
+ * Only content URLs of the form <b>protocol://path</b> are cached.
+ *
+ * @since 3.3
+ */
+public class ExtractedTextCache implements ContentStoreCleanerListener
+{
+    private static final Log logger = LogFactory.getLog(ExtractedTextCache.class);
+
+    private static final String TEXT_EXTENSION = ".txt";
+
+    private File rootDirectory;
+    private boolean enabled;
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong putCount = new AtomicLong();
+
+    public ExtractedTextCache()
+    {
+        enabled = true;
+    }
+
+    /**
+     * @param rootDirectory         the directory below which text is stored.  It is created if necessary.
+     */
+    public void setRootDirectory(String rootDirectory)
+    {
+        this.rootDirectory = new File(rootDirectory);
+    }
+
+    /**
+     * @param enabled               <tt>false</tt> to neither look up nor store any text
+     */
+    public void setEnabled(boolean enabled)
+    {
+        this.enabled = enabled;
+    }
+
+    /**
+     * @return                      Returns <tt>true</tt> if text is being cached
+     */
+    public boolean isEnabled()
+    {
+        return enabled && rootDirectory != null;
+    }
+
+    /**
+     * Get the UTF-8 plain text previously extracted from the given content.
+     *
+     * @param sourceReader          the reader of the original content.  No content is read from it.
+     * @return                      Returns a reader onto the text or <tt>null</tt> if none is cached
+     */
+    public ContentReader getText(ContentReader sourceReader)
+    {
+        File file = getTextFile(sourceReader);
+        if (file == null)
+        {
+            return null;
+        }
+        if (!file.exists())
+        {
+            missCount.incrementAndGet();
+            return null;
+        }
+        hitCount.incrementAndGet();
+        FileContentReader textReader = new FileContentReader(file);
+        textReader.setMimetype(MimetypeMap.MIMETYPE_TEXT_PLAIN);
+        textReader.setEncoding("UTF-8");
+        if (logger.isDebugEnabled())
+        {
+            logger.debug("Found extracted text: \n" +
+                    "   source: " + sourceReader + "\n" +
+                    "   text:   " + file);
+        }
+        return textReader;
+    }
+
+    /**
+     * Store the UTF-8 plain text extracted from the given content.  Failures are logged and otherwise ignored.
+     *
+     * @param sourceReader          the reader of the original content.  No content is read from it.
+     * @param textReader            a reader of the extracted text, which must not yet have been used
+     */
+    public void putText(ContentReader sourceReader, ContentReader textReader)
+    {
+        File file = getTextFile(sourceReader);
+        if (file == null)
+        {
+            return;
+        }
+        // Write to a temporary file alongside and move it into place, so that readers never see partial text
+        File tempFile = new File(file.getParentFile(), file.getName() + "." + GUID.generate() + ".tmp");
+        try
+        {
+            file.getParentFile().mkdirs();
+            textReader.getContent(new FileOutputStream(tempFile));
+            if (!tempFile.renameTo(file) && !file.exists())
+            {
+                throw new IOException("Failed to rename " + tempFile + " to " + file);
+            }
+            putCount.incrementAndGet();
+            if (logger.isDebugEnabled())
+            {
+                logger.debug("Stored extracted text: \n" +
+                        "   source: " + sourceReader + "\n" +
+                        "   text:   " + file);
+            }
+        }
+        catch (Throwable e)
+        {
+            logger.warn("Failed to store extracted text for " + sourceReader.getContentUrl() + ": " + e.getMessage());
+        }
+        finally
+        {
+            tempFile.delete();
+        }
+    }
+
+    /**
+     * Removes any text extracted from the content that is being deleted.
+     */
+    public void beforeDelete(ContentStore sourceStore, String contentUrl) throws ContentIOException
+    {
+        // The text is removed even if the cache has been disabled since it was written
+        if (rootDirectory == null)
+        {
+            return;
+        }
+        final File base = getBaseFile(contentUrl);
+        if (base == null)
+        {
+            return;
+        }
+        File[] files = base.getParentFile().listFiles(new FilenameFilter()
+        {
+            public boolean accept(File dir, String name)
+            {
+                return name.startsWith(base.getName() + ".") && name.endsWith(TEXT_EXTENSION);
+            }
+        });
+        if (files == null)
+        {
+            return;
+        }
+        for (File file : files)
+        {
+            if (file.delete() && logger.isDebugEnabled())
+            {
+                logger.debug("Removed extracted text for deleted content: " + file);
+            }
+        }
+    }
+
+    /**
+     * @return                      Returns the number of times text was found
+     */
+    public long getHitCount()
+    {
+        return hitCount.get();
+    }
+
+    /**
+     * @return                      Returns the number of times text was not found
+     */
+    public long getMissCount()
+    {
+        return missCount.get();
+    }
+
+    /**
+     * @return                      Returns the number of times text was stored
+     */
+    public long getPutCount()
+    {
+        return putCount.get();
+    }
+
+    /**
+     * The text depends on the source mimetype and encoding as well as on the binary, so both are part of the file name.
+     *
+     * @return                      Returns the text file or <tt>null</tt> if the content cannot be cached
+     */
+    private File getTextFile(ContentReader sourceReader)
+    {
+        if (!isEnabled())
+        {
+            return null;
+        }
+        File base = getBaseFile(sourceReader.getContentUrl());
+        if (base == null)
+        {
+            return null;
+        }
+        CRC32 crc = new CRC32();
+        crc.update((sourceReader.getMimetype() + "|" + sourceReader.getEncoding()).getBytes());
+        return new File(base.getParentFile(), base.getName() + "." + Long.toHexString(crc.getValue()) + TEXT_EXTENSION);
+    }
+
+    /**
+     * @return                      Returns the path that the text files for the URL start with or <tt>null</tt>
+     */
+    private File getBaseFile(String contentUrl)
+    {
+        if (contentUrl == null)
+        {
+            return null;
+        }
+        int index = contentUrl.indexOf(ContentStore.PROTOCOL_DELIMITER);
+        if (index <= 0)
+        {
+            return null;
+        }
+        String protocol = contentUrl.substring(0, index);
+        String path = contentUrl.substring(index + ContentStore.PROTOCOL_DELIMITER.length());
+        if (path.length() == 0 || path.endsWith("/") || path.contains("..") || path.contains("\\") || protocol.contains("/"))
+        {
+            return null;
+        }
+        return new File(new File(rootDirectory, protocol), path);
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2005-2010 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.repo.content;
+
+import java.io.File;
+
+import junit.framework.TestCase;
+
+import org.alfresco.repo.content.filestore.FileContentReader;
+import org.alfresco.repo.content.filestore.FileContentWriter;
+import org.alfresco.service.cmr.repository.ContentReader;
+import org.alfresco.util.GUID;
+import org.alfresco.util.TempFileProvider;
+
+/**
+ * @see ExtractedTextCache
+ */
+public class ExtractedTextCacheTest extends TestCase
+{
+    private static final String CONTENT_URL = "store://2010/3/4/12/34/" + GUID.generate() + ".bin";
+
+    private ExtractedTextCache cache;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        File rootDirectory = new File(TempFileProvider.getTempDir(), "ExtractedTextCacheTest-" + GUID.generate());
+        cache = new ExtractedTextCache();
+        cache.setRootDirectory(rootDirectory.getAbsolutePath());
+    }
+
+    public void testPutGetDelete() throws Exception
+    {
+        ContentReader pdfReader = makeSourceReader("application/pdf");
+        assertNull(cache.getText(pdfReader));
+        assertEquals(1, cache.getMissCount());
+
+        cache.putText(pdfReader, makeTextReader("Some text"));
+        assertEquals(1, cache.getPutCount());
+        ContentReader textReader = cache.getText(pdfReader);
+        assertNotNull(textReader);
+        assertEquals(1, cache.getHitCount());
+        assertEquals(MimetypeMap.MIMETYPE_TEXT_PLAIN, textReader.getMimetype());
+        assertEquals("Some text", textReader.getContentString());
+
+        // The same URL with a different mimetype is not the same text
+        ContentReader wordReader = makeSourceReader("application/msword");
+        assertNull(cache.getText(wordReader));
+        cache.putText(wordReader, makeTextReader("Other text"));
+        assertEquals("Other text", cache.getText(wordReader).getContentString());
+        assertEquals("Some text", cache.getText(pdfReader).getContentString());
+
+        // All the text goes when the content is deleted
+        cache.beforeDelete(null, CONTENT_URL);
+        assertNull(cache.getText(pdfReader));
+        assertNull(cache.getText(wordReader));
+    }
+
+    public void testUncacheableUrls() throws Exception
+    {
+        FileContentReader reader = new FileContentReader(TempFileProvider.createTempFile(getName(), ".bin"), "store://../x.bin");
+        reader.setMimetype("application/pdf");
+        cache.putText(reader, makeTextReader("Some text"));
+        assertNull(cache.getText(reader));
+        assertEquals(0, cache.getPutCount());
+    }
+
+    public void testDisabled() throws Exception
+    {
+        cache.setEnabled(false);
+        ContentReader pdfReader = makeSourceReader("application/pdf");
+        cache.putText(pdfReader, makeTextReader("Some text"));
+        assertNull(cache.getText(pdfReader));
+        assertEquals(0, cache.getPutCount());
+        assertEquals(0, cache.getMissCount());
+    }
+
+    private ContentReader makeSourceReader(String mimetype)
+    {
+        File file = TempFileProvider.createTempFile(getName(), ".bin");
+        FileContentReader reader = new FileContentReader(file, CONTENT_URL);
+        reader.setMimetype(mimetype);
+        return reader;
+    }
+
+    private ContentReader makeTextReader(String text)
+    {
+        FileContentWriter writer = new FileContentWriter(TempFileProvider.createTempFile(getName(), ".txt"));
+        writer.setMimetype(MimetypeMap.MIMETYPE_TEXT_PLAIN);
+        writer.setEncoding("UTF-8");
+        writer.putContent(text);
+        return writer.getReader();
+    }
+}
@@ -21,7 +21,10 @@ package org.alfresco.repo.content.filestore;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.util.HashSet;
@@ -30,6 +33,8 @@ import java.util.zip.CRC32;
 
 import junit.framework.TestCase;
 
+import org.springframework.util.FileCopyUtils;
+
 /**
  * Some tests to check out the </code>java.lang.nio</code> functionality
  * 
@@ -142,4 +147,71 @@ public class FileIOTest extends TestCase
         double aveNs = (double)delta / (double)count;
         System.out.println(String.format("CRC32: %10.2f ns per item.  Negatives=" + negatives, aveNs));
     }
+    
+    /**
+     * Compares copying a file through stream buffers with {@link FileContentReader#getContent(OutputStream)},
+     * which transfers from the file channel.  The target discards the content, as a servlet stream would.
+     */
+    public void testStreamingPerformance() throws Exception
+    {
+        File bigFile = File.createTempFile(getName(), ".bin");
+        bigFile.deleteOnExit();
+        byte[] block = new byte[1024 * 1024];
+        for (int i = 0; i < block.length; i++)
+        {
+            block[i] = (byte) i;
+        }
+        OutputStream os = new FileOutputStream(bigFile);
+        for (int i = 0; i < 64; i++)
+        {
+            os.write(block);
+        }
+        os.close();
+        
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        boolean cpuTime = threadBean.isCurrentThreadCpuTimeSupported();
+        for (int run = 0; run < 3; run++)
+        {
+            long beforeCpu = cpuTime ? threadBean.getCurrentThreadCpuTime() : 0L;
+            long before = System.nanoTime();
+            CountingOutputStream streamTarget = new CountingOutputStream();
+            FileCopyUtils.copy(new FileInputStream(bigFile), streamTarget);
+            long streamTime = System.nanoTime() - before;
+            long streamCpu = cpuTime ? threadBean.getCurrentThreadCpuTime() - beforeCpu : 0L;
+            
+            beforeCpu = cpuTime ? threadBean.getCurrentThreadCpuTime() : 0L;
+            before = System.nanoTime();
+            CountingOutputStream channelTarget = new CountingOutputStream();
+            new FileContentReader(bigFile).getContent(channelTarget);
+            long channelTime = System.nanoTime() - before;
+            long channelCpu = cpuTime ? threadBean.getCurrentThreadCpuTime() - beforeCpu : 0L;
+            
+            assertEquals(bigFile.length(), streamTarget.count);
+            assertEquals(bigFile.length(), channelTarget.count);
+            double gb = (double) bigFile.length() / (1024.0 * 1024.0 * 1024.0);
+            System.out.println(String.format(
+                    "Streaming %d MB: stream copy %8.1f MB/s %8.1f ms CPU/GB, channel transfer %8.1f MB/s %8.1f ms CPU/GB",
+                    bigFile.length() / (1024 * 1024),
+                    gb * 1024.0 / (streamTime / 1E9), streamCpu / 1E6 / gb,
+                    gb * 1024.0 / (channelTime / 1E9), channelCpu / 1E6 / gb));
+        }
+        bigFile.delete();
+    }
+    
+    private static class CountingOutputStream extends OutputStream
+    {
+        private long count;
+        
+        @Override
+        public void write(int b) throws IOException
+        {
+            count++;
+        }
+        
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException
+        {
+            count += len;
+        }
+    }
 }
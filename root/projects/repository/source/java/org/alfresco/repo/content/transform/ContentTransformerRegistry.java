@@ -19,10 +19,17 @@
 package org.alfresco.repo.content.transform;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
+import org.alfresco.service.cmr.repository.MimetypeService;
 import org.alfresco.service.cmr.repository.TransformationOptions;
+import org.alfresco.util.EqualsHelper;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
@@ -31,7 +38,18 @@ import org.apache.commons.logging.LogFactory;
  * a particular source and target mimetype transformation request.
  * <p>
  * The transformers themselves are used to determine the applicability
- * of a particular transformation.
+ * of a particular transformation.  The transformers that can do each
+ * transformation are worked out once and kept in a routing table, keyed by
+ * the source mimetype, the target mimetype and the class of the options.
+ * The table is cleared whenever a transformer is registered.  An entry is
+ * dropped if none of its transformers can do the transformation any more and
+ * entries are rebuilt after the {@link #setRouteTimeToLive(long) time to live}
+ * so that transformers that have become available again are picked up.
+ * <p>
+ * Where no transformer can do a transformation directly and the
+ * {@link #setMimetypeService(MimetypeService) mimetype service} has been set,
+ * pairs of transformers are chained through an intermediate mimetype, e.g.
+ * <b>doc</b> to <b>pdf</b> to <b>png</b>.
  *
  * @see org.alfresco.repo.content.transform.ContentTransformer
  * 
@@ -41,14 +59,41 @@ public class ContentTransformerRegistry
 {
     private static final Log logger = LogFactory.getLog(ContentTransformerRegistry.class);
     
+    /** Chained transformations are ranked and only the fastest few are kept */
+    private static final int MAX_CHAINED_TRANSFORMERS = 5;
+    
     private List<ContentTransformer> transformers;
+    private MimetypeService mimetypeService;
+    private long routeTimeToLive;
+    private final Map<RouteKey, Route> routes;
     
     /**
      * @param mimetypeMap all the mimetypes available to the system
      */
     public ContentTransformerRegistry()
     {
-        this.transformers = new ArrayList<ContentTransformer>(10);
+        this.transformers = new CopyOnWriteArrayList<ContentTransformer>();
+        this.routeTimeToLive = 60000L;
+        this.routes = new ConcurrentHashMap<RouteKey, Route>(101);
+    }
+    
+    /**
+     * @param mimetypeService   the source of the intermediate mimetypes through which transformers
+     *                          are chained.  If not set, no chains are built.
+     */
+    public void setMimetypeService(MimetypeService mimetypeService)
+    {
+        this.mimetypeService = mimetypeService;
+        routes.clear();
+    }
+    
+    /**
+     * @param routeTimeToLive   the number of milliseconds for which the transformers found for a
+     *                          transformation are used before they are looked up again
+     */
+    public void setRouteTimeToLive(long routeTimeToLive)
+    {
+        this.routeTimeToLive = routeTimeToLive;
     }
     
     /**
@@ -59,6 +104,8 @@ public class ContentTransformerRegistry
     public void addTransformer(ContentTransformer transformer)
     {
         transformers.add(transformer);
+        // the routes may change
+        routes.clear();
         // done
         if (logger.isDebugEnabled())
         {
@@ -70,13 +117,18 @@ public class ContentTransformerRegistry
     /**
      * Gets the best transformer possible.  This is a combination of the most reliable
      * and the most performant transformer.
-     *
-     * TODO
      */
     public ContentTransformer getTransformer(String sourceMimetype, String targetMimetype, TransformationOptions options)
     {
         // Get the list of transformers
-        List<ContentTransformer> transformers = findTransformers(sourceMimetype, targetMimetype, options);
+        RouteKey key = new RouteKey(sourceMimetype, targetMimetype, options);
+        Route route = routes.get(key);
+        if (route == null || System.currentTimeMillis() - route.created > routeTimeToLive)
+        {
+            route = new Route(findTransformers(sourceMimetype, targetMimetype, options));
+            routes.put(key, route);
+        }
+        List<ContentTransformer> transformers = route.transformers;
 
         // select the most performant transformer
         long bestTime = -1L;
@@ -98,6 +150,11 @@ public class ContentTransformerRegistry
                 bestTime = transformationTime;
             }
         }
+        if (bestTransformer == null && transformers.size() > 0)
+        {
+            // They have all become unusable, so look again next time
+            routes.remove(key);
+        }
         // done
         return bestTransformer;
     }
@@ -112,9 +169,12 @@ public class ContentTransformerRegistry
     {
         // search for a simple transformer that can do the job
         List<ContentTransformer> transformers = findDirectTransformers(sourceMimetype, targetMimetype, options);
-        // get the complex transformers that can do the job
-        List<ContentTransformer> complexTransformers = findComplexTransformer(sourceMimetype, targetMimetype, options);
-        transformers.addAll(complexTransformers);
+        // get the complex transformers that can do the job, if there is nothing simpler
+        if (transformers.isEmpty())
+        {
+            List<ContentTransformer> complexTransformers = findComplexTransformer(sourceMimetype, targetMimetype, options);
+            transformers.addAll(complexTransformers);
+        }
         // done
         if (logger.isDebugEnabled())
         {
@@ -169,26 +229,165 @@ public class ContentTransformerRegistry
     }
     
     /**
-     * Uses a list of known mimetypes to build transformations from several direct transformations. 
+     * Uses a list of known mimetypes to build transformations from two direct transformations.
+     * 
+     * @return Returns the fastest chained transformers for the translation - empty list if there
+     *      are none.
      */
     private List<ContentTransformer> findComplexTransformer(String sourceMimetype, String targetMimetype, TransformationOptions options)
     {
+        if (mimetypeService == null)
+        {
+            return Collections.emptyList();
+        }
         // get a complete list of mimetypes
-        // TODO: Build complex transformers by searching for transformations by mimetype
-        return Collections.emptyList();
+        List<ContentTransformer> transformers = new ArrayList<ContentTransformer>(MAX_CHAINED_TRANSFORMERS);
+        for (String intermediateMimetype : mimetypeService.getMimetypes())
+        {
+            if (intermediateMimetype.equals(sourceMimetype) || intermediateMimetype.equals(targetMimetype))
+            {
+                continue;
+            }
+            ContentTransformer first = getFastestTransformer(findDirectTransformers(sourceMimetype, intermediateMimetype, options));
+            if (first == null)
+            {
+                continue;
+            }
+            ContentTransformer second = getFastestTransformer(findDirectTransformers(intermediateMimetype, targetMimetype, options));
+            if (second == null)
+            {
+                continue;
+            }
+            transformers.add(new ChainedContentTransformer(mimetypeService, first, intermediateMimetype, second));
+        }
+        // keep the fastest
+        Collections.sort(transformers, new Comparator<ContentTransformer>()
+        {
+            public int compare(ContentTransformer o1, ContentTransformer o2)
+            {
+                long diff = o1.getTransformationTime() - o2.getTransformationTime();
+                return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+            }
+        });
+        if (transformers.size() > MAX_CHAINED_TRANSFORMERS)
+        {
+            transformers = new ArrayList<ContentTransformer>(transformers.subList(0, MAX_CHAINED_TRANSFORMERS));
+        }
+        return transformers;
+    }
+    
+    private ContentTransformer getFastestTransformer(List<ContentTransformer> transformers)
+    {
+        ContentTransformer bestTransformer = null;
+        for (ContentTransformer transformer : transformers)
+        {
+            if (bestTransformer == null || transformer.getTransformationTime() < bestTransformer.getTransformationTime())
+            {
+                bestTransformer = transformer;
+            }
+        }
+        return bestTransformer;
     }
     
     /**
-     * Recursive method to build up a list of content transformers
+     * Two transformers chained through an intermediate mimetype.  Until the chain has been used,
+     * its transformation time is the sum of the times measured for its parts.
      */
-    @SuppressWarnings("unused")
-    private void buildTransformer(List<ContentTransformer> transformers,
-            double reliability,
-            List<String> touchedMimetypes,
-            String currentMimetype,
-            String targetMimetype)
+    private static class ChainedContentTransformer extends ComplexContentTransformer
     {
-        throw new UnsupportedOperationException();
+        private final List<ContentTransformer> chain;
+        private final String intermediateMimetype;
+        
+        private ChainedContentTransformer(
+                MimetypeService mimetypeService,
+                ContentTransformer first,
+                String intermediateMimetype,
+                ContentTransformer second)
+        {
+            this.chain = Arrays.asList(first, second);
+            this.intermediateMimetype = intermediateMimetype;
+            setMimetypeService(mimetypeService);
+            setTransformers(chain);
+            setIntermediateMimetypes(Collections.singletonList(intermediateMimetype));
+        }
+
+        @Override
+        public synchronized long getTransformationTime()
+        {
+            long transformationTime = super.getTransformationTime();
+            if (transformationTime > 0L)
+            {
+                return transformationTime;
+            }
+            for (ContentTransformer transformer : chain)
+            {
+                transformationTime += transformer.getTransformationTime();
+            }
+            return transformationTime;
+        }
+
+        @Override
+        public String toString()
+        {
+            return "ChainedContentTransformer[ " + chain.get(0) + " via " + intermediateMimetype + " to " + chain.get(1) + "]";
+        }
+    }
+    
+    /**
+     * The transformers found for a transformation and when they were found
+     */
+    private static class Route
+    {
+        private final List<ContentTransformer> transformers;
+        private final long created;
+        
+        private Route(List<ContentTransformer> transformers)
+        {
+            this.transformers = transformers;
+            this.created = System.currentTimeMillis();
+        }
+    }
+    
+    /**
+     * A key for a combination of a source and target mimetype and class of options
+     */
+    private static class RouteKey
+    {
+        private final String sourceMimetype;
+        private final String targetMimetype;
+        private final Class<?> optionsClass;
+        
+        private RouteKey(String sourceMimetype, String targetMimetype, TransformationOptions options)
+        {
+            this.sourceMimetype = sourceMimetype;
+            this.targetMimetype = targetMimetype;
+            this.optionsClass = (options == null ? null : options.getClass());
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            if (this == obj)
+            {
+                return true;
+            }
+            else if (!(obj instanceof RouteKey))
+            {
+                return false;
+            }
+            RouteKey that = (RouteKey) obj;
+            return EqualsHelper.nullSafeEquals(this.sourceMimetype, that.sourceMimetype)
+                    && EqualsHelper.nullSafeEquals(this.targetMimetype, that.targetMimetype)
+                    && this.optionsClass == that.optionsClass;
+        }
+        
+        @Override
+        public int hashCode()
+        {
+            int hashCode = (sourceMimetype == null ? 0 : sourceMimetype.hashCode());
+            hashCode = 37 * hashCode + (targetMimetype == null ? 0 : targetMimetype.hashCode());
+            return 37 * hashCode + (optionsClass == null ? 0 : optionsClass.hashCode());
+        }
     }
     
     /**
@@ -179,6 +179,41 @@ public class ContentTransformerRegistryTest extends AbstractContentTransformerTe
         assertTrue("Expected explicit transformer", dummyTransformer == checkTransformer);
     }
     
+    /**
+     * Check that a newly registered transformer is used for a transformation that has
+     * already been looked up.
+     */
+    public void testRegistrationClearsRoutes()
+    {
+        ContentTransformer transformer = dummyRegistry.getTransformer(B, C, OPTIONS);
+        assertNotNull("No transformer found", transformer);
+        assertTrue("Expected the same transformer", transformer == dummyRegistry.getTransformer(B, C, OPTIONS));
+        
+        ContentTransformer fasterTransformer = new DummyTransformer(mimetypeService, dummyRegistry, B, C, 5L);
+        assertTrue("Expected the new transformer", fasterTransformer == dummyRegistry.getTransformer(B, C, OPTIONS));
+    }
+    
+    /**
+     * Check that transformations are chained through an intermediate mimetype where there
+     * is no direct transformer.
+     */
+    public void testChainedRetrieval()
+    {
+        new DummyTransformer(mimetypeService, dummyRegistry, D, B, 15L);
+        // D -> C is only possible via B, and only when the mimetypes are known
+        assertNull("No transformer expected", dummyRegistry.getTransformer(D, C, OPTIONS));
+        dummyRegistry.setMimetypeService(mimetypeService);
+        ContentTransformer transformer = dummyRegistry.getTransformer(D, C, OPTIONS);
+        assertNotNull("No chained transformer found", transformer);
+        assertTrue("Incorrect reliability", transformer.isTransformable(D, C, OPTIONS));
+        assertFalse("Incorrect reliability", transformer.isTransformable(C, D, OPTIONS));
+        assertEquals("Incorrect transformation time", 25L, transformer.getTransformationTime());
+        // direct transformations are still preferred
+        assertEquals("Incorrect transformation time", 10L, dummyRegistry.getTransformer(A, C, OPTIONS).getTransformationTime());
+        // nothing goes from C
+        assertNull("No transformer expected", dummyRegistry.getTransformer(C, A, OPTIONS));
+    }
+    
     /**
      * Dummy transformer that does no transformation and scores exactly as it is
      * told to in the constructor.  It enables the tests to be sure of what to expect.
@@ -0,0 +1,701 @@
+/*
+ * Copyright (C) 2005-2010 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.repo.content.transform;
+
+import java.io.File;
+import java.net.ConnectException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.sf.jooreports.openoffice.connection.OpenOfficeConnection;
+import net.sf.jooreports.openoffice.connection.SocketOpenOfficeConnection;
+
+import org.alfresco.error.AlfrescoRuntimeException;
+import org.alfresco.repo.content.filestore.FileContentWriter;
+import org.alfresco.service.cmr.repository.ContentIOException;
+import org.alfresco.service.cmr.repository.ContentReader;
+import org.alfresco.service.cmr.repository.ContentWriter;
+import org.alfresco.service.cmr.repository.MimetypeService;
+import org.alfresco.service.cmr.repository.TransformationOptions;
+import org.alfresco.util.OpenOfficeURI;
+import org.alfresco.util.PropertyCheck;
+import org.alfresco.util.TempFileProvider;
+import org.alfresco.util.TraceableThreadFactory;
+import org.alfresco.util.exec.RuntimeExec;
+import org.alfresco.util.exec.RuntimeExec.ExecutionResult;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.quartz.Job;
+import org.quartz.JobDataMap;
+import org.quartz.JobExecutionContext;
+import org.quartz.JobExecutionException;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+
+/**
+ * Spreads OpenOffice-driven conversions over a pool of OpenOffice instances, each listening on its own port.
+ * <p>
+ * Each instance is driven by its own {@link OpenOfficeContentTransformerWorker}.  A conversion waits up to the
+ * {@link #setQueueTimeout(long) queue timeout} for a free instance.  Instances that have lost their connection are
+ * restarted when they are next used or by the {@link OpenOfficeContentTransformerWorkerPoolJob check job}, and are
+ * restarted anyway after a {@link #setMaxConversionsPerInstance(int) number of conversions} to contain leaks in the
+ * OpenOffice process.  A conversion that takes longer than the {@link #setConversionTimeout(long) conversion timeout}
+ * has its instance killed and restarted.
+ * <p>
+ * If a {@link #setStartupCommand(RuntimeExec) startup command} is given and enabled, then the pool starts the OpenOffice process
+ * for each instance itself.  The command is executed with the <b>${port}</b> and <b>${userInstallation}</b>
+ * properties, as each process needs its own user installation directory.  Otherwise the pool connects to processes
+ * that are started elsewhere.
+ * <p>
+ * The target content is written on the calling thread, so that any listeners on the writer run within the caller's
+ * transaction.
+ *
+ * @since 3.3
+ */
+public class OpenOfficeContentTransformerWorkerPool implements ContentTransformerWorker, InitializingBean, DisposableBean
+{
+    private static final Log logger = LogFactory.getLog(OpenOfficeContentTransformerWorkerPool.class);
+
+    public static final String PROP_PORT = "port";
+    public static final String PROP_USER_INSTALLATION = "userInstallation";
+
+    private MimetypeService mimetypeService;
+    private String documentFormatsConfiguration;
+    private RuntimeExec startupCommand;
+    private boolean startupEnabled;
+    private String userInstallationDirectory;
+    private String host;
+    private int basePort;
+    private int poolSize;
+    private int maxConversionsPerInstance;
+    private long queueTimeout;
+    private long conversionTimeout;
+    private long startupTimeout;
+
+    private List<OpenOfficeInstance> instances;
+    private BlockingQueue<OpenOfficeInstance> idleInstances;
+    private ExecutorService conversionExecutor;
+
+    private final AtomicLong waitingRequests = new AtomicLong();
+    private final AtomicLong queueWaitTime = new AtomicLong();
+    private final AtomicLong conversions = new AtomicLong();
+    private final AtomicLong conversionTime = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong rejections = new AtomicLong();
+    private final AtomicLong restarts = new AtomicLong();
+
+    public OpenOfficeContentTransformerWorkerPool()
+    {
+        host = SocketOpenOfficeConnection.DEFAULT_HOST;
+        basePort = SocketOpenOfficeConnection.DEFAULT_PORT;
+        startupEnabled = true;
+        poolSize = 1;
+        maxConversionsPerInstance = 0;
+        queueTimeout = 60000L;
+        conversionTimeout = 120000L;
+        startupTimeout = 30000L;
+    }
+
+    /**
+     * @param mimetypeService       the mimetype service given to each instance's worker
+     */
+    public void setMimetypeService(MimetypeService mimetypeService)
+    {
+        this.mimetypeService = mimetypeService;
+    }
+
+    /**
+     * @see OpenOfficeContentTransformerWorker#setDocumentFormatsConfiguration(String)
+     */
+    public void setDocumentFormatsConfiguration(String documentFormatsConfiguration)
+    {
+        this.documentFormatsConfiguration = documentFormatsConfiguration;
+    }
+
+    /**
+     * @param startupCommand        the command that starts an OpenOffice process, or <tt>null</tt> if the
+     *                              processes are started elsewhere
+     */
+    public void setStartupCommand(RuntimeExec startupCommand)
+    {
+        this.startupCommand = startupCommand;
+    }
+
+    /**
+     * @param startupEnabled        <tt>false</tt> to connect to the processes without starting them
+     */
+    public void setStartupEnabled(boolean startupEnabled)
+    {
+        this.startupEnabled = startupEnabled;
+    }
+
+    /**
+     * @param userInstallationDirectory the directory below which each process gets its own user installation
+     */
+    public void setUserInstallationDirectory(String userInstallationDirectory)
+    {
+        this.userInstallationDirectory = userInstallationDirectory;
+    }
+
+    /**
+     * @param host                  the host that the OpenOffice processes listen on
+     */
+    public void setHost(String host)
+    {
+        this.host = host;
+    }
+
+    /**
+     * @param basePort              the port of the first instance.  The others use the ports that follow it.
+     */
+    public void setBasePort(int basePort)
+    {
+        this.basePort = basePort;
+    }
+
+    /**
+     * @param poolSize              the number of OpenOffice instances
+     */
+    public void setPoolSize(int poolSize)
+    {
+        this.poolSize = poolSize;
+    }
+
+    /**
+     * @param maxConversionsPerInstance the number of conversions after which an instance is restarted,
+     *                              or zero to never restart working instances
+     */
+    public void setMaxConversionsPerInstance(int maxConversionsPerInstance)
+    {
+        this.maxConversionsPerInstance = maxConversionsPerInstance;
+    }
+
+    /**
+     * @param queueTimeout          the milliseconds that a conversion waits for a free instance
+     */
+    public void setQueueTimeout(long queueTimeout)
+    {
+        this.queueTimeout = queueTimeout;
+    }
+
+    /**
+     * @param conversionTimeout     the milliseconds after which a conversion is abandoned and its instance killed,
+     *                              or zero to wait for ever
+     */
+    public void setConversionTimeout(long conversionTimeout)
+    {
+        this.conversionTimeout = conversionTimeout;
+    }
+
+    /**
+     * @param startupTimeout        the milliseconds that a started process is given to accept connections
+     */
+    public void setStartupTimeout(long startupTimeout)
+    {
+        this.startupTimeout = startupTimeout;
+    }
+
+    public void afterPropertiesSet() throws Exception
+    {
+        if (poolSize < 1)
+        {
+            throw new AlfrescoRuntimeException("OpenOffice pool size must be at least 1: " + poolSize);
+        }
+        instances = new ArrayList<OpenOfficeInstance>(poolSize);
+        idleInstances = new LinkedBlockingQueue<OpenOfficeInstance>();
+        for (int i = 0; i < poolSize; i++)
+        {
+            OpenOfficeInstance instance = createInstance(i);
+            instances.add(instance);
+            // The processes are given time to come up by the first connection attempt
+            instance.launch();
+            idleInstances.add(instance);
+        }
+        instances = Collections.unmodifiableList(instances);
+
+        TraceableThreadFactory threadFactory = new TraceableThreadFactory();
+        threadFactory.setThreadDaemon(true);
+        threadFactory.setNamePrefix("OpenOfficeConversion");
+        conversionExecutor = Executors.newCachedThreadPool(threadFactory);
+    }
+
+    public void destroy() throws Exception
+    {
+        if (conversionExecutor != null)
+        {
+            conversionExecutor.shutdownNow();
+        }
+        if (instances != null)
+        {
+            for (OpenOfficeInstance instance : instances)
+            {
+                instance.stop();
+            }
+        }
+    }
+
+    /**
+     * Creates the instance with the given index, which listens on the port that many after the base port.
+     */
+    protected OpenOfficeInstance createInstance(int index) throws Exception
+    {
+        PropertyCheck.mandatory(this, "mimetypeService", mimetypeService);
+        int port = basePort + index;
+        OpenOfficeConnection connection = new SocketOpenOfficeConnection(host, port);
+        OpenOfficeContentTransformerWorker worker = new OpenOfficeContentTransformerWorker();
+        worker.setMimetypeService(mimetypeService);
+        worker.setConnection(connection);
+        worker.setDocumentFormatsConfiguration(documentFormatsConfiguration);
+        worker.afterPropertiesSet();
+
+        Map<String, String> startupProperties = new HashMap<String, String>(5);
+        startupProperties.put(PROP_PORT, Integer.toString(port));
+        if (userInstallationDirectory != null)
+        {
+            File directory = new File(userInstallationDirectory, "instance-" + index);
+            startupProperties.put(PROP_USER_INSTALLATION, new OpenOfficeURI(directory.getPath()).toString());
+        }
+        return new OpenOfficeInstance(index, connection, worker, startupEnabled ? startupCommand : null,
+                startupProperties, startupTimeout);
+    }
+
+    /**
+     * @return                      Returns <tt>true</tt> if any instance is connected
+     */
+    public boolean isAvailable()
+    {
+        for (OpenOfficeInstance instance : instances)
+        {
+            if (instance.isAvailable())
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public boolean isTransformable(String sourceMimetype, String targetMimetype, TransformationOptions options)
+    {
+        // Every instance supports the same formats but only connected ones say so
+        for (OpenOfficeInstance instance : instances)
+        {
+            if (instance.isTransformable(sourceMimetype, targetMimetype, options))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public String getVersionString()
+    {
+        // Actual version information owned by OpenOfficeConnectionTester
+        return "";
+    }
+
+    public void transform(final ContentReader reader, ContentWriter writer, final TransformationOptions options) throws Exception
+    {
+        OpenOfficeInstance instance = acquire();
+        // The conversion writes to a temporary file, as it may be abandoned on another thread
+        File tempFile = TempFileProvider.createTempFile("OpenOfficeContentTransformerWorkerPool-target-", ".bin");
+        try
+        {
+            FileContentWriter tempWriter = new FileContentWriter(tempFile);
+            tempWriter.setMimetype(writer.getMimetype());
+            tempWriter.setEncoding(writer.getEncoding());
+            tempWriter.setLocale(writer.getLocale());
+
+            convert(instance, reader, tempWriter, options);
+            writer.putContent(tempWriter.getReader());
+
+            if (maxConversionsPerInstance > 0 && instance.incrementConversionCount() >= maxConversionsPerInstance)
+            {
+                restart(instance, "it has done " + maxConversionsPerInstance + " conversions");
+            }
+        }
+        finally
+        {
+            tempFile.delete();
+            idleInstances.add(instance);
+        }
+    }
+
+    /**
+     * Takes a free instance, making sure that it is connected.
+     */
+    private OpenOfficeInstance acquire() throws InterruptedException
+    {
+        long start = System.currentTimeMillis();
+        OpenOfficeInstance instance;
+        waitingRequests.incrementAndGet();
+        try
+        {
+            instance = idleInstances.poll(queueTimeout, TimeUnit.MILLISECONDS);
+        }
+        finally
+        {
+            waitingRequests.decrementAndGet();
+        }
+        queueWaitTime.addAndGet(System.currentTimeMillis() - start);
+        if (instance == null)
+        {
+            rejections.incrementAndGet();
+            throw new ContentIOException("No OpenOffice instance became free within " + queueTimeout + "ms");
+        }
+        if (!instance.connect() && !restart(instance, "it is not connected"))
+        {
+            idleInstances.add(instance);
+            throw new ContentIOException("OpenOffice instance " + instance + " is not available");
+        }
+        return instance;
+    }
+
+    private void convert(final OpenOfficeInstance instance, final ContentReader reader, final ContentWriter writer,
+            final TransformationOptions options) throws Exception
+    {
+        long start = System.currentTimeMillis();
+        try
+        {
+            if (conversionTimeout <= 0L)
+            {
+                instance.transform(reader, writer, options);
+            }
+            else
+            {
+                Future<Object> future = conversionExecutor.submit(new Callable<Object>()
+                {
+                    public Object call() throws Exception
+                    {
+                        instance.transform(reader, writer, options);
+                        return null;
+                    }
+                });
+                try
+                {
+                    future.get(conversionTimeout, TimeUnit.MILLISECONDS);
+                }
+                catch (TimeoutException e)
+                {
+                    timeouts.incrementAndGet();
+                    future.cancel(true);
+                    // Killing the process frees the thread that is stuck in the conversion
+                    restart(instance, "a conversion took longer than " + conversionTimeout + "ms");
+                    throw new ContentIOException("OpenOffice conversion timed out after " + conversionTimeout + "ms: \n" +
+                            "   reader: " + reader);
+                }
+                catch (ExecutionException e)
+                {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof Exception)
+                    {
+                        throw (Exception) cause;
+                    }
+                    throw new AlfrescoRuntimeException("OpenOffice conversion failed", cause);
+                }
+            }
+            conversions.incrementAndGet();
+            conversionTime.addAndGet(System.currentTimeMillis() - start);
+        }
+        catch (Exception e)
+        {
+            failures.incrementAndGet();
+            throw e;
+        }
+    }
+
+    /**
+     * @return                      Returns <tt>true</tt> if the instance is connected again
+     */
+    private boolean restart(OpenOfficeInstance instance, String reason)
+    {
+        restarts.incrementAndGet();
+        if (logger.isDebugEnabled())
+        {
+            logger.debug("Restarting OpenOffice instance " + instance + " as " + reason);
+        }
+        instance.stop();
+        instance.resetConversionCount();
+        instance.launch();
+        boolean connected = instance.connect();
+        if (!connected)
+        {
+            logger.warn("OpenOffice instance " + instance + " could not be restarted");
+        }
+        return connected;
+    }
+
+    /**
+     * Connects or restarts the instances that are not in use and not connected.
+     */
+    public void checkInstances()
+    {
+        List<OpenOfficeInstance> idle = new ArrayList<OpenOfficeInstance>(poolSize);
+        idleInstances.drainTo(idle);
+        List<OpenOfficeInstance> broken = new ArrayList<OpenOfficeInstance>(poolSize);
+        for (OpenOfficeInstance instance : idle)
+        {
+            if (instance.connect())
+            {
+                idleInstances.add(instance);
+            }
+            else
+            {
+                broken.add(instance);
+            }
+        }
+        for (OpenOfficeInstance instance : broken)
+        {
+            try
+            {
+                restart(instance, "it is not connected");
+            }
+            finally
+            {
+                idleInstances.add(instance);
+            }
+        }
+        if (logger.isDebugEnabled())
+        {
+            logger.debug("Checked OpenOffice instances: " + getStatistics());
+        }
+    }
+
+    /**
+     * @return                      Returns the pool counters by name
+     */
+    public Map<String, Long> getStatistics()
+    {
+        long available = 0;
+        for (OpenOfficeInstance instance : instances)
+        {
+            if (instance.isAvailable())
+            {
+                available++;
+            }
+        }
+        Map<String, Long> map = new LinkedHashMap<String, Long>(17);
+        map.put("PoolSize", (long) instances.size());
+        map.put("AvailableInstances", available);
+        map.put("IdleInstances", (long) idleInstances.size());
+        map.put("WaitingRequests", waitingRequests.get());
+        map.put("QueueWaitTimeMs", queueWaitTime.get());
+        map.put("Conversions", conversions.get());
+        map.put("ConversionTimeMs", conversionTime.get());
+        map.put("Failures", failures.get());
+        map.put("Timeouts", timeouts.get());
+        map.put("Rejections", rejections.get());
+        map.put("Restarts", restarts.get());
+        return map;
+    }
+
+    /**
+     * One OpenOffice process and the worker that drives it.  Only one conversion uses an instance at a time.
+     *
+     * @since 3.3
+     */
+    protected static class OpenOfficeInstance
+    {
+        private static final long CONNECT_RETRY_INTERVAL = 500L;
+
+        private final int index;
+        private final OpenOfficeConnection connection;
+        private final OpenOfficeContentTransformerWorker worker;
+        private final RuntimeExec startupCommand;
+        private final Map<String, String> startupProperties;
+        private final long startupTimeout;
+
+        private ExecutionResult process;
+        private long launchTime;
+        private volatile int conversionCount;
+
+        /**
+         * Constructor for instances that do their own work
+         */
+        protected OpenOfficeInstance(int index)
+        {
+            this(index, null, null, null, null, 0L);
+        }
+
+        public OpenOfficeInstance(int index, OpenOfficeConnection connection, OpenOfficeContentTransformerWorker worker,
+                RuntimeExec startupCommand, Map<String, String> startupProperties, long startupTimeout)
+        {
+            this.index = index;
+            this.connection = connection;
+            this.worker = worker;
+            this.startupCommand = startupCommand;
+            this.startupProperties = startupProperties;
+            this.startupTimeout = startupTimeout;
+        }
+
+        /**
+         * Starts the process, if the pool starts them, without waiting for it to accept connections.
+         */
+        public synchronized void launch()
+        {
+            if (startupCommand == null)
+            {
+                return;
+            }
+            ExecutionResult result = startupCommand.execute(startupProperties);
+            if (result.getSuccess())
+            {
+                process = result;
+                launchTime = System.currentTimeMillis();
+            }
+            else
+            {
+                logger.warn("Failed to start OpenOffice instance " + this + ": " + result.getStdErr());
+            }
+        }
+
+        /**
+         * Connects to the process, waiting for a recently started process to accept connections.
+         *
+         * @return                  Returns <tt>true</tt> if connected
+         */
+        public synchronized boolean connect()
+        {
+            long deadline = launchTime + startupTimeout;
+            while (true)
+            {
+                if (connection.isConnected())
+                {
+                    return true;
+                }
+                try
+                {
+                    connection.connect();
+                    return true;
+                }
+                catch (ConnectException e)
+                {
+                    // Not listening yet, or at all
+                }
+                catch (Throwable e)
+                {
+                    logger.warn("Failed to connect to OpenOffice instance " + this + ": " + e.getMessage());
+                    return false;
+                }
+                if (process == null || System.currentTimeMillis() >= deadline)
+                {
+                    return false;
+                }
+                try
+                {
+                    Thread.sleep(CONNECT_RETRY_INTERVAL);
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+        }
+
+        /**
+         * Kills the process, if the pool started it, and drops the connection.
+         */
+        public synchronized void stop()
+        {
+            if (process != null)
+            {
+                process.killProcess();
+                process = null;
+            }
+            try
+            {
+                if (connection.isConnected())
+                {
+                    connection.disconnect();
+                }
+            }
+            catch (Throwable e)
+            {
+                // The process has gone anyway
+                logger.debug("Failed to disconnect OpenOffice instance " + this, e);
+            }
+        }
+
+        public boolean isAvailable()
+        {
+            return worker.isAvailable();
+        }
+
+        public boolean isTransformable(String sourceMimetype, String targetMimetype, TransformationOptions options)
+        {
+            return worker.isTransformable(sourceMimetype, targetMimetype, options);
+        }
+
+        public void transform(ContentReader reader, ContentWriter writer, TransformationOptions options) throws Exception
+        {
+            worker.transform(reader, writer, options);
+        }
+
+        int incrementConversionCount()
+        {
+            return ++conversionCount;
+        }
+
+        void resetConversionCount()
+        {
+            conversionCount = 0;
+        }
+
+        @Override
+        public String toString()
+        {
+            return startupProperties == null ? Integer.toString(index) : index + " (port " + startupProperties.get(PROP_PORT) + ")";
+        }
+    }
+
+    /**
+     * Quartz job that connects or restarts the idle instances of an OpenOffice pool.
+     *
+     * @since 3.3
+     */
+    public static class OpenOfficeContentTransformerWorkerPoolJob implements Job
+    {
+        public void execute(JobExecutionContext context) throws JobExecutionException
+        {
+            JobDataMap jobData = context.getJobDetail().getJobDataMap();
+            Object poolObj = jobData.get("openOfficeContentTransformerWorkerPool");
+            if (poolObj == null || !(poolObj instanceof OpenOfficeContentTransformerWorkerPool))
+            {
+                throw new AlfrescoRuntimeException(
+                        "OpenOfficeContentTransformerWorkerPoolJob data must contain valid 'openOfficeContentTransformerWorkerPool' reference");
+            }
+            ((OpenOfficeContentTransformerWorkerPool) poolObj).checkInstances();
+        }
+    }
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright (C) 2005-2010 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.repo.content.transform;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.alfresco.repo.content.MimetypeMap;
+import org.alfresco.repo.content.filestore.FileContentWriter;
+import org.alfresco.service.cmr.repository.ContentIOException;
+import org.alfresco.service.cmr.repository.ContentReader;
+import org.alfresco.service.cmr.repository.ContentWriter;
+import org.alfresco.service.cmr.repository.TransformationOptions;
+import org.alfresco.util.TempFileProvider;
+
+/**
+ * Checks the queueing, restarting and timeouts of the OpenOffice pool, using instances that do not need OpenOffice.
+ *
+ * @see OpenOfficeContentTransformerWorkerPool
+ */
+public class OpenOfficeContentTransformerWorkerPoolTest extends TestCase
+{
+    private TestPool pool;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        pool = new TestPool();
+        pool.setPoolSize(2);
+        pool.setQueueTimeout(200L);
+        pool.setConversionTimeout(5000L);
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        pool.destroy();
+    }
+
+    public void testConversionsRunConcurrently() throws Exception
+    {
+        pool.afterPropertiesSet();
+        assertTrue(pool.isAvailable());
+        assertTrue(pool.isTransformable(MimetypeMap.MIMETYPE_WORD, MimetypeMap.MIMETYPE_PDF, new TransformationOptions()));
+
+        // Both instances are busy
+        pool.block = new CountDownLatch(1);
+        Thread first = startTransform();
+        Thread second = startTransform();
+        assertTrue(pool.started.await(2, TimeUnit.SECONDS));
+        try
+        {
+            transform();
+            fail("There is no free instance");
+        }
+        catch (ContentIOException e)
+        {
+            // Expected
+        }
+        pool.block.countDown();
+        first.join();
+        second.join();
+
+        Map<String, Long> statistics = pool.getStatistics();
+        assertEquals(2L, statistics.get("Conversions").longValue());
+        assertEquals(1L, statistics.get("Rejections").longValue());
+        assertEquals(2L, statistics.get("IdleInstances").longValue());
+        assertEquals(2, pool.usedInstances.size());
+    }
+
+    public void testRestartAfterMaxConversions() throws Exception
+    {
+        pool.setPoolSize(1);
+        pool.setMaxConversionsPerInstance(3);
+        pool.afterPropertiesSet();
+        for (int i = 0; i < 7; i++)
+        {
+            assertEquals("Converted", transform());
+        }
+        assertEquals(2L, pool.getStatistics().get("Restarts").longValue());
+        // Once at startup and after each restart
+        assertEquals(3, pool.launches.get());
+    }
+
+    public void testTimeoutRestartsInstance() throws Exception
+    {
+        pool.setPoolSize(1);
+        pool.setConversionTimeout(100L);
+        pool.afterPropertiesSet();
+        pool.block = new CountDownLatch(1);
+        try
+        {
+            transform();
+            fail("The conversion should have timed out");
+        }
+        catch (ContentIOException e)
+        {
+            // Expected
+        }
+        Map<String, Long> statistics = pool.getStatistics();
+        assertEquals(1L, statistics.get("Timeouts").longValue());
+        assertEquals(1L, statistics.get("Restarts").longValue());
+        assertEquals(1L, statistics.get("IdleInstances").longValue());
+
+        // The instance is usable again
+        pool.block = null;
+        assertEquals("Converted", transform());
+    }
+
+    public void testDisconnectedInstanceIsRestarted() throws Exception
+    {
+        pool.setPoolSize(1);
+        pool.afterPropertiesSet();
+        pool.connected = false;
+        assertFalse(pool.isAvailable());
+        pool.checkInstances();
+        assertTrue(pool.isAvailable());
+        assertEquals(1L, pool.getStatistics().get("Restarts").longValue());
+    }
+
+    private String transform() throws Exception
+    {
+        ContentReader reader = new FileContentWriter(TempFileProvider.createTempFile(getName(), ".doc")).getReader();
+        ContentWriter writer = new FileContentWriter(TempFileProvider.createTempFile(getName(), ".pdf"));
+        writer.setMimetype(MimetypeMap.MIMETYPE_PDF);
+        pool.transform(reader, writer, new TransformationOptions());
+        return writer.getReader().getContentString();
+    }
+
+    private Thread startTransform()
+    {
+        Thread thread = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    transform();
+                }
+                catch (Exception e)
+                {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * A pool of instances that write a fixed string, optionally waiting for a latch first
+     */
+    private static class TestPool extends OpenOfficeContentTransformerWorkerPool
+    {
+        volatile boolean connected = true;
+        volatile CountDownLatch block;
+        final CountDownLatch started = new CountDownLatch(2);
+        final AtomicInteger launches = new AtomicInteger();
+        final Set<Integer> usedInstances = Collections.synchronizedSet(new HashSet<Integer>());
+
+        @Override
+        protected OpenOfficeInstance createInstance(final int index) throws Exception
+        {
+            return new OpenOfficeInstance(index)
+            {
+                @Override
+                public void launch()
+                {
+                    launches.incrementAndGet();
+                    connected = true;
+                }
+
+                @Override
+                public boolean connect()
+                {
+                    return connected;
+                }
+
+                @Override
+                public void stop()
+                {
+                    connected = false;
+                }
+
+                @Override
+                public boolean isAvailable()
+                {
+                    return connected;
+                }
+
+                @Override
+                public boolean isTransformable(String sourceMimetype, String targetMimetype, TransformationOptions options)
+                {
+                    return connected;
+                }
+
+                @Override
+                public void transform(ContentReader reader, ContentWriter writer, TransformationOptions options) throws Exception
+                {
+                    usedInstances.add(index);
+                    started.countDown();
+                    CountDownLatch latch = block;
+                    if (latch != null)
+                    {
+                        latch.await();
+                    }
+                    writer.putContent("Converted");
+                }
+            };
+        }
+    }
+}
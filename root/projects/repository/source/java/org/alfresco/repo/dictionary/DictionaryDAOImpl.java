@@ -23,8 +23,11 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
@@ -52,6 +55,9 @@ import org.apache.commons.logging.LogFactory;
 
 /**
  * Default implementation of the Dictionary.
+ * <p>
+ * Definitions are looked up in a {@link DictionaryView}, an immutable snapshot of the models visible to the current
+ * tenant that is rebuilt, on next use, after a model is put or removed.
  *  
  * @author David Caruana, janv
  *
@@ -307,6 +313,7 @@ public class DictionaryDAOImpl implements DictionaryDAO
         
         // Publish new Model Definition
         getCompiledModels(tenantDomain).put(modelName, compiledModel);
+        getDictionaryRegistry(tenantDomain).modelsChanged();
         
         if (logger.isTraceEnabled())
         {
@@ -341,6 +348,7 @@ public class DictionaryDAOImpl implements DictionaryDAO
             
             // Remove the model from the list
             getCompiledModels(tenantDomain).remove(modelName);
+            getDictionaryRegistry(tenantDomain).modelsChanged();
         }
     }
     
@@ -389,54 +397,34 @@ public class DictionaryDAOImpl implements DictionaryDAO
      * @return   mapped models 
      */
     private List<CompiledModel> getModelsForUri(String uri)
+    {
+        return getDictionaryView().getModelsForUri(uri);
+    }
+    
+    /**
+     * Get the dictionary view of the current tenant, building it if a model has changed since it was last built
+     * 
+     * @return   the current view
+     */
+    private DictionaryView getDictionaryView()
     {
         String tenantDomain = tenantService.getCurrentUserDomain();
+        DictionaryRegistry defaultRegistry = getDictionaryRegistry(TenantService.DEFAULT_DOMAIN);
+        DictionaryRegistry tenantRegistry = null;
         if (! tenantDomain.equals(TenantService.DEFAULT_DOMAIN))
         {
-            // get non-tenant models (if any)
-            List<CompiledModel> models = getUriToModels(TenantService.DEFAULT_DOMAIN).get(uri);
-            
-            List<CompiledModel> filteredModels = new ArrayList<CompiledModel>();
-            if (models != null)
-            {
-                filteredModels.addAll(models);
-            }
-    
-            // get tenant models (if any)
-            List<CompiledModel> tenantModels = getUriToModels(tenantDomain).get(uri);
-            if (tenantModels != null)
-            {
-                if (models != null)
-                {
-                    // check to see if tenant model overrides a non-tenant model
-                    for (CompiledModel tenantModel : tenantModels)
-                    {
-                        for (CompiledModel model : models)
-                        {
-                            if (tenantModel.getM2Model().getName().equals(model.getM2Model().getName()))
-                            {
-                                filteredModels.remove(model);
-                            }
-                        }
-                    }
-                }
-                filteredModels.addAll(tenantModels);
-                models = filteredModels;
-            }
-            
-            if (models == null)
-            {
-                models = Collections.emptyList();
-            }
-            return models;
+            tenantRegistry = getDictionaryRegistry(tenantDomain);
         }
         
-        List<CompiledModel> models = getUriToModels(TenantService.DEFAULT_DOMAIN).get(uri);
-        if (models == null)
+        DictionaryRegistry registry = (tenantRegistry == null) ? defaultRegistry : tenantRegistry;
+        DictionaryView view = registry.getView();
+        if (view == null || ! view.isCurrent(defaultRegistry, tenantRegistry))
         {
-            models = Collections.emptyList(); 
+            // concurrent rebuilds are harmless - each gives an equivalent view
+            view = new DictionaryView(defaultRegistry, tenantRegistry);
+            registry.setView(view);
         }
-        return models;
+        return view;
     }
     
     /**
@@ -472,17 +460,10 @@ public class DictionaryDAOImpl implements DictionaryDAO
      */
     public DataTypeDefinition getDataType(QName typeName)
     {
-    	if (typeName != null) {
-	        List<CompiledModel> models = getModelsForUri(typeName.getNamespaceURI());
-	        for (CompiledModel model : models)
-	        {
-	        	DataTypeDefinition dataType = model.getDataType(typeName);
-	        	if (dataType != null)
-	        	{
-	        		return dataType;
-	        	}
-	        }
-    	}
+        if (typeName != null)
+        {
+            return getDictionaryView().getDataType(typeName);
+        }
         return null;
     }
     
@@ -548,14 +529,10 @@ public class DictionaryDAOImpl implements DictionaryDAO
     public TypeDefinition getType(QName typeName)
     {
         if (typeName != null) {
-            List<CompiledModel> models = getModelsForUri(typeName.getNamespaceURI());
-            for (CompiledModel model : models)
+            TypeDefinition type = getDictionaryView().getType(typeName);
+            if (type != null)
             {
-                TypeDefinition type = model.getType(typeName);
-                if (type != null)
-                {
-                    return type;
-                }
+                return type;
             }
             
             if (logger.isWarnEnabled())
@@ -571,48 +548,7 @@ public class DictionaryDAOImpl implements DictionaryDAO
      */
     public Collection<QName> getSubTypes(QName superType, boolean follow)
     {
-    	// note: could be optimised further, if compiled into the model
-    	
-        // Get all types (with parent type) for all models
-        Map<QName, QName> allTypesAndParents = new HashMap<QName, QName>(); // name, parent
-        
-        for (CompiledModel model : getCompiledModels().values())
-        {
-        	for (TypeDefinition type : model.getTypes())
-        	{
-        		allTypesAndParents.put(type.getName(), type.getParentName());
-        	}
-        }
-        
-        // Get sub types
-    	HashSet<QName> subTypes = new HashSet<QName>();
-        for (QName type : allTypesAndParents.keySet())
-        {
-        	if (follow)
-        	{   
-        		// all sub types
-        		QName current = type;
-	            while ((current != null) && !current.equals(superType))
-	            {
-	            	current = allTypesAndParents.get(current); // get parent
-	            }
-	            if (current != null)
-	            {
-	            	subTypes.add(type);
-	            }
-        	}
-        	else
-        	{
-        		// immediate sub types only
-        	    QName typesSuperType = allTypesAndParents.get(type);
-        		if (typesSuperType != null && typesSuperType.equals(superType))
-        		{
-        			subTypes.add(type);
-        		}
-        	}
-
-        }
-        return subTypes;
+        return getDictionaryView().getSubTypes(superType, follow);
     }
 
 
@@ -621,16 +557,9 @@ public class DictionaryDAOImpl implements DictionaryDAO
      */
     public AspectDefinition getAspect(QName aspectName)
     {
-        if (aspectName != null) {
-            List<CompiledModel> models = getModelsForUri(aspectName.getNamespaceURI());
-            for (CompiledModel model : models)
-            {
-                AspectDefinition aspect = model.getAspect(aspectName);
-                if (aspect != null)
-                {
-                    return aspect;
-                }
-            }
+        if (aspectName != null)
+        {
+            return getDictionaryView().getAspect(aspectName);
         }
         return null;
     }
@@ -640,46 +569,7 @@ public class DictionaryDAOImpl implements DictionaryDAO
      */
     public Collection<QName> getSubAspects(QName superAspect, boolean follow)
     {
-    	// note: could be optimised further, if compiled into the model
-    	
-        // Get all aspects (with parent aspect) for all models   
-        Map<QName, QName> allAspectsAndParents = new HashMap<QName, QName>(); // name, parent
-        
-        for (CompiledModel model : getCompiledModels().values())
-        {
-        	for (AspectDefinition aspect : model.getAspects())
-        	{
-        		allAspectsAndParents.put(aspect.getName(), aspect.getParentName());
-        	}
-        }
-   	
-        // Get sub aspects
-    	HashSet<QName> subAspects = new HashSet<QName>();
-        for (QName aspect : allAspectsAndParents.keySet())
-        {
-        	if (follow)
-        	{
-        		// all sub aspects
-	        	QName current = aspect;
-	            while ((current != null) && !current.equals(superAspect))
-	            {
-	            	current = allAspectsAndParents.get(current); // get parent
-	            }
-	            if (current != null)
-	            {
-	            	subAspects.add(aspect);
-	            }
-	    	}
-	    	else
-	    	{
-	    		// immediate sub aspects only
-	    		if (allAspectsAndParents.get(aspect).equals(superAspect))
-	    		{
-	    			subAspects.add(aspect);
-	    		}
-	    	}        	
-        }
-        return subAspects;
+        return getDictionaryView().getSubAspects(superAspect, follow);
     }
 
 
@@ -688,17 +578,7 @@ public class DictionaryDAOImpl implements DictionaryDAO
      */
     public ClassDefinition getClass(QName className)
     {
-        List<CompiledModel> models = getModelsForUri(className.getNamespaceURI());
-
-        for (CompiledModel model : models)
-        {
-        	ClassDefinition classDef = model.getClass(className);
-        	if (classDef != null)
-        	{
-        		return classDef;
-        	}
-        }
-        return null;
+        return getDictionaryView().getClass(className);
     }
 
     
@@ -707,16 +587,7 @@ public class DictionaryDAOImpl implements DictionaryDAO
      */
     public PropertyDefinition getProperty(QName propertyName)
     {
-        List<CompiledModel> models = getModelsForUri(propertyName.getNamespaceURI());
-        for (CompiledModel model : models)
-        {
-        	PropertyDefinition propDef = model.getProperty(propertyName);
-        	if (propDef != null)
-        	{
-        		return propDef;
-        	}
-        }
-        return null;
+        return getDictionaryView().getProperty(propertyName);
     }
 
     
@@ -743,16 +614,7 @@ public class DictionaryDAOImpl implements DictionaryDAO
      */
     public AssociationDefinition getAssociation(QName assocName)
     {
-        List<CompiledModel> models = getModelsForUri(assocName.getNamespaceURI());
-        for (CompiledModel model : models)
-        {
-        	AssociationDefinition assocDef = model.getAssociation(assocName);
-        	if (assocDef != null)
-        	{
-        		return assocDef;
-        	}
-        }
-        return null;
+        return getDictionaryView().getAssociation(assocName);
     }
 
     public Collection<AssociationDefinition> getAssociations(QName modelName)
@@ -805,42 +667,8 @@ public class DictionaryDAOImpl implements DictionaryDAO
     
     private Map<QName,CompiledModel> getCompiledModels() 
     {
-        String tenantDomain = tenantService.getCurrentUserDomain();
-        if (! tenantDomain.equals(TenantService.DEFAULT_DOMAIN))
-        {
-            // return all tenant-specific models and all inherited (non-overridden) models
-            Map<QName, CompiledModel> filteredModels = new HashMap<QName, CompiledModel>();
-            
-            // get tenant models (if any)
-            Map<QName,CompiledModel> tenantModels = getCompiledModels(tenantDomain);
-            
-            // get non-tenant models - these will include core/system models and any additional custom models (which are implicitly available to all tenants)
-            Map<QName,CompiledModel> nontenantModels = getCompiledModels(TenantService.DEFAULT_DOMAIN);
-
-            // check for overrides
-            filteredModels.putAll(nontenantModels);
-     
-            for (QName tenantModel : tenantModels.keySet())
-            {
-                for (QName nontenantModel : nontenantModels.keySet())
-                {
-                    if (tenantModel.equals(nontenantModel))
-                    {
-                        // override
-                        filteredModels.remove(nontenantModel);
-                        break;
-                    }
-                }
-            }
-
-            filteredModels.putAll(tenantModels);
-            return filteredModels;
-        }
-        else
-        {
-            // return all (non-tenant) models
-            return getCompiledModels(TenantService.DEFAULT_DOMAIN);
-        } 
+        // all tenant-specific models and all inherited (non-overridden) models, if applicable
+        return getDictionaryView().getCompiledModels();
     }
 
     /* (non-Javadoc)
@@ -1273,6 +1101,10 @@ public class DictionaryDAOImpl implements DictionaryDAO
         
         private String tenantDomain;
         
+        // incremented whenever the models change
+        private AtomicLong version = new AtomicLong();
+        private volatile DictionaryView view;
+        
         public DictionaryRegistry(String tenantDomain)
         {
             this.tenantDomain = tenantDomain;
@@ -1290,6 +1122,7 @@ public class DictionaryDAOImpl implements DictionaryDAO
         public void setUriToModels(Map<String, List<CompiledModel>> uriToModels)
         {
             this.uriToModels = uriToModels;
+            modelsChanged();
         }
         public Map<QName, CompiledModel> getCompiledModels()
         {
@@ -1298,6 +1131,272 @@ public class DictionaryDAOImpl implements DictionaryDAO
         public void setCompiledModels(Map<QName, CompiledModel> compiledModels)
         {
             this.compiledModels = compiledModels;
+            modelsChanged();
+        }
+        
+        public long getVersion()
+        {
+            return version.get();
+        }
+        
+        /**
+         * Marks views built from this registry as out of date. Call after the models have been changed.
+         */
+        public void modelsChanged()
+        {
+            version.incrementAndGet();
+        }
+        
+        public DictionaryView getView()
+        {
+            return view;
+        }
+        public void setView(DictionaryView view)
+        {
+            this.view = view;
+        }
+    }
+    
+    /**
+     * Immutable snapshot of the models visible to a tenant, i.e. the tenant's models and the non-overridden
+     * shared models, with each definition indexed by name and the sub-classes of each class worked out.
+     * <p>
+     * A view is only read once built, so it can be shared without locking. It records the versions of the
+     * registries it was built from so that it can be replaced once they change.
+     */
+    /* package */ static class DictionaryView
+    {
+        private final DictionaryRegistry defaultRegistry;
+        private final long defaultVersion;
+        private final long tenantVersion;
+        
+        private final Map<QName, CompiledModel> compiledModels;
+        private final Map<String, List<CompiledModel>> uriToModels;
+        
+        private final Map<QName, DataTypeDefinition> dataTypes = new HashMap<QName, DataTypeDefinition>();
+        private final Map<QName, TypeDefinition> types = new HashMap<QName, TypeDefinition>();
+        private final Map<QName, AspectDefinition> aspects = new HashMap<QName, AspectDefinition>();
+        private final Map<QName, ClassDefinition> classes = new HashMap<QName, ClassDefinition>();
+        private final Map<QName, PropertyDefinition> properties = new HashMap<QName, PropertyDefinition>();
+        private final Map<QName, AssociationDefinition> associations = new HashMap<QName, AssociationDefinition>();
+        
+        private final Map<QName, Set<QName>> subTypes;
+        private final Map<QName, Set<QName>> allSubTypes;
+        private final Map<QName, Set<QName>> subAspects;
+        private final Map<QName, Set<QName>> allSubAspects;
+        
+        /**
+         * @param defaultRegistry   the registry of shared models
+         * @param tenantRegistry   the registry of tenant models or <tt>null</tt> for the default domain
+         */
+        public DictionaryView(DictionaryRegistry defaultRegistry, DictionaryRegistry tenantRegistry)
+        {
+            // versions are taken first so that changes made while building give a stale view
+            this.defaultRegistry = defaultRegistry;
+            this.defaultVersion = defaultRegistry.getVersion();
+            this.tenantVersion = (tenantRegistry == null) ? 0L : tenantRegistry.getVersion();
+            
+            Map<QName, CompiledModel> models = new HashMap<QName, CompiledModel>(defaultRegistry.getCompiledModels());
+            Map<String, List<CompiledModel>> uris = new HashMap<String, List<CompiledModel>>();
+            for (Map.Entry<String, List<CompiledModel>> entry : defaultRegistry.getUriToModels().entrySet())
+            {
+                uris.put(entry.getKey(), new ArrayList<CompiledModel>(entry.getValue()));
+            }
+            if (tenantRegistry != null)
+            {
+                // tenant models override non-tenant models of the same name
+                models.putAll(tenantRegistry.getCompiledModels());
+                for (Map.Entry<String, List<CompiledModel>> entry : tenantRegistry.getUriToModels().entrySet())
+                {
+                    List<CompiledModel> uriModels = uris.get(entry.getKey());
+                    if (uriModels == null)
+                    {
+                        uriModels = new ArrayList<CompiledModel>();
+                        uris.put(entry.getKey(), uriModels);
+                    }
+                    for (CompiledModel tenantModel : entry.getValue())
+                    {
+                        Iterator<CompiledModel> iter = uriModels.iterator();
+                        while (iter.hasNext())
+                        {
+                            if (tenantModel.getM2Model().getName().equals(iter.next().getM2Model().getName()))
+                            {
+                                iter.remove();
+                            }
+                        }
+                    }
+                    uriModels.addAll(entry.getValue());
+                }
+            }
+            this.compiledModels = Collections.unmodifiableMap(models);
+            
+            // index the definitions of each namespace - the first model mapped to the namespace wins
+            this.uriToModels = new HashMap<String, List<CompiledModel>>(uris.size() * 2);
+            for (Map.Entry<String, List<CompiledModel>> entry : uris.entrySet())
+            {
+                String uri = entry.getKey();
+                uriToModels.put(uri, Collections.unmodifiableList(entry.getValue()));
+                for (CompiledModel model : entry.getValue())
+                {
+                    for (DataTypeDefinition dataType : model.getDataTypes())
+                    {
+                        putDefinition(dataTypes, uri, dataType.getName(), dataType);
+                    }
+                    for (TypeDefinition type : model.getTypes())
+                    {
+                        putDefinition(types, uri, type.getName(), type);
+                        putDefinition(classes, uri, type.getName(), type);
+                    }
+                    for (AspectDefinition aspect : model.getAspects())
+                    {
+                        putDefinition(aspects, uri, aspect.getName(), aspect);
+                        putDefinition(classes, uri, aspect.getName(), aspect);
+                    }
+                    for (PropertyDefinition property : model.getProperties())
+                    {
+                        putDefinition(properties, uri, property.getName(), property);
+                    }
+                    for (AssociationDefinition association : model.getAssociations())
+                    {
+                        putDefinition(associations, uri, association.getName(), association);
+                    }
+                }
+            }
+            
+            // class hierarchies
+            Map<QName, QName> typeParents = new HashMap<QName, QName>();
+            Map<QName, QName> aspectParents = new HashMap<QName, QName>();
+            for (CompiledModel model : compiledModels.values())
+            {
+                for (TypeDefinition type : model.getTypes())
+                {
+                    typeParents.put(type.getName(), type.getParentName());
+                }
+                for (AspectDefinition aspect : model.getAspects())
+                {
+                    aspectParents.put(aspect.getName(), aspect.getParentName());
+                }
+            }
+            this.subTypes = getSubClasses(typeParents, false);
+            this.allSubTypes = getSubClasses(typeParents, true);
+            this.subAspects = getSubClasses(aspectParents, false);
+            this.allSubAspects = getSubClasses(aspectParents, true);
+        }
+        
+        private static <D> void putDefinition(Map<QName, D> definitions, String uri, QName name, D definition)
+        {
+            if (uri.equals(name.getNamespaceURI()) && ! definitions.containsKey(name))
+            {
+                definitions.put(name, definition);
+            }
+        }
+        
+        /**
+         * @param parents   class name to parent class name
+         * @param follow   <tt>true</tt> for all sub-classes, including the class itself, otherwise immediate sub-classes
+         * @return   class name to sub-class names
+         */
+        private static Map<QName, Set<QName>> getSubClasses(Map<QName, QName> parents, boolean follow)
+        {
+            Map<QName, Set<QName>> subClasses = new HashMap<QName, Set<QName>>();
+            for (QName name : parents.keySet())
+            {
+                QName current = follow ? name : parents.get(name);
+                while (current != null)
+                {
+                    Set<QName> names = subClasses.get(current);
+                    if (names == null)
+                    {
+                        names = new HashSet<QName>();
+                        subClasses.put(current, names);
+                    }
+                    if (! names.add(name))
+                    {
+                        break; // cyclic hierarchy
+                    }
+                    current = follow ? parents.get(current) : null;
+                }
+            }
+            for (Map.Entry<QName, Set<QName>> entry : subClasses.entrySet())
+            {
+                entry.setValue(Collections.unmodifiableSet(entry.getValue()));
+            }
+            return subClasses;
+        }
+        
+        /**
+         * @return   <tt>true</tt> if the registries have not changed since this view was built
+         */
+        public boolean isCurrent(DictionaryRegistry defaultRegistry, DictionaryRegistry tenantRegistry)
+        {
+            return this.defaultRegistry == defaultRegistry
+                && this.defaultVersion == defaultRegistry.getVersion()
+                && (tenantRegistry == null || this.tenantVersion == tenantRegistry.getVersion());
+        }
+        
+        public Map<QName, CompiledModel> getCompiledModels()
+        {
+            return compiledModels;
+        }
+        
+        public List<CompiledModel> getModelsForUri(String uri)
+        {
+            List<CompiledModel> models = uriToModels.get(uri);
+            if (models == null)
+            {
+                models = Collections.emptyList();
+            }
+            return models;
+        }
+        
+        public DataTypeDefinition getDataType(QName name)
+        {
+            return dataTypes.get(name);
+        }
+        
+        public TypeDefinition getType(QName name)
+        {
+            return types.get(name);
+        }
+        
+        public AspectDefinition getAspect(QName name)
+        {
+            return aspects.get(name);
+        }
+        
+        public ClassDefinition getClass(QName name)
+        {
+            return classes.get(name);
+        }
+        
+        public PropertyDefinition getProperty(QName name)
+        {
+            return properties.get(name);
+        }
+        
+        public AssociationDefinition getAssociation(QName name)
+        {
+            return associations.get(name);
+        }
+        
+        public Collection<QName> getSubTypes(QName superType, boolean follow)
+        {
+            return getSubClasses(follow ? allSubTypes : subTypes, superType);
+        }
+        
+        public Collection<QName> getSubAspects(QName superAspect, boolean follow)
+        {
+            return getSubClasses(follow ? allSubAspects : subAspects, superAspect);
+        }
+        
+        private static Collection<QName> getSubClasses(Map<QName, Set<QName>> subClasses, QName superClass)
+        {
+            Set<QName> names = subClasses.get(superClass);
+            if (names == null)
+            {
+                return Collections.emptySet();
+            }
+            return names;
         }
     }
 }
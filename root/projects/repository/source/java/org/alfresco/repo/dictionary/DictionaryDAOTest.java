@@ -66,6 +66,7 @@ public class DictionaryDAOTest extends TestCase
     private static final String TEST_URL = "http://www.alfresco.org/test/dictionarydaotest/1.0";
     private static final String TEST_MODEL = "org/alfresco/repo/dictionary/dictionarydaotest_model.xml";
     private static final String TEST_BUNDLE = "org/alfresco/repo/dictionary/dictionarydaotest_model";
+    private DictionaryDAOImpl dictionaryDAO;
     private DictionaryService service;
     
     
@@ -92,7 +93,7 @@ public class DictionaryDAOTest extends TestCase
         namespaceDAO.setTenantService(tenantService);
         initNamespaceCaches(namespaceDAO);
         
-        DictionaryDAOImpl dictionaryDAO = new DictionaryDAOImpl(namespaceDAO);
+        dictionaryDAO = new DictionaryDAOImpl(namespaceDAO);
         dictionaryDAO.setTenantService(tenantService);
         initDictionaryCaches(dictionaryDAO);
 
@@ -425,6 +426,63 @@ public class DictionaryDAOTest extends TestCase
         assertTrue("Expected 'true' for timestamp propagation", childAssocDef.getPropagateTimestamps());
     }
 
+    public void testSubTypesAndAspects()
+    {
+        QName invalid = QName.createQName(TEST_URL, "invalid");
+        QName base = QName.createQName(TEST_URL, "base");
+        QName file = QName.createQName(TEST_URL, "file");
+        QName fileDerived = QName.createQName(TEST_URL, "file-derived");
+        QName folder = QName.createQName(TEST_URL, "folder");
+        QName referenceable = QName.createQName(TEST_URL, "referenceable");
+
+        Collection<QName> subTypes = service.getSubTypes(base, false);
+        assertTrue(subTypes.contains(file));
+        assertTrue(subTypes.contains(folder));
+        assertFalse(subTypes.contains(base));
+        assertFalse(subTypes.contains(fileDerived));
+
+        Collection<QName> allSubTypes = service.getSubTypes(base, true);
+        assertTrue(allSubTypes.contains(base));
+        assertTrue(allSubTypes.contains(file));
+        assertTrue(allSubTypes.contains(fileDerived));
+        assertTrue(allSubTypes.containsAll(service.getSubTypes(file, true)));
+        assertFalse(service.getSubTypes(file, true).contains(folder));
+
+        assertTrue(service.getSubTypes(invalid, true).isEmpty());
+        assertTrue(service.getSubAspects(referenceable, true).contains(referenceable));
+        assertTrue(service.getSubAspects(referenceable, false).isEmpty());
+    }
+
+    public void testModelChangesAreVisible()
+    {
+        String url = "http://www.alfresco.org/test/dictionarydaotest/added/1.0";
+        QName base = QName.createQName(TEST_URL, "base");
+        QName added = QName.createQName(url, "added");
+
+        M2Model model = M2Model.createModel("added:model");
+        model.createNamespace(url, "added");
+        model.createImport(TEST_URL, "test");
+        M2Type type = model.createType("added:added");
+        type.setParentName("test:file");
+        M2Property property = type.createProperty("added:prop1");
+        property.setType("d:" + DataTypeDefinition.TEXT.getLocalName());
+        model.createImport(NamespaceService.DICTIONARY_MODEL_1_0_URI, NamespaceService.DICTIONARY_MODEL_PREFIX);
+
+        assertNull(service.getClass(added));
+        assertFalse(service.getSubTypes(base, true).contains(added));
+
+        QName modelName = dictionaryDAO.putModel(model);
+        assertNotNull(service.getType(added));
+        assertNotNull(service.getProperty(QName.createQName(url, "prop1")));
+        assertTrue(service.getSubTypes(base, true).contains(added));
+        assertTrue(service.getAllModels().contains(modelName));
+
+        dictionaryDAO.removeModel(modelName);
+        assertNull(service.getClass(added));
+        assertFalse(service.getSubTypes(base, true).contains(added));
+        assertFalse(service.getAllModels().contains(modelName));
+    }
+
     public void testADB159() throws UnsupportedEncodingException
     {
         // source dictionary
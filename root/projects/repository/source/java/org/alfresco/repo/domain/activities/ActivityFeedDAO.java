@@ -36,6 +36,8 @@ public interface ActivityFeedDAO extends ActivitiesDAO
     
     public long insertFeedEntry(ActivityFeedEntity activityFeed) throws SQLException;
     
+    public void insertFeedEntries(List<ActivityFeedEntity> activityFeeds) throws SQLException;
+    
     public int deleteFeedEntries(Date keepDate) throws SQLException;
     
     public int deleteUserFeedEntries(String feedUserId, String format, Date keepDate) throws SQLException;
@@ -60,6 +60,35 @@ public class FeedControlEntity
         return new FeedControl(this.siteNetwork, this.appTool);
     }
     
+    /**
+     * Does this feed control opt out of activities posted to the given site by the given app tool ?
+     * 
+     * @param siteNetwork   the site of the activity (may be empty)
+     * @param appTool       the app tool of the activity
+     * @return              true if the activity is excluded from the user's feed
+     */
+    public boolean excludes(String siteNetwork, String appTool)
+    {
+        if (((this.siteNetwork == null) || (this.siteNetwork.length() == 0)) && (this.appTool != null))
+        {
+            // exclude this appTool (across sites)
+            return this.appTool.equals(appTool);
+        }
+        else if (((this.appTool == null) || (this.appTool.length() == 0)) && (this.siteNetwork != null))
+        {
+            // exclude this site (across appTools)
+            return this.siteNetwork.equals(siteNetwork);
+        }
+        else if (((this.siteNetwork != null) && (this.siteNetwork.length() > 0)) &&
+                 ((this.appTool != null) && (this.appTool.length() > 0)))
+        {
+            // exclude this appTool for this site
+            return (this.siteNetwork.equals(siteNetwork)) && (this.appTool.equals(appTool));
+        }
+        
+        return false;
+    }
+    
     public Long getId()
     {
         return id;
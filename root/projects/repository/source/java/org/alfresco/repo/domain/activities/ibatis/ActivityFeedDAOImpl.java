@@ -27,6 +27,8 @@ import org.alfresco.error.AlfrescoRuntimeException;
 import org.alfresco.repo.domain.activities.ActivityFeedDAO;
 import org.alfresco.repo.domain.activities.ActivityFeedEntity;
 
+import com.ibatis.sqlmap.client.SqlMapClient;
+
 public class ActivityFeedDAOImpl extends IBatisSqlMapper implements ActivityFeedDAO
 {
     public long insertFeedEntry(ActivityFeedEntity activityFeed) throws SQLException
@@ -35,6 +37,18 @@ public class ActivityFeedDAOImpl extends IBatisSqlMapper implements ActivityFeed
         return (id != null ? id : -1);
     }
     
+    public void insertFeedEntries(List<ActivityFeedEntity> activityFeeds) throws SQLException
+    {
+        // send the inserts to the database in one JDBC batch (ids are not returned)
+        SqlMapClient sqlMapClient = getSqlMapClient();
+        sqlMapClient.startBatch();
+        for (ActivityFeedEntity activityFeed : activityFeeds)
+        {
+            sqlMapClient.insert("alfresco.activities.insert_activity_feed_batch", activityFeed);
+        }
+        sqlMapClient.executeBatch();
+    }
+    
     public int deleteFeedEntries(Date keepDate) throws SQLException
     {
         return getSqlMapClient().delete("alfresco.activities.delete_activity_feed_entries_older_than_date", keepDate);
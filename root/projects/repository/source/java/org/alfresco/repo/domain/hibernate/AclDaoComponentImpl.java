@@ -53,6 +53,7 @@ import org.alfresco.repo.security.permissions.SimpleAccessControlEntry;
 import org.alfresco.repo.security.permissions.SimpleAccessControlEntryContext;
 import org.alfresco.repo.security.permissions.SimpleAccessControlList;
 import org.alfresco.repo.security.permissions.SimpleAccessControlListProperties;
+import org.alfresco.repo.security.permissions.impl.AccessCacheIndex;
 import org.alfresco.repo.security.permissions.impl.AclChange;
 import org.alfresco.repo.security.permissions.impl.AclDaoComponent;
 import org.alfresco.repo.security.permissions.impl.SimplePermissionReference;
@@ -118,6 +119,9 @@ public class AclDaoComponentImpl extends HibernateDaoSupport implements AclDaoCo
     /** a transactionally-safe cache to be injected */
     private SimpleCache<Long, AccessControlList> aclCache;
 
+    /** the permission access decisions derived from ACLs - optional */
+    private AccessCacheIndex accessCacheIndex;
+
     private enum WriteMode
     {
         /**
@@ -190,6 +194,30 @@ public class AclDaoComponentImpl extends HibernateDaoSupport implements AclDaoCo
         this.aclCache = aclCache;
     }
 
+    /**
+     * Set the index of cached access decisions so that they can be invalidated per ACL as ACLs change
+     * 
+     * @param accessCacheIndex
+     */
+    public void setAccessCacheIndex(AccessCacheIndex accessCacheIndex)
+    {
+        this.accessCacheIndex = accessCacheIndex;
+    }
+
+    /**
+     * Remove an ACL and everything derived from it from the caches
+     * 
+     * @param id
+     */
+    private void invalidateAcl(Long id)
+    {
+        aclCache.remove(id);
+        if (accessCacheIndex != null)
+        {
+            accessCacheIndex.invalidateAcl(id);
+        }
+    }
+
     public DbAccessControlList getDbAccessControlList(Long id)
     {
         if (id == null)
@@ -464,7 +492,7 @@ public class AclDaoComponentImpl extends HibernateDaoSupport implements AclDaoCo
         DbAccessControlList acl = (DbAccessControlList) getHibernateTemplate().get(DbAccessControlListImpl.class, id);
         if (!acl.isLatest())
         {
-            aclCache.remove(id);
+            invalidateAcl(id);
             return new AclChangeImpl(id, id, acl.getAclType(), acl.getAclType());
         }
 
@@ -502,7 +530,7 @@ public class AclDaoComponentImpl extends HibernateDaoSupport implements AclDaoCo
             {
                 acl.setInheritsFrom(inheritsFrom);
             }
-            aclCache.remove(id);
+            invalidateAcl(id);
             return new AclChangeImpl(id, id, acl.getAclType(), acl.getAclType());
         }
         else if ((acl.getAclChangeSet() == getCurrentChangeSet()) && (!requiresVersion) && (!acl.getRequiresVersion()))
@@ -539,7 +567,7 @@ public class AclDaoComponentImpl extends HibernateDaoSupport implements AclDaoCo
             {
                 acl.setInheritsFrom(inheritsFrom);
             }
-            aclCache.remove(id);
+            invalidateAcl(id);
             return new AclChangeImpl(id, id, acl.getAclType(), acl.getAclType());
         }
         else
@@ -645,7 +673,7 @@ public class AclDaoComponentImpl extends HibernateDaoSupport implements AclDaoCo
             // fix up old version
             acl.setLatest(Boolean.FALSE);
             acl.setRequiresVersion(Boolean.FALSE);
-            aclCache.remove(id);
+            invalidateAcl(id);
             return new AclChangeImpl(id, created, acl.getAclType(), newAcl.getAclType());
         }
 
@@ -1010,7 +1038,7 @@ public class AclDaoComponentImpl extends HibernateDaoSupport implements AclDaoCo
                 // Delete acl entry
                 DbAccessControlListMember member = (DbAccessControlListMember) getHibernateTemplate().get(DbAccessControlListMemberImpl.class, (Long) ids[0]);
                 Long aclId = ((Long) ids[1]);
-                aclCache.remove(aclId);
+                invalidateAcl(aclId);
                 DbAccessControlList list = (DbAccessControlList) getHibernateTemplate().get(DbAccessControlListImpl.class, aclId);
                 acls.add(new AclChangeImpl(aclId, aclId, list.getAclType(), list.getAclType()));
                 getHibernateTemplate().delete(member);
@@ -1079,7 +1107,7 @@ public class AclDaoComponentImpl extends HibernateDaoSupport implements AclDaoCo
             getHibernateTemplate().delete(member);
         }
         DirtySessionMethodInterceptor.flushSession(getSession(), true);
-        aclCache.remove(id);
+        invalidateAcl(id);
     }
 
     @SuppressWarnings("unchecked")
@@ -1229,7 +1257,7 @@ public class AclDaoComponentImpl extends HibernateDaoSupport implements AclDaoCo
         }
 
         // remove the deleted acl from the cache
-        aclCache.remove(id);
+        invalidateAcl(id);
         acls.add(new AclChangeImpl(id, null, acl.getAclType(), null));
         return acls;
     }
@@ -1582,7 +1610,7 @@ public class AclDaoComponentImpl extends HibernateDaoSupport implements AclDaoCo
             throw new IllegalArgumentException("Fixed and global permissions can not inherit");
         case OLD:
             acl.setInherits(Boolean.TRUE);
-            aclCache.remove(id);
+            invalidateAcl(id);
             changes.add(new AclChangeImpl(id, id, acl.getAclType(), acl.getAclType()));
             DirtySessionMethodInterceptor.flushSession(getSession(), true);
             return changes;
@@ -1625,7 +1653,7 @@ public class AclDaoComponentImpl extends HibernateDaoSupport implements AclDaoCo
         case OLD:
 
             acl.setInherits(Boolean.FALSE);
-            aclCache.remove(id);
+            invalidateAcl(id);
             changes.add(new AclChangeImpl(id, id, acl.getAclType(), acl.getAclType()));
             DirtySessionMethodInterceptor.flushSession(getSession(), true);
             return changes;
@@ -1659,13 +1687,13 @@ public class AclDaoComponentImpl extends HibernateDaoSupport implements AclDaoCo
         case COW:
             aclToCopy = (DbAccessControlList) getHibernateTemplate().get(DbAccessControlListImpl.class, toCopy);
             aclToCopy.setRequiresVersion(true);
-            aclCache.remove(toCopy);
+            invalidateAcl(toCopy);
             inheritedId = getInheritedAccessControlList(toCopy);
             if ((inheritedId != null) && (!inheritedId.equals(toCopy)))
             {
                 DbAccessControlList inheritedAcl = (DbAccessControlList) getHibernateTemplate().get(DbAccessControlListImpl.class, inheritedId);
                 inheritedAcl.setRequiresVersion(true);
-                aclCache.remove(inheritedId);
+                invalidateAcl(inheritedId);
             }
             DirtySessionMethodInterceptor.flushSession(getSession(), true);
             return toCopy;
@@ -2406,6 +2434,10 @@ public class AclDaoComponentImpl extends HibernateDaoSupport implements AclDaoCo
             dbAuthority.setCrc(getCrc(after));
             DirtySessionMethodInterceptor.flushSession(getSession(), true);
             aclCache.clear();
+            if (accessCacheIndex != null)
+            {
+                accessCacheIndex.clear();
+            }
         }
     }
 
@@ -27,6 +27,7 @@ import org.alfresco.repo.domain.AccessControlListDAO;
 import org.alfresco.repo.domain.DbAccessControlList;
 import org.alfresco.repo.domain.Node;
 import org.alfresco.repo.domain.hibernate.AVMAccessControlListDAO.CounterSet;
+import org.alfresco.repo.node.index.NodeIndexer;
 import org.alfresco.repo.node.db.NodeDaoService;
 import org.alfresco.repo.security.permissions.ACLType;
 import org.alfresco.repo.security.permissions.AccessControlEntry;
@@ -39,6 +40,7 @@ import org.alfresco.service.cmr.repository.InvalidNodeRefException;
 import org.alfresco.service.cmr.repository.NodeRef;
 import org.alfresco.service.cmr.repository.NodeService;
 import org.alfresco.service.cmr.repository.StoreRef;
+import org.alfresco.util.EqualsHelper;
 import org.alfresco.util.Pair;
 
 /**
@@ -60,6 +62,10 @@ public class DMAccessControlListDAO implements AccessControlListDAO
 
     private HibernateSessionHelper hibernateSessionHelper;
 
+    private NodeIndexer nodeIndexer;
+
+    private boolean reindexOnAclChange = false;
+
     /**
      * Set the node dao service
      * 
@@ -100,6 +106,26 @@ public class DMAccessControlListDAO implements AccessControlListDAO
         this.nodeService = nodeService;
     }
 
+    /**
+     * Set the node indexer used to reindex nodes whose ACL changes
+     * 
+     * @param nodeIndexer
+     */
+    public void setNodeIndexer(NodeIndexer nodeIndexer)
+    {
+        this.nodeIndexer = nodeIndexer;
+    }
+
+    /**
+     * Reindex nodes when their ACL changes? Required when ACL ids are indexed to filter search results.
+     * 
+     * @param reindexOnAclChange
+     */
+    public void setReindexOnAclChange(boolean reindexOnAclChange)
+    {
+        this.reindexOnAclChange = reindexOnAclChange;
+    }
+
     public void forceCopy(NodeRef nodeRef)
     {
         // Nothing to do
@@ -295,13 +321,28 @@ public class DMAccessControlListDAO implements AccessControlListDAO
         {
             throw new IllegalArgumentException("The ACL ID provided is invalid: " + aclId);
         }
-        node.setAccessControlList(acl);
+        setAccessControlList(nodeRef, node, acl);
     }
 
     public void setAccessControlList(NodeRef nodeRef, DbAccessControlList acl)
     {
         Node node = getNodeNotNull(nodeRef);
+        setAccessControlList(nodeRef, node, acl);
+    }
+
+    private void setAccessControlList(NodeRef nodeRef, Node node, DbAccessControlList acl)
+    {
+        DbAccessControlList existing = node.getAccessControlList();
         node.setAccessControlList(acl);
+        if (reindexOnAclChange && (nodeIndexer != null))
+        {
+            Long existingId = (existing == null) ? null : existing.getId();
+            Long aclId = (acl == null) ? null : acl.getId();
+            if (!EqualsHelper.nullSafeEquals(existingId, aclId))
+            {
+                nodeIndexer.indexUpdateNode(nodeRef);
+            }
+        }
     }
 
     public void setAccessControlList(StoreRef storeRef, DbAccessControlList acl)
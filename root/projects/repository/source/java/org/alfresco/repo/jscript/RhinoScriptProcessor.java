@@ -28,10 +28,12 @@ import java.util.List;
 import java.util.Map;
 import java.util.StringTokenizer;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.alfresco.error.AlfrescoRuntimeException;
 import org.alfresco.model.ContentModel;
 import org.alfresco.processor.ProcessorExtension;
+import org.alfresco.repo.cache.ConcurrentMemoryCache;
 import org.alfresco.repo.processor.BaseProcessor;
 import org.alfresco.scripts.ScriptException;
 import org.alfresco.scripts.ScriptResourceHelper;
@@ -68,6 +70,10 @@ public class RhinoScriptProcessor extends BaseProcessor implements ScriptProcess
     
     private static final String PATH_CLASSPATH = "classpath:";
     
+    private static final String KEY_NODE = "node:";
+    private static final String KEY_LOCATION = "location:";
+    private static final String KEY_STRING = "string:";
+    
     /** Wrap Factory */
     private static final WrapFactory wrapFactory = new RhinoWrapFactory();
     
@@ -92,6 +98,19 @@ public class RhinoScriptProcessor extends BaseProcessor implements ScriptProcess
     /** Cache of runtime compiled script instances */
     private final Map<String, Script> scriptCache = new ConcurrentHashMap<String, Script>(256);
     
+    /** Bounded cache of compiled repository scripts and script strings, checked against their current content */
+    private final ConcurrentMemoryCache<String, CompiledScript> compiledScriptCache = new ConcurrentMemoryCache<String, CompiledScript>();
+    
+    private final AtomicLong compiledScriptHits = new AtomicLong();
+    private final AtomicLong compiledScriptMisses = new AtomicLong();
+    private final AtomicLong compileCount = new AtomicLong();
+    private final AtomicLong compileTime = new AtomicLong();
+    
+    
+    public RhinoScriptProcessor()
+    {
+        this.compiledScriptCache.setMaxItems(1000);
+    }
     
     /**
      * Set the default store reference
@@ -119,12 +138,53 @@ public class RhinoScriptProcessor extends BaseProcessor implements ScriptProcess
         this.compile = compile;
     }
     
+    /**
+     * @param maxCompiledScripts    the number of compiled repository scripts and script strings to keep
+     */
+    public void setMaxCompiledScripts(int maxCompiledScripts)
+    {
+        this.compiledScriptCache.setMaxItems(maxCompiledScripts);
+    }
+    
     /**
      * @see org.alfresco.service.cmr.repository.ScriptProcessor#reset()
      */
     public void reset()
     {
         this.scriptCache.clear();
+        this.compiledScriptCache.clear();
+    }
+    
+    /**
+     * @return the number of times a compiled repository script or script string was reused
+     */
+    public long getCompiledScriptHits()
+    {
+        return this.compiledScriptHits.get();
+    }
+    
+    /**
+     * @return the number of times a repository script or script string had to be compiled
+     */
+    public long getCompiledScriptMisses()
+    {
+        return this.compiledScriptMisses.get();
+    }
+    
+    /**
+     * @return the number of scripts compiled
+     */
+    public long getCompileCount()
+    {
+        return this.compileCount.get();
+    }
+    
+    /**
+     * @return the total time spent compiling scripts, in milliseconds
+     */
+    public long getCompileTime()
+    {
+        return this.compileTime.get() / 1000000L;
     }
     
     /**
@@ -151,13 +211,28 @@ public class RhinoScriptProcessor extends BaseProcessor implements ScriptProcess
                 FileCopyUtils.copy(location.getInputStream(), os);  // both streams are closed
                 byte[] bytes = os.toByteArray();
                 String source = new String(bytes, "UTF-8");
+                
+                if (this.compile && !location.isCachable())
+                {
+                    // the content may change, so the compiled script is only reused for the same content
+                    String key = KEY_LOCATION + path;
+                    script = getCompiledScript(key, source);
+                    if (script == null)
+                    {
+                        script = compileScript(key, source, source, path);
+                    }
+                    return executeScriptImpl(script, model, location.isSecure());
+                }
+                
                 source = resolveScriptImports(new String(bytes));
                 
                 // compile the script and cache the result
                 Context cx = Context.enter();
                 try
                 {
+                    long startTime = System.nanoTime();
                     script = cx.compileString(source, path, 1, null);
+                    recordCompile(path, startTime);
                     
                     // We do not worry about more than one user thread compiling the same script.
                     // If more than one request thread compiles the same script and adds it to the
@@ -214,16 +289,13 @@ public class RhinoScriptProcessor extends BaseProcessor implements ScriptProcess
                 throw new AlfrescoRuntimeException("Script Node content not found: " + nodeRef);
             }
             
-            // compile the script based on the node content
-            Script script;
-            Context cx = Context.enter();
-            try
-            {
-                script = cx.compileString(resolveScriptImports(cr.getContentString()), nodeRef.toString(), 1, null);
-            }
-            finally
+            // compile the script based on the node content, unless it has not changed since it was last compiled
+            String key = KEY_NODE + nodeRef + "|" + contentProp;
+            String contentUrl = cr.getContentUrl();
+            Script script = getCompiledScript(key, contentUrl);
+            if (script == null)
             {
-                Context.exit();
+                script = compileScript(key, contentUrl, cr.getContentString(), nodeRef.toString());
             }
             
             return executeScriptImpl(script, model, false);
@@ -241,16 +313,12 @@ public class RhinoScriptProcessor extends BaseProcessor implements ScriptProcess
     {
         try
         {
-            // compile the script based on the node content
-            Script script;
-            Context cx = Context.enter();
-            try
-            {
-                script = cx.compileString(resolveScriptImports(source), "AlfrescoJS", 1, null);
-            }
-            finally
+            // compile the script, unless the same script has been compiled already
+            String key = KEY_STRING + source;
+            Script script = getCompiledScript(key, null);
+            if (script == null)
             {
-                Context.exit();
+                script = compileScript(key, null, source, "AlfrescoJS");
             }
             return executeScriptImpl(script, model, true);
         }
@@ -260,6 +328,100 @@ public class RhinoScriptProcessor extends BaseProcessor implements ScriptProcess
         }
     }
 
+    /**
+     * Get a compiled script from the cache of repository scripts and script strings. The script is only returned
+     * if it was compiled from the given version of the script content and none of the repository scripts that
+     * it imports have changed since.
+     * 
+     * @param key           The cache key
+     * @param version       The content URL or source of the script, or null if the key identifies the content
+     * 
+     * @return the compiled script or null if it must be compiled
+     */
+    private Script getCompiledScript(String key, String version)
+    {
+        if (this.compile == false)
+        {
+            return null;
+        }
+        CompiledScript compiled = this.compiledScriptCache.get(key);
+        if (compiled != null && compiled.isVersion(version) && isCurrent(compiled.importVersions))
+        {
+            this.compiledScriptHits.incrementAndGet();
+            return compiled.script;
+        }
+        this.compiledScriptMisses.incrementAndGet();
+        return null;
+    }
+    
+    /**
+     * Resolve the imports in the given script and compile it, keeping the result in the cache of repository
+     * scripts and script strings along with the versions of the repository scripts that it imports.
+     * 
+     * @param key           The cache key
+     * @param version       The content URL or source of the script, or null if the key identifies the content
+     * @param source        The script source
+     * @param name          The name of the script, used in errors
+     * 
+     * @return the compiled script
+     */
+    private Script compileScript(String key, String version, String source, String name)
+    {
+        ImportRecordingLoader loader = new ImportRecordingLoader();
+        String resolved = ScriptResourceHelper.resolveScriptImports(source, loader, logger);
+        Script script;
+        Context cx = Context.enter();
+        try
+        {
+            long startTime = System.nanoTime();
+            script = cx.compileString(resolved, name, 1, null);
+            recordCompile(name, startTime);
+        }
+        finally
+        {
+            Context.exit();
+        }
+        if (this.compile)
+        {
+            this.compiledScriptCache.put(key, new CompiledScript(script, version, loader.importVersions));
+        }
+        return script;
+    }
+    
+    private void recordCompile(String name, long startTime)
+    {
+        long time = System.nanoTime() - startTime;
+        this.compileCount.incrementAndGet();
+        this.compileTime.addAndGet(time);
+        if (logger.isDebugEnabled())
+            logger.debug("Compiled script '" + name + "' in " + time/1000000f + "ms");
+    }
+    
+    /**
+     * @param importVersions    The content URLs of imported repository scripts, keyed by import resource
+     * 
+     * @return true if every imported script still resolves to the same content
+     */
+    private boolean isCurrent(Map<String, String> importVersions)
+    {
+        for (Map.Entry<String, String> entry : importVersions.entrySet())
+        {
+            try
+            {
+                if (entry.getValue().equals(getScriptReader(entry.getKey()).getContentUrl()) == false)
+                {
+                    return false;
+                }
+            }
+            catch (AlfrescoRuntimeException err)
+            {
+                // the import has gone - compiling the script again will report it
+                return false;
+            }
+        }
+        return true;
+    }
+    
     /**
      * Resolve the imports in the specified script. Supported include directives are of the following form:
      * <pre>
@@ -328,60 +490,74 @@ public class RhinoScriptProcessor extends BaseProcessor implements ScriptProcess
         }
         else
         {
-            NodeRef scriptRef;
-            if (resource.startsWith("/"))
+            // load from NodeRef default content property
+            try
             {
-                // resolve from default SpacesStore as cm:name based path
-                // TODO: remove this once FFS correctly allows name path resolving from store root!
-                NodeRef rootNodeRef = this.services.getNodeService().getRootNode(this.storeRef);
-                List<NodeRef> nodes = this.services.getSearchService().selectNodes(
-                        rootNodeRef, this.storePath, null, this.services.getNamespaceService(), false);
-                if (nodes.size() == 0)
-                {
-                    throw new AlfrescoRuntimeException("Unable to find store path: " + this.storePath);
-                }
-                StringTokenizer tokenizer = new StringTokenizer(resource, "/");
-                List<String> elements = new ArrayList<String>(6);
-                if (tokenizer.hasMoreTokens())
-                {
-                    tokenizer.nextToken();
-                }
-                while (tokenizer.hasMoreTokens())
-                {
-                    elements.add(tokenizer.nextToken());
-                }
-                try
-                {
-                    FileInfo fileInfo = this.services.getFileFolderService().resolveNamePath(nodes.get(0), elements);
-                    scriptRef = fileInfo.getNodeRef();
-                }
-                catch (FileNotFoundException err)
-                {
-                    throw new AlfrescoRuntimeException("Unable to load included script repository resource: " + resource);
-                }
+                result = getScriptReader(resource).getContentString();
             }
-            else
+            catch (ContentIOException err)
             {
-                scriptRef = new NodeRef(resource);
+                throw new AlfrescoRuntimeException("Unable to load included script repository resource: " + resource);
+            }
+        }
+        
+        return result;
+    }
+    
+    /**
+     * Get a reader onto the content of a repository script resource.
+     * 
+     * @param resource      A NodeRef or cm:name path based resource
+     * 
+     * @return the reader of the default content property of the script node
+     * 
+     * @throws AlfrescoRuntimeException if the script or its content cannot be found
+     */
+    private ContentReader getScriptReader(String resource)
+    {
+        NodeRef scriptRef;
+        if (resource.startsWith("/"))
+        {
+            // resolve from default SpacesStore as cm:name based path
+            // TODO: remove this once FFS correctly allows name path resolving from store root!
+            NodeRef rootNodeRef = this.services.getNodeService().getRootNode(this.storeRef);
+            List<NodeRef> nodes = this.services.getSearchService().selectNodes(
+                    rootNodeRef, this.storePath, null, this.services.getNamespaceService(), false);
+            if (nodes.size() == 0)
+            {
+                throw new AlfrescoRuntimeException("Unable to find store path: " + this.storePath);
+            }
+            StringTokenizer tokenizer = new StringTokenizer(resource, "/");
+            List<String> elements = new ArrayList<String>(6);
+            if (tokenizer.hasMoreTokens())
+            {
+                tokenizer.nextToken();
+            }
+            while (tokenizer.hasMoreTokens())
+            {
+                elements.add(tokenizer.nextToken());
             }
-            
-            // load from NodeRef default content property
             try
             {
-                ContentReader cr = this.services.getContentService().getReader(scriptRef, ContentModel.PROP_CONTENT);
-                if (cr == null || cr.exists() == false)
-                {
-                    throw new AlfrescoRuntimeException("Included Script Node content not found: " + resource);
-                }
-                result = cr.getContentString();
+                FileInfo fileInfo = this.services.getFileFolderService().resolveNamePath(nodes.get(0), elements);
+                scriptRef = fileInfo.getNodeRef();
             }
-            catch (ContentIOException err)
+            catch (FileNotFoundException err)
             {
                 throw new AlfrescoRuntimeException("Unable to load included script repository resource: " + resource);
             }
         }
+        else
+        {
+            scriptRef = new NodeRef(resource);
+        }
         
-        return result;
+        ContentReader cr = this.services.getContentService().getReader(scriptRef, ContentModel.PROP_CONTENT);
+        if (cr == null || cr.exists() == false)
+        {
+            throw new AlfrescoRuntimeException("Included Script Node content not found: " + resource);
+        }
+        return cr;
     }
     
     /**
@@ -530,6 +706,57 @@ public class RhinoScriptProcessor extends BaseProcessor implements ScriptProcess
             return super.wrapAsJavaObject(cx, scope, javaObject, staticType);
         }
     }
+    
+    
+    /**
+     * A compiled script with the versions of the content it was compiled from
+     */
+    private static class CompiledScript
+    {
+        private final Script script;
+        private final String version;
+        private final Map<String, String> importVersions;
+        
+        private CompiledScript(Script script, String version, Map<String, String> importVersions)
+        {
+            this.script = script;
+            this.version = version;
+            this.importVersions = importVersions;
+        }
+        
+        private boolean isVersion(String version)
+        {
+            return this.version == null ? version == null : this.version.equals(version);
+        }
+    }
+    
+    
+    /**
+     * Loads imported scripts, noting the content URLs of repository scripts so that a compiled script
+     * is not reused once one of them has changed.
+     */
+    private class ImportRecordingLoader implements ScriptResourceLoader
+    {
+        private final Map<String, String> importVersions = new HashMap<String, String>(8);
+        
+        public String loadScriptResource(String resource)
+        {
+            if (resource.startsWith(PATH_CLASSPATH))
+            {
+                return RhinoScriptProcessor.this.loadScriptResource(resource);
+            }
+            try
+            {
+                ContentReader cr = getScriptReader(resource);
+                this.importVersions.put(resource, cr.getContentUrl());
+                return cr.getContentString();
+            }
+            catch (ContentIOException err)
+            {
+                throw new AlfrescoRuntimeException("Unable to load included script repository resource: " + resource);
+            }
+        }
+    }
 
 
     /**
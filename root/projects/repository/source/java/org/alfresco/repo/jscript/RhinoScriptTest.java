@@ -251,6 +251,57 @@ public class RhinoScriptTest extends TestCase
             });
     }
     
+    public void testCompiledScriptCache()
+    {
+        final RhinoScriptProcessor processor = (RhinoScriptProcessor)ctx.getBean("javaScriptProcessor");
+        transactionService.getRetryingTransactionHelper().doInTransaction(
+            new RetryingTransactionCallback<Object>()
+            {
+                public Object execute() throws Exception
+                {
+                    StoreRef store = nodeService.createStore(StoreRef.PROTOCOL_WORKSPACE, "rhino_" + System.currentTimeMillis());
+                    NodeRef root = nodeService.getRootNode(store);
+                    NodeRef libraryRef = createScript(root, "library", "var value = 'one';");
+                    NodeRef scriptRef = createScript(root, "script", "<import resource=\"" + libraryRef + "\">\r\nvalue;");
+                    Map<String, Object> model = new HashMap<String, Object>();
+                    
+                    assertEquals("one", scriptService.executeScript(scriptRef, ContentModel.PROP_CONTENT, model));
+                    long hits = processor.getCompiledScriptHits();
+                    assertEquals("one", scriptService.executeScript(scriptRef, ContentModel.PROP_CONTENT, model));
+                    assertEquals("The compiled script should be reused", hits + 1, processor.getCompiledScriptHits());
+                    
+                    // changes to the script or anything it imports are picked up
+                    writeScript(libraryRef, "var value = 'two';");
+                    assertEquals("two", scriptService.executeScript(scriptRef, ContentModel.PROP_CONTENT, model));
+                    writeScript(scriptRef, "<import resource=\"" + libraryRef + "\">\r\nvalue + '!';");
+                    assertEquals("two!", scriptService.executeScript(scriptRef, ContentModel.PROP_CONTENT, model));
+                    assertEquals(hits + 1, processor.getCompiledScriptHits());
+                    
+                    return null;
+                }
+            });
+    }
+    
+    private NodeRef createScript(NodeRef parentRef, String name, String script)
+    {
+        NodeRef scriptRef = nodeService.createNode(
+                parentRef,
+                ContentModel.ASSOC_CHILDREN,
+                QName.createQName(BaseNodeServiceTest.NAMESPACE, name),
+                ContentModel.TYPE_CONTENT,
+                null).getChildRef();
+        writeScript(scriptRef, script);
+        return scriptRef;
+    }
+    
+    private void writeScript(NodeRef scriptRef, String script)
+    {
+        ContentWriter writer = contentService.getWriter(scriptRef, ContentModel.PROP_CONTENT, true);
+        writer.setMimetype("application/x-javascript");
+        writer.setEncoding("UTF-8");
+        writer.putContent(script);
+    }
+    
     public void testScriptActions()
     {
         transactionService.getRetryingTransactionHelper().doInTransaction(
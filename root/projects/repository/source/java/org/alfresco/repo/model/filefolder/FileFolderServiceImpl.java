@@ -42,6 +42,7 @@ import org.alfresco.service.cmr.model.FileExistsException;
 import org.alfresco.service.cmr.model.FileFolderService;
 import org.alfresco.service.cmr.model.FileFolderServiceType;
 import org.alfresco.service.cmr.model.FileInfo;
+import org.alfresco.service.cmr.model.FileInfoPage;
 import org.alfresco.service.cmr.model.FileNotFoundException;
 import org.alfresco.service.cmr.repository.ChildAssociationRef;
 import org.alfresco.service.cmr.repository.ContentData;
@@ -57,6 +58,8 @@ import org.alfresco.service.cmr.repository.NodeService;
 import org.alfresco.service.cmr.repository.Path;
 import org.alfresco.service.cmr.search.QueryParameterDefinition;
 import org.alfresco.service.cmr.search.SearchService;
+import org.alfresco.service.cmr.security.AccessStatus;
+import org.alfresco.service.cmr.security.PermissionService;
 import org.alfresco.service.namespace.NamespaceService;
 import org.alfresco.service.namespace.QName;
 import org.alfresco.util.GUID;
@@ -114,6 +117,7 @@ public class FileFolderServiceImpl implements FileFolderService
     private SearchService searchService;
     private ContentService contentService;
     private MimetypeService mimetypeService;
+    private PermissionService permissionService;
     private Set<String> systemNamespaces;
     
     // TODO: Replace this with a more formal means of identifying "system" folders (i.e. aspect or UUID)
@@ -162,6 +166,15 @@ public class FileFolderServiceImpl implements FileFolderService
         this.mimetypeService = mimetypeService;
     }
 
+    /**
+     * Set the service used to leave out the children that cannot be read from a
+     * {@link #listPage(NodeRef, boolean, boolean, QName, boolean, String, int) page}
+     */
+    public void setPermissionService(PermissionService permissionService)
+    {
+        this.permissionService = permissionService;
+    }
+
     /**
      * Set the namespaces that should be treated as 'system' namespaces.
      * <p>
@@ -347,6 +360,77 @@ public class FileFolderServiceImpl implements FileFolderService
         return results;
     }
     
+    public FileInfoPage listPage(
+            NodeRef contextNodeRef,
+            boolean files,
+            boolean folders,
+            QName sortProp,
+            boolean sortAscending,
+            String continuationToken,
+            int maxItems)
+    {
+        if (maxItems <= 0)
+        {
+            throw new IllegalArgumentException("maxItems must be positive: " + maxItems);
+        }
+        // The token is the number of children in the sorted listing that have been paged past
+        int skipCount = 0;
+        if (continuationToken != null)
+        {
+            try
+            {
+                skipCount = Integer.parseInt(continuationToken);
+            }
+            catch (NumberFormatException e)
+            {
+                throw new IllegalArgumentException("Invalid continuation token: " + continuationToken);
+            }
+        }
+        Set<QName> searchTypeQNames = getListTypeQNames(folders, files);
+        List<FileInfo> page = new ArrayList<FileInfo>(maxItems);
+        boolean more = false;
+        // Fetch one more than is needed to know if there is another page, and keep going
+        // while children that cannot be read leave the page short
+        while (!more && !searchTypeQNames.isEmpty())
+        {
+            int fetchCount = maxItems - page.size() + 1;
+            List<ChildAssociationRef> childAssocRefs = nodeService.getChildAssocs(
+                    contextNodeRef, searchTypeQNames, sortProp, sortAscending, skipCount, fetchCount);
+            for (ChildAssociationRef childAssocRef : childAssocRefs)
+            {
+                if (page.size() == maxItems)
+                {
+                    more = true;
+                    break;
+                }
+                skipCount++;
+                NodeRef childNodeRef = childAssocRef.getChildRef();
+                if (permissionService != null &&
+                        permissionService.hasPermission(childNodeRef, PermissionService.READ_PROPERTIES) != AccessStatus.ALLOWED)
+                {
+                    continue;
+                }
+                page.add(toFileInfo(childNodeRef, true));
+            }
+            if (childAssocRefs.size() < fetchCount)
+            {
+                // That was all of them
+                break;
+            }
+        }
+        FileInfoPage result = new FileInfoPage(page, more ? Integer.toString(skipCount) : null);
+        // done
+        if (logger.isDebugEnabled())
+        {
+            logger.debug("Paged search for files and folders: \n" +
+                    "   context: " + contextNodeRef + "\n" +
+                    "   sort:    " + sortProp + (sortAscending ? " ascending" : " descending") + "\n" +
+                    "   from:    " + continuationToken + "\n" +
+                    "   results: " + result);
+        }
+        return result;
+    }
+    
     public NodeRef searchSimple(NodeRef contextNodeRef, String name)
     {
         NodeRef childNodeRef = nodeService.getChildByName(contextNodeRef, ContentModel.ASSOC_CONTAINS, name);
@@ -513,6 +597,28 @@ public class FileFolderServiceImpl implements FileFolderService
     }
     
     private List<NodeRef> listSimple(NodeRef contextNodeRef, boolean folders, boolean files)
+    {
+        Set<QName> searchTypeQNames = getListTypeQNames(folders, files);
+        // Shortcut
+        if (searchTypeQNames.size() == 0)
+        {
+            return Collections.emptyList();
+        }
+        // Do the query
+        List<ChildAssociationRef> childAssocRefs = nodeService.getChildAssocs(contextNodeRef, searchTypeQNames);
+        List<NodeRef> result = new ArrayList<NodeRef>(childAssocRefs.size());
+        for (ChildAssociationRef assocRef : childAssocRefs)
+        {
+            result.add(assocRef.getChildRef());
+        }
+        // Done
+        return result;
+    }
+    
+    /**
+     * @return Returns the file and/or folder types that are listed, excluding system folders
+     */
+    private Set<QName> getListTypeQNames(boolean folders, boolean files)
     {
         Set<QName> searchTypeQNames = new HashSet<QName>(10);
         // Build a list of file and folder types
@@ -535,20 +641,7 @@ public class FileFolderServiceImpl implements FileFolderService
         Collection<QName> qnames = dictionaryService.getSubTypes(ContentModel.TYPE_SYSTEM_FOLDER, true);
         searchTypeQNames.removeAll(qnames);
         searchTypeQNames.remove(ContentModel.TYPE_SYSTEM_FOLDER);
-        // Shortcut
-        if (searchTypeQNames.size() == 0)
-        {
-            return Collections.emptyList();
-        }
-        // Do the query
-        List<ChildAssociationRef> childAssocRefs = nodeService.getChildAssocs(contextNodeRef, searchTypeQNames);
-        List<NodeRef> result = new ArrayList<NodeRef>(childAssocRefs.size());
-        for (ChildAssociationRef assocRef : childAssocRefs)
-        {
-            result.add(assocRef.getChildRef());
-        }
-        // Done
-        return result;
+        return searchTypeQNames;
     }
     
     /**
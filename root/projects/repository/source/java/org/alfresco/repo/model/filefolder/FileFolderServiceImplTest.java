@@ -42,6 +42,7 @@ import org.alfresco.service.cmr.model.FileExistsException;
 import org.alfresco.service.cmr.model.FileFolderService;
 import org.alfresco.service.cmr.model.FileFolderServiceType;
 import org.alfresco.service.cmr.model.FileInfo;
+import org.alfresco.service.cmr.model.FileInfoPage;
 import org.alfresco.service.cmr.model.FileNotFoundException;
 import org.alfresco.service.cmr.repository.ContentReader;
 import org.alfresco.service.cmr.repository.ContentWriter;
@@ -208,6 +209,32 @@ public class FileFolderServiceImplTest extends TestCase
         checkFileList(files, 0, 3, expectedNames);
     }
 
+    public void testListPage() throws Exception
+    {
+        // Names sort with files before folders
+        FileInfoPage page = fileFolderService.listPage(workingRootNodeRef, true, true, ContentModel.PROP_NAME, true, null, 2);
+        assertEquals(2, page.getPage().size());
+        assertEquals(NAME_L0_FILE_A, page.getPage().get(0).getName());
+        assertEquals(NAME_L0_FILE_B, page.getPage().get(1).getName());
+        assertTrue(page.hasMoreItems());
+
+        page = fileFolderService.listPage(workingRootNodeRef, true, true, ContentModel.PROP_NAME, true, page.getContinuationToken(), 2);
+        checkFileList(page.getPage(), 0, 2, new String[] {NAME_L0_FOLDER_A, NAME_L0_FOLDER_B});
+        assertTrue(page.hasMoreItems());
+
+        page = fileFolderService.listPage(workingRootNodeRef, true, true, ContentModel.PROP_NAME, true, page.getContinuationToken(), 2);
+        checkFileList(page.getPage(), 0, 1, new String[] {NAME_L0_FOLDER_C});
+        assertFalse(page.hasMoreItems());
+        assertNull(page.getContinuationToken());
+
+        // Descending, folders only
+        page = fileFolderService.listPage(workingRootNodeRef, false, true, ContentModel.PROP_NAME, false, null, 10);
+        assertEquals(3, page.getPage().size());
+        assertEquals(NAME_L0_FOLDER_C, page.getPage().get(0).getName());
+        assertEquals(NAME_L0_FOLDER_A, page.getPage().get(2).getName());
+        assertFalse(page.hasMoreItems());
+    }
+
     public void testShallowFileSearch() throws Exception
     {
         List<FileInfo> files = fileFolderService.search(workingRootNodeRef, NAME_L0_FILE_B, true, false, false);
@@ -21,6 +21,8 @@ package org.alfresco.repo.node;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
@@ -60,6 +62,7 @@ import org.alfresco.service.cmr.dictionary.DictionaryService;
 import org.alfresco.service.cmr.dictionary.PropertyDefinition;
 import org.alfresco.service.cmr.repository.AssociationRef;
 import org.alfresco.service.cmr.repository.ChildAssociationRef;
+import org.alfresco.service.cmr.repository.ContentData;
 import org.alfresco.service.cmr.repository.InvalidNodeRefException;
 import org.alfresco.service.cmr.repository.NodeRef;
 import org.alfresco.service.cmr.repository.NodeService;
@@ -737,6 +740,78 @@ public abstract class AbstractNodeServiceImpl implements NodeService
         return getChildAssocs(nodeRef, RegexQNamePattern.MATCH_ALL, RegexQNamePattern.MATCH_ALL);
     }
     
+    /**
+     * Gets all the children of the given types and sorts and pages them in memory.  Implementations
+     * should override this if the store can do the sorting and paging.
+     * 
+     * @see NodeService#getChildAssocs(NodeRef, Set)
+     */
+    public List<ChildAssociationRef> getChildAssocs(
+            NodeRef nodeRef,
+            Set<QName> childNodeTypeQNames,
+            final QName sortProp,
+            final boolean sortAscending,
+            int skipCount,
+            int maxItems)
+    {
+        List<ChildAssociationRef> childAssocRefs = getChildAssocs(nodeRef, childNodeTypeQNames);
+        if (sortProp != null)
+        {
+            final Map<NodeRef, Comparable<Object>> sortValues = new HashMap<NodeRef, Comparable<Object>>(childAssocRefs.size() * 2);
+            for (ChildAssociationRef childAssocRef : childAssocRefs)
+            {
+                NodeRef childNodeRef = childAssocRef.getChildRef();
+                sortValues.put(childNodeRef, getSortValue(getProperty(childNodeRef, sortProp)));
+            }
+            Collections.sort(childAssocRefs, new Comparator<ChildAssociationRef>()
+            {
+                public int compare(ChildAssociationRef assocRef1, ChildAssociationRef assocRef2)
+                {
+                    Comparable<Object> value1 = sortValues.get(assocRef1.getChildRef());
+                    Comparable<Object> value2 = sortValues.get(assocRef2.getChildRef());
+                    int compare;
+                    if (value1 == null)
+                    {
+                        compare = (value2 == null) ? 0 : -1;
+                    }
+                    else
+                    {
+                        compare = (value2 == null) ? 1 : value1.compareTo(value2);
+                    }
+                    return sortAscending ? compare : -compare;
+                }
+            });
+        }
+        int fromIndex = Math.min(skipCount, childAssocRefs.size());
+        int toIndex = (maxItems < 0) ? childAssocRefs.size() : Math.min(fromIndex + maxItems, childAssocRefs.size());
+        return new ArrayList<ChildAssociationRef>(childAssocRefs.subList(fromIndex, toIndex));
+    }
+    
+    /**
+     * @return      Returns the value to sort a property by: the size of content, names without case
+     *              or the value itself if it can be compared
+     */
+    @SuppressWarnings("unchecked")
+    private Comparable<Object> getSortValue(Serializable value)
+    {
+        if (value instanceof ContentData)
+        {
+            return (Comparable) Long.valueOf(((ContentData) value).getSize());
+        }
+        else if (value instanceof String)
+        {
+            return (Comparable) ((String) value).toLowerCase();
+        }
+        else if (value instanceof Comparable)
+        {
+            return (Comparable<Object>) value;
+        }
+        else
+        {
+            return null;
+        }
+    }
+    
     protected Map<QName, Serializable> getDefaultProperties(QName typeQName)
     {
         ClassDefinition classDefinition = this.dictionaryService.getClass(typeQName);
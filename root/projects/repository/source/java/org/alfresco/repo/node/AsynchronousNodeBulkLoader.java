@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2005-2010 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.repo.node;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.repo.security.authentication.AuthenticationUtil.RunAsWork;
+import org.alfresco.repo.transaction.RetryingTransactionHelper.RetryingTransactionCallback;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.transaction.TransactionService;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * A bulk loader that can also pre-fetch nodes ahead of their use on a background thread.
+ * <p>
+ * Direct calls to {@link #cacheNodes(List)} are passed straight to the underlying loader. Nodes given to
+ * {@link #prefetchNodes(List)} are loaded by the underlying loader in a separate read-only transaction, so the shared
+ * caches are populated when that transaction completes and a later {@link #cacheNodes(List)} for the same nodes has
+ * little or nothing left to do. Pre-fetches are dropped if the thread pool cannot take them.
+ */
+public class AsynchronousNodeBulkLoader implements NodeBulkLoader
+{
+    private static Log logger = LogFactory.getLog(AsynchronousNodeBulkLoader.class);
+
+    private NodeBulkLoader nodeBulkLoader;
+    private TransactionService transactionService;
+    private ThreadPoolExecutor threadPoolExecutor;
+    private boolean prefetchEnabled = true;
+
+    private final AtomicLong prefetchCount = new AtomicLong();
+    private final AtomicLong prefetchNodeCount = new AtomicLong();
+    private final AtomicLong prefetchRejectedCount = new AtomicLong();
+    private final AtomicLong prefetchTime = new AtomicLong();
+
+    /**
+     * @param nodeBulkLoader        the loader that does the work
+     */
+    public void setNodeBulkLoader(NodeBulkLoader nodeBulkLoader)
+    {
+        this.nodeBulkLoader = nodeBulkLoader;
+    }
+
+    /**
+     * @param transactionService    used to run background pre-fetches in their own transactions
+     */
+    public void setTransactionService(TransactionService transactionService)
+    {
+        this.transactionService = transactionService;
+    }
+
+    /**
+     * @param threadPoolExecutor    the pool that runs background pre-fetches
+     */
+    public void setThreadPoolExecutor(ThreadPoolExecutor threadPoolExecutor)
+    {
+        this.threadPoolExecutor = threadPoolExecutor;
+    }
+
+    /**
+     * @param prefetchEnabled       <tt>false</tt> to ignore requests to pre-fetch in the background
+     */
+    public void setPrefetchEnabled(boolean prefetchEnabled)
+    {
+        this.prefetchEnabled = prefetchEnabled;
+    }
+
+    public void cacheNodes(List<NodeRef> nodeRefs)
+    {
+        nodeBulkLoader.cacheNodes(nodeRefs);
+    }
+
+    public void clear()
+    {
+        nodeBulkLoader.clear();
+    }
+
+    /**
+     * Pre-cache data for nodes that are expected to be used soon, without waiting for it to be loaded.
+     *
+     * @param nodeRefs              the nodes that will be cached
+     */
+    public void prefetchNodes(List<NodeRef> nodeRefs)
+    {
+        if (!prefetchEnabled || nodeRefs.size() < 2)
+        {
+            return;
+        }
+        String runAsUser = AuthenticationUtil.getRunAsUser();
+        if (runAsUser == null)
+        {
+            runAsUser = AuthenticationUtil.getSystemUserName();
+        }
+        try
+        {
+            threadPoolExecutor.execute(new PrefetchRunnable(new ArrayList<NodeRef>(nodeRefs), runAsUser));
+        }
+        catch (RejectedExecutionException e)
+        {
+            prefetchRejectedCount.incrementAndGet();
+            if (logger.isDebugEnabled())
+            {
+                logger.debug("Dropped pre-fetch of " + nodeRefs.size() + " nodes: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * @return                      the number of background pre-fetches that have completed
+     */
+    public long getPrefetchCount()
+    {
+        return prefetchCount.get();
+    }
+
+    /**
+     * @return                      the number of nodes given to completed background pre-fetches
+     */
+    public long getPrefetchNodeCount()
+    {
+        return prefetchNodeCount.get();
+    }
+
+    /**
+     * @return                      the number of background pre-fetches dropped because the pool was busy
+     */
+    public long getPrefetchRejectedCount()
+    {
+        return prefetchRejectedCount.get();
+    }
+
+    /**
+     * @return                      the total time (ms) spent in completed background pre-fetches
+     */
+    public long getPrefetchTime()
+    {
+        return prefetchTime.get();
+    }
+
+    private class PrefetchRunnable implements Runnable
+    {
+        private final List<NodeRef> nodeRefs;
+        private final String runAsUser;
+
+        private PrefetchRunnable(List<NodeRef> nodeRefs, String runAsUser)
+        {
+            this.nodeRefs = nodeRefs;
+            this.runAsUser = runAsUser;
+        }
+
+        public void run()
+        {
+            final RetryingTransactionCallback<Object> prefetchCallback = new RetryingTransactionCallback<Object>()
+            {
+                public Object execute() throws Throwable
+                {
+                    nodeBulkLoader.cacheNodes(nodeRefs);
+                    return null;
+                }
+            };
+            RunAsWork<Object> prefetchRunAs = new RunAsWork<Object>()
+            {
+                public Object doWork() throws Exception
+                {
+                    return transactionService.getRetryingTransactionHelper().doInTransaction(prefetchCallback, true, true);
+                }
+            };
+            long start = System.currentTimeMillis();
+            try
+            {
+                AuthenticationUtil.runAs(prefetchRunAs, runAsUser);
+                long time = System.currentTimeMillis() - start;
+                prefetchCount.incrementAndGet();
+                prefetchNodeCount.addAndGet(nodeRefs.size());
+                prefetchTime.addAndGet(time);
+                if (logger.isDebugEnabled())
+                {
+                    logger.debug("Pre-fetched " + nodeRefs.size() + " nodes in " + time + "ms");
+                }
+            }
+            catch (Throwable e)
+            {
+                // The nodes will be loaded when they are used
+                logger.warn("Failed to pre-fetch " + nodeRefs.size() + " nodes", e);
+            }
+        }
+    }
+}
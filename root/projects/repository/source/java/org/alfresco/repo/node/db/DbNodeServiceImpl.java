@@ -66,6 +66,7 @@ import org.alfresco.service.namespace.RegexQNamePattern;
 import org.alfresco.util.EqualsHelper;
 import org.alfresco.util.GUID;
 import org.alfresco.util.PropertyMap;
+import org.apache.commons.lang.mutable.MutableInt;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.alfresco.util.Pair;
@@ -86,6 +87,9 @@ public class DbNodeServiceImpl extends AbstractNodeServiceImpl
     private StoreArchiveMap storeArchiveMap;
     private NodeService avmNodeService;
     private NodeIndexer nodeIndexer; 
+    private int bulkSubtreeThreshold = -1;
+    private int bulkSubtreeBatchSize = 500;
+    private boolean bulkSubtreeInvokePolicies = true;
     private final static String KEY_PRE_COMMIT_ADD_NODE = "DbNodeServiceImpl.PreCommitAddNode";
     private final static String KEY_DELETED_NODES = "DbNodeServiceImpl.DeletedNodes";
     
@@ -126,6 +130,34 @@ public class DbNodeServiceImpl extends AbstractNodeServiceImpl
         logger.warn("NodeService property 'cascadeInTransaction' is no longer available.");
     }
 
+    /**
+     * @param bulkSubtreeThreshold  the number of nodes below a deleted, archived or restored node at
+     *                              which they are found, deleted and moved in batches rather than
+     *                              one by one, or <tt>-1</tt> (default) to always go one by one
+     */
+    public void setBulkSubtreeThreshold(int bulkSubtreeThreshold)
+    {
+        this.bulkSubtreeThreshold = bulkSubtreeThreshold;
+    }
+
+    /**
+     * @param bulkSubtreeBatchSize  the number of nodes to query for, delete or move at once
+     */
+    public void setBulkSubtreeBatchSize(int bulkSubtreeBatchSize)
+    {
+        this.bulkSubtreeBatchSize = bulkSubtreeBatchSize;
+    }
+
+    /**
+     * @param bulkSubtreeInvokePolicies <tt>true</tt> (default) to invoke the node delete and create
+     *                              policies for every node in a subtree handled in batches or
+     *                              <tt>false</tt> to invoke them for the top node only
+     */
+    public void setBulkSubtreeInvokePolicies(boolean bulkSubtreeInvokePolicies)
+    {
+        this.bulkSubtreeInvokePolicies = bulkSubtreeInvokePolicies;
+    }
+
     /**
      * Performs a null-safe get of the node
      * 
@@ -855,7 +887,15 @@ public class DbNodeServiceImpl extends AbstractNodeServiceImpl
             invokeBeforeDeleteNode(nodeRef);
 
             // Cascade delecte as required
-            deletePrimaryChildrenNotArchived(nodePair);
+            List<Pair<Long, ChildAssociationRef>> subtree = getBulkSubtree(nodeId, null);
+            if (subtree == null)
+            {
+                deletePrimaryChildrenNotArchived(nodePair);
+            }
+            else
+            {
+                deletePrimaryChildrenInBulk(subtree);
+            }
             // perform a normal deletion
             nodeDaoService.deleteNode(nodeId);
             // Invoke policy behaviours
@@ -942,6 +982,147 @@ public class DbNodeServiceImpl extends AbstractNodeServiceImpl
         }
     }
 
+    /**
+     * Finds the nodes below a node if there are enough of them to be handled in batches.
+     * The nodes are counted first, stopping at the threshold, so that a small subtree is
+     * neither loaded nor walked in full before being handled one node at a time.
+     * 
+     * @param nodeId            the node at the top of the subtree
+     * @param notInStoreRef     only nodes that are not in this store, and the nodes below them,
+     *                          are included, or <tt>null</tt> to include all of them
+     * @return                  the IDs of the nodes below the given node, with their primary parent
+     *                          associations, parents before children; or <tt>null</tt> if the
+     *                          nodes must be handled one by one
+     */
+    private List<Pair<Long, ChildAssociationRef>> getBulkSubtree(Long nodeId, final StoreRef notInStoreRef)
+    {
+        if (bulkSubtreeThreshold < 0)
+        {
+            return null;
+        }
+        if (countSubtree(nodeId, notInStoreRef, bulkSubtreeThreshold) < bulkSubtreeThreshold)
+        {
+            return null;
+        }
+        final List<Pair<Long, ChildAssociationRef>> subtree = new ArrayList<Pair<Long, ChildAssociationRef>>(16);
+        NodeDaoService.ChildAssocRefQueryCallback callback = new NodeDaoService.ChildAssocRefQueryCallback()
+        {
+            public boolean handle(
+                    Pair<Long, ChildAssociationRef> childAssocPair,
+                    Pair<Long, NodeRef> parentNodePair,
+                    Pair<Long, NodeRef> childNodePair
+                    )
+            {
+                if (notInStoreRef != null && notInStoreRef.equals(childNodePair.getSecond().getStoreRef()))
+                {
+                    return false;
+                }
+                subtree.add(new Pair<Long, ChildAssociationRef>(childNodePair.getFirst(), childAssocPair.getSecond()));
+                return true;
+            }
+
+            public boolean preLoadNodes()
+            {
+                // The policies need the node types and aspects
+                return bulkSubtreeInvokePolicies;
+            }
+        };
+        nodeDaoService.getPrimaryDescendants(nodeId, bulkSubtreeBatchSize, callback);
+        if (logger.isDebugEnabled())
+        {
+            logger.debug("Handling " + subtree.size() + " nodes below node " + nodeId + " in batches");
+        }
+        return subtree;
+    }
+
+    /**
+     * Counts the nodes below a node without loading them, descending no further once the
+     * limit has been reached.
+     * 
+     * @param nodeId            the node at the top of the subtree
+     * @param notInStoreRef     only nodes that are not in this store, and the nodes below them,
+     *                          are counted, or <tt>null</tt> to count all of them
+     * @param limit             the count at which to stop
+     * @return                  the number of nodes below the given node, or at least <tt>limit</tt>
+     *                          if there are that many
+     */
+    private int countSubtree(Long nodeId, final StoreRef notInStoreRef, final int limit)
+    {
+        final MutableInt count = new MutableInt(0);
+        NodeDaoService.ChildAssocRefQueryCallback callback = new NodeDaoService.ChildAssocRefQueryCallback()
+        {
+            public boolean handle(
+                    Pair<Long, ChildAssociationRef> childAssocPair,
+                    Pair<Long, NodeRef> parentNodePair,
+                    Pair<Long, NodeRef> childNodePair
+                    )
+            {
+                if (notInStoreRef != null && notInStoreRef.equals(childNodePair.getSecond().getStoreRef()))
+                {
+                    return false;
+                }
+                count.setValue(count.intValue() + 1);
+                // Stop going down once there are enough
+                return count.intValue() < limit;
+            }
+
+            public boolean preLoadNodes()
+            {
+                return false;
+            }
+        };
+        nodeDaoService.getPrimaryDescendants(nodeId, bulkSubtreeBatchSize, callback);
+        return count.intValue();
+    }
+
+    /**
+     * delete primary children in batches - private method for deleteNode.
+     * 
+     * Does the same as {@link #deletePrimaryChildrenNotArchived(Pair)}, with the
+     * <b>beforeDeleteNode</b> policies for the whole subtree fired before anything is deleted.
+     */
+    private void deletePrimaryChildrenInBulk(List<Pair<Long, ChildAssociationRef>> subtree)
+    {
+        List<QName> childNodeTypes = new ArrayList<QName>(subtree.size());
+        List<Set<QName>> childNodeAspectQNames = new ArrayList<Set<QName>>(subtree.size());
+        for (Pair<Long, ChildAssociationRef> subtreePair : subtree)
+        {
+            Long childNodeId = subtreePair.getFirst();
+            NodeRef childNodeRef = subtreePair.getSecond().getChildRef();
+            
+            // remove the deleted node from the list of new nodes
+            untrackNewNodeRef(childNodeRef);
+
+            // track the deletion of this node - so we can prevent new associations to it.
+            trackDeletedNodeRef(childNodeRef);
+            
+            if (bulkSubtreeInvokePolicies)
+            {
+                childNodeTypes.add(nodeDaoService.getNodeType(childNodeId));
+                childNodeAspectQNames.add(nodeDaoService.getNodeAspects(childNodeId));
+                invokeBeforeDeleteNode(childNodeRef);
+            }
+        }
+        // Delete the deepest nodes first
+        List<Long> batch = new ArrayList<Long>(bulkSubtreeBatchSize);
+        for (int i = subtree.size() - 1; i >= 0; i--)
+        {
+            batch.add(subtree.get(i).getFirst());
+            if (batch.size() >= bulkSubtreeBatchSize || i == 0)
+            {
+                nodeDaoService.deleteNodes(batch);
+                batch.clear();
+            }
+        }
+        if (bulkSubtreeInvokePolicies)
+        {
+            for (int i = 0; i < subtree.size(); i++)
+            {
+                invokeOnDeleteNode(subtree.get(i).getSecond(), childNodeTypes.get(i), childNodeAspectQNames.get(i), false);
+            }
+        }
+    }
+
     public ChildAssociationRef addChild(NodeRef parentRef, NodeRef childRef, QName assocTypeQName, QName assocQName)
     {
         return addChild(Collections.singletonList(parentRef), childRef, assocTypeQName, assocQName).get(0);
@@ -1752,6 +1933,46 @@ public class DbNodeServiceImpl extends AbstractNodeServiceImpl
         // Done
         return orderedList;
     }
+    
+    /**
+     * Sorts and pages the children in the database
+     */
+    @Override
+    public List<ChildAssociationRef> getChildAssocs(
+            NodeRef nodeRef,
+            Set<QName> childNodeTypeQNames,
+            QName sortProp,
+            boolean sortAscending,
+            int skipCount,
+            int maxItems)
+    {
+        // Get the node
+        Pair<Long, NodeRef> nodePair = getNodePairNotNull(nodeRef);
+        Long nodeId = nodePair.getFirst();
+
+        final List<ChildAssociationRef> results = new ArrayList<ChildAssociationRef>(maxItems > 0 ? maxItems : 100);
+        
+        NodeDaoService.ChildAssocRefQueryCallback callback = new NodeDaoService.ChildAssocRefQueryCallback()
+        {
+            public boolean handle(
+                    Pair<Long, ChildAssociationRef> childAssocPair,
+                    Pair<Long, NodeRef> parentNodePair,
+                    Pair<Long, NodeRef> childNodePair)
+            {
+                results.add(childAssocPair.getSecond());
+                return false;
+            }
+
+            public boolean preLoadNodes()
+            {
+                return true;
+            }
+        };
+        // The query gives the page in order
+        nodeDaoService.getChildAssocsByChildTypes(nodeId, childNodeTypeQNames, sortProp, sortAscending, skipCount, maxItems, callback);
+        // Done
+        return results;
+    }
 
     private List<ChildAssociationRef> reorderChildAssocs(Collection<ChildAssociationRef> childAssocRefs)
     {
@@ -2275,7 +2496,15 @@ public class DbNodeServiceImpl extends AbstractNodeServiceImpl
         }
         
         // Pull children to the new store
-        pullNodeChildrenToSameStore(newNodeToMovePair, true);
+        List<Pair<Long, ChildAssociationRef>> subtree = movingStore ? getBulkSubtree(nodeToMoveId, newStoreRef) : null;
+        if (subtree == null)
+        {
+            pullNodeChildrenToSameStore(newNodeToMovePair, true);
+        }
+        else
+        {
+            pullNodeChildrenToSameStoreInBulk(newStoreRef, subtree);
+        }
         
         // Done
         return newParentAssocRef;
@@ -2386,6 +2615,79 @@ public class DbNodeServiceImpl extends AbstractNodeServiceImpl
         }
     }
     
+    /**
+     * Does the same as {@link #pullNodeChildrenToSameStore(Pair, boolean)}, moving the nodes
+     * in batches.  The old nodes were removed from the index along with the moved node.
+     * 
+     * @param storeRef          the store that the nodes are moved to
+     * @param subtree           the nodes to move, parents before children
+     */
+    private void pullNodeChildrenToSameStoreInBulk(StoreRef storeRef, List<Pair<Long, ChildAssociationRef>> subtree)
+    {
+        List<QName> childNodeTypeQNames = new ArrayList<QName>(subtree.size());
+        List<Set<QName>> childNodeAspectQNames = new ArrayList<Set<QName>>(subtree.size());
+        List<ChildAssociationRef> newParentAssocRefs = new ArrayList<ChildAssociationRef>(subtree.size());
+        for (Pair<Long, ChildAssociationRef> subtreePair : subtree)
+        {
+            Long childNodeId = subtreePair.getFirst();
+            ChildAssociationRef oldParentAssocRef = subtreePair.getSecond();
+            NodeRef childNodeRef = oldParentAssocRef.getChildRef();
+            ChildAssociationRef newParentAssocRef = new ChildAssociationRef(
+                    oldParentAssocRef.getTypeQName(),
+                    new NodeRef(storeRef, oldParentAssocRef.getParentRef().getId()),
+                    oldParentAssocRef.getQName(),
+                    new NodeRef(storeRef, childNodeRef.getId()),
+                    oldParentAssocRef.isPrimary(),
+                    oldParentAssocRef.getNthSibling());
+            newParentAssocRefs.add(newParentAssocRef);
+            
+            // remove the deleted node from the list of new nodes
+            untrackNewNodeRef(childNodeRef);
+
+            // track the deletion of this node - so we can prevent new associations to it.
+            trackDeletedNodeRef(childNodeRef);
+            
+            if (bulkSubtreeInvokePolicies)
+            {
+                QName childNodeTypeQName = nodeDaoService.getNodeType(childNodeId);
+                childNodeTypeQNames.add(childNodeTypeQName);
+                childNodeAspectQNames.add(nodeDaoService.getNodeAspects(childNodeId));
+                // Fire node policies.  This ensures that each node in the hierarchy gets a notification fired.
+                invokeBeforeDeleteNode(childNodeRef);
+                invokeBeforeCreateNode(
+                            newParentAssocRef.getParentRef(),
+                            newParentAssocRef.getTypeQName(),
+                            newParentAssocRef.getQName(),
+                            childNodeTypeQName);
+            }
+        }
+        // Move the nodes
+        List<Long> batch = new ArrayList<Long>(bulkSubtreeBatchSize);
+        for (int i = 0; i < subtree.size(); i++)
+        {
+            batch.add(subtree.get(i).getFirst());
+            if (batch.size() >= bulkSubtreeBatchSize || i == subtree.size() - 1)
+            {
+                nodeDaoService.moveNodesToStore(batch, storeRef);
+                batch.clear();
+            }
+        }
+        // Index
+        for (ChildAssociationRef newParentAssocRef : newParentAssocRefs)
+        {
+            nodeIndexer.indexCreateNode(newParentAssocRef);
+        }
+        if (bulkSubtreeInvokePolicies)
+        {
+            for (int i = 0; i < subtree.size(); i++)
+            {
+                // Fire node policies.  This ensures that each node in the hierarchy gets a notification fired.
+                invokeOnDeleteNode(subtree.get(i).getSecond(), childNodeTypeQNames.get(i), childNodeAspectQNames.get(i), true);
+                invokeOnCreateNode(newParentAssocRefs.get(i));
+            }
+        }
+    }
+    
     public void indexChildren(Pair<Long, NodeRef> nodePair, boolean cascade)
     {
         Long nodeId = nodePair.getFirst();
@@ -20,10 +20,13 @@ package org.alfresco.repo.node.db;
 
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Properties;
 import java.util.Set;
 
 import javax.transaction.UserTransaction;
@@ -32,6 +35,7 @@ import org.springframework.extensions.surf.util.I18NUtil;
 import org.alfresco.model.ContentModel;
 import org.alfresco.repo.content.MimetypeMap;
 import org.alfresco.repo.node.BaseNodeServiceTest;
+import org.alfresco.repo.node.StoreArchiveMap;
 import org.alfresco.repo.node.db.NodeDaoService.NodePropertyHandler;
 import org.alfresco.repo.transaction.AlfrescoTransactionSupport;
 import org.alfresco.repo.transaction.RetryingTransactionHelper.RetryingTransactionCallback;
@@ -42,6 +46,7 @@ import org.alfresco.service.cmr.repository.ContentData;
 import org.alfresco.service.cmr.repository.MLText;
 import org.alfresco.service.cmr.repository.NodeRef;
 import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.service.cmr.repository.StoreRef;
 import org.alfresco.service.namespace.QName;
 import org.alfresco.service.namespace.RegexQNamePattern;
 import org.alfresco.service.transaction.TransactionService;
@@ -392,6 +397,156 @@ public class DbNodeServiceImplTest extends BaseNodeServiceTest
         nodeService.deleteNode(nodeRef);
     }
     
+    /**
+     * Deletes a hierarchy that is large enough to be handled in batches and checks that no part of it is left
+     */
+    public void testBulkSubtreeDelete() throws Exception
+    {
+        DbNodeServiceImpl dbNodeServiceImpl = (DbNodeServiceImpl) applicationContext.getBean("dbNodeServiceImpl");
+        Properties globalProperties = (Properties) applicationContext.getBean("global-properties");
+        
+        NodeRef topNodeRef = createFolder(rootNodeRef, ContentModel.ASSOC_CHILDREN, "top");
+        NodeRef otherNodeRef = createFolder(rootNodeRef, ContentModel.ASSOC_CHILDREN, "other");
+        List<NodeRef> subtreeNodeRefs = createSubtree(topNodeRef);
+        // A secondary association into the hierarchy
+        nodeService.addChild(
+                otherNodeRef,
+                subtreeNodeRefs.get(1),
+                ContentModel.ASSOC_CONTAINS,
+                QName.createQName(NAMESPACE, "secondary"));
+        
+        dbNodeServiceImpl.setBulkSubtreeThreshold(10);
+        try
+        {
+            nodeService.deleteNode(topNodeRef);
+        }
+        finally
+        {
+            dbNodeServiceImpl.setBulkSubtreeThreshold(
+                    Integer.parseInt(globalProperties.getProperty("system.bulkSubtree.threshold")));
+        }
+        assertFalse(nodeService.exists(topNodeRef));
+        for (NodeRef subtreeNodeRef : subtreeNodeRefs)
+        {
+            assertFalse("Node was not deleted: " + subtreeNodeRef, nodeService.exists(subtreeNodeRef));
+        }
+        assertTrue(nodeService.exists(otherNodeRef));
+        assertEquals(0, nodeService.getChildAssocs(otherNodeRef).size());
+    }
+    
+    /**
+     * Archives and then restores a hierarchy that is large enough to be moved between stores in batches.
+     * A live node in the archive store has the UUID of one of the nodes being archived, and the restore
+     * moves the nodes back over the deleted nodes that the archive left behind.
+     */
+    public void testBulkSubtreeArchiveAndRestore() throws Exception
+    {
+        DbNodeServiceImpl dbNodeServiceImpl = (DbNodeServiceImpl) applicationContext.getBean("dbNodeServiceImpl");
+        Properties globalProperties = (Properties) applicationContext.getBean("global-properties");
+        StoreArchiveMap archiveMap = (StoreArchiveMap) applicationContext.getBean("storeArchiveMap");
+        
+        StoreRef storeRef = rootNodeRef.getStoreRef();
+        StoreRef archiveStoreRef = nodeService.createStore(
+                StoreRef.PROTOCOL_WORKSPACE,
+                "archive" + getName() + System.currentTimeMillis());
+        NodeRef archiveRootNodeRef = nodeService.getRootNode(archiveStoreRef);
+        archiveMap.put(storeRef, archiveStoreRef);
+        
+        NodeRef topNodeRef = createFolder(rootNodeRef, ContentModel.ASSOC_CHILDREN, "top");
+        List<NodeRef> subtreeNodeRefs = createSubtree(topNodeRef);
+        // Put a live node in the way of one of the nodes
+        NodeRef clashingNodeRef = subtreeNodeRefs.get(5);
+        Map<QName, Serializable> properties = new HashMap<QName, Serializable>(5);
+        properties.put(ContentModel.PROP_NAME, "clash");
+        properties.put(ContentModel.PROP_NODE_UUID, clashingNodeRef.getId());
+        NodeRef conflictingNodeRef = nodeService.createNode(
+                archiveRootNodeRef,
+                ContentModel.ASSOC_CHILDREN,
+                QName.createQName(NAMESPACE, "clash"),
+                ContentModel.TYPE_FOLDER,
+                properties).getChildRef();
+        assertEquals(clashingNodeRef.getId(), conflictingNodeRef.getId());
+        Serializable clashingName = nodeService.getProperty(clashingNodeRef, ContentModel.PROP_NAME);
+        
+        NodeRef archivedTopNodeRef = new NodeRef(archiveStoreRef, topNodeRef.getId());
+        NodeRef restoredTopNodeRef = null;
+        dbNodeServiceImpl.setBulkSubtreeThreshold(10);
+        try
+        {
+            nodeService.deleteNode(topNodeRef);
+            
+            assertTrue(nodeService.hasAspect(archivedTopNodeRef, ContentModel.ASPECT_ARCHIVED));
+            for (NodeRef subtreeNodeRef : subtreeNodeRefs)
+            {
+                NodeRef.Status status = nodeService.getNodeStatus(subtreeNodeRef);
+                assertTrue("Node was not moved: " + subtreeNodeRef, status == null || status.isDeleted());
+                NodeRef archivedNodeRef = new NodeRef(archiveStoreRef, subtreeNodeRef.getId());
+                assertTrue("Node was not archived: " + subtreeNodeRef, nodeService.exists(archivedNodeRef));
+                assertEquals(archiveStoreRef, nodeService.getPrimaryParent(archivedNodeRef).getParentRef().getStoreRef());
+            }
+            // The live node was given a new UUID
+            NodeRef archivedClashingNodeRef = new NodeRef(archiveStoreRef, clashingNodeRef.getId());
+            assertEquals(clashingName, nodeService.getProperty(archivedClashingNodeRef, ContentModel.PROP_NAME));
+            List<ChildAssociationRef> clashAssocRefs = nodeService.getChildAssocs(
+                    archiveRootNodeRef,
+                    ContentModel.ASSOC_CHILDREN,
+                    QName.createQName(NAMESPACE, "clash"));
+            assertEquals(1, clashAssocRefs.size());
+            NodeRef movedConflictingNodeRef = clashAssocRefs.get(0).getChildRef();
+            assertFalse(conflictingNodeRef.equals(movedConflictingNodeRef));
+            assertEquals("clash", nodeService.getProperty(movedConflictingNodeRef, ContentModel.PROP_NAME));
+            
+            restoredTopNodeRef = nodeService.restoreNode(archivedTopNodeRef, null, null, null);
+        }
+        finally
+        {
+            dbNodeServiceImpl.setBulkSubtreeThreshold(
+                    Integer.parseInt(globalProperties.getProperty("system.bulkSubtree.threshold")));
+        }
+        assertEquals(topNodeRef, restoredTopNodeRef);
+        assertFalse(nodeService.hasAspect(restoredTopNodeRef, ContentModel.ASPECT_ARCHIVED));
+        assertEquals(4, nodeService.getChildAssocs(restoredTopNodeRef).size());
+        for (NodeRef subtreeNodeRef : subtreeNodeRefs)
+        {
+            assertTrue("Node was not restored: " + subtreeNodeRef, nodeService.exists(subtreeNodeRef));
+            assertEquals(storeRef, nodeService.getPrimaryParent(subtreeNodeRef).getParentRef().getStoreRef());
+            NodeRef.Status status = nodeService.getNodeStatus(new NodeRef(archiveStoreRef, subtreeNodeRef.getId()));
+            assertTrue("Node was left in the archive: " + subtreeNodeRef, status == null || status.isDeleted());
+        }
+        assertEquals(clashingName, nodeService.getProperty(clashingNodeRef, ContentModel.PROP_NAME));
+    }
+    
+    /**
+     * Creates 4 folders below the given node, each with 4 folders in it
+     * 
+     * @return              the folders, parents before their children
+     */
+    private List<NodeRef> createSubtree(NodeRef topNodeRef)
+    {
+        List<NodeRef> subtreeNodeRefs = new ArrayList<NodeRef>(20);
+        for (int i = 0; i < 4; i++)
+        {
+            NodeRef folderNodeRef = createFolder(topNodeRef, ContentModel.ASSOC_CONTAINS, "folder-" + i);
+            subtreeNodeRefs.add(folderNodeRef);
+            for (int j = 0; j < 4; j++)
+            {
+                subtreeNodeRefs.add(createFolder(folderNodeRef, ContentModel.ASSOC_CONTAINS, "folder-" + i + "-" + j));
+            }
+        }
+        return subtreeNodeRefs;
+    }
+    
+    private NodeRef createFolder(NodeRef parentNodeRef, QName assocTypeQName, String name)
+    {
+        Map<QName, Serializable> properties = Collections.singletonMap(ContentModel.PROP_NAME, (Serializable) name);
+        return nodeService.createNode(
+                parentNodeRef,
+                assocTypeQName,
+                QName.createQName(NAMESPACE, name),
+                ContentModel.TYPE_FOLDER,
+                properties).getChildRef();
+    }
+    
     /**
      * Adds a property to a node and checks that it can be found using the low-level DB query
      */
@@ -101,6 +101,20 @@ public interface NodeDaoService
 
     @DirtySessionAnnotation(markDirty=true)
     public Pair<Long, NodeRef> moveNodeToStore(Long nodeId, StoreRef storeRef);
+
+    /**
+     * Moves a batch of nodes to a store, leaving a deleted node behind for each of them in the
+     * original store, as {@link #moveNodeToStore(Long, StoreRef)} does.  Nodes already in the store
+     * with the same UUIDs are removed, if they are deleted, or given new UUIDs.
+     * <p>
+     * This is for moving the descendants of a node that has just been moved; the timestamps are
+     * not propagated to the parent nodes.
+     * 
+     * @param nodeIds           the nodes to move
+     * @param storeRef          the store to move the nodes to
+     */
+    @DirtySessionAnnotation(markDirty=true)
+    public void moveNodesToStore(List<Long> nodeIds, StoreRef storeRef);
     
     /**
      * @param nodeRef the node reference
@@ -179,6 +193,18 @@ public interface NodeDaoService
      */
     @DirtySessionAnnotation(markDirty=true)
     public void deleteNode(Long nodeId);
+
+    /**
+     * Deletes a batch of nodes and all their entities, as {@link #deleteNode(Long)} does, using one
+     * statement per kind of entity for the whole batch.
+     * <p>
+     * This is for deleting the descendants of a node that is being deleted; the timestamps are not
+     * propagated to the parent nodes.
+     * 
+     * @param nodeIds           the nodes to delete
+     */
+    @DirtySessionAnnotation(markDirty=true)
+    public void deleteNodes(List<Long> nodeIds);
     
     /**
      * Remove all traces of the node.  This assumes that the node has been marked
@@ -323,11 +349,50 @@ public interface NodeDaoService
             Set<QName> childNodeTypeQNames,
             ChildAssocRefQueryCallback resultsCallback);
     
+    /**
+     * Get a page of the child associations of a parent, where the child nodes are of the given types.
+     * The sorting and paging are done by the database, so only the rows of the page are read.
+     * 
+     * @param parentNodeId          the parent node
+     * @param childNodeTypeQNames   the types that the children may be (subtypes are not included)
+     * @param sortPropQName         <b>cm:name</b>, <b>cm:created</b>, <b>cm:modified</b> or <b>cm:content</b>
+     *                              (by content size) or <tt>null</tt> to keep the association order
+     * @param sortAscending         <tt>true</tt> to sort in ascending order
+     * @param skipCount             the number of results to skip
+     * @param maxItems              the most results to return or <tt>-1</tt> for all the rest
+     * @param resultsCallback       the callback that will be called with the results, in order
+     * @throws IllegalArgumentException if the property cannot be sorted on
+     */
+    @DirtySessionAnnotation(markDirty=false)
+    public void getChildAssocsByChildTypes(
+            Long parentNodeId,
+            Set<QName> childNodeTypeQNames,
+            QName sortPropQName,
+            boolean sortAscending,
+            int skipCount,
+            int maxItems,
+            ChildAssocRefQueryCallback resultsCallback);
+    
     @DirtySessionAnnotation(markDirty=false)
     public void getPrimaryChildAssocs(Long parentNodeId, ChildAssocRefQueryCallback resultsCallback);
     
     @DirtySessionAnnotation(markDirty=false)
     public void getPrimaryChildAssocsNotInSameStore(Long parentNodeId, ChildAssocRefQueryCallback resultsCallback);
+
+    /**
+     * Gets the primary child associations of all the nodes below a given node, a level at a time.
+     * The children of many parents are fetched with each query, so a large hierarchy can be walked
+     * with a few queries rather than one per node.  Each level is complete before the next level
+     * is visited.
+     * 
+     * @param nodeId                the node at the top of the hierarchy, which is not itself returned
+     * @param batchSize             the most parent nodes to query for at once
+     * @param resultsCallback       the callback that will be called with the results.  Return
+     *                              <tt>false</tt> from the callback to leave out the children
+     *                              of the node.
+     */
+    @DirtySessionAnnotation(markDirty=false)
+    public void getPrimaryDescendants(Long nodeId, int batchSize, ChildAssocRefQueryCallback resultsCallback);
     
     /**
      * Interface used to iterate over pure node results
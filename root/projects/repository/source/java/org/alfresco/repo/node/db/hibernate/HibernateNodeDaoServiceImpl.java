@@ -31,6 +31,7 @@ import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
@@ -119,12 +120,14 @@ import org.apache.commons.logging.LogFactory;
 import org.hibernate.CacheMode;
 import org.hibernate.Criteria;
 import org.hibernate.FlushMode;
+import org.hibernate.Hibernate;
 import org.hibernate.HibernateException;
 import org.hibernate.LockMode;
 import org.hibernate.ObjectNotFoundException;
 import org.hibernate.Query;
 import org.hibernate.ScrollMode;
 import org.hibernate.ScrollableResults;
+import org.hibernate.SQLQuery;
 import org.hibernate.Session;
 import org.hibernate.criterion.Projections;
 import org.hibernate.criterion.Restrictions;
@@ -147,6 +150,7 @@ public class HibernateNodeDaoServiceImpl
     private static final String QUERY_GET_ALL_STORES = "store.GetAllStores";
     private static final String QUERY_GET_NODE_BY_STORE_ID_AND_UUID = "node.GetNodeByStoreIdAndUuid";
     private static final String QUERY_GET_CHILD_NODE_IDS = "node.GetChildNodeIds";
+    private static final String QUERY_GET_CHILD_NODE_IDS_OF_PARENTS = "node.GetChildNodeIdsOfParents";
     private static final String QUERY_GET_CHILD_ASSOCS_BY_ALL = "node.GetChildAssocsByAll";
     private static final String QUERY_GET_CHILD_ASSOC_BY_TYPE_AND_NAME = "node.GetChildAssocByTypeAndName";
     private static final String QUERY_GET_CHILD_ASSOC_REFS_BY_TYPE_AND_NAME_LIST = "node.GetChildAssocRefsByTypeAndNameList";
@@ -157,6 +161,7 @@ public class HibernateNodeDaoServiceImpl
     private static final String QUERY_GET_CHILD_ASSOC_REFS_BY_CHILD_TYPEQNAME = "node.GetChildAssocRefsByChildTypeQName";
     private static final String QUERY_GET_PRIMARY_CHILD_ASSOCS = "node.GetPrimaryChildAssocs";
     private static final String QUERY_GET_PRIMARY_CHILD_ASSOCS_NOT_IN_SAME_STORE = "node.GetPrimaryChildAssocsNotInSameStore";
+    private static final String QUERY_GET_PRIMARY_CHILD_ASSOCS_OF_PARENTS = "node.GetPrimaryChildAssocsOfParents";
     private static final String QUERY_GET_NODES_WITH_CHILDREN_IN_DIFFERENT_STORE ="node.GetNodesWithChildrenInDifferentStore";
     private static final String QUERY_GET_NODES_WITH_ASPECT ="node.GetNodesWithAspect";
     private static final String QUERY_GET_CHILD_ASSOCS_WITHOUT_PARENT_ASSOCS_OF_TYPE ="node.GetChildAssocsWithoutParentAssocsOfType";
@@ -175,6 +180,24 @@ public class HibernateNodeDaoServiceImpl
     private static final String QUERY_GET_DELETED_NODES_BY_MAX_TXNID = "node.GetDeletedNodesByMaxTxnId";
     private static final String QUERY_GET_SERVER_BY_IPADDRESS = "server.getServerByIpAddress";
     
+    /** The child association columns, in the order read by {@link #convertToChildAssocRefs} */
+    private static final String SQL_SELECT_CHILD_ASSOC_REFS =
+            "select a.id as assoc_id, a.type_qname_id as assoc_type_qname_id, a.qname_ns_id as assoc_qname_ns_id," +
+            " a.qname_localname as assoc_qname_localname, a.qname_crc as assoc_qname_crc," +
+            " a.child_node_name as child_node_name, a.child_node_name_crc as child_node_name_crc," +
+            " a.is_primary as is_primary, a.assoc_index as assoc_index," +
+            " n.id as child_node_id, s.protocol as protocol, s.identifier as identifier, n.uuid as uuid" +
+            " from alf_child_assoc a" +
+            " inner join alf_node n on (n.id = a.child_node_id)" +
+            " inner join alf_store s on (s.id = n.store_id)";
+    private static final String SQL_JOIN_SORT_PROP =
+            " left outer join alf_node_properties sp on (sp.node_id = n.id and sp.qname_id = :sortQNameId)";
+    private static final String SQL_JOIN_SORT_CONTENT_SIZE =
+            " left outer join alf_content_data scd on (scd.id = sp.long_value)" +
+            " left outer join alf_content_url scu on (scu.id = scd.content_url_id)";
+    private static final String SQL_WHERE_CHILD_TYPES =
+            " where a.parent_node_id = :parentId and n.type_qname_id in (:childTypeQNameIds)";
+    
     private static final Long NULL_CACHE_VALUE = new Long(-1);
 
     private static Log logger = LogFactory.getLog(HibernateNodeDaoServiceImpl.class);
@@ -1170,6 +1193,116 @@ public class HibernateNodeDaoServiceImpl
         return new Pair<Long, NodeRef>(node.getId(), nodeRef);
     }
 
+    /**
+     * Does the same as {@link #updateNode(Long, StoreRef, String, QName)} for each node, but the nodes,
+     * and any nodes in the way in the new store, are fetched with one query each and the session is
+     * flushed once rather than twice per node.
+     */
+    public void moveNodesToStore(List<Long> nodeIds, StoreRef storeRef)
+    {
+        if (nodeIds.isEmpty())
+        {
+            return;
+        }
+        Store storeAfter = getStoreNotNull(storeRef);
+        List<Node> nodes = getNodesNotNull(nodeIds);
+        
+        // Clear the way in the new store
+        List<String> uuids = new ArrayList<String>(nodes.size());
+        for (Node node : nodes)
+        {
+            uuids.add(node.getUuid());
+        }
+        for (Node conflictingNode : getNodesByUuid(storeAfter, uuids))
+        {
+            if (conflictingNode.getDeleted())
+            {
+                // It is a deleted node so just remove the conflict
+                getHibernateTemplate().delete(conflictingNode);
+            }
+            else
+            {
+                // The live node is given a new UUID
+                NodeRef conflictingNodeRef = conflictingNode.getNodeRef();
+                conflictingNode.setUuid(GUID.generate());
+                recordNodeUpdate(conflictingNode);
+                storeAndNodeIdCache.remove(conflictingNodeRef);
+                storeAndNodeIdCache.put(conflictingNode.getNodeRef(), conflictingNode.getId());
+                removeParentAssocCacheEntriesForParents(Collections.singletonList(conflictingNode.getId()));
+            }
+        }
+        // Flush immediately to ensure that the records are changed
+        DirtySessionMethodInterceptor.flushSession(getSession(), true);
+        
+        // ETHREEOH-4031: ParentAssocsCache gets out of date when parent NodeRefs are modified
+        removeParentAssocCacheEntriesForParents(nodeIds);
+        
+        List<Node> oldNodeDummies = new ArrayList<Node>(nodes.size());
+        for (Node node : nodes)
+        {
+            Store storeBefore = node.getStore();
+            String uuid = node.getUuid();
+            parentAssocsCache.remove(node.getId());
+            // Change the store
+            node.setStore(storeAfter);
+            // We will need to record the change for the new node
+            recordNodeUpdate(node);
+            // We need to create a dummy reference for the node that was just moved away
+            Node oldNodeDummy = new NodeImpl();
+            oldNodeDummy.setStore(storeBefore);
+            oldNodeDummy.setUuid(uuid);
+            oldNodeDummy.setTypeQNameId(node.getTypeQNameId());
+            oldNodeDummies.add(oldNodeDummy);
+        }
+        // Flush immediately to ensure that the record changes
+        DirtySessionMethodInterceptor.flushSession(getSession(), true);
+        
+        for (int i = 0; i < nodes.size(); i++)
+        {
+            Node node = nodes.get(i);
+            Node oldNodeDummy = oldNodeDummies.get(i);
+            recordNodeDelete(oldNodeDummy);
+            // Persist
+            getHibernateTemplate().save(oldNodeDummy);
+            // Update cache entries
+            storeAndNodeIdCache.put(node.getNodeRef(), node.getId());
+            storeAndNodeIdCache.put(oldNodeDummy.getNodeRef(), oldNodeDummy.getId());
+        }
+    }
+
+    /**
+     * Loads a batch of nodes with one query
+     * 
+     * @throws              ObjectNotFoundException if an ID doesn't refer to a node.
+     */
+    private List<Node> getNodesNotNull(List<Long> nodeIds)
+    {
+        Criteria criteria = getSession().createCriteria(NodeImpl.class, "node");
+        criteria.setResultTransformer(Criteria.DISTINCT_ROOT_ENTITY);
+        criteria.add(Restrictions.in("id", nodeIds));
+        criteria.list();
+        // The nodes are now in the session
+        List<Node> nodes = new ArrayList<Node>(nodeIds.size());
+        for (Long nodeId : nodeIds)
+        {
+            nodes.add(getNodeNotNull(nodeId));
+        }
+        return nodes;
+    }
+
+    /**
+     * @return              the nodes, live or deleted, in the store with the given UUIDs
+     */
+    @SuppressWarnings("unchecked")
+    private List<Node> getNodesByUuid(Store store, List<String> uuids)
+    {
+        Criteria criteria = getSession().createCriteria(NodeImpl.class, "node");
+        criteria.setResultTransformer(Criteria.DISTINCT_ROOT_ENTITY);
+        criteria.add(Restrictions.eq("store.id", store.getId()));
+        criteria.add(Restrictions.in("uuid", uuids));
+        return criteria.list();
+    }
+
     public Pair<Long, NodeRef> getNodePair(NodeRef nodeRef)
     {
         Store store = getStore(nodeRef.getStoreRef());
@@ -1776,6 +1909,88 @@ public class HibernateNodeDaoServiceImpl
         recordNodeDelete(node);
     }
 
+    /**
+     * Does the same as {@link #deleteNode(Long)} for each node, but the associations are deleted
+     * with one statement for all the nodes and the session is flushed once.
+     */
+    public void deleteNodes(final List<Long> nodeIds)
+    {
+        if (nodeIds.isEmpty())
+        {
+            return;
+        }
+        Set<QName> contentQNames = new HashSet<QName>(dictionaryService.getAllProperties(DataTypeDefinition.CONTENT));
+        Set<Long> contentQNamesToRemoveIds = qnameDAO.convertQNamesToIds(contentQNames, false);
+
+        // Flush the session to ensure this non-hibernate DAO can do its job
+        getHibernateTemplate().execute(new SessionFlusher());
+        for (Long nodeId : nodeIds)
+        {
+            contentDataDAO.deleteContentDataForNode(nodeId, contentQNamesToRemoveIds);
+        }
+        
+        List<Node> nodes = getNodesNotNull(nodeIds);
+        
+        // Make sure that the cache is updated
+        removeParentAssocCacheEntriesForParents(nodeIds);
+        
+        // delete all parent and child assocs
+        if (isDebugEnabled)
+        {
+            logger.debug("Deleting child, parent, source and target assocs of " + nodeIds.size() + " nodes");
+        }
+        HibernateCallback deleteChildAssocsCallback = new HibernateCallback()
+        {
+            public Object doInHibernate(Session session)
+            {
+                Query query = session
+                    .getNamedQuery(HibernateNodeDaoServiceImpl.QUERY_DELETE_CHILD_ASSOCS_OF_NODES)
+                    .setParameterList("nodeIds", nodeIds);
+                DirtySessionMethodInterceptor.setQueryFlushMode(session, query);
+                return query.executeUpdate();
+            }
+        };
+        getHibernateTemplate().execute(deleteChildAssocsCallback);
+        
+        // delete all node associations to and from
+        HibernateCallback deleteNodeAssocsCallback = new HibernateCallback()
+        {
+            public Object doInHibernate(Session session)
+            {
+                Query query = session
+                    .getNamedQuery(HibernateNodeDaoServiceImpl.QUERY_DELETE_NODE_ASSOCS_OF_NODES)
+                    .setParameterList("nodeIds", nodeIds);
+                DirtySessionMethodInterceptor.setQueryFlushMode(session, query);
+                return query.executeUpdate();
+            }
+        };
+        getHibernateTemplate().execute(deleteNodeAssocsCallback);
+        
+        for (Node node : nodes)
+        {
+            Long nodeId = node.getId();
+            // Delete deltas
+            usageDeltaDAO.deleteDeltas(nodeId);
+            
+            // Wipe out properties and aspects
+            node.getProperties().clear();
+            node.getAspects().clear();
+            
+            // delete ACLs
+            deleteNodeAccessControlList(node);
+            
+            // Mark the node as deleted
+            node.setDeleted(true);
+            parentAssocsCache.remove(nodeId);
+            
+            // Record change ID
+            recordNodeDelete(node);
+        }
+        
+        // Write the changes now rather than holding them for the end of the transaction
+        DirtySessionMethodInterceptor.flushSession(getSession(), true);
+    }
+
     /**
      * Final purge of the node entry.  No transaction recording is done for this.
      */
@@ -1830,9 +2045,45 @@ public class HibernateNodeDaoServiceImpl
         }
     }
 
+    /**
+     * Ensures that parent association entries are removed for all children of the given nodes
+     */
+    private void removeParentAssocCacheEntriesForParents(final List<Long> parentNodeIds)
+    {
+        HibernateCallback getChildNodeIdsCallback = new HibernateCallback()
+        {
+            public Object doInHibernate(Session session)
+            {
+                Query query = session
+                    .getNamedQuery(HibernateNodeDaoServiceImpl.QUERY_GET_CHILD_NODE_IDS_OF_PARENTS)
+                    .setParameterList("parentIds", parentNodeIds);
+                DirtySessionMethodInterceptor.setQueryFlushMode(session, query);
+                return query.scroll(ScrollMode.FORWARD_ONLY);
+            }
+        };
+        ScrollableResults results = null;
+        try
+        {
+            results = (ScrollableResults) getHibernateTemplate().execute(getChildNodeIdsCallback);
+            while (results.next())
+            {
+                parentAssocsCache.remove(results.getLong(0));
+            }
+        }
+        finally
+        {
+            if(results != null)
+            {
+                results.close();
+            }
+        }
+    }
+
     private static final String QUERY_DELETE_PARENT_ASSOCS = "node.DeleteParentAssocs";
     private static final String QUERY_DELETE_CHILD_ASSOCS = "node.DeleteChildAssocs";
     private static final String QUERY_DELETE_NODE_ASSOCS = "node.DeleteNodeAssocs";
+    private static final String QUERY_DELETE_CHILD_ASSOCS_OF_NODES = "node.DeleteChildAssocsOfNodes";
+    private static final String QUERY_DELETE_NODE_ASSOCS_OF_NODES = "node.DeleteNodeAssocsOfNodes";
     
     /**
      * Does a full cleanup of the node if the <tt>deleted</tt> flag is off.  If
@@ -1843,7 +2094,6 @@ public class HibernateNodeDaoServiceImpl
      * @param cascade               true to cascade delete
      * @param deletedChildAssocIds  previously deleted child associations
      */
-    @SuppressWarnings("unchecked")
     private void deleteNodeInternal(Node node, boolean cascade, Set<Long> deletedChildAssocIds)
     {
         final Long nodeId = node.getId();
@@ -1913,7 +2163,28 @@ public class HibernateNodeDaoServiceImpl
         node.getAspects().clear();
         
         // delete ACLs
+        deleteNodeAccessControlList(node);
         
+        // Mark the node as deleted
+        node.setDeleted(true);
+        
+        // Remove node from cache
+        parentAssocsCache.remove(nodeId);
+        if (isDebugParentAssocCacheEnabled)
+        {
+            loggerParentAssocsCache.debug("\n" +
+                    "Parent associations cache - Removing entry: \n" +
+                    "   Node:   " + nodeId);
+        }
+        // done
+    }
+    
+    /**
+     * Detaches the node's ACL and deletes it if no other node uses it
+     */
+    @SuppressWarnings("unchecked")
+    private void deleteNodeAccessControlList(Node node)
+    {
         DbAccessControlList dbAcl = node.getAccessControlList();
         node.setAccessControlList(null);
         if(dbAcl != null)
@@ -1947,19 +2218,6 @@ public class HibernateNodeDaoServiceImpl
                 }
             }
         }
-        
-        // Mark the node as deleted
-        node.setDeleted(true);
-        
-        // Remove node from cache
-        parentAssocsCache.remove(nodeId);
-        if (isDebugParentAssocCacheEnabled)
-        {
-            loggerParentAssocsCache.debug("\n" +
-                    "Parent associations cache - Removing entry: \n" +
-                    "   Node:   " + nodeId);
-        }
-        // done
     }
     
     private long getCrc(String str)
@@ -2756,6 +3014,116 @@ public class HibernateNodeDaoServiceImpl
         // Done
     }
 
+    public void getChildAssocsByChildTypes(
+            final Long parentNodeId,
+            Set<QName> childNodeTypeQNames,
+            QName sortPropQName,
+            boolean sortAscending,
+            final int skipCount,
+            final int maxItems,
+            ChildAssocRefQueryCallback resultsCallback)
+    {
+        Node parentNode = getNodeNotNull(parentNodeId);
+        
+        // Build the query for the sort property
+        final StringBuilder sql = new StringBuilder(1024).append(SQL_SELECT_CHILD_ASSOC_REFS);
+        String sortColumn;
+        boolean joinSortProp = false;
+        if (sortPropQName == null)
+        {
+            sortColumn = "a.assoc_index";
+        }
+        else if (sortPropQName.equals(ContentModel.PROP_NAME))
+        {
+            sql.append(SQL_JOIN_SORT_PROP);
+            sortColumn = "sp.string_value";
+            joinSortProp = true;
+        }
+        else if (sortPropQName.equals(ContentModel.PROP_CREATED))
+        {
+            // ISO8601 strings sort by time
+            sortColumn = "n.audit_created";
+        }
+        else if (sortPropQName.equals(ContentModel.PROP_MODIFIED))
+        {
+            sortColumn = "n.audit_modified";
+        }
+        else if (sortPropQName.equals(ContentModel.PROP_CONTENT))
+        {
+            sql.append(SQL_JOIN_SORT_PROP).append(SQL_JOIN_SORT_CONTENT_SIZE);
+            sortColumn = "scu.content_size";
+            joinSortProp = true;
+        }
+        else
+        {
+            throw new IllegalArgumentException("Child associations cannot be sorted by property " + sortPropQName);
+        }
+        sql.append(SQL_WHERE_CHILD_TYPES)
+           .append(" order by ").append(sortColumn).append(sortAscending ? " asc" : " desc")
+           .append(", a.id asc");
+        
+        // Get the IDs for all the QNames we are after
+        final Set<Long> childNodeTypeQNameIds = qnameDAO.convertQNamesToIds(childNodeTypeQNames, false);
+        // Shortcut if there are no QNames available
+        if (childNodeTypeQNameIds.size() == 0)
+        {
+            return;
+        }
+        // A missing QName means that no node has the property
+        Pair<Long, QName> sortQNamePair = joinSortProp ? qnameDAO.getQName(sortPropQName) : null;
+        final Long sortQNameId = (sortQNamePair == null) ? Long.valueOf(-1L) : sortQNamePair.getFirst();
+        final boolean sortByProperty = joinSortProp;
+        
+        HibernateCallback callback = new HibernateCallback()
+        {
+            public Object doInHibernate(Session session)
+            {
+                SQLQuery query = session.createSQLQuery(sql.toString());
+                query.addScalar("assoc_id", Hibernate.LONG)
+                     .addScalar("assoc_type_qname_id", Hibernate.LONG)
+                     .addScalar("assoc_qname_ns_id", Hibernate.LONG)
+                     .addScalar("assoc_qname_localname", Hibernate.STRING)
+                     .addScalar("assoc_qname_crc", Hibernate.LONG)
+                     .addScalar("child_node_name", Hibernate.STRING)
+                     .addScalar("child_node_name_crc", Hibernate.LONG)
+                     .addScalar("is_primary", Hibernate.BOOLEAN)
+                     .addScalar("assoc_index", Hibernate.INTEGER)
+                     .addScalar("child_node_id", Hibernate.LONG)
+                     .addScalar("protocol", Hibernate.STRING)
+                     .addScalar("identifier", Hibernate.STRING)
+                     .addScalar("uuid", Hibernate.STRING);
+                query.setLong("parentId", parentNodeId)
+                     .setParameterList("childTypeQNameIds", childNodeTypeQNameIds);
+                if (sortByProperty)
+                {
+                    query.setLong("sortQNameId", sortQNameId);
+                }
+                // The dialect pages the results
+                query.setFirstResult(skipCount);
+                if (maxItems >= 0)
+                {
+                    query.setMaxResults(maxItems);
+                }
+                DirtySessionMethodInterceptor.setQueryFlushMode(session, query);
+                return query.scroll(ScrollMode.FORWARD_ONLY);
+            }
+        };
+        ScrollableResults queryResults = null;
+        try
+        {
+            queryResults = (ScrollableResults) getHibernateTemplate().execute(callback);
+            convertToChildAssocRefs(parentNode, queryResults, resultsCallback);
+        }
+        finally
+        {
+            if (queryResults != null)
+            {
+                queryResults.close();
+            }
+        }
+        // Done
+    }
+
     public void getPrimaryChildAssocs(final Long parentNodeId, ChildAssocRefQueryCallback resultsCallback)
     {
         Node parentNode = getNodeNotNull(parentNodeId);
@@ -2816,6 +3184,118 @@ public class HibernateNodeDaoServiceImpl
         // Done
     }
 
+    public void getPrimaryDescendants(Long nodeId, int batchSize, ChildAssocRefQueryCallback resultsCallback)
+    {
+        Node node = getNodeNotNull(nodeId);
+        Map<Long, NodeRef> parentNodeRefs = new LinkedHashMap<Long, NodeRef>(3);
+        parentNodeRefs.put(nodeId, node.getNodeRef());
+        while (!parentNodeRefs.isEmpty())
+        {
+            // Get the next level down
+            Map<Long, NodeRef> childNodeRefs = new LinkedHashMap<Long, NodeRef>(parentNodeRefs.size() * 4);
+            List<Long> parentNodeIds = new ArrayList<Long>(parentNodeRefs.keySet());
+            for (int i = 0; i < parentNodeIds.size(); i += batchSize)
+            {
+                List<Long> batch = parentNodeIds.subList(i, Math.min(i + batchSize, parentNodeIds.size()));
+                getPrimaryChildAssocsOfParents(batch, parentNodeRefs, childNodeRefs, resultsCallback);
+            }
+            parentNodeRefs = childNodeRefs;
+        }
+        // Done
+    }
+
+    /**
+     * Passes the primary children of a batch of parents to the callback
+     * 
+     * @param parentNodeIds         the parents to query for
+     * @param parentNodeRefs        the references of the parents, by ID
+     * @param childNodeRefs         the children to visit next are added to this
+     * @param resultsCallback       the callback to pass the results to
+     */
+    @SuppressWarnings("unchecked")
+    private void getPrimaryChildAssocsOfParents(
+            final List<Long> parentNodeIds,
+            Map<Long, NodeRef> parentNodeRefs,
+            Map<Long, NodeRef> childNodeRefs,
+            ChildAssocRefQueryCallback resultsCallback)
+    {
+        HibernateCallback callback = new HibernateCallback()
+        {
+            public Object doInHibernate(Session session)
+            {
+                Query query = session
+                    .getNamedQuery(HibernateNodeDaoServiceImpl.QUERY_GET_PRIMARY_CHILD_ASSOCS_OF_PARENTS)
+                    .setParameterList("parentIds", parentNodeIds);
+                DirtySessionMethodInterceptor.setQueryFlushMode(session, query);
+                return query.scroll(ScrollMode.FORWARD_ONLY);
+            }
+        };
+        List<Object[]> callbackResults = new ArrayList<Object[]>(128);
+        List<NodeRef> batchChildNodeRefs = new ArrayList<NodeRef>(128);
+        ScrollableResults results = null;
+        try
+        {
+            results = (ScrollableResults) getHibernateTemplate().execute(callback);
+            while (results.next())
+            {
+                Object[] row = results.get();
+                Long assocId = (Long) row[0];
+                QName assocTypeQName = qnameDAO.getQName((Long) row[1]).getSecond();
+                String assocQNameNamespace = qnameDAO.getNamespace((Long) row[2]).getSecond();
+                String assocQNameLocalName = (String) row[3];
+                QName assocQName = QName.createQName(assocQNameNamespace, assocQNameLocalName);
+                Boolean assocIsPrimary = (Boolean) row[7];
+                Integer assocIndex = (Integer) row[8];
+                Long childNodeId = (Long) row[9];
+                String childProtocol = (String) row[10];
+                String childIdentifier = (String) row[11];
+                String childUuid = (String) row[12];
+                Long parentNodeId = (Long) row[13];
+                NodeRef parentNodeRef = parentNodeRefs.get(parentNodeId);
+                NodeRef childNodeRef = new NodeRef(new StoreRef(childProtocol, childIdentifier), childUuid);
+                ChildAssociationRef assocRef = new ChildAssociationRef(
+                        assocTypeQName,
+                        parentNodeRef,
+                        assocQName,
+                        childNodeRef,
+                        assocIsPrimary.booleanValue(),
+                        assocIndex.intValue());
+                callbackResults.add(new Object[] {
+                        new Pair<Long, ChildAssociationRef>(assocId, assocRef),
+                        new Pair<Long, NodeRef>(parentNodeId, parentNodeRef),
+                        new Pair<Long, NodeRef>(childNodeId, childNodeRef)});
+                batchChildNodeRefs.add(childNodeRef);
+            }
+        }
+        finally
+        {
+            if (results != null)
+            {
+                results.close();
+            }
+        }
+        
+        // Cache the nodes
+        if (resultsCallback.preLoadNodes() && !batchChildNodeRefs.isEmpty())
+        {
+            cacheNodes(batchChildNodeRefs);
+        }
+        
+        // Pass results to callback
+        for (Object[] callbackResult : callbackResults)
+        {
+            Pair<Long, NodeRef> childNodePair = (Pair<Long, NodeRef>) callbackResult[2];
+            boolean recurse = resultsCallback.handle(
+                    (Pair<Long, ChildAssociationRef>) callbackResult[0],
+                    (Pair<Long, NodeRef>) callbackResult[1],
+                    childNodePair);
+            if (recurse)
+            {
+                childNodeRefs.put(childNodePair.getFirst(), childNodePair.getSecond());
+            }
+        }
+    }
+
     public Pair<Long, ChildAssociationRef> getChildAssoc(final Long parentNodeId, final QName assocTypeQName, final String childName)
     {
         final Pair<Long, QName> assocTypeQNamePair = qnameDAO.getQName(assocTypeQName);
@@ -3081,7 +3561,8 @@ public class HibernateNodeDaoServiceImpl
     /**
      * {@inheritDoc}
      * <p/>
-     * Loads properties, aspects, parent associations and the ID-noderef cache.
+     * Loads properties, aspects, parent associations, the parent nodes and the ID-noderef cache.
+     * Nodes that already have their ID and parent associations cached are skipped.
      */
     public void cacheNodes(List<NodeRef> nodeRefs)
     {
@@ -3091,10 +3572,15 @@ public class HibernateNodeDaoServiceImpl
             // We only cache where the are multiple results
             return;
         }
+        long start = System.currentTimeMillis();
         // Group the nodes by store so that we don't *have* to eagerly join to store to get query performance
         Map<StoreRef, List<String>> uuidsByStore = new HashMap<StoreRef, List<String>>(3);
         for (NodeRef nodeRef : nodeRefs)
         {
+            if (isNodeCached(nodeRef))
+            {
+                continue;
+            }
             StoreRef storeRef = nodeRef.getStoreRef();
             List<String> uuids = (List<String>) uuidsByStore.get(storeRef);
             if (uuids == null)
@@ -3107,22 +3593,42 @@ public class HibernateNodeDaoServiceImpl
         int size = nodeRefs.size();
         nodeRefs = null;
         // Now load all the nodes
+        int loaded = 0;
+        BulkLoadCounts counts = new BulkLoadCounts();
         for (Map.Entry<StoreRef, List<String>> entry : uuidsByStore.entrySet())
         {
             StoreRef storeRef = entry.getKey();
             List<String> uuids = entry.getValue();
-            cacheNodes(storeRef, uuids);
+            loaded += uuids.size();
+            cacheNodes(storeRef, uuids, counts);
         }
         if (logger.isDebugEnabled())
         {
-            logger.debug("Pre-loaded " + size + " nodes.");
+            logger.debug(
+                    "Pre-loaded " + loaded + " of " + size + " nodes in " + (System.currentTimeMillis() - start) + "ms: " +
+                    counts.nodeRows + " node rows, " +
+                    counts.parentAssocRows + " parent association rows, " +
+                    counts.parentNodeRows + " parent node rows.");
         }
     }
     
+    /**
+     * @return          Returns <tt>true</tt> if the node ID and parent associations are already cached
+     */
+    private boolean isNodeCached(NodeRef nodeRef)
+    {
+        Long nodeId = storeAndNodeIdCache.get(nodeRef);
+        if (nodeId == null || nodeId.equals(NULL_CACHE_VALUE))
+        {
+            return false;
+        }
+        return parentAssocsCache.get(nodeId) != null;
+    }
+    
     /**
      * Loads the nodes into cache using batching.
      */
-    private void cacheNodes(StoreRef storeRef, List<String> uuids)
+    private void cacheNodes(StoreRef storeRef, List<String> uuids, BulkLoadCounts counts)
     {
         Store store = getStore(storeRef);           // Be fetched from local caches
         
@@ -3134,14 +3640,14 @@ public class HibernateNodeDaoServiceImpl
             if (batch.size() >= batchSize)
             {
                 // Preload
-                cacheNodesNoBatch(store, batch);
+                cacheNodesNoBatch(store, batch, counts);
                 batch.clear();
             }
         }
         // Load any remaining nodes
         if (batch.size() > 0)
         {
-            cacheNodesNoBatch(store, batch);
+            cacheNodesNoBatch(store, batch, counts);
         }
     }
     
@@ -3149,7 +3655,7 @@ public class HibernateNodeDaoServiceImpl
      * Uses a Critera to preload the nodes without batching
      */
     @SuppressWarnings("unchecked")
-    private void cacheNodesNoBatch(Store store, List<String> uuids)
+    private void cacheNodesNoBatch(Store store, List<String> uuids, BulkLoadCounts counts)
     {
         Criteria criteria = getSession().createCriteria(NodeImpl.class, "node");
         criteria.setResultTransformer(Criteria.ROOT_ENTITY);
@@ -3159,6 +3665,7 @@ public class HibernateNodeDaoServiceImpl
         criteria.setFlushMode(FlushMode.MANUAL);
 
         List<Node> nodeList = criteria.list();
+        counts.nodeRows += nodeList.size();
         Set<Long> nodeIds = new HashSet<Long>(nodeList.size()*2);
         for (Node node : nodeList)
         {
@@ -3184,7 +3691,27 @@ public class HibernateNodeDaoServiceImpl
         criteria.setCacheMode(CacheMode.PUT);
         criteria.setFlushMode(FlushMode.MANUAL);
         List<ChildAssoc> parentAssocs = criteria.list();
+        counts.parentAssocRows += parentAssocs.size();
         Map<Long, List<ChildAssoc>> parentAssocMap = new HashMap<Long, List<ChildAssoc>>(nodeIds.size() * 2);
+        // The parents are needed to build the association references
+        Set<Long> parentNodeIds = new HashSet<Long>(nodeIds.size() * 2);
+        for (ChildAssoc parentAssoc : parentAssocs)
+        {
+            Node parentNode = parentAssoc.getParent();
+            if (!Hibernate.isInitialized(parentNode))
+            {
+                parentNodeIds.add(parentNode.getId());
+            }
+        }
+        if (parentNodeIds.size() > 0)
+        {
+            criteria = getSession().createCriteria(NodeImpl.class, "node");
+            criteria.setResultTransformer(Criteria.ROOT_ENTITY);
+            criteria.add(Restrictions.in("id", parentNodeIds));
+            criteria.setCacheMode(CacheMode.PUT);
+            criteria.setFlushMode(FlushMode.MANUAL);
+            counts.parentNodeRows += criteria.list().size();
+        }
         for (ChildAssoc parentAssoc : parentAssocs)
         {
             Long nodeId = parentAssoc.getChild().getId();
@@ -3216,6 +3743,16 @@ public class HibernateNodeDaoServiceImpl
         }        
     }
     
+    /**
+     * Row counts for a bulk load
+     */
+    private static class BulkLoadCounts
+    {
+        private int nodeRows;
+        private int parentAssocRows;
+        private int parentNodeRows;
+    }
+    
     private Collection<Pair<Long, AssociationRef>> convertToAssocRefs(List<NodeAssoc> queryResults)
     {
         Collection<Pair<Long, AssociationRef>> refs = new ArrayList<Pair<Long, AssociationRef>>(queryResults.size());
@@ -48,6 +48,17 @@ import java.util.Collection;
      */
     public Collection<BehaviourDefinition> find(B binding);
 
+    /**
+     * Determine if the behaviours bound to the binding are enabled by the behaviour filter.
+     * 
+     * Note: Only the behaviours found for the binding itself are filtered.  Other behaviours,
+     *       e.g. service-level behaviours, are always returned by {@link #find(BehaviourBinding)}.
+     * 
+     * @param binding  the binding
+     * @return  true => behaviours are enabled
+     */
+    public boolean isEnabled(B binding);
+
     /**
      * Add a Behaviour Change Observer.
      * 
@@ -18,11 +18,11 @@
  */
 package org.alfresco.repo.policy;
 
-import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -30,6 +30,11 @@ import org.apache.commons.logging.LogFactory;
 
 /**
  * Policy Factory with caching support.
+ * <p>
+ * The caches are copy-on-write maps, so invoking a policy takes no lock.  When behaviour
+ * filters are activated, the delegates of bindings whose behaviours are filtered out are
+ * cached separately, as the only difference the filter makes is to leave out the behaviours
+ * bound to the class itself.
  *
  * @author David Caruana
  *
@@ -41,21 +46,27 @@ import org.apache.commons.logging.LogFactory;
     // Logger
     private static final Log logger = LogFactory.getLog(PolicyComponentImpl.class);
 
+    // Behaviour Index
+    private BehaviourIndex<B> index;
+
     // Behaviour Filter
     private BehaviourFilter behaviourFilter = null;
     
-    // Cache Lock
-    private ReentrantReadWriteLock lock = new ReentrantReadWriteLock(); 
-
     /**
      * Cache for a single Policy interface (keyed by Binding)
      */
-    private Map<B, P> singleCache = new HashMap<B, P>();
+    private DelegateCache<P> singleCache = new DelegateCache<P>("aggregate delegate");
     
     /**
      * Cache for a collection of Policy interfaces (keyed by Binding)
      */
-    private Map<B, Collection<P>> listCache = new HashMap<B, Collection<P>>();
+    private DelegateCache<Collection<P>> listCache = new DelegateCache<Collection<P>>("delegate collection");
+
+    /**
+     * Caches for bindings whose behaviours are disabled by the behaviour filter
+     */
+    private DelegateCache<P> disabledSingleCache = new DelegateCache<P>("disabled aggregate delegate");
+    private DelegateCache<Collection<P>> disabledListCache = new DelegateCache<Collection<P>>("disabled delegate collection");
 
     
     /**
@@ -67,6 +78,7 @@ import org.apache.commons.logging.LogFactory;
     /*package*/ CachedPolicyFactory(Class<P> policyClass, BehaviourIndex<B> index)
     {
         super(policyClass, index);
+        this.index = index;
         behaviourFilter = index.getFilter();
 
         // Register this cached policy factory as a change observer of the behaviour index
@@ -75,8 +87,10 @@ import org.apache.commons.logging.LogFactory;
         {
             public void addition(B binding, Behaviour behaviour)
             {
-                clearCache("aggregate delegate", singleCache, binding);
-                clearCache("delegate collection", listCache, binding);
+                singleCache.clear(binding);
+                listCache.clear(binding);
+                disabledSingleCache.clear(binding);
+                disabledListCache.clear(binding);
             }
         });
     }
@@ -85,169 +99,148 @@ import org.apache.commons.logging.LogFactory;
     @Override
     public P create(B binding)
     {
-        // When behaviour filters are activated bypass the cache 
-        if (behaviourFilter != null && behaviourFilter.isActivated())
-        {
-            return super.create(binding);
-        }
-        
-        lock.readLock().lock();
-
-        try
-        {
-            P policyInterface = singleCache.get(binding);
-            if (policyInterface == null)
-            {
-                // Upgrade read lock to write lock
-                lock.readLock().unlock();
-                lock.writeLock().lock();
-
-                try
-                {
-                    // Check again
-                    policyInterface = singleCache.get(binding);
-                    if (policyInterface == null)
-                    {
-                        policyInterface = super.create(binding);
-                        singleCache.put(binding, policyInterface);
-                        
-                        if (logger.isDebugEnabled())
-                            logger.debug("Cached delegate interface " + policyInterface + " for " + binding + " and policy " + getPolicyClass());
-                    }
-                }
-                finally
-                {
-                    // Downgrade lock to read
-                    lock.readLock().lock();
-                    lock.writeLock().unlock();
-                }
-            }
-            return policyInterface;
-        }
-        finally
+        DelegateCache<P> cache = isEnabled(binding) ? singleCache : disabledSingleCache;
+        P policyInterface = cache.get(binding);
+        if (policyInterface == null)
         {
-            lock.readLock().unlock();
+            long generation = cache.getGeneration();
+            policyInterface = cache.put(binding, super.create(binding), generation);
         }
+        return policyInterface;
     }
     
 
     @Override
     public Collection<P> createList(B binding)
     {
-        // When behaviour filters are activated bypass the cache 
-        if (behaviourFilter != null && behaviourFilter.isActivated())
-        {
-            return super.createList(binding);
-        }
-        
-        lock.readLock().lock();
-
-        try
-        {
-            Collection<P> policyInterfaces = listCache.get(binding);
-            if (policyInterfaces == null)
-            {
-                // Upgrade read lock to write lock
-                lock.readLock().unlock();
-                lock.writeLock().lock();
-
-                try
-                {
-                    // Check again
-                    policyInterfaces = listCache.get(binding);
-                    if (policyInterfaces == null)
-                    {                
-                        policyInterfaces = super.createList(binding);
-                        listCache.put(binding, policyInterfaces);
-                
-                        if (logger.isDebugEnabled())
-                            logger.debug("Cached delegate interface collection " + policyInterfaces + " for " + binding + " and policy " + getPolicyClass());
-                    }
-                }
-                finally
-                {
-                    // Downgrade lock to read
-                    lock.readLock().lock();
-                    lock.writeLock().unlock();
-                }
-            }
-            return policyInterfaces;
-        }                
-        finally
+        DelegateCache<Collection<P>> cache = isEnabled(binding) ? listCache : disabledListCache;
+        Collection<P> policyInterfaces = cache.get(binding);
+        if (policyInterfaces == null)
         {
-            lock.readLock().unlock();
+            long generation = cache.getGeneration();
+            policyInterfaces = cache.put(binding, super.createList(binding), generation);
         }
+        return policyInterfaces;
     }
     
     
     /**
-     * Clear entries in the cache based on binding changes.
+     * Determine if the behaviours bound to the binding are enabled in the current transaction
      * 
-     * @param cacheDescription  description of cache to clear
-     * @param cache  the cache to clear
      * @param binding  the binding
+     * @return  true => use the delegates of the enabled behaviours
+     */
+    private boolean isEnabled(B binding)
+    {
+        return behaviourFilter == null || !behaviourFilter.isActivated() || index.isEnabled(binding);
+    }
+    
+    
+    /**
+     * Copy-on-write cache of delegates keyed by binding.
+     * <p>
+     * Readers see an immutable map.  Writers replace the map under the cache's monitor and
+     * each clear bumps a generation so that a delegate built before the clear is not cached.
+     *
+     * @param <V>  the type of delegate
      */
-    private void clearCache(String cacheDescription, Map<B, ?> cache, B binding)
+    private class DelegateCache<V>
     {
-        if (binding == null)
+        private final String description;
+        private volatile Map<B, V> entries = Collections.emptyMap();
+        private volatile long generation = 0;
+
+        private DelegateCache(String description)
+        {
+            this.description = description;
+        }
+
+        public V get(B binding)
         {
-            lock.writeLock().lock();
+            return entries.get(binding);
+        }
 
-            try
+        public long getGeneration()
+        {
+            return generation;
+        }
+
+        /**
+         * Cache a delegate, unless the cache has been cleared since the delegate was built
+         * 
+         * @param binding  the binding
+         * @param value  the delegate
+         * @param expectedGeneration  the generation before the delegate was built
+         * @return  the cached delegate, which may have been put by another thread
+         */
+        public synchronized V put(B binding, V value, long expectedGeneration)
+        {
+            if (generation != expectedGeneration)
             {
-                // A specific binding has not been provided, so clear all entries
-                cache.clear();
-                
-                if (logger.isDebugEnabled() && cache.isEmpty() == false)
-                    logger.debug("Cleared " + cacheDescription + " cache (all class bindings) for policy " + getPolicyClass());
+                return value;
             }
-            finally
+            V existing = entries.get(binding);
+            if (existing != null)
             {
-                lock.writeLock().unlock();
+                return existing;
             }
+            Map<B, V> newEntries = new HashMap<B, V>(entries);
+            newEntries.put(binding, value);
+            entries = newEntries;
+            
+            if (logger.isDebugEnabled())
+                logger.debug("Cached " + description + " " + value + " for " + binding + " and policy " + getPolicyClass());
+            
+            return value;
         }
-        else
+
+        /**
+         * Clear entries in the cache based on binding changes.
+         * 
+         * @param binding  the changed binding or null for all bindings
+         */
+        public synchronized void clear(B binding)
         {
-            // A specific binding has been provided.  Build a list of entries
-            // that require removal.  An entry is removed if the binding in the
-            // list is equal or derived from the changed binding. 
-            Collection<B> invalidBindings = new ArrayList<B>();
-            for (B cachedBinding : cache.keySet())
+            generation++;
+            if (entries.isEmpty())
+            {
+                return;
+            }
+            if (binding == null)
+            {
+                // A specific binding has not been provided, so clear all entries
+                entries = Collections.emptyMap();
+                
+                if (logger.isDebugEnabled())
+                    logger.debug("Cleared " + description + " cache (all class bindings) for policy " + getPolicyClass());
+                return;
+            }
+            
+            // A specific binding has been provided.  An entry is removed if the binding in the
+            // cache is equal or derived from the changed binding. 
+            Map<B, V> newEntries = new HashMap<B, V>(entries);
+            Iterator<B> cachedBindings = newEntries.keySet().iterator();
+            while (cachedBindings.hasNext())
             {
-                // Determine if binding is equal or derived from changed binding
+                B cachedBinding = cachedBindings.next();
                 BehaviourBinding generalisedBinding = cachedBinding;
                 while(generalisedBinding != null)
                 {
                     if (generalisedBinding.equals(binding))
                     {
-                        invalidBindings.add(cachedBinding);
+                        cachedBindings.remove();
+                        
+                        if (logger.isDebugEnabled())
+                            logger.debug("Cleared " + description + " cache for " + cachedBinding + " and policy " + getPolicyClass());
                         break;
                     }
                     generalisedBinding = generalisedBinding.generaliseBinding();
                 }
             }
-
-            // Remove all invalid bindings
-            if (invalidBindings.size() > 0)
+            if (newEntries.size() != entries.size())
             {
-                lock.writeLock().lock();
-                
-                try
-                {
-                    for (B invalidBinding : invalidBindings)
-                    {
-                        cache.remove(invalidBinding);
-                        
-                        if (logger.isDebugEnabled())
-                            logger.debug("Cleared " + cacheDescription + " cache for " + invalidBinding + " and policy " + getPolicyClass());
-                    }
-                }
-                finally
-                {
-                    lock.writeLock().unlock();
-                }
+                entries = newEntries;
             }
         }
     }
-    
 }
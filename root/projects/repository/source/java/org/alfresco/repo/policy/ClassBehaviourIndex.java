@@ -122,15 +122,7 @@ import org.alfresco.service.namespace.QName;
             List<BehaviourDefinition> behaviours = new ArrayList<BehaviourDefinition>();
 
             // Determine if behaviour has been disabled
-            boolean isEnabled = true;
-            if (filter != null)
-            {
-                NodeRef nodeRef = binding.getNodeRef();
-                QName className = binding.getClassQName();
-                isEnabled = (nodeRef == null) ? filter.isEnabled(className) : filter.isEnabled(nodeRef, className);
-            }
-
-            if (isEnabled)
+            if (isEnabled(binding))
             {
                 // Find class behaviour by scanning up the class hierarchy
                 List<BehaviourDefinition<B>> behaviour = null;
@@ -160,6 +152,21 @@ import org.alfresco.service.namespace.QName;
     }
 
 
+    /* (non-Javadoc)
+     * @see org.alfresco.repo.policy.BehaviourIndex#isEnabled(org.alfresco.repo.policy.BehaviourBinding)
+     */
+    public boolean isEnabled(B binding)
+    {
+        if (filter == null)
+        {
+            return true;
+        }
+        NodeRef nodeRef = binding.getNodeRef();
+        QName className = binding.getClassQName();
+        return (nodeRef == null) ? filter.isEnabled(className) : filter.isEnabled(nodeRef, className);
+    }
+
+
     /* (non-Javadoc)
      * @see org.alfresco.repo.policy.BehaviourIndex#find()
      */
@@ -20,7 +20,11 @@ package org.alfresco.repo.policy;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import junit.framework.TestCase;
 
@@ -31,6 +35,7 @@ import org.alfresco.repo.dictionary.DictionaryDAOImpl;
 import org.alfresco.repo.dictionary.NamespaceDAOImpl;
 import org.alfresco.repo.tenant.SingleTServiceImpl;
 import org.alfresco.repo.tenant.TenantService;
+import org.alfresco.service.cmr.repository.NodeRef;
 import org.alfresco.service.namespace.QName;
 
 
@@ -49,6 +54,7 @@ public class PolicyComponentTest extends TestCase
     private static QName ASPECT_PROP_A = QName.createQName(TEST_NAMESPACE, "aspect_a");
     private static QName INVALID_TYPE = QName.createQName(TEST_NAMESPACE, "classdoesnotexist");
 
+    private DictionaryComponent dictionary = null;
     private PolicyComponent policyComponent = null;
 
 
@@ -74,7 +80,7 @@ public class PolicyComponentTest extends TestCase
         bootstrap.setTenantService(new SingleTServiceImpl());
         bootstrap.bootstrap();
 
-        DictionaryComponent dictionary = new DictionaryComponent();
+        dictionary = new DictionaryComponent();
         dictionary.setDictionaryDAO(dictionaryDAO);
 
         // Instantiate Policy Component
@@ -353,6 +359,90 @@ public class PolicyComponentTest extends TestCase
     }
 
 
+    public void testClassCacheWithFilter()
+    {
+        // Register Policy with a behaviour filter
+        TestBehaviourFilter filter = new TestBehaviourFilter();
+        PolicyComponentImpl filteredPolicyComponent = new PolicyComponentImpl(dictionary);
+        filteredPolicyComponent.setBehaviourFilter(filter);
+        ClassPolicyDelegate<TestClassPolicy> delegate = filteredPolicyComponent.registerClassPolicy(TestClassPolicy.class);
+        
+        // Bind Behaviour
+        QName policyName = QName.createQName(TEST_NAMESPACE, "test");
+        Behaviour baseBehaviour = new JavaBehaviour(this, "baseTest");
+        filteredPolicyComponent.bindClassBehaviour(policyName, BASE_TYPE, baseBehaviour);
+        Behaviour folderBehaviour = new JavaBehaviour(this, "folderTest");
+        filteredPolicyComponent.bindClassBehaviour(policyName, FOLDER_TYPE, folderBehaviour);
+        TestClassPolicy filePolicy = delegate.get(FILE_TYPE);
+        assertEquals("Base: file", filePolicy.test("file"));
+        TestClassPolicy folderPolicy = delegate.get(FOLDER_TYPE);
+        
+        // Disable folder behaviour (file delegate is still cached)
+        filter.disableBehaviour(FOLDER_TYPE);
+        assertTrue(delegate.get(FILE_TYPE) == filePolicy);
+        TestClassPolicy disabledFolderPolicy = delegate.get(FOLDER_TYPE);
+        assertTrue(disabledFolderPolicy != folderPolicy);
+        assertNull(disabledFolderPolicy.test("folder"));
+        assertTrue(delegate.get(FOLDER_TYPE) == disabledFolderPolicy);
+        assertEquals(0, delegate.getList(FOLDER_TYPE).size());
+        
+        // Enable folder behaviour
+        filter.enableBehaviour(FOLDER_TYPE);
+        assertTrue(delegate.get(FOLDER_TYPE) == folderPolicy);
+        assertEquals("Folder: folder", delegate.get(FOLDER_TYPE).test("folder"));
+        assertEquals(1, delegate.getList(FOLDER_TYPE).size());
+
+        // Disable folder behaviour for one node only
+        NodeRef disabledNode = new NodeRef("workspace://SpacesStore/disabled");
+        NodeRef enabledNode = new NodeRef("workspace://SpacesStore/enabled");
+        filter.disableBehaviour(disabledNode, FOLDER_TYPE);
+        assertTrue(delegate.get(disabledNode, FOLDER_TYPE) == disabledFolderPolicy);
+        assertNull(delegate.get(disabledNode, FOLDER_TYPE).test("folder"));
+        assertEquals(0, delegate.getList(disabledNode, FOLDER_TYPE).size());
+        assertTrue(delegate.get(enabledNode, FOLDER_TYPE) == folderPolicy);
+        assertEquals(1, delegate.getList(enabledNode, FOLDER_TYPE).size());
+        assertTrue(delegate.get(FOLDER_TYPE) == folderPolicy);
+        assertTrue(delegate.get(disabledNode, FILE_TYPE) == filePolicy);
+
+        // Enable it again
+        filter.enableBehaviour(disabledNode, FOLDER_TYPE);
+        assertTrue(delegate.get(disabledNode, FOLDER_TYPE) == folderPolicy);
+        assertEquals("Folder: folder", delegate.get(disabledNode, FOLDER_TYPE).test("folder"));
+    }
+
+    
+    public void testClassCacheWithFilterActivated()
+    {
+        // Register Policy with a behaviour filter
+        TestBehaviourFilter filter = new TestBehaviourFilter();
+        PolicyComponentImpl filteredPolicyComponent = new PolicyComponentImpl(dictionary);
+        filteredPolicyComponent.setBehaviourFilter(filter);
+        ClassPolicyDelegate<TestClassPolicy> delegate = filteredPolicyComponent.registerClassPolicy(TestClassPolicy.class);
+        QName policyName = QName.createQName(TEST_NAMESPACE, "test");
+        Behaviour baseBehaviour = new JavaBehaviour(this, "baseTest");
+        filteredPolicyComponent.bindClassBehaviour(policyName, BASE_TYPE, baseBehaviour);
+        TestClassPolicy filePolicy = delegate.get(FILE_TYPE);
+        Collection<TestClassPolicy> filePolicies = delegate.getList(FILE_TYPE);
+
+        // Disabling another class activates the filter, but the file delegates are still taken from the cache
+        filter.disableBehaviour(FOLDER_TYPE);
+        assertTrue(filter.isActivated());
+        for (int i = 0; i < 10; i++)
+        {
+            assertTrue(delegate.get(FILE_TYPE) == filePolicy);
+            assertTrue(delegate.getList(FILE_TYPE) == filePolicies);
+        }
+        assertEquals("Base: file", delegate.get(FILE_TYPE).test("file"));
+
+        // As are the disabled folder delegates, once built
+        TestClassPolicy disabledFolderPolicy = delegate.get(FOLDER_TYPE);
+        for (int i = 0; i < 10; i++)
+        {
+            assertTrue(delegate.get(FOLDER_TYPE) == disabledFolderPolicy);
+        }
+    }
+
+
     public void testPropertyDelegate()
     {
         // Register Policy
@@ -622,4 +712,73 @@ public class PolicyComponentTest extends TestCase
         return "Service: " + argument;
     }
     
+    /**
+     * Behaviour filter that disables behaviour of exact classes, for all nodes or for one node
+     */
+    private static class TestBehaviourFilter implements BehaviourFilter
+    {
+        private Set<QName> disabled = new HashSet<QName>();
+        private Map<NodeRef, Set<QName>> disabledByNode = new HashMap<NodeRef, Set<QName>>();
+        
+        public boolean disableBehaviour(QName className)
+        {
+            return !disabled.add(className);
+        }
+
+        public boolean disableBehaviour(NodeRef nodeRef, QName className)
+        {
+            Set<QName> classNames = disabledByNode.get(nodeRef);
+            if (classNames == null)
+            {
+                classNames = new HashSet<QName>();
+                disabledByNode.put(nodeRef, classNames);
+            }
+            return !classNames.add(className);
+        }
+
+        public void enableBehaviour(QName className)
+        {
+            disabled.remove(className);
+        }
+
+        public void enableBehaviour(NodeRef nodeRef, QName className)
+        {
+            Set<QName> classNames = disabledByNode.get(nodeRef);
+            if (classNames != null)
+            {
+                classNames.remove(className);
+                if (classNames.isEmpty())
+                {
+                    disabledByNode.remove(nodeRef);
+                }
+            }
+        }
+
+        public void enableBehaviours(NodeRef nodeRef)
+        {
+            disabledByNode.remove(nodeRef);
+        }
+
+        public void enableAllBehaviours()
+        {
+            disabled.clear();
+            disabledByNode.clear();
+        }
+
+        public boolean isEnabled(QName className)
+        {
+            return !disabled.contains(className);
+        }
+
+        public boolean isEnabled(NodeRef nodeRef, QName className)
+        {
+            Set<QName> classNames = disabledByNode.get(nodeRef);
+            return isEnabled(className) && (classNames == null || !classNames.contains(className));
+        }
+
+        public boolean isActivated()
+        {
+            return !disabled.isEmpty() || !disabledByNode.isEmpty();
+        }
+    }
 }
@@ -35,6 +35,7 @@ import org.junit.runners.Suite;
 @Suite.SuiteClasses({
         RenditionServiceImplTest.class,
         AbstractRenderingEngineTest.class,
+        RenditionContentCacheTest.class,
         ThumbnailServiceImplParameterTest.class,
         ThumbnailServiceImplTest.class,
         StandardRenditionLocationResolverTest.class,
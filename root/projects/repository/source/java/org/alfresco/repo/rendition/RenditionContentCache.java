@@ -0,0 +1,299 @@
+/*
+ * Copyright (C) 2005-2010 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.repo.rendition;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.alfresco.error.AlfrescoRuntimeException;
+import org.alfresco.repo.action.executer.ActionExecuter;
+import org.alfresco.repo.cache.SimpleCache;
+import org.alfresco.repo.content.ContentStore;
+import org.alfresco.repo.content.cleanup.ContentStoreCleanerListener;
+import org.alfresco.repo.rendition.executer.AbstractRenderingEngine;
+import org.alfresco.repo.transaction.AlfrescoTransactionSupport;
+import org.alfresco.repo.transaction.TransactionListenerAdapter;
+import org.alfresco.service.cmr.rendition.RenditionDefinition;
+import org.alfresco.service.cmr.rendition.RenditionService;
+import org.alfresco.service.cmr.repository.ContentData;
+import org.alfresco.service.cmr.repository.ContentIOException;
+import org.alfresco.service.cmr.repository.ContentReader;
+import org.alfresco.service.cmr.repository.ContentService;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Remembers the content produced by transforming rendering engines so that the same source content, rendered with
+ * the same rendition definition parameters, reuses the stored output instead of being transformed again.
+ * <p>
+ * Source content is identified by a SHA-256 digest of its bytes, which is worked out once per content URL. So copies
+ * of a document, which share a content URL, and the same bytes uploaded again both hit the cache. The rendition
+ * content is reused by URL and is checked to still exist before it is handed out. This bean is a listener of the
+ * {@link org.alfresco.repo.content.cleanup.ContentStoreCleaner cleaner}, which drops the digest of deleted content.
+ * <p>
+ * Only renditions to the {@link #setTargetMimetypes(List) given mimetypes} are cached, as some transformations to
+ * other formats, such as HTML, depend on where the rendition is put.
+ *
+ * @since 3.3
+ */
+public class RenditionContentCache implements ContentStoreCleanerListener
+{
+    private static final Log logger = LogFactory.getLog(RenditionContentCache.class);
+
+    private static final String DIGEST_ALGORITHM = "SHA-256";
+    private static final String KEY_DIGEST = "digest:";
+    private static final String KEY_RENDITION = "rendition:";
+
+    /** Parameters that affect where a rendition goes and how, but not its content */
+    private static final Set<String> IGNORED_PARAMETERS = new HashSet<String>(Arrays.asList(
+                ActionExecuter.PARAM_RESULT,
+                RenditionService.PARAM_DESTINATION_NODE,
+                RenditionService.PARAM_DESTINATION_PATH_TEMPLATE,
+                RenditionService.PARAM_RENDITION_NODETYPE,
+                RenditionService.PARAM_ORPHAN_EXISTING_RENDITION,
+                AbstractRenderingEngine.PARAM_PLACEHOLDER_RESOURCE_PATH,
+                AbstractRenderingEngine.PARAM_SOURCE_CONTENT_PROPERTY,
+                AbstractRenderingEngine.PARAM_TARGET_CONTENT_PROPERTY,
+                AbstractRenderingEngine.PARAM_UPDATE_RENDITIONS_ON_ANY_PROPERTY_CHANGE,
+                AbstractRenderingEngine.PARAM_RUN_AS));
+
+    private SimpleCache<Serializable, Serializable> cache;
+    private ContentService contentService;
+    private Set<String> targetMimetypes = Collections.emptySet();
+    private long maxSourceSize = -1L;
+    private boolean enabled = true;
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong putCount = new AtomicLong();
+
+    /**
+     * @param cache the bounded cache of source digests and rendition content
+     */
+    public void setCache(SimpleCache<Serializable, Serializable> cache)
+    {
+        this.cache = cache;
+    }
+
+    /**
+     * @param contentService used to check that cached rendition content still exists
+     */
+    public void setContentService(ContentService contentService)
+    {
+        this.contentService = contentService;
+    }
+
+    /**
+     * @param targetMimetypes the rendition mimetypes that are cached
+     */
+    public void setTargetMimetypes(List<String> targetMimetypes)
+    {
+        this.targetMimetypes = new HashSet<String>(targetMimetypes);
+    }
+
+    /**
+     * @param maxSourceSize the size in bytes above which source content is not digested, or -1 for no limit
+     */
+    public void setMaxSourceSize(long maxSourceSize)
+    {
+        this.maxSourceSize = maxSourceSize;
+    }
+
+    /**
+     * @param enabled <code>false</code> to render everything afresh
+     */
+    public void setEnabled(boolean enabled)
+    {
+        this.enabled = enabled;
+    }
+
+    /**
+     * Works out the key for rendering the given content.
+     *
+     * @param sourceReader a reader of the source content. No content is read from it.
+     * @param targetMimetype the mimetype of the rendition
+     * @param definition the rendition definition
+     * @return the key or <code>null</code> if the rendition is not cached
+     */
+    public String getKey(ContentReader sourceReader, String targetMimetype, RenditionDefinition definition)
+    {
+        if (!enabled || cache == null || !targetMimetypes.contains(targetMimetype))
+        {
+            return null;
+        }
+        String contentUrl = sourceReader.getContentUrl();
+        if (contentUrl == null || (maxSourceSize >= 0L && sourceReader.getSize() > maxSourceSize))
+        {
+            return null;
+        }
+        String digest = (String) cache.get(KEY_DIGEST + contentUrl);
+        if (digest == null)
+        {
+            digest = digest(sourceReader.getReader());
+            cache.put(KEY_DIGEST + contentUrl, digest);
+        }
+        // Parameters are sorted by name so that the same definition always gives the same key
+        Map<String, Serializable> parameters = new TreeMap<String, Serializable>(definition.getParameterValues());
+        parameters.keySet().removeAll(IGNORED_PARAMETERS);
+        return digest + "|" + sourceReader.getMimetype() + "|" + definition.getActionDefinitionName() + "|"
+                    + targetMimetype + "|" + parameters;
+    }
+
+    /**
+     * @param key the key given by {@link #getKey(ContentReader, String, RenditionDefinition)}
+     * @return the stored rendition content or <code>null</code> if there is none
+     */
+    public ContentData getRendition(String key)
+    {
+        ContentData contentData = (ContentData) cache.get(KEY_RENDITION + key);
+        if (contentData != null && !contentService.getRawReader(contentData.getContentUrl()).exists())
+        {
+            // The rendition has gone
+            cache.remove(KEY_RENDITION + key);
+            contentData = null;
+        }
+        if (contentData == null)
+        {
+            missCount.incrementAndGet();
+            return null;
+        }
+        hitCount.incrementAndGet();
+        if (logger.isDebugEnabled())
+        {
+            logger.debug("Reusing rendition content: \n" +
+                        "   key:     " + key + "\n" +
+                        "   content: " + contentData);
+        }
+        return contentData;
+    }
+
+    /**
+     * @param key the key given by {@link #getKey(ContentReader, String, RenditionDefinition)}
+     * @param contentData the rendition content just written
+     */
+    public void putRendition(final String key, final ContentData contentData)
+    {
+        if (contentData == null || contentData.getContentUrl() == null)
+        {
+            return;
+        }
+        if (AlfrescoTransactionSupport.getTransactionId() == null)
+        {
+            cache.put(KEY_RENDITION + key, contentData);
+            putCount.incrementAndGet();
+            return;
+        }
+        // Content written by a transaction that rolls back is removed, so only keep it once it has been committed
+        AlfrescoTransactionSupport.bindListener(new TransactionListenerAdapter()
+        {
+            @Override
+            public void afterCommit()
+            {
+                cache.put(KEY_RENDITION + key, contentData);
+                putCount.incrementAndGet();
+            }
+        });
+    }
+
+    /**
+     * Drops the digest of content that is being deleted. Renditions are checked when they are used.
+     */
+    public void beforeDelete(ContentStore sourceStore, String contentUrl) throws ContentIOException
+    {
+        if (cache != null)
+        {
+            cache.remove(KEY_DIGEST + contentUrl);
+        }
+    }
+
+    /**
+     * @return the number of renditions reused
+     */
+    public long getHitCount()
+    {
+        return hitCount.get();
+    }
+
+    /**
+     * @return the number of renditions not found
+     */
+    public long getMissCount()
+    {
+        return missCount.get();
+    }
+
+    /**
+     * @return the number of renditions stored
+     */
+    public long getPutCount()
+    {
+        return putCount.get();
+    }
+
+    private String digest(ContentReader reader)
+    {
+        InputStream is = reader.getContentInputStream();
+        try
+        {
+            MessageDigest messageDigest = MessageDigest.getInstance(DIGEST_ALGORITHM);
+            byte[] buffer = new byte[32 * 1024];
+            int read;
+            while ((read = is.read(buffer)) != -1)
+            {
+                messageDigest.update(buffer, 0, read);
+            }
+            StringBuilder sb = new StringBuilder(64);
+            for (byte b : messageDigest.digest())
+            {
+                sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return sb.toString();
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new AlfrescoRuntimeException("Digest algorithm not available: " + DIGEST_ALGORITHM, e);
+        }
+        catch (IOException e)
+        {
+            throw new ContentIOException("Failed to digest content: " + reader, e);
+        }
+        finally
+        {
+            try
+            {
+                is.close();
+            }
+            catch (IOException e)
+            {
+                // ignore
+            }
+        }
+    }
+}
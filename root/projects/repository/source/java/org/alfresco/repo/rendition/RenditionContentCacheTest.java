@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2005-2010 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.repo.rendition;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.io.Serializable;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import org.alfresco.repo.cache.ConcurrentMemoryCache;
+import org.alfresco.repo.content.filestore.FileContentReader;
+import org.alfresco.repo.content.filestore.FileContentWriter;
+import org.alfresco.repo.rendition.executer.ImageRenderingEngine;
+import org.alfresco.service.cmr.rendition.RenditionDefinition;
+import org.alfresco.service.cmr.rendition.RenditionService;
+import org.alfresco.service.cmr.repository.ContentData;
+import org.alfresco.service.cmr.repository.ContentReader;
+import org.alfresco.service.cmr.repository.ContentService;
+import org.alfresco.service.namespace.NamespaceService;
+import org.alfresco.service.namespace.QName;
+import org.alfresco.util.GUID;
+import org.alfresco.util.TempFileProvider;
+
+/**
+ * @see RenditionContentCache
+ */
+public class RenditionContentCacheTest extends TestCase
+{
+    private static final String PNG = "image/png";
+
+    private ContentService contentService;
+    private RenditionContentCache renditionContentCache;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+        contentService = mock(ContentService.class);
+        ConcurrentMemoryCache<Serializable, Serializable> cache = new ConcurrentMemoryCache<Serializable, Serializable>();
+        cache.setMaxItems(100);
+        renditionContentCache = new RenditionContentCache();
+        renditionContentCache.setCache(cache);
+        renditionContentCache.setContentService(contentService);
+        renditionContentCache.setTargetMimetypes(Arrays.asList(PNG));
+    }
+
+    public void testSameBytesShareRenditions() throws Exception
+    {
+        RenditionDefinition definition = makeDefinition(100);
+        ContentReader original = makeSourceReader("Some content");
+        ContentReader uploadedAgain = makeSourceReader("Some content");
+        ContentReader different = makeSourceReader("Other content");
+
+        String key = renditionContentCache.getKey(original, PNG, definition);
+        assertNotNull(key);
+        assertEquals(key, renditionContentCache.getKey(uploadedAgain, PNG, definition));
+        assertFalse(key.equals(renditionContentCache.getKey(different, PNG, definition)));
+        assertFalse(key.equals(renditionContentCache.getKey(original, PNG, makeDefinition(200))));
+
+        // Where the rendition goes does not matter
+        definition.setParameterValue(RenditionService.PARAM_DESTINATION_PATH_TEMPLATE, "/a/b/c");
+        assertEquals(key, renditionContentCache.getKey(original, PNG, definition));
+
+        // Only the given mimetypes are cached
+        assertNull(renditionContentCache.getKey(original, "text/html", definition));
+    }
+
+    public void testGetAndPut() throws Exception
+    {
+        String key = renditionContentCache.getKey(makeSourceReader("Some content"), PNG, makeDefinition(100));
+        assertNull(renditionContentCache.getRendition(key));
+        assertEquals(1, renditionContentCache.getMissCount());
+
+        ContentReader renditionReader = makeSourceReader("Rendered");
+        ContentData contentData = new ContentData(renditionReader.getContentUrl(), PNG, 8L, "UTF-8");
+        renditionContentCache.putRendition(key, contentData);
+        assertEquals(1, renditionContentCache.getPutCount());
+
+        when(contentService.getRawReader(contentData.getContentUrl())).thenReturn(renditionReader);
+        assertEquals(contentData, renditionContentCache.getRendition(key));
+        assertEquals(1, renditionContentCache.getHitCount());
+
+        // The rendition content has been removed
+        when(contentService.getRawReader(contentData.getContentUrl())).thenReturn(
+                    new FileContentReader(new File(TempFileProvider.getTempDir(), GUID.generate())));
+        assertNull(renditionContentCache.getRendition(key));
+    }
+
+    public void testDisabled() throws Exception
+    {
+        renditionContentCache.setEnabled(false);
+        assertNull(renditionContentCache.getKey(makeSourceReader("Some content"), PNG, makeDefinition(100)));
+    }
+
+    private RenditionDefinition makeDefinition(int width)
+    {
+        QName renditionName = QName.createQName(NamespaceService.CONTENT_MODEL_1_0_URI, "thumbnail");
+        RenditionDefinition definition = new RenditionDefinitionImpl(GUID.generate(), renditionName,
+                    ImageRenderingEngine.NAME);
+        definition.setParameterValue(ImageRenderingEngine.PARAM_RESIZE_WIDTH, width);
+        return definition;
+    }
+
+    private ContentReader makeSourceReader(String content)
+    {
+        FileContentWriter writer = new FileContentWriter(TempFileProvider.createTempFile(getName(), ".bin"));
+        writer.setMimetype("application/pdf");
+        writer.putContent(content);
+        ContentReader reader = writer.getReader();
+        reader.setMimetype("application/pdf");
+        return reader;
+    }
+}
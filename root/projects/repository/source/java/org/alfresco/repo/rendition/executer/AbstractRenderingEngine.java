@@ -576,6 +576,14 @@ public abstract class AbstractRenderingEngine extends ActionExecuterAbstractBase
             return this.definition;
         }
 
+        /**
+         * @return the property of the destination node that holds the rendition content
+         */
+        public QName getRenditionContentProperty()
+        {
+            return this.renditionContentProperty;
+        }
+
         /**
          * Gets the value for the named parameter from the . Checks the type of
          * the parameter is correct and throws and Exception if it isn't.
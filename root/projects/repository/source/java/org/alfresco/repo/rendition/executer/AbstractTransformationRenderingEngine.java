@@ -20,7 +20,9 @@
 package org.alfresco.repo.rendition.executer;
 
 import org.alfresco.repo.content.transform.ContentTransformer;
+import org.alfresco.repo.rendition.RenditionContentCache;
 import org.alfresco.service.cmr.rendition.RenditionServiceException;
+import org.alfresco.service.cmr.repository.ContentData;
 import org.alfresco.service.cmr.repository.ContentReader;
 import org.alfresco.service.cmr.repository.ContentWriter;
 import org.alfresco.service.cmr.repository.NoTransformerException;
@@ -40,6 +42,16 @@ public abstract class AbstractTransformationRenderingEngine extends AbstractRend
     private static final String NOT_TRANSFORMABLE_MESSAGE_PATTERN = "Content not transformable for '%s' source mime type and '%s' target mime type. Operation can't be performed";
     private static final String TRANSFORMING_ERROR_MESSAGE = "Some error occurred during document transforming. Error message: ";
 
+    private RenditionContentCache renditionContentCache;
+
+    /**
+     * @param renditionContentCache the store of content already rendered (may be <code>null</code>)
+     */
+    public void setRenditionContentCache(RenditionContentCache renditionContentCache)
+    {
+        this.renditionContentCache = renditionContentCache;
+    }
+
     /*
      * (non-Javadoc)
      * @see org.alfresco.repo.rendition.executer.AbstractRenderingEngine#render(org.alfresco.repo.rendition.executer.AbstractRenderingEngine.RenderingContext)
@@ -64,10 +76,29 @@ public abstract class AbstractTransformationRenderingEngine extends AbstractRend
 
         if (transformer.isTransformable(sourceMimeType, targetMimeType, options))
         {
+            // Reuse the content rendered from the same source content with the same definition, if there is any
+            String cacheKey = null;
+            if (renditionContentCache != null)
+            {
+                cacheKey = renditionContentCache.getKey(contentReader, targetMimeType, context.getDefinition());
+            }
+            if (cacheKey != null)
+            {
+                ContentData renditionContent = renditionContentCache.getRendition(cacheKey);
+                if (renditionContent != null)
+                {
+                    nodeService.setProperty(context.getDestinationNode(), context.getRenditionContentProperty(), renditionContent);
+                    return;
+                }
+            }
             ContentWriter contentWriter = context.makeContentWriter();
             try
             {
                 contentService.transform(contentReader, contentWriter, options);
+                if (cacheKey != null)
+                {
+                    renditionContentCache.putRendition(cacheKey, contentWriter.getContentData());
+                }
             }
             catch (NoTransformerException ntx)
             {
@@ -19,8 +19,11 @@
 package org.alfresco.repo.search.impl.lucene;
 
 import java.util.List;
+import java.util.concurrent.ThreadPoolExecutor;
 
 import org.alfresco.cmis.CMISQueryService;
+import org.alfresco.repo.content.ExtractedTextCache;
+import org.alfresco.repo.node.db.NodeDaoService;
 import org.alfresco.repo.search.SearcherException;
 import org.alfresco.repo.search.SupportsBackgroundIndexing;
 import org.alfresco.repo.search.impl.lucene.fts.FullTextSearchIndexer;
@@ -31,6 +34,7 @@ import org.alfresco.service.cmr.repository.NodeService;
 import org.alfresco.service.cmr.repository.StoreRef;
 import org.alfresco.service.cmr.search.SearchService;
 import org.alfresco.service.namespace.NamespaceService;
+import org.alfresco.service.transaction.TransactionService;
 
 /**
  * Factory for ADM indxers and searchers
@@ -49,6 +53,16 @@ public class ADMLuceneIndexerAndSearcherFactory extends AbstractLuceneIndexerAnd
 
     protected ContentService contentService;
 
+    protected NodeDaoService nodeDaoService;
+
+    protected ReadableAclFilterCache readableAclFilterCache;
+
+    protected ExtractedTextCache extractedTextCache;
+
+    protected TransactionService transactionService;
+
+    protected ThreadPoolExecutor ftsThreadPoolExecutor;
+
     /**
      * Set the dictinary service
      * 
@@ -91,6 +105,47 @@ public class ADMLuceneIndexerAndSearcherFactory extends AbstractLuceneIndexerAnd
         this.contentService = contentService;
     }
 
+    /**
+     * Set the node DAO used to index node ACL ids when ACL filtering is enabled
+     */
+    public void setNodeDaoService(NodeDaoService nodeDaoService)
+    {
+        this.nodeDaoService = nodeDaoService;
+    }
+
+    /**
+     * Set the cache of readable ACL filters applied to queries when ACL filtering is enabled
+     */
+    public void setReadableAclFilterCache(ReadableAclFilterCache readableAclFilterCache)
+    {
+        this.readableAclFilterCache = readableAclFilterCache;
+    }
+
+    /**
+     * Set the cache of text extracted from content for indexing
+     */
+    public void setExtractedTextCache(ExtractedTextCache extractedTextCache)
+    {
+        this.extractedTextCache = extractedTextCache;
+    }
+
+    /**
+     * Set the transaction service used by the background FTS transformation workers
+     */
+    public void setTransactionService(TransactionService transactionService)
+    {
+        this.transactionService = transactionService;
+    }
+
+    /**
+     * Set the workers that transform content for background FTS indexing. Without them content is transformed on the
+     * thread doing the FTS update.
+     */
+    public void setFtsThreadPoolExecutor(ThreadPoolExecutor ftsThreadPoolExecutor)
+    {
+        this.ftsThreadPoolExecutor = ftsThreadPoolExecutor;
+    }
+
     protected LuceneIndexer createIndexer(StoreRef storeRef, String deltaId)
     {
         storeRef = tenantService.getName(storeRef);
@@ -102,6 +157,10 @@ public class ADMLuceneIndexerAndSearcherFactory extends AbstractLuceneIndexerAnd
         // indexer.setLuceneIndexLock(luceneIndexLock);
         indexer.setFullTextSearchIndexer(fullTextSearchIndexer);
         indexer.setContentService(contentService);
+        indexer.setNodeDaoService(nodeDaoService);
+        indexer.setExtractedTextCache(extractedTextCache);
+        indexer.setTransactionService(transactionService);
+        indexer.setFtsThreadPoolExecutor(ftsThreadPoolExecutor);
         indexer.setMaxAtomicTransformationTime(getMaxTransformationTime());
         return indexer;
     }
@@ -119,6 +178,7 @@ public class ADMLuceneIndexerAndSearcherFactory extends AbstractLuceneIndexerAnd
         searcher.setQueryRegister(getQueryRegister());
         searcher.setDictionaryService(dictionaryService);
         searcher.setQueryLanguages(queryLanguages);
+        searcher.setReadableAclFilterCache(readableAclFilterCache);
         return searcher;
     }
     
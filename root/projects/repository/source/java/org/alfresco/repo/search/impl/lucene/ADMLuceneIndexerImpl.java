@@ -38,11 +38,14 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ThreadPoolExecutor;
 
 import org.alfresco.model.ContentModel;
+import org.alfresco.repo.content.ExtractedTextCache;
 import org.alfresco.repo.content.MimetypeMap;
 import org.alfresco.repo.content.transform.ContentTransformer;
 import org.alfresco.repo.dictionary.IndexTokenisationMode;
+import org.alfresco.repo.node.db.NodeDaoService;
 import org.alfresco.repo.search.IndexerException;
 import org.alfresco.repo.search.MLAnalysisMode;
 import org.alfresco.repo.search.impl.lucene.analysis.DateTimeAnalyser;
@@ -50,9 +53,11 @@ import org.alfresco.repo.search.impl.lucene.analysis.MLTokenDuplicator;
 import org.alfresco.repo.search.impl.lucene.analysis.VerbatimAnalyser;
 import org.alfresco.repo.search.impl.lucene.fts.FTSIndexerAware;
 import org.alfresco.repo.search.impl.lucene.fts.FullTextSearchIndexer;
+import org.alfresco.repo.search.impl.lucene.index.FullTextSearchStatistics;
 import org.alfresco.repo.security.authentication.AuthenticationUtil;
 import org.alfresco.repo.security.authentication.AuthenticationUtil.RunAsWork;
 import org.alfresco.repo.tenant.TenantService;
+import org.alfresco.repo.transaction.RetryingTransactionHelper.RetryingTransactionCallback;
 import org.alfresco.service.cmr.dictionary.AspectDefinition;
 import org.alfresco.service.cmr.dictionary.DataTypeDefinition;
 import org.alfresco.service.cmr.dictionary.PropertyDefinition;
@@ -72,6 +77,7 @@ import org.alfresco.service.cmr.repository.StoreRef;
 import org.alfresco.service.cmr.repository.datatype.DefaultTypeConverter;
 import org.alfresco.service.cmr.repository.datatype.TypeConversionException;
 import org.alfresco.service.namespace.QName;
+import org.alfresco.service.transaction.TransactionService;
 import org.alfresco.util.CachingDateFormat;
 import org.alfresco.util.EqualsHelper;
 import org.alfresco.util.ISO9075;
@@ -116,6 +122,26 @@ public class ADMLuceneIndexerImpl extends AbstractLuceneIndexerImpl<NodeRef> imp
      */
     ContentService contentService;
 
+    /**
+     * Node DAO used to find node ACLs when ACL filtering is enabled
+     */
+    NodeDaoService nodeDaoService;
+
+    /**
+     * Text previously extracted from content (may be null)
+     */
+    ExtractedTextCache extractedTextCache;
+
+    /**
+     * Transaction service used by the background transformation workers
+     */
+    TransactionService transactionService;
+
+    /**
+     * Workers that transform content for background FTS indexing (may be null to transform on the calling thread)
+     */
+    ThreadPoolExecutor ftsThreadPoolExecutor;
+
     /**
      * Call back to make after doing non atomic indexing
      */
@@ -169,6 +195,46 @@ public class ADMLuceneIndexerImpl extends AbstractLuceneIndexerImpl<NodeRef> imp
         this.contentService = contentService;
     }
 
+    /**
+     * IOC setting of the extracted text cache
+     * 
+     * @param extractedTextCache
+     */
+    public void setExtractedTextCache(ExtractedTextCache extractedTextCache)
+    {
+        this.extractedTextCache = extractedTextCache;
+    }
+
+    /**
+     * IOC setting of the transaction service
+     * 
+     * @param transactionService
+     */
+    public void setTransactionService(TransactionService transactionService)
+    {
+        this.transactionService = transactionService;
+    }
+
+    /**
+     * IOC setting of the background FTS transformation workers
+     * 
+     * @param ftsThreadPoolExecutor
+     */
+    public void setFtsThreadPoolExecutor(ThreadPoolExecutor ftsThreadPoolExecutor)
+    {
+        this.ftsThreadPoolExecutor = ftsThreadPoolExecutor;
+    }
+
+    /**
+     * IOC setting of the node DAO service
+     * 
+     * @param nodeDaoService
+     */
+    public void setNodeDaoService(NodeDaoService nodeDaoService)
+    {
+        this.nodeDaoService = nodeDaoService;
+    }
+
     /*
      * Indexer Implementation
      */
@@ -608,6 +674,10 @@ public class ADMLuceneIndexerImpl extends AbstractLuceneIndexerImpl<NodeRef> imp
         Document xdoc = new Document();
         xdoc.add(new Field("ID", nodeRef.toString(), Field.Store.YES, Field.Index.NO_NORMS, Field.TermVector.NO));
         xdoc.add(new Field("TX", nodeStatus.getChangeTxnId(), Field.Store.YES, Field.Index.NO_NORMS, Field.TermVector.NO));
+        if (getLuceneConfig().isAclFilteringEnabled())
+        {
+            addAclFields(nodeRef, properties, xdoc);
+        }
         boolean isAtomic = true;
         for (QName propertyName : properties.keySet())
         {
@@ -905,7 +975,20 @@ public class ADMLuceneIndexerImpl extends AbstractLuceneIndexerImpl<NodeRef> imp
                 {
                     boolean readerReady = true;
                     // transform if necessary (it is not a UTF-8 text document)
+                    ContentReader cachedTextReader = null;
                     if (!EqualsHelper.nullSafeEquals(reader.getMimetype(), MimetypeMap.MIMETYPE_TEXT_PLAIN) || !EqualsHelper.nullSafeEquals(reader.getEncoding(), "UTF-8"))
+                    {
+                        // use text extracted when the same content was last indexed, if there is any
+                        if (extractedTextCache != null)
+                        {
+                            cachedTextReader = extractedTextCache.getText(reader);
+                        }
+                    }
+                    if (cachedTextReader != null)
+                    {
+                        reader = cachedTextReader;
+                    }
+                    else if (!EqualsHelper.nullSafeEquals(reader.getMimetype(), MimetypeMap.MIMETYPE_TEXT_PLAIN) || !EqualsHelper.nullSafeEquals(reader.getEncoding(), "UTF-8"))
                     {
                         // get the transformer
                         ContentTransformer transformer = contentService.getTransformer(reader.getMimetype(), MimetypeMap.MIMETYPE_TEXT_PLAIN);
@@ -941,6 +1024,7 @@ public class ADMLuceneIndexerImpl extends AbstractLuceneIndexerImpl<NodeRef> imp
                             writer.setEncoding("UTF-8");
                             try
                             {
+                                ContentReader sourceReader = reader;
                                 transformer.transform(reader, writer);
                                 // point the reader to the new-written content
                                 reader = writer.getReader();
@@ -950,6 +1034,11 @@ public class ADMLuceneIndexerImpl extends AbstractLuceneIndexerImpl<NodeRef> imp
                                     throw new ContentIOException("The transformation did not write any content, yet: \n"
                                             + "   transformer:     " + transformer + "\n" + "   temp writer:     " + writer);
                                 }
+                                // keep the text for the next time this content is indexed
+                                if (extractedTextCache != null)
+                                {
+                                    extractedTextCache.putText(sourceReader, writer.getReader());
+                                }
                             }
                             catch (ContentIOException e)
                             {
@@ -1348,6 +1437,41 @@ public class ADMLuceneIndexerImpl extends AbstractLuceneIndexerImpl<NodeRef> imp
         }
     }
 
+    /**
+     * Add the node ACL id and owner used to filter search results by read permission. Nodes without an ACLID are
+     * never filtered out.
+     */
+    private void addAclFields(NodeRef nodeRef, Map<QName, Serializable> properties, Document xdoc)
+    {
+        if (nodeDaoService == null)
+        {
+            return;
+        }
+        org.alfresco.util.Pair<Long, NodeRef> nodePair = nodeDaoService.getNodePair(nodeRef);
+        if (nodePair == null)
+        {
+            return;
+        }
+        Long aclId = nodeDaoService.getNodeAccessControlList(nodePair.getFirst());
+        if (aclId == null)
+        {
+            return;
+        }
+        xdoc.add(new Field("ACLID", aclId.toString(), Field.Store.NO, Field.Index.NO_NORMS, Field.TermVector.NO));
+
+        // If ownership is not explicitly set then we fall back to the creator (as the owner dynamic authority does)
+        Serializable owner = properties.get(ContentModel.PROP_OWNER);
+        if (owner == null)
+        {
+            owner = properties.get(ContentModel.PROP_CREATOR);
+        }
+        if (owner != null)
+        {
+            String userName = DefaultTypeConverter.INSTANCE.convert(String.class, owner);
+            xdoc.add(new Field("OWNER", userName, Field.Store.NO, Field.Index.NO_NORMS, Field.TermVector.NO));
+        }
+    }
+
     private Map<ChildAssociationRef, Counter> getNodeCounts(NodeRef nodeRef)
     {
         Map<ChildAssociationRef, Counter> nodeCounts = new HashMap<ChildAssociationRef, Counter>(5);
@@ -1539,6 +1663,7 @@ public class ADMLuceneIndexerImpl extends AbstractLuceneIndexerImpl<NodeRef> imp
                 }
 
                 count = hits.length();
+                getFullTextSearchStatistics().recordPendingDocuments(count);
             }
             finally
             {
@@ -1560,20 +1685,31 @@ public class ADMLuceneIndexerImpl extends AbstractLuceneIndexerImpl<NodeRef> imp
                 checkAbleToDoWork(IndexUpdateStatus.ASYNCHRONOUS);
 
                 IndexWriter writer = null;
+                FullTextSearchStatistics statistics = getFullTextSearchStatistics();
+                // Transformations are run ahead of this (the writer) thread by the workers, if there are any
+                List<FTSTransformation> transformations = new ArrayList<FTSTransformation>(toFTSIndex.size());
+                FTSTransformationQueue queue = null;
                 try
                 {
                     writer = getDeltaWriter();
                     for (Helper helper : toFTSIndex)
                     {
-                        // Document document = helper.document;
-                        NodeRef ref = new NodeRef(helper.ref);
+                        transformations.add(new FTSTransformation(new NodeRef(helper.ref), statistics));
+                    }
+                    queue = new FTSTransformationQueue(transformations, ftsThreadPoolExecutor, statistics);
+                    for (FTSTransformation transformation : transformations)
+                    {
+                        List<Document> docs = queue.next();
+                        NodeRef ref = transformation.ref;
+
                         // bypass nodes that have disappeared
-                        if (!nodeService.exists(ref))
+                        if (docs == null)
                         {
+                            statistics.recordWritten(0, 0L);
                             continue;
                         }
 
-                        List<Document> docs = createDocuments(ref.toString(), false, true, false);
+                        long start = System.currentTimeMillis();
                         for (Document doc : docs)
                         {
                             try
@@ -1587,6 +1723,7 @@ public class ADMLuceneIndexerImpl extends AbstractLuceneIndexerImpl<NodeRef> imp
                                 throw new LuceneIndexException("Failed to add document while updating fts index", e);
                             }
                         }
+                        statistics.recordWritten(docs.size(), System.currentTimeMillis() - start);
 
                         // Need to do all the current id in the TX - should all
                         // be
@@ -1616,6 +1753,14 @@ public class ADMLuceneIndexerImpl extends AbstractLuceneIndexerImpl<NodeRef> imp
                     }
                     return 0;
                 }
+                finally
+                {
+                    // drop anything transformed or queued beyond the batch
+                    if (queue != null)
+                    {
+                        queue.close();
+                    }
+                }
             }
             else
             {
@@ -1652,6 +1797,106 @@ public class ADMLuceneIndexerImpl extends AbstractLuceneIndexerImpl<NodeRef> imp
         }
     }
 
+    /**
+     * Builds the documents (including transformed content) for a node that needs full text indexing. When run by one
+     * of the FTS workers this happens in a read only transaction of its own; the documents are added to the delta by
+     * the thread doing the FTS update.
+     */
+    private class FTSTransformation implements FTSTransformationQueue.Transformation
+    {
+        NodeRef ref;
+
+        FullTextSearchStatistics statistics;
+
+        private boolean started;
+
+        private boolean finished;
+
+        private boolean abandoned;
+
+        FTSTransformation(NodeRef ref, FullTextSearchStatistics statistics)
+        {
+            this.ref = ref;
+            this.statistics = statistics;
+        }
+
+        public List<Document> call() throws Exception
+        {
+            synchronized (this)
+            {
+                if (abandoned)
+                {
+                    return null;
+                }
+                started = true;
+            }
+            statistics.recordTransformStarted();
+            return AuthenticationUtil.runAs(new RunAsWork<List<Document>>()
+            {
+                public List<Document> doWork() throws Exception
+                {
+                    if (transactionService == null)
+                    {
+                        return transform();
+                    }
+                    RetryingTransactionCallback<List<Document>> callback = new RetryingTransactionCallback<List<Document>>()
+                    {
+                        public List<Document> execute() throws Throwable
+                        {
+                            return transform();
+                        }
+                    };
+                    return transactionService.getRetryingTransactionHelper().doInTransaction(callback, true, true);
+                }
+            }, AuthenticationUtil.getSystemUserName());
+        }
+
+        /**
+         * @return the documents for the node or <tt>null</tt> if the node has gone
+         */
+        public List<Document> transform()
+        {
+            long start = System.currentTimeMillis();
+            List<Document> docs = null;
+            try
+            {
+                if (nodeService.exists(ref))
+                {
+                    docs = createDocuments(ref.toString(), false, true, false);
+                }
+            }
+            finally
+            {
+                synchronized (this)
+                {
+                    finished = true;
+                    if (!abandoned)
+                    {
+                        statistics.recordTransformCompleted(System.currentTimeMillis() - start);
+                    }
+                }
+            }
+            return docs;
+        }
+
+        public synchronized void abandon()
+        {
+            if (abandoned)
+            {
+                return;
+            }
+            abandoned = true;
+            if (!started && !finished)
+            {
+                statistics.recordTransformAbandoned();
+            }
+            else if (finished)
+            {
+                statistics.recordWriteAbandoned();
+            }
+        }
+    }
+
     FullTextSearchIndexer fullTextSearchIndexer;
 
     public void setFullTextSearchIndexer(FullTextSearchIndexer fullTextSearchIndexer)
@@ -83,7 +83,7 @@ import org.apache.lucene.index.TermEnum;
 import org.apache.lucene.index.IndexReader.FieldOption;
 import org.apache.lucene.queryParser.ParseException;
 import org.apache.lucene.queryParser.QueryParser.Operator;
-import org.apache.lucene.search.Hits;
+import org.apache.lucene.search.Filter;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.Searcher;
 import org.apache.lucene.search.Sort;
@@ -114,6 +114,8 @@ public class ADMLuceneSearcherImpl extends AbstractLuceneBase implements LuceneS
 
     private Map<String, LuceneQueryLanguageSPI> queryLanguages;
 
+    private ReadableAclFilterCache readableAclFilterCache;
+
     /*
      * Searcher implementation
      */
@@ -221,6 +223,28 @@ public class ADMLuceneSearcherImpl extends AbstractLuceneBase implements LuceneS
         this.queryLanguages = queryLanguages;
     }
 
+    /**
+     * Set the source of readable ACL filters used when ACL filtering is enabled
+     * 
+     * @param readableAclFilterCache
+     */
+    public void setReadableAclFilterCache(ReadableAclFilterCache readableAclFilterCache)
+    {
+        this.readableAclFilterCache = readableAclFilterCache;
+    }
+
+    /**
+     * @return the filter restricting results to readable nodes, or <code>null</code> if there is no restriction
+     */
+    private Filter getReadableAclFilter()
+    {
+        if ((readableAclFilterCache == null) || !getLuceneConfig().isAclFilteringEnabled())
+        {
+            return null;
+        }
+        return readableAclFilterCache.getFilter();
+    }
+
     public ResultSet query(StoreRef store, String language, String queryString, QueryParameterDefinition[] queryParameterDefinitions) throws SearcherException
     {
         store = tenantService.getName(store);
@@ -297,7 +321,7 @@ public class ADMLuceneSearcherImpl extends AbstractLuceneBase implements LuceneS
                     return new EmptyResultSet();
                 }
 
-                Hits hits;
+                CollectedHits hits;
 
                 boolean requiresPostSort = false;
                 if (searchParameters.getSortDefinitions().size() > 0)
@@ -413,12 +437,12 @@ public class ADMLuceneSearcherImpl extends AbstractLuceneBase implements LuceneS
                         }
 
                     }
-                    hits = searcher.search(query, new Sort(fields));
+                    hits = CollectedHits.collect(searcher, query, getReadableAclFilter(), new Sort(fields));
 
                 }
                 else
                 {
-                    hits = searcher.search(query);
+                    hits = CollectedHits.collect(searcher, query, getReadableAclFilter(), null);
                 }
 
                 ResultSet rs = new LuceneResultSet(hits, searcher, nodeService, tenantService, searchParameters, getLuceneConfig());
@@ -463,7 +487,7 @@ public class ADMLuceneSearcherImpl extends AbstractLuceneBase implements LuceneS
                     // no index return an empty result set
                     return new EmptyResultSet();
                 }
-                Hits hits = searcher.search(query);
+                CollectedHits hits = CollectedHits.collect(searcher, query, getReadableAclFilter(), null);
                 ResultSet rs = new LuceneResultSet(hits, searcher, nodeService, tenantService, searchParameters, getLuceneConfig());
                 rs = new PagingLuceneResultSet(rs, searchParameters, nodeService);
                 return rs;
@@ -23,6 +23,7 @@ import java.io.IOException;
 import java.util.Set;
 
 import org.alfresco.repo.search.IndexerException;
+import org.alfresco.repo.search.impl.lucene.index.FullTextSearchStatistics;
 import org.alfresco.repo.search.impl.lucene.index.IndexInfo;
 import org.alfresco.repo.search.impl.lucene.index.TransactionStatus;
 import org.alfresco.repo.search.impl.lucene.index.IndexInfo.LockWork;
@@ -276,6 +277,16 @@ public abstract class AbstractLuceneBase
         return indexInfo.getMainIndexReferenceCountingReadOnlyIndexReader();
     }
 
+    /**
+     * Get the counters for background full text search indexing of this index
+     * 
+     * @return - the counters
+     */
+    protected FullTextSearchStatistics getFullTextSearchStatistics()
+    {
+        return indexInfo.getFullTextSearchCounters();
+    }
+
     /**
      * Set the dictionary service
      * @param dictionaryService
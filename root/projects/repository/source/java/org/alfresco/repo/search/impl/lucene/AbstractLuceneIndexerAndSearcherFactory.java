@@ -46,6 +46,7 @@ import org.alfresco.repo.search.IndexerException;
 import org.alfresco.repo.search.MLAnalysisMode;
 import org.alfresco.repo.search.QueryRegisterComponent;
 import org.alfresco.repo.search.SearcherException;
+import org.alfresco.repo.search.impl.lucene.index.FilterCacheStatistics;
 import org.alfresco.repo.search.impl.lucene.index.IndexInfo;
 import org.alfresco.repo.search.transaction.SimpleTransaction;
 import org.alfresco.repo.search.transaction.SimpleTransactionManager;
@@ -160,6 +161,12 @@ public abstract class AbstractLuceneIndexerAndSearcherFactory implements LuceneI
 
     private int maxLinkAspectCacheSize = 10000;
 
+    private int maxFilterCacheSize = 0;
+
+    private FilterCacheStatistics filterCacheStatistics = new FilterCacheStatistics();
+
+    private boolean idColumnCacheEnabled = true;
+
     private int maxParentCacheSize = 10000;
 
     private int maxPathCacheSize = 10000;
@@ -198,6 +205,8 @@ public abstract class AbstractLuceneIndexerAndSearcherFactory implements LuceneI
 
     private boolean postSortDateTime;
 
+    private boolean aclFilteringEnabled = false;
+
     private ConfigurableApplicationContext applicationContext;
 
     /**
@@ -1642,6 +1651,36 @@ public abstract class AbstractLuceneIndexerAndSearcherFactory implements LuceneI
         this.maxLinkAspectCacheSize = maxLinkAspectCacheSize;
     }
 
+    public int getMaxFilterCacheSize()
+    {
+        return maxFilterCacheSize;
+    }
+
+    public void setMaxFilterCacheSize(int maxFilterCacheSize)
+    {
+        this.maxFilterCacheSize = maxFilterCacheSize;
+    }
+
+    public FilterCacheStatistics getFilterCacheStatistics()
+    {
+        return filterCacheStatistics;
+    }
+
+    public void setFilterCacheStatistics(FilterCacheStatistics filterCacheStatistics)
+    {
+        this.filterCacheStatistics = filterCacheStatistics;
+    }
+
+    public boolean isIdColumnCacheEnabled()
+    {
+        return idColumnCacheEnabled;
+    }
+
+    public void setIdColumnCacheEnabled(boolean idColumnCacheEnabled)
+    {
+        this.idColumnCacheEnabled = idColumnCacheEnabled;
+    }
+
     public int getMaxParentCacheSize()
     {
         return maxParentCacheSize;
@@ -1812,6 +1851,16 @@ public abstract class AbstractLuceneIndexerAndSearcherFactory implements LuceneI
         this.postSortDateTime = postSortDateTime;
     }
 
+    public boolean isAclFilteringEnabled()
+    {
+        return aclFilteringEnabled;
+    }
+
+    public void setAclFilteringEnabled(boolean aclFilteringEnabled)
+    {
+        this.aclFilteringEnabled = aclFilteringEnabled;
+    }
+
     public void registerQueryLanguage(LuceneQueryLanguageSPI queryLanguage)
     {
         this.queryLanguages.put(queryLanguage.getName().toLowerCase(), queryLanguage);
@@ -0,0 +1,259 @@
+/*
+ * Copyright (C) 2005-2010 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.repo.search.impl.lucene;
+
+import java.io.IOException;
+
+import org.apache.lucene.search.FieldDoc;
+import org.apache.lucene.search.FieldSortedHitQueue;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.search.HitCollector;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.Searcher;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.TopFieldDocs;
+
+/**
+ * The document ids and scores for all the matches of a query, collected in one pass and held in order.
+ * <p>
+ * This replaces the use of {@link org.apache.lucene.search.Hits}, which only keeps the top few hundred matches and runs
+ * the query again, for twice as many, each time a result beyond those is requested. Matches are ordered and scored as
+ * Hits would: by the sort if there is one, otherwise by descending score then document id, with scores normalised to
+ * at most 1. No documents are loaded.
+ */
+public class CollectedHits
+{
+    private final int[] docs;
+
+    private final float[] scores;
+
+    private final int length;
+
+    private CollectedHits(int[] docs, float[] scores, int length)
+    {
+        this.docs = docs;
+        this.scores = scores;
+        this.length = length;
+    }
+
+    /**
+     * Execute a query and collect all of its matches.
+     *
+     * @param searcher
+     * @param query
+     * @param filter
+     *            may be null
+     * @param sort
+     *            may be null for score order
+     * @return the matches
+     * @throws IOException
+     */
+    public static CollectedHits collect(Searcher searcher, Query query, Filter filter, Sort sort) throws IOException
+    {
+        Collector collector = new Collector();
+        searcher.search(query, filter, collector);
+
+        CollectedHits hits = new CollectedHits(collector.docs, collector.scores, collector.length);
+        if (sort == null)
+        {
+            hits.sortByScore();
+        }
+        else if (searcher instanceof IndexSearcher)
+        {
+            hits.sort((IndexSearcher) searcher, sort);
+        }
+        else
+        {
+            TopFieldDocs topDocs = searcher.search(query, filter, Math.max(1, collector.length), sort);
+            hits = new CollectedHits(new int[topDocs.scoreDocs.length], new float[topDocs.scoreDocs.length], topDocs.scoreDocs.length);
+            for (int i = 0; i < hits.length; i++)
+            {
+                hits.docs[i] = topDocs.scoreDocs[i].doc;
+                hits.scores[i] = topDocs.scoreDocs[i].score;
+            }
+        }
+        hits.normalise();
+        return hits;
+    }
+
+    /**
+     * @return the number of matches
+     */
+    public int length()
+    {
+        return length;
+    }
+
+    /**
+     * @param n
+     * @return the document id of the nth match
+     */
+    public int id(int n)
+    {
+        checkIndex(n);
+        return docs[n];
+    }
+
+    /**
+     * @param n
+     * @return the normalised score of the nth match
+     */
+    public float score(int n)
+    {
+        checkIndex(n);
+        return scores[n];
+    }
+
+    private void checkIndex(int n)
+    {
+        if ((n < 0) || (n >= length))
+        {
+            throw new IndexOutOfBoundsException("Not a valid hit number: " + n);
+        }
+    }
+
+    private void sort(IndexSearcher searcher, Sort sort) throws IOException
+    {
+        if (length == 0)
+        {
+            return;
+        }
+        FieldSortedHitQueue queue = new FieldSortedHitQueue(searcher.getIndexReader(), sort.getSort(), length);
+        for (int i = 0; i < length; i++)
+        {
+            queue.insert(new FieldDoc(docs[i], scores[i]));
+        }
+        // The queue pops the last match first
+        for (int i = length - 1; i >= 0; i--)
+        {
+            ScoreDoc scoreDoc = (ScoreDoc) queue.pop();
+            docs[i] = scoreDoc.doc;
+            scores[i] = scoreDoc.score;
+        }
+    }
+
+    /**
+     * In place heap sort of the parallel arrays by descending score then ascending doc
+     */
+    private void sortByScore()
+    {
+        for (int i = length / 2 - 1; i >= 0; i--)
+        {
+            siftDown(i, length);
+        }
+        for (int end = length - 1; end > 0; end--)
+        {
+            swap(0, end);
+            siftDown(0, end);
+        }
+    }
+
+    private void siftDown(int i, int end)
+    {
+        while (true)
+        {
+            int child = 2 * i + 1;
+            if (child >= end)
+            {
+                return;
+            }
+            if ((child + 1 < end) && after(child + 1, child))
+            {
+                child++;
+            }
+            if (!after(child, i))
+            {
+                return;
+            }
+            swap(i, child);
+            i = child;
+        }
+    }
+
+    /**
+     * @return true if match a is ordered after match b
+     */
+    private boolean after(int a, int b)
+    {
+        if (scores[a] != scores[b])
+        {
+            return scores[a] < scores[b];
+        }
+        return docs[a] > docs[b];
+    }
+
+    private void swap(int a, int b)
+    {
+        int doc = docs[a];
+        docs[a] = docs[b];
+        docs[b] = doc;
+        float score = scores[a];
+        scores[a] = scores[b];
+        scores[b] = score;
+    }
+
+    private void normalise()
+    {
+        float maxScore = 0.0f;
+        for (int i = 0; i < length; i++)
+        {
+            maxScore = Math.max(maxScore, scores[i]);
+        }
+        if (maxScore > 1.0f)
+        {
+            float scoreNorm = 1.0f / maxScore;
+            for (int i = 0; i < length; i++)
+            {
+                scores[i] *= scoreNorm;
+            }
+        }
+    }
+
+    private static class Collector extends HitCollector
+    {
+        int[] docs = new int[64];
+
+        float[] scores = new float[64];
+
+        int length = 0;
+
+        @Override
+        public void collect(int doc, float score)
+        {
+            // As for Hits, only matches that score are included
+            if (score > 0.0f)
+            {
+                if (length == docs.length)
+                {
+                    int[] newDocs = new int[length * 2];
+                    System.arraycopy(docs, 0, newDocs, 0, length);
+                    docs = newDocs;
+                    float[] newScores = new float[length * 2];
+                    System.arraycopy(scores, 0, newScores, 0, length);
+                    scores = newScores;
+                }
+                docs[length] = doc;
+                scores[length] = score;
+                length++;
+            }
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2005-2010 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.repo.search.impl.lucene;
+
+import junit.framework.TestCase;
+
+import org.apache.lucene.analysis.WhitespaceAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.Hits;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.SortField;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.store.RAMDirectory;
+
+/**
+ * @see org.alfresco.repo.search.impl.lucene.CollectedHits
+ */
+public class CollectedHitsTest extends TestCase
+{
+    private IndexSearcher searcher;
+
+    public void setUp() throws Exception
+    {
+        RAMDirectory directory = new RAMDirectory();
+        IndexWriter writer = new IndexWriter(directory, new WhitespaceAnalyzer(), true, IndexWriter.MaxFieldLength.UNLIMITED);
+        for (int i = 0; i < 500; i++)
+        {
+            Document document = new Document();
+            StringBuilder text = new StringBuilder("all");
+            for (int j = 0; j < i % 7; j++)
+            {
+                text.append(" seven");
+            }
+            if (i % 3 == 0)
+            {
+                text.append(" three");
+            }
+            document.add(new Field("TEXT", text.toString(), Field.Store.NO, Field.Index.TOKENIZED, Field.TermVector.NO));
+            document.add(new Field("NAME", String.format("%04d", (i * 37) % 500), Field.Store.YES, Field.Index.UN_TOKENIZED, Field.TermVector.NO));
+            writer.addDocument(document);
+        }
+        writer.close();
+        searcher = new IndexSearcher(directory);
+    }
+
+    public void tearDown() throws Exception
+    {
+        searcher.close();
+    }
+
+    public void testScoreOrderMatchesHits() throws Exception
+    {
+        BooleanQuery query = new BooleanQuery();
+        query.add(new TermQuery(new Term("TEXT", "seven")), BooleanClause.Occur.SHOULD);
+        query.add(new TermQuery(new Term("TEXT", "three")), BooleanClause.Occur.SHOULD);
+        check(query, null);
+    }
+
+    public void testSortOrderMatchesHits() throws Exception
+    {
+        check(new TermQuery(new Term("TEXT", "all")), new Sort(new SortField("NAME", SortField.STRING, true)));
+    }
+
+    public void testNoMatches() throws Exception
+    {
+        CollectedHits hits = CollectedHits.collect(searcher, new TermQuery(new Term("TEXT", "none")), null, null);
+        assertEquals(0, hits.length());
+        try
+        {
+            hits.id(0);
+            fail();
+        }
+        catch (IndexOutOfBoundsException e)
+        {
+            // expected
+        }
+    }
+
+    @SuppressWarnings("deprecation")
+    private void check(Query query, Sort sort) throws Exception
+    {
+        Hits expected = (sort == null) ? searcher.search(query) : searcher.search(query, sort);
+        CollectedHits actual = CollectedHits.collect(searcher, query, null, sort);
+        assertTrue(expected.length() > 100);
+        assertEquals(expected.length(), actual.length());
+        for (int i = 0; i < expected.length(); i++)
+        {
+            assertEquals(expected.id(i), actual.id(i));
+            assertEquals(expected.score(i), actual.score(i), 0.0001f);
+        }
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2005-2010 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.repo.search.impl.lucene;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+
+import org.alfresco.repo.search.impl.lucene.index.FullTextSearchStatistics;
+import org.apache.lucene.document.Document;
+
+/**
+ * Hands the documents for the nodes of an FTS update to the writer in order. If there is a pool of workers the
+ * transformations are run ahead of the writer, at most twice the pool size ahead so that only a few transformed
+ * streams are open at once; otherwise, or if the pool rejects a node, each node is transformed by the writer when it
+ * gets to it.
+ */
+class FTSTransformationQueue
+{
+    /**
+     * Builds the documents, including transformed content, for one node
+     */
+    interface Transformation extends Callable<List<Document>>
+    {
+        /**
+         * Builds the documents on the calling thread
+         *
+         * @return the documents for the node or <tt>null</tt> if the node has gone
+         */
+        List<Document> transform();
+
+        /**
+         * The documents will not be written, whether or not they have been built
+         */
+        void abandon();
+    }
+
+    private final List<? extends Transformation> transformations;
+
+    private final ThreadPoolExecutor executor;
+
+    private final FullTextSearchStatistics statistics;
+
+    private final int readAhead;
+
+    private final List<Future<List<Document>>> futures;
+
+    private int consumed = 0;
+
+    /**
+     * @param transformations
+     *            the transformations in the order the documents are to be written
+     * @param executor
+     *            the workers to run the transformations on, or <tt>null</tt> to run them on the writer
+     * @param statistics
+     *            the statistics of the index being updated
+     */
+    FTSTransformationQueue(List<? extends Transformation> transformations, ThreadPoolExecutor executor, FullTextSearchStatistics statistics)
+    {
+        this.transformations = transformations;
+        this.executor = executor;
+        this.statistics = statistics;
+        this.readAhead = executor == null ? 0 : executor.getMaximumPoolSize() * 2;
+        this.futures = new ArrayList<Future<List<Document>>>(transformations.size());
+    }
+
+    /**
+     * @return <tt>true</tt> if there are documents left to write
+     */
+    boolean hasNext()
+    {
+        return consumed < transformations.size();
+    }
+
+    /**
+     * Waits for the documents of the next node
+     *
+     * @return the documents for the node or <tt>null</tt> if the node has gone
+     * @throws LuceneIndexException
+     *             if the transformation failed with a checked exception or the wait was interrupted
+     */
+    List<Document> next() throws LuceneIndexException
+    {
+        // keep the workers busy, but do not hold more open content than we need
+        while (futures.size() < transformations.size() && futures.size() <= consumed + readAhead)
+        {
+            Transformation next = transformations.get(futures.size());
+            Future<List<Document>> future = null;
+            if (readAhead > 0)
+            {
+                statistics.recordTransformQueued();
+                try
+                {
+                    future = executor.submit(next);
+                }
+                catch (RejectedExecutionException e)
+                {
+                    // the pool is shutting down or saturated - the writer transforms the node when it gets to it
+                    statistics.recordTransformAbandoned();
+                }
+            }
+            futures.add(future);
+        }
+        Future<List<Document>> future = futures.get(consumed);
+        List<Document> docs = future == null ? transformations.get(consumed).transform() : getTransformed(future);
+        consumed++;
+        return docs;
+    }
+
+    /**
+     * Drops anything transformed or queued that has not been handed to the writer, including a transformation that
+     * failed
+     */
+    void close()
+    {
+        for (int i = consumed; i < futures.size(); i++)
+        {
+            if (futures.get(i) != null)
+            {
+                futures.get(i).cancel(false);
+            }
+            transformations.get(i).abandon();
+        }
+    }
+
+    private List<Document> getTransformed(Future<List<Document>> future) throws LuceneIndexException
+    {
+        try
+        {
+            return future.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new LuceneIndexException("Interrupted waiting for fts transformation", e);
+        }
+        catch (ExecutionException e)
+        {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException)
+            {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error)
+            {
+                throw (Error) cause;
+            }
+            throw new LuceneIndexException("Failed fts transformation", cause);
+        }
+    }
+}
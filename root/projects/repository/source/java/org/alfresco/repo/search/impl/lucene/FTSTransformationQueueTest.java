@@ -0,0 +1,298 @@
+/*
+ * Copyright (C) 2005-2010 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.repo.search.impl.lucene;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.alfresco.repo.search.impl.lucene.index.FullTextSearchStatistics;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+
+/**
+ * Checks that the FTS update gets the documents of pooled transformations back in order, that it does not run too
+ * far ahead, and that a failed or interrupted transformation is dropped along with everything queued after it.
+ *
+ * @see FTSTransformationQueue
+ */
+public class FTSTransformationQueueTest extends TestCase
+{
+    private static final int POOL_SIZE = 2;
+
+    private ThreadPoolExecutor executor;
+
+    private FullTextSearchStatistics statistics;
+
+    private AtomicInteger started;
+
+    private CountDownLatch release;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        executor = new ThreadPoolExecutor(POOL_SIZE, POOL_SIZE, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+        statistics = new FullTextSearchStatistics();
+        started = new AtomicInteger();
+        release = new CountDownLatch(0);
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        release.countDown();
+        executor.shutdownNow();
+        executor.awaitTermination(10, TimeUnit.SECONDS);
+    }
+
+    public void testWithoutPool() throws Exception
+    {
+        List<TestTransformation> transformations = createTransformations(5);
+        FTSTransformationQueue queue = new FTSTransformationQueue(transformations, null, statistics);
+        for (int i = 0; i < transformations.size(); i++)
+        {
+            assertTrue(queue.hasNext());
+            assertEquals(Integer.toString(i), queue.next().get(0).get("ID"));
+            // Transformed by the writer, when it gets to it
+            assertEquals(Thread.currentThread(), transformations.get(i).thread);
+            assertEquals(i + 1, started.get());
+        }
+        assertFalse(queue.hasNext());
+        queue.close();
+        assertAbandoned(transformations, 5, 5);
+        assertEquals(new Long(0), statistics.toMap().get("TransformQueueDepth"));
+    }
+
+    public void testPooledInOrder() throws Exception
+    {
+        List<TestTransformation> transformations = createTransformations(20);
+        // The earlier nodes take the longest, so the workers finish out of order
+        for (int i = 0; i < transformations.size(); i++)
+        {
+            transformations.get(i).sleep = (i % 4 == 0) ? 50L : 0L;
+        }
+        FTSTransformationQueue queue = new FTSTransformationQueue(transformations, executor, statistics);
+        for (int i = 0; i < transformations.size(); i++)
+        {
+            assertEquals(Integer.toString(i), queue.next().get(0).get("ID"));
+            assertNotSame(Thread.currentThread(), transformations.get(i).thread);
+            // No more than twice the pool size ahead of the writer
+            assertTrue("Started " + started.get() + " after " + (i + 1), started.get() <= i + 1 + 2 * POOL_SIZE);
+        }
+        assertFalse(queue.hasNext());
+        queue.close();
+        assertAbandoned(transformations, 20, 20);
+        // Each was queued once; these transformations do not record being started
+        assertEquals(new Long(20), statistics.toMap().get("TransformQueueDepth"));
+    }
+
+    public void testPooledNodeGone() throws Exception
+    {
+        List<TestTransformation> transformations = createTransformations(3);
+        transformations.get(1).gone = true;
+        FTSTransformationQueue queue = new FTSTransformationQueue(transformations, executor, statistics);
+        assertNotNull(queue.next());
+        assertNull(queue.next());
+        assertNotNull(queue.next());
+        queue.close();
+    }
+
+    public void testPooledFailure() throws Exception
+    {
+        List<TestTransformation> transformations = createTransformations(10);
+        transformations.get(3).failure = new IllegalStateException("Transformation 3");
+        FTSTransformationQueue queue = new FTSTransformationQueue(transformations, executor, statistics);
+        for (int i = 0; i < 3; i++)
+        {
+            assertEquals(Integer.toString(i), queue.next().get(0).get("ID"));
+        }
+        try
+        {
+            queue.next();
+            fail("Failed transformation was not reported");
+        }
+        catch (IllegalStateException e)
+        {
+            assertSame(transformations.get(3).failure, e);
+        }
+        queue.close();
+        // The failed node and everything queued after it are dropped; nothing further is queued
+        assertAbandoned(transformations, 3, 3 + 1 + 2 * POOL_SIZE);
+    }
+
+    public void testPooledCheckedFailure() throws Exception
+    {
+        List<TestTransformation> transformations = createTransformations(2);
+        transformations.get(0).failure = new IOException("Transformation 0");
+        FTSTransformationQueue queue = new FTSTransformationQueue(transformations, executor, statistics);
+        try
+        {
+            queue.next();
+            fail("Failed transformation was not reported");
+        }
+        catch (LuceneIndexException e)
+        {
+            assertSame(transformations.get(0).failure, e.getCause());
+        }
+        queue.close();
+        assertAbandoned(transformations, 0, 2);
+    }
+
+    /**
+     * A writer that gives up waiting for a slow transformation drops it, and the transformations queued after it
+     */
+    public void testPooledWaitInterrupted() throws Exception
+    {
+        release = new CountDownLatch(1);
+        List<TestTransformation> transformations = createTransformations(3);
+        transformations.get(0).blocked = true;
+        FTSTransformationQueue queue = new FTSTransformationQueue(transformations, executor, statistics);
+        Thread.currentThread().interrupt();
+        try
+        {
+            queue.next();
+            fail("Interrupted wait was not reported");
+        }
+        catch (LuceneIndexException e)
+        {
+            assertTrue(e.getCause() instanceof InterruptedException);
+            // The writer is still told it was interrupted
+            assertTrue(Thread.currentThread().isInterrupted());
+        }
+        finally
+        {
+            Thread.interrupted();
+        }
+        queue.close();
+        assertAbandoned(transformations, 0, 3);
+    }
+
+    /**
+     * Nodes the pool will not take are transformed by the writer instead
+     */
+    public void testPoolRejects() throws Exception
+    {
+        executor.shutdown();
+        List<TestTransformation> transformations = createTransformations(5);
+        FTSTransformationQueue queue = new FTSTransformationQueue(transformations, executor, statistics);
+        for (int i = 0; i < transformations.size(); i++)
+        {
+            assertEquals(Integer.toString(i), queue.next().get(0).get("ID"));
+            assertEquals(Thread.currentThread(), transformations.get(i).thread);
+        }
+        assertFalse(queue.hasNext());
+        queue.close();
+        assertAbandoned(transformations, 5, 5);
+        assertEquals(new Long(0), statistics.toMap().get("TransformQueueDepth"));
+    }
+
+    private List<TestTransformation> createTransformations(int count)
+    {
+        List<TestTransformation> transformations = new ArrayList<TestTransformation>(count);
+        for (int i = 0; i < count; i++)
+        {
+            transformations.add(new TestTransformation(i));
+        }
+        return transformations;
+    }
+
+    /**
+     * Checks that only the transformations from the first to the last given were abandoned
+     */
+    private void assertAbandoned(List<TestTransformation> transformations, int first, int last)
+    {
+        for (int i = 0; i < transformations.size(); i++)
+        {
+            assertEquals("Transformation " + i, i >= first && i < last, transformations.get(i).abandoned);
+        }
+    }
+
+    private class TestTransformation implements FTSTransformationQueue.Transformation
+    {
+        private final int id;
+
+        private long sleep;
+
+        private boolean gone;
+
+        private boolean blocked;
+
+        private Exception failure;
+
+        private volatile Thread thread;
+
+        private volatile boolean abandoned;
+
+        TestTransformation(int id)
+        {
+            this.id = id;
+        }
+
+        public List<Document> call() throws Exception
+        {
+            if (failure != null)
+            {
+                started.incrementAndGet();
+                throw failure;
+            }
+            if (blocked)
+            {
+                release.await(10, TimeUnit.SECONDS);
+            }
+            return transform();
+        }
+
+        public List<Document> transform()
+        {
+            started.incrementAndGet();
+            thread = Thread.currentThread();
+            if (sleep > 0)
+            {
+                try
+                {
+                    Thread.sleep(sleep);
+                }
+                catch (InterruptedException e)
+                {
+                    throw new RuntimeException(e);
+                }
+            }
+            if (gone)
+            {
+                return null;
+            }
+            Document doc = new Document();
+            doc.add(new Field("ID", Integer.toString(id), Field.Store.YES, Field.Index.UN_TOKENIZED));
+            return Collections.singletonList(doc);
+        }
+
+        public void abandon()
+        {
+            abandoned = true;
+        }
+    }
+}
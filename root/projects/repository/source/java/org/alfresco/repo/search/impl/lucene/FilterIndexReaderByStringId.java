@@ -311,6 +311,18 @@ public class FilterIndexReaderByStringId extends FilterIndexReader
         return super.numDocs() - (int)deletedDocuments.cardinality();
     }
 
+    @Override
+    public boolean hasDeletions()
+    {
+        return super.hasDeletions() || (deletedDocuments.cardinality() > 0);
+    }
+
+    @Override
+    public boolean isDeleted(int n)
+    {
+        return deletedDocuments.get(n) || super.isDeleted(n);
+    }
+
     @Override
     public TermDocs termDocs() throws IOException
     {
@@ -22,6 +22,7 @@ import java.util.concurrent.ThreadPoolExecutor;
 
 import org.alfresco.repo.node.NodeBulkLoader;
 import org.alfresco.repo.search.MLAnalysisMode;
+import org.alfresco.repo.search.impl.lucene.index.FilterCacheStatistics;
 import org.springframework.context.ConfigurableApplicationContext;
 
 public interface LuceneConfig
@@ -219,6 +220,25 @@ public interface LuceneConfig
      */
     public int getMaxLinkAspectCacheSize();
 
+    /**
+     * How many type, aspect and path filters to cache for each index reader (-ve => unbounded, 0 => filters are not
+     * used)
+     * @return
+     */
+    public int getMaxFilterCacheSize();
+
+    /**
+     * Counters for the filters cached against index readers
+     * @return
+     */
+    public FilterCacheStatistics getFilterCacheStatistics();
+
+    /**
+     * Should index segments keep the node id of each document once it has been read (one array entry per document)
+     * @return
+     */
+    public boolean isIdColumnCacheEnabled();
+
     /**
      * If we are using the DateAnalyser then lucene sort is only to the date, as that is all that is in the index.
      * If this is true, a query that defines a sort on a datetime field will do a post sort in Java.
@@ -232,6 +252,14 @@ public interface LuceneConfig
      */
     public boolean getPostSortDateTime();
 
+    /**
+     * Should ACL ids (and owners) be indexed so that search results can be restricted to readable nodes inside the
+     * query?
+     * 
+     * @return
+     */
+    public boolean isAclFilteringEnabled();
+
     /**
      * Gets the application context through which events can be broadcast
      * @return
@@ -70,6 +70,7 @@ import org.apache.lucene.queryParser.QueryParser;
 import org.apache.lucene.queryParser.QueryParserTokenManager;
 import org.apache.lucene.search.BooleanClause;
 import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.ConstantScoreQuery;
 import org.apache.lucene.search.ConstantScoreRangeQuery;
 import org.apache.lucene.search.MatchAllDocsQuery;
 import org.apache.lucene.search.MultiPhraseQuery;
@@ -621,7 +622,7 @@ public class LuceneQueryParser extends QueryParser
                 reader.parse(queryText);
                 PathQuery pathQuery = handler.getQuery();
                 pathQuery.setRepeats(false);
-                return pathQuery;
+                return getCachedFilterQuery(field + ":" + queryText, pathQuery, false);
             }
             else if (field.equals("PATH_WITH_REPEATS"))
             {
@@ -633,7 +634,7 @@ public class LuceneQueryParser extends QueryParser
                 reader.parse(queryText);
                 PathQuery pathQuery = handler.getQuery();
                 pathQuery.setRepeats(true);
-                return pathQuery;
+                return getCachedFilterQuery(field + ":" + queryText, pathQuery, false);
             }
             else if (field.equals("TEXT"))
             {
@@ -792,7 +793,7 @@ public class LuceneQueryParser extends QueryParser
                         }
                     }
                 }
-                return booleanQuery;
+                return getCachedFilterQuery(booleanQuery, booleanQuery, true);
             }
             else if (field.equals("EXACTTYPE"))
             {
@@ -803,7 +804,7 @@ public class LuceneQueryParser extends QueryParser
                 }
                 QName targetQName = target.getName();
                 TermQuery termQuery = new TermQuery(new Term("TYPE", targetQName.toString()));
-                return termQuery;
+                return getCachedFilterQuery(termQuery, termQuery, true);
 
             }
             else if (field.equals("ASPECT"))
@@ -830,7 +831,7 @@ public class LuceneQueryParser extends QueryParser
                         }
                     }
                 }
-                return booleanQuery;
+                return getCachedFilterQuery(booleanQuery, booleanQuery, true);
             }
             else if (field.equals("EXACTASPECT"))
             {
@@ -844,7 +845,7 @@ public class LuceneQueryParser extends QueryParser
                 QName targetQName = target.getName();
                 TermQuery termQuery = new TermQuery(new Term("ASPECT", targetQName.toString()));
 
-                return termQuery;
+                return getCachedFilterQuery(termQuery, termQuery, true);
             }
             else if (field.startsWith("@"))
             {
@@ -997,6 +998,29 @@ public class LuceneQueryParser extends QueryParser
 
     }
 
+    /**
+     * Wrap a type, aspect or path clause so that its matches are cached against the index readers, if filter caching
+     * is enabled. The cached clause scores each match with its boost alone, rather than by term frequency.
+     * 
+     * @param key
+     *            identifies the clause
+     * @param query
+     *            the clause
+     * @param segmentLocal
+     *            true if matches can be cached per index segment
+     * @return the query to use
+     */
+    private Query getCachedFilterQuery(Object key, Query query, boolean segmentLocal)
+    {
+        if ((config == null) || (config.getMaxFilterCacheSize() == 0))
+        {
+            return query;
+        }
+        ConstantScoreQuery cached = new ConstantScoreQuery(new SegmentCachingFilter(key, query, segmentLocal));
+        cached.setBoost(query.getBoost());
+        return cached;
+    }
+
     private Query getFieldQueryImpl(String field, String queryText, AnalysisMode analysisMode, LuceneFunction luceneFunction) throws ParseException
     {
         // Use the analyzer to get all the tokens, and then build a TermQuery,
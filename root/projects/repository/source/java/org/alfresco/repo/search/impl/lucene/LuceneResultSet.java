@@ -23,6 +23,7 @@ import java.util.ArrayList;
 import java.util.BitSet;
 import java.util.List;
 
+import org.alfresco.repo.node.AsynchronousNodeBulkLoader;
 import org.alfresco.repo.node.NodeBulkLoader;
 import org.alfresco.repo.search.AbstractResultSet;
 import org.alfresco.repo.search.ResultSetRowIterator;
@@ -39,24 +40,36 @@ import org.alfresco.service.cmr.search.ResultSetMetaData;
 import org.alfresco.service.cmr.search.ResultSetRow;
 import org.alfresco.service.cmr.search.SearchParameters;
 import org.apache.lucene.document.Document;
+import org.apache.lucene.document.FieldSelector;
+import org.apache.lucene.document.FieldSelectorResult;
 import org.apache.lucene.index.IndexReader;
-import org.apache.lucene.search.Hits;
+import org.apache.lucene.index.IndexReaderAccessor;
+import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.Searcher;
 
 /**
- * Implementation of a ResultSet on top of Lucene Hits class.
+ * Implementation of a ResultSet on top of the collected matches for a Lucene query.
+ * <p>
+ * Node refs are read from the index segment that holds each match, using the segment id cache where there is one.
+ * Documents are only loaded if stored fields are asked for.
  * 
  * @author andyh
  */
 public class LuceneResultSet extends AbstractResultSet
 {
+    private static final FieldSelector ID_FIELD_SELECTOR = new IdFieldSelector();
+
     /**
      * The underlying hits
      */
-    Hits hits;
+    CollectedHits hits;
 
     private Searcher searcher;
 
+    private IndexReader[] segments;
+
+    private int[] starts;
+
     private NodeService nodeService;
 
     private TenantService tenantService;
@@ -67,6 +80,8 @@ public class LuceneResultSet extends AbstractResultSet
 
     private BitSet prefetch;
 
+    private BitSet prefetchAhead;
+
 
     /**
      * Wrap a lucene seach result with node support
@@ -74,7 +89,7 @@ public class LuceneResultSet extends AbstractResultSet
      * @param storeRef
      * @param hits
      */
-    public LuceneResultSet(Hits hits, Searcher searcher, NodeService nodeService, TenantService tenantService, SearchParameters searchParameters,
+    public LuceneResultSet(CollectedHits hits, Searcher searcher, NodeService nodeService, TenantService tenantService, SearchParameters searchParameters,
             LuceneConfig config)
     {
         super();
@@ -85,6 +100,19 @@ public class LuceneResultSet extends AbstractResultSet
         this.searchParameters = searchParameters;
         this.config = config;
         prefetch = new BitSet(hits.length());
+        prefetchAhead = new BitSet(hits.length());
+        if (searcher instanceof IndexSearcher)
+        {
+            List<IndexReader> segmentList = new ArrayList<IndexReader>();
+            List<Integer> startList = new ArrayList<Integer>();
+            IndexReaderAccessor.collectSegments(((IndexSearcher) searcher).getIndexReader(), 0, segmentList, startList);
+            segments = segmentList.toArray(new IndexReader[segmentList.size()]);
+            starts = new int[startList.size()];
+            for (int i = 0; i < starts.length; i++)
+            {
+                starts[i] = startList.get(i);
+            }
+        }
     }
 
     /*
@@ -106,24 +134,7 @@ public class LuceneResultSet extends AbstractResultSet
         try
         {
             prefetch(n);
-            // We have to get the document to resolve this
-            // It is possible the store ref is also stored in the index
-            if (searcher instanceof ClosingIndexSearcher)
-            {
-                ClosingIndexSearcher cis = (ClosingIndexSearcher) searcher;
-                IndexReader reader = cis.getReader();
-                if (reader instanceof CachingIndexReader)
-                {
-                    int id = hits.id(n);
-                    CachingIndexReader cir = (CachingIndexReader) reader;
-                    String sid = cir.getId(id);
-                    return tenantService.getBaseName(new NodeRef(sid));
-                }
-            }
-
-            Document doc = hits.doc(n);
-            String id = doc.get("ID");
-            return tenantService.getBaseName(new NodeRef(id));
+            return tenantService.getBaseName(new NodeRef(getId(hits.id(n))));
         }
         catch (IOException e)
         {
@@ -131,25 +142,62 @@ public class LuceneResultSet extends AbstractResultSet
         }
     }
 
-    public float getScore(int n) throws SearcherException
+    /**
+     * Get the node id for a document from the segment that holds it
+     */
+    private String getId(int doc) throws IOException
     {
-        try
+        if (segments == null)
         {
-            return hits.score(n);
+            return searcher.doc(doc, ID_FIELD_SELECTOR).get("ID");
         }
-        catch (IOException e)
+        int low = 0;
+        int high = starts.length - 1;
+        while (low < high)
+        {
+            int mid = (low + high + 1) >>> 1;
+            if (starts[mid] <= doc)
+            {
+                low = mid;
+            }
+            else
+            {
+                high = mid - 1;
+            }
+        }
+        IndexReader segment = segments[low];
+        int segmentDoc = doc - starts[low];
+        if (segment instanceof CachingIndexReader)
         {
-            throw new SearcherException("IO Error reading score from the result set", e);
+            return ((CachingIndexReader) segment).getId(segmentDoc);
         }
+        return segment.document(segmentDoc, ID_FIELD_SELECTOR).get("ID");
+    }
+
+    public float getScore(int n) throws SearcherException
+    {
+        return hits.score(n);
     }
 
     public Document getDocument(int n)
+    {
+        return getDocument(n, null);
+    }
+
+    /**
+     * Load the stored fields for a result
+     * 
+     * @param n
+     * @param fieldSelector
+     *            the fields to load, <code>null</code> for all
+     * @return the document
+     */
+    public Document getDocument(int n, FieldSelector fieldSelector)
     {
         try
         {
             prefetch(n);
-            Document doc = hits.doc(n);
-            return doc;
+            return searcher.doc(hits.id(n), fieldSelector);
         }
         catch (IOException e)
         {
@@ -189,8 +237,7 @@ public class LuceneResultSet extends AbstractResultSet
             }
             // We store the node and mark it as prefetched
             prefetch.set(next);
-            Document doc = hits.doc(next);
-            String nodeRefStr = doc.get("ID");
+            String nodeRefStr = getId(hits.id(next));
             NodeRef nodeRef = tenantService.getBaseName(new NodeRef(nodeRefStr));
             fetchList.add(nodeRef);
         }
@@ -199,6 +246,21 @@ public class LuceneResultSet extends AbstractResultSet
         {
             bulkLoader.cacheNodes(fetchList);
         }
+        // Start loading the following bulk set in the background
+        if (bulkLoader instanceof AsynchronousNodeBulkLoader)
+        {
+            List<NodeRef> aheadList = new ArrayList<NodeRef>(bulkFetchSize);
+            for (int next = n + bulkFetchSize; (next < n + 2 * bulkFetchSize) && (next < totalHits); next++)
+            {
+                if (prefetch.get(next) || prefetchAhead.get(next))
+                {
+                    continue;
+                }
+                prefetchAhead.set(next);
+                aheadList.add(tenantService.getBaseName(new NodeRef(getId(hits.id(next)))));
+            }
+            ((AsynchronousNodeBulkLoader) bulkLoader).prefetchNodes(aheadList);
+        }
     }
 
     public void close()
@@ -254,5 +316,17 @@ public class LuceneResultSet extends AbstractResultSet
     {
         return tenantService;
     }
-    
+
+    /**
+     * Loads the first ID field only
+     */
+    private static class IdFieldSelector implements FieldSelector
+    {
+        private static final long serialVersionUID = 1L;
+
+        public FieldSelectorResult accept(String fieldName)
+        {
+            return fieldName.equals("ID") ? FieldSelectorResult.LOAD_AND_BREAK : FieldSelectorResult.NO_LOAD;
+        }
+    }
 }
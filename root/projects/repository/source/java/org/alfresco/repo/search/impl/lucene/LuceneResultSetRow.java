@@ -29,6 +29,8 @@ import org.alfresco.service.cmr.repository.NodeRef;
 import org.alfresco.service.namespace.QName;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
+import org.apache.lucene.document.FieldSelector;
+import org.apache.lucene.document.MapFieldSelector;
 
 /**
  * A row in a result set. Created on the fly.
@@ -38,10 +40,20 @@ import org.apache.lucene.document.Field;
  */
 public class LuceneResultSetRow extends AbstractResultSetRow
 {
+    /**
+     * The stored fields needed to build the child association ref
+     */
+    private static final FieldSelector ASSOC_FIELD_SELECTOR = new MapFieldSelector(new String[] { "QNAME", "PRIMARYASSOCTYPEQNAME", "PRIMARYPARENT" });
+
     /**
      * The current document - cached so we do not get it for each value
      */
     private Document document;
+
+    /**
+     * The association fields for the current document, if the whole document has not been loaded
+     */
+    private Document assocDocument;
     
     private TenantService tenantService;
 
@@ -72,6 +84,19 @@ public class LuceneResultSetRow extends AbstractResultSetRow
         return document;
     }
 
+    private Document getAssocDocument()
+    {
+        if (document != null)
+        {
+            return document;
+        }
+        if (assocDocument == null)
+        {
+            assocDocument = ((LuceneResultSet) getResultSet()).getDocument(getIndex(), ASSOC_FIELD_SELECTOR);
+        }
+        return assocDocument;
+    }
+
     /*
      * ResultSetRow implementation
      */
@@ -84,7 +109,7 @@ public class LuceneResultSetRow extends AbstractResultSetRow
 
     public QName getQName()
     {
-        Field field = getDocument().getField("QNAME");
+        Field field = getAssocDocument().getField("QNAME");
         if (field != null)
         {
             String qname = field.stringValue();
@@ -106,7 +131,7 @@ public class LuceneResultSetRow extends AbstractResultSetRow
     public QName getPrimaryAssocTypeQName()
     {
         
-        Field field = getDocument().getField("PRIMARYASSOCTYPEQNAME");
+        Field field = getAssocDocument().getField("PRIMARYASSOCTYPEQNAME");
         if (field != null)
         {
             String qname = field.stringValue();
@@ -121,7 +146,7 @@ public class LuceneResultSetRow extends AbstractResultSetRow
     @Override
     public ChildAssociationRef getChildAssocRef()
     {
-        Field field = getDocument().getField("PRIMARYPARENT");
+        Field field = getAssocDocument().getField("PRIMARYPARENT");
         String primaryParent = null;
         if (field != null)
         {
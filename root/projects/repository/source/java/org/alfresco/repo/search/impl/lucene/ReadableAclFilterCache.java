@@ -0,0 +1,407 @@
+/*
+ * Copyright (C) 2005-2010 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.repo.search.impl.lucene;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.alfresco.model.ContentModel;
+import org.alfresco.repo.search.impl.lucene.index.ReferenceCounting;
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.repo.security.permissions.AccessControlEntry;
+import org.alfresco.repo.security.permissions.AccessControlList;
+import org.alfresco.repo.security.permissions.impl.AccessCacheIndex;
+import org.alfresco.repo.security.permissions.impl.AclDaoComponent;
+import org.alfresco.service.cmr.security.AccessStatus;
+import org.alfresco.service.cmr.security.AuthorityService;
+import org.alfresco.service.cmr.security.AuthorityType;
+import org.alfresco.service.cmr.security.PermissionContext;
+import org.alfresco.service.cmr.security.PermissionService;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexReaderAccessor;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermDocs;
+import org.apache.lucene.index.TermEnum;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.util.OpenBitSet;
+
+/**
+ * Builds Lucene filters that restrict a query to the documents the current user can read, using the ACLID and OWNER
+ * fields added by the indexer when ACL filtering is enabled.
+ * <p>
+ * For each user (and authority set) the readable ACL ids are remembered together with a bit set per index segment.
+ * Segments are the reference counted readers beneath the main index reader, so bit sets survive the addition of new
+ * deltas and are released with the segment reader when it is merged or replaced. Everything held for a user is dropped
+ * when the {@link AccessCacheIndex#getGeneration() ACL generation} moves on.
+ * <p>
+ * The filter is a pre-filter. Documents without an ACLID (indexed before filtering was enabled, or for which no ACL
+ * could be found) are always included and results are still checked by the after invocation provider, so an index that
+ * is behind the ACL state can only return too many documents to that check, not too few for ACL changes that are
+ * reindexed.
+ * <p>
+ * ACLs are evaluated without the type, aspects or dynamic authorities of any one node. An ACL that denies read in that
+ * context only excludes documents if none of its allowing entries is for one of the user's authorities or for a
+ * dynamic authority; otherwise the decision depends on the node and is left to the after invocation provider.
+ */
+public class ReadableAclFilterCache
+{
+    private static Log s_logger = LogFactory.getLog(ReadableAclFilterCache.class);
+
+    private PermissionService permissionService;
+
+    private AuthorityService authorityService;
+
+    private AccessCacheIndex accessCacheIndex;
+
+    private AclDaoComponent aclDaoComponent;
+
+    private int maxUsers = 100;
+
+    private final Map<Set<String>, UserEntry> users = new LinkedHashMap<Set<String>, UserEntry>(16, 0.75f, true)
+    {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Set<String>, UserEntry> eldest)
+        {
+            return size() > maxUsers;
+        }
+    };
+
+    private final AtomicLong segmentHits = new AtomicLong();
+
+    private final AtomicLong segmentMisses = new AtomicLong();
+
+    /**
+     * @param permissionService
+     *            the permission service used to evaluate ACLs
+     */
+    public void setPermissionService(PermissionService permissionService)
+    {
+        this.permissionService = permissionService;
+    }
+
+    /**
+     * @param authorityService
+     *            the authority service used to find the authorities for the current user
+     */
+    public void setAuthorityService(AuthorityService authorityService)
+    {
+        this.authorityService = authorityService;
+    }
+
+    /**
+     * @param accessCacheIndex
+     *            the permissions access cache, used to detect ACL changes
+     */
+    public void setAccessCacheIndex(AccessCacheIndex accessCacheIndex)
+    {
+        this.accessCacheIndex = accessCacheIndex;
+    }
+
+    /**
+     * @param aclDaoComponent
+     *            the ACL DAO, used to find the authorities an ACL grants access to
+     */
+    public void setAclDaoComponent(AclDaoComponent aclDaoComponent)
+    {
+        this.aclDaoComponent = aclDaoComponent;
+    }
+
+    /**
+     * @param maxUsers
+     *            the number of users (authority sets) for which readable ACLs are cached
+     */
+    public void setMaxUsers(int maxUsers)
+    {
+        this.maxUsers = maxUsers;
+    }
+
+    /**
+     * Get a filter for the current user.
+     *
+     * @return the filter, or <code>null</code> if no filtering should be done (no user, the system user or an
+     *         administrator)
+     */
+    public Filter getFilter()
+    {
+        String userName = AuthenticationUtil.getRunAsUser();
+        if ((userName == null) || AuthenticationUtil.isRunAsUserTheSystemUser())
+        {
+            return null;
+        }
+        Set<String> authorities = authorityService.getAuthoritiesForUser(userName);
+        if (authorities.contains(PermissionService.ADMINISTRATOR_AUTHORITY))
+        {
+            return null;
+        }
+        return getFilter(userName, authorities);
+    }
+
+    Filter getFilter(String userName, Set<String> authorities)
+    {
+        Set<String> key = new TreeSet<String>(authorities);
+        key.add(userName);
+        long generation = (accessCacheIndex == null) ? 0L : accessCacheIndex.getGeneration();
+        UserEntry entry;
+        synchronized (users)
+        {
+            entry = users.get(key);
+            if ((entry == null) || (entry.generation != generation))
+            {
+                entry = new UserEntry(generation, key);
+                users.put(key, entry);
+            }
+        }
+        return new ReadableAclFilter(userName, entry);
+    }
+
+    /**
+     * @return the number of segment bit sets found in the cache
+     */
+    public long getSegmentHits()
+    {
+        return segmentHits.get();
+    }
+
+    /**
+     * @return the number of segment bit sets that had to be built
+     */
+    public long getSegmentMisses()
+    {
+        return segmentMisses.get();
+    }
+
+    /**
+     * @return the number of users for which readable ACLs are currently cached
+     */
+    public int getCachedUsers()
+    {
+        synchronized (users)
+        {
+            return users.size();
+        }
+    }
+
+    /**
+     * Evaluate read permission against an ACL for the current user
+     *
+     * @param aclId
+     * @return true if the ACL grants read
+     */
+    protected boolean isReadable(Long aclId)
+    {
+        PermissionContext context = new PermissionContext(ContentModel.TYPE_CMOBJECT);
+        return permissionService.hasPermission(aclId, context, PermissionService.READ) == AccessStatus.ALLOWED;
+    }
+
+    /**
+     * Check if an ACL might grant read on some node even though it does not grant it in the context used by
+     * {@link #isReadable(Long)}, because it allows something to the user's authorities or to a dynamic authority.
+     *
+     * @param aclId
+     * @param authorities
+     *            the user name and the authorities of the user
+     * @return true if the ACL must be checked against each node
+     */
+    protected boolean isContextDependent(Long aclId, Set<String> authorities)
+    {
+        if (aclDaoComponent == null)
+        {
+            return true;
+        }
+        AccessControlList acl = aclDaoComponent.getAccessControlList(aclId);
+        if (acl == null)
+        {
+            return true;
+        }
+        for (AccessControlEntry ace : acl.getEntries())
+        {
+            if (ace.getAccessStatus() != AccessStatus.ALLOWED)
+            {
+                continue;
+            }
+            AuthorityType authorityType = AuthorityType.getAuthorityType(ace.getAuthority());
+            if ((authorityType == AuthorityType.OWNER) || (authorityType == AuthorityType.ROLE) || authorities.contains(ace.getAuthority()))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Readable ACLs and segment bit sets for one user at one ACL generation
+     */
+    private static class UserEntry
+    {
+        final long generation;
+
+        final Set<String> authorities;
+
+        final ConcurrentHashMap<Long, Boolean> readableAcls = new ConcurrentHashMap<Long, Boolean>();
+
+        final Map<IndexReader, OpenBitSet> segments = new WeakHashMap<IndexReader, OpenBitSet>();
+
+        UserEntry(long generation, Set<String> authorities)
+        {
+            this.generation = generation;
+            this.authorities = authorities;
+        }
+    }
+
+    private class ReadableAclFilter extends Filter
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final String userName;
+
+        private final UserEntry entry;
+
+        ReadableAclFilter(String userName, UserEntry entry)
+        {
+            this.userName = userName;
+            this.entry = entry;
+        }
+
+        @Override
+        public DocIdSet getDocIdSet(IndexReader reader) throws IOException
+        {
+            List<IndexReader> segments = new ArrayList<IndexReader>();
+            List<Integer> starts = new ArrayList<Integer>();
+            IndexReaderAccessor.collectSegments(reader, 0, segments, starts);
+
+            OpenBitSet result = new OpenBitSet(reader.maxDoc());
+            for (int i = 0; i < segments.size(); i++)
+            {
+                OpenBitSet segmentBits = getSegmentBits(segments.get(i));
+                int start = starts.get(i);
+                for (int doc = segmentBits.nextSetBit(0); doc >= 0; doc = segmentBits.nextSetBit(doc + 1))
+                {
+                    result.fastSet(start + doc);
+                }
+            }
+            return result;
+        }
+
+        private OpenBitSet getSegmentBits(IndexReader segment) throws IOException
+        {
+            // Only committed index segments are shared and immutable; transactional deltas are built every time
+            if (!(segment instanceof ReferenceCounting))
+            {
+                return buildSegmentBits(segment);
+            }
+            OpenBitSet bits;
+            synchronized (entry.segments)
+            {
+                bits = entry.segments.get(segment);
+            }
+            if (bits != null)
+            {
+                segmentHits.incrementAndGet();
+                return bits;
+            }
+            segmentMisses.incrementAndGet();
+            bits = buildSegmentBits(segment);
+            synchronized (entry.segments)
+            {
+                entry.segments.put(segment, bits);
+            }
+            return bits;
+        }
+
+        private OpenBitSet buildSegmentBits(IndexReader segment) throws IOException
+        {
+            int maxDoc = segment.maxDoc();
+            OpenBitSet readable = new OpenBitSet(maxDoc);
+            OpenBitSet withAcl = new OpenBitSet(maxDoc);
+            int acls = 0;
+
+            TermEnum terms = segment.terms(new Term("ACLID", ""));
+            TermDocs termDocs = segment.termDocs();
+            try
+            {
+                do
+                {
+                    Term term = terms.term();
+                    if ((term == null) || !term.field().equals("ACLID"))
+                    {
+                        break;
+                    }
+                    acls++;
+                    boolean isReadable = isAclReadable(Long.valueOf(term.text()));
+                    termDocs.seek(terms);
+                    while (termDocs.next())
+                    {
+                        withAcl.fastSet(termDocs.doc());
+                        if (isReadable)
+                        {
+                            readable.fastSet(termDocs.doc());
+                        }
+                    }
+                }
+                while (terms.next());
+
+                termDocs.seek(new Term("OWNER", userName));
+                while (termDocs.next())
+                {
+                    readable.fastSet(termDocs.doc());
+                }
+            }
+            finally
+            {
+                termDocs.close();
+                terms.close();
+            }
+
+            // Documents without an ACL are left for the after invocation check
+            withAcl.flip(0, maxDoc);
+            readable.union(withAcl);
+
+            if (s_logger.isDebugEnabled())
+            {
+                s_logger.debug("Built readable documents for " + userName + ": " + readable.cardinality() + " of " + maxDoc + " using " + acls + " ACLs");
+            }
+            return readable;
+        }
+
+        private boolean isAclReadable(Long aclId)
+        {
+            Boolean isReadable = entry.readableAcls.get(aclId);
+            if (isReadable == null)
+            {
+                // An ACL that may be readable for some nodes keeps its documents for the per node check
+                isReadable = Boolean.valueOf(isReadable(aclId) || isContextDependent(aclId, entry.authorities));
+                entry.readableAcls.put(aclId, isReadable);
+            }
+            return isReadable.booleanValue();
+        }
+    }
+}
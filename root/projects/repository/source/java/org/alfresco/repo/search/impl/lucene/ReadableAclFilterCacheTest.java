@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2005-2010 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.repo.search.impl.lucene;
+
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.alfresco.model.ContentModel;
+import org.alfresco.repo.security.permissions.AccessControlEntry;
+import org.alfresco.repo.security.permissions.AccessControlList;
+import org.alfresco.repo.security.permissions.SimpleAccessControlEntry;
+import org.alfresco.repo.security.permissions.SimpleAccessControlList;
+import org.alfresco.repo.security.permissions.impl.AclDaoComponent;
+import org.alfresco.repo.security.permissions.impl.SimplePermissionReference;
+import org.alfresco.service.cmr.security.AccessStatus;
+import org.alfresco.service.cmr.security.PermissionService;
+import org.apache.lucene.analysis.WhitespaceAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.FilterIndexReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexReaderAccessor;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.MultiReader;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.OpenBitSet;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+/**
+ * @see org.alfresco.repo.search.impl.lucene.ReadableAclFilterCache
+ */
+public class ReadableAclFilterCacheTest extends TestCase
+{
+    private List<Long> evaluated = new ArrayList<Long>();
+
+    private Map<Long, AccessControlList> acls = new HashMap<Long, AccessControlList>();
+
+    private ReadableAclFilterCache cache = new ReadableAclFilterCache()
+    {
+        @Override
+        protected boolean isReadable(Long aclId)
+        {
+            evaluated.add(aclId);
+            return aclId.longValue() == 1L;
+        }
+    };
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        AclDaoComponent aclDaoComponent = mock(AclDaoComponent.class);
+        when(aclDaoComponent.getAccessControlList(anyLong())).thenAnswer(new Answer<AccessControlList>()
+        {
+            public AccessControlList answer(InvocationOnMock invocation) throws Throwable
+            {
+                AccessControlList acl = acls.get(invocation.getArguments()[0]);
+                return (acl == null) ? createAcl() : acl;
+            }
+        });
+        cache.setAclDaoComponent(aclDaoComponent);
+    }
+
+    public void testFilterAcrossSegments() throws Exception
+    {
+        // segment one: readable, unreadable, no ACL
+        IndexReader first = createReader(new String[][] { { "1", "bob" }, { "2", "bob" }, { null, null } });
+        // segment two: unreadable but owned, unreadable, readable
+        IndexReader second = createReader(new String[][] { { "2", "andy" }, { "3", "bob" }, { "1", null } });
+        IndexReader reader = new FilterIndexReader(new MultiReader(new IndexReader[] { first, second }));
+
+        OpenBitSet bits = (OpenBitSet) cache.getFilter("andy", Collections.<String> emptySet()).getDocIdSet(reader);
+
+        assertTrue(bits.get(0));
+        assertFalse(bits.get(1));
+        assertTrue(bits.get(2));
+        assertTrue(bits.get(3));
+        assertFalse(bits.get(4));
+        assertTrue(bits.get(5));
+        assertEquals(4, bits.cardinality());
+        // Each ACL is evaluated once per user
+        assertEquals(3, evaluated.size());
+    }
+
+    public void testContextDependentAclsAreKept() throws Exception
+    {
+        // Denied in the evaluation context, but the owner or a lock owner may read
+        acls.put(2L, createAcl(AccessStatus.ALLOWED, PermissionService.OWNER_AUTHORITY));
+        acls.put(3L, createAcl(AccessStatus.ALLOWED, PermissionService.LOCK_OWNER_AUTHORITY));
+        // Denied, but grants something to a group of the user that may be enough on other types of node
+        acls.put(4L, createAcl(AccessStatus.ALLOWED, "GROUP_sales"));
+        // Nothing for this user, or only denials
+        acls.put(5L, createAcl(AccessStatus.ALLOWED, "GROUP_other", AccessStatus.DENIED, "GROUP_sales"));
+        IndexReader reader = createReader(new String[][] { { "1", null }, { "2", null }, { "3", null }, { "4", null }, { "5", null }, { "6", null } });
+
+        OpenBitSet bits = (OpenBitSet) cache.getFilter("andy", Collections.singleton("GROUP_sales")).getDocIdSet(reader);
+
+        assertTrue(bits.get(0));
+        assertTrue(bits.get(1));
+        assertTrue(bits.get(2));
+        assertTrue(bits.get(3));
+        assertFalse(bits.get(4));
+        assertFalse(bits.get(5));
+    }
+
+    public void testCollectSegments() throws Exception
+    {
+        IndexReader first = createReader(new String[][] { { "1", null }, { "1", null } });
+        IndexReader second = createReader(new String[][] { { "1", null } });
+        IndexReader third = createReader(new String[][] { { "1", null } });
+        IndexReader reader = new FilterIndexReader(new MultiReader(new IndexReader[] { new FilterIndexReader(new MultiReader(new IndexReader[] { first, second })),
+                third }));
+
+        List<IndexReader> segments = new ArrayList<IndexReader>();
+        List<Integer> starts = new ArrayList<Integer>();
+        IndexReaderAccessor.collectSegments(reader, 0, segments, starts);
+
+        assertEquals(3, segments.size());
+        assertSame(first, segments.get(0));
+        assertSame(second, segments.get(1));
+        assertSame(third, segments.get(2));
+        assertEquals(Integer.valueOf(0), starts.get(0));
+        assertEquals(Integer.valueOf(2), starts.get(1));
+        assertEquals(Integer.valueOf(3), starts.get(2));
+    }
+
+    private AccessControlList createAcl(Object... statusesAndAuthorities)
+    {
+        List<AccessControlEntry> entries = new ArrayList<AccessControlEntry>();
+        for (int i = 0; i < statusesAndAuthorities.length; i += 2)
+        {
+            SimpleAccessControlEntry entry = new SimpleAccessControlEntry();
+            entry.setAccessStatus((AccessStatus) statusesAndAuthorities[i]);
+            entry.setAuthority((String) statusesAndAuthorities[i + 1]);
+            entry.setPermission(SimplePermissionReference.getPermissionReference(ContentModel.TYPE_BASE, PermissionService.READ));
+            entries.add(entry);
+        }
+        SimpleAccessControlList acl = new SimpleAccessControlList();
+        acl.setEntries(entries);
+        return acl;
+    }
+
+    private IndexReader createReader(String[][] docs) throws IOException
+    {
+        RAMDirectory directory = new RAMDirectory();
+        IndexWriter writer = new IndexWriter(directory, new WhitespaceAnalyzer(), true, IndexWriter.MaxFieldLength.UNLIMITED);
+        for (String[] doc : docs)
+        {
+            Document document = new Document();
+            document.add(new Field("ISNODE", "T", Field.Store.NO, Field.Index.NO_NORMS, Field.TermVector.NO));
+            if (doc[0] != null)
+            {
+                document.add(new Field("ACLID", doc[0], Field.Store.NO, Field.Index.NO_NORMS, Field.TermVector.NO));
+            }
+            if (doc[1] != null)
+            {
+                document.add(new Field("OWNER", doc[1], Field.Store.NO, Field.Index.NO_NORMS, Field.TermVector.NO));
+            }
+            writer.addDocument(document);
+        }
+        writer.close();
+        return IndexReader.open(directory);
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2005-2010 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.repo.search.impl.lucene;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.alfresco.repo.search.impl.lucene.index.CachingIndexReader;
+import org.alfresco.repo.search.impl.lucene.index.ReferenceCountingReadOnlyIndexReaderFactory;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexReaderAccessor;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.util.OpenBitSet;
+
+/**
+ * A filter for a query clause (type, aspect or path) whose matches are cached against the index readers that make up
+ * the searched reader and reused by later searches.
+ * <p>
+ * Clauses that only depend on the document itself (type and aspect) are cached against each index segment, so they
+ * survive new deltas and are dropped when the segment is merged or deleted. Clauses that depend on other documents
+ * (path) are cached against the main index reader as a whole and are dropped whenever the index changes.
+ * Transactional readers are never cached against. Deleted documents, including those deleted by later deltas or by
+ * the current transaction through a {@link FilterIndexReaderByStringId}, are removed when the segment results are
+ * combined; the cached segment results include them.
+ * <p>
+ * Used through a {@link org.apache.lucene.search.ConstantScoreQuery}, so the clause no longer contributes a term
+ * frequency based score, only its boost.
+ */
+public class SegmentCachingFilter extends Filter
+{
+    private static final long serialVersionUID = 1L;
+
+    private final Object key;
+
+    private final Query query;
+
+    private final boolean segmentLocal;
+
+    /**
+     * @param key
+     *            identifies the clause in reader caches
+     * @param query
+     *            the query for the clause
+     * @param segmentLocal
+     *            true if a document match can be determined from the segment holding the document alone
+     */
+    public SegmentCachingFilter(Object key, Query query, boolean segmentLocal)
+    {
+        this.key = key;
+        this.query = query;
+        this.segmentLocal = segmentLocal;
+    }
+
+    @Override
+    public DocIdSet getDocIdSet(IndexReader reader) throws IOException
+    {
+        List<IndexReader> segments = new ArrayList<IndexReader>();
+        List<Integer> starts = new ArrayList<Integer>();
+        if (segmentLocal)
+        {
+            IndexReaderAccessor.collectSegments(reader, 0, segments, starts);
+        }
+        else
+        {
+            segments.add(reader);
+            starts.add(0);
+        }
+
+        OpenBitSet result = new OpenBitSet(reader.maxDoc());
+        for (int i = 0; i < segments.size(); i++)
+        {
+            IndexReader segment = segments.get(i);
+            OpenBitSet bits;
+            if (segment instanceof CachingIndexReader)
+            {
+                bits = ((CachingIndexReader) segment).getFilterBits(key, query);
+            }
+            else
+            {
+                bits = ReferenceCountingReadOnlyIndexReaderFactory.createFilterBits(segment, query);
+            }
+            int start = starts.get(i);
+            for (int doc = bits.nextSetBit(0); doc >= 0; doc = bits.nextSetBit(doc + 1))
+            {
+                if (!reader.isDeleted(start + doc))
+                {
+                    result.fastSet(start + doc);
+                }
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+        if (this == o)
+        {
+            return true;
+        }
+        if (!(o instanceof SegmentCachingFilter))
+        {
+            return false;
+        }
+        SegmentCachingFilter other = (SegmentCachingFilter) o;
+        return key.equals(other.key) && (segmentLocal == other.segmentLocal);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return key.hashCode() * 37 + (segmentLocal ? 1 : 0);
+    }
+
+    @Override
+    public String toString()
+    {
+        return "SegmentCachingFilter(" + query + ")";
+    }
+}
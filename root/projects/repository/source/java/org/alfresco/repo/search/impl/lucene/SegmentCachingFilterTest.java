@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2005-2010 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.repo.search.impl.lucene;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import org.alfresco.repo.search.impl.lucene.index.FilterCacheStatistics;
+import org.alfresco.repo.search.impl.lucene.index.ReferenceCountingReadOnlyIndexReaderFactory;
+import org.apache.lucene.analysis.WhitespaceAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.MultiReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.ConstantScoreQuery;
+import org.apache.lucene.search.Hits;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.OpenBitSet;
+
+/**
+ * @see org.alfresco.repo.search.impl.lucene.SegmentCachingFilter
+ */
+public class SegmentCachingFilterTest extends TestCase
+{
+    private ADMLuceneIndexerAndSearcherFactory config;
+
+    private FilterCacheStatistics statistics;
+
+    public void setUp() throws Exception
+    {
+        config = new ADMLuceneIndexerAndSearcherFactory();
+        config.setMaxFilterCacheSize(10);
+        statistics = config.getFilterCacheStatistics();
+    }
+
+    public void testSegmentsAreCachedAndReused() throws Exception
+    {
+        IndexReader first = ReferenceCountingReadOnlyIndexReaderFactory.createReader("first", createReader(new String[] { "cm:content", "cm:folder" }), true, config);
+        IndexReader second = ReferenceCountingReadOnlyIndexReaderFactory.createReader("second", createReader(new String[] { "cm:folder", "cm:content",
+                "cm:content" }), true, config);
+        IndexReader reader = new MultiReader(new IndexReader[] { first, second });
+
+        TermQuery query = new TermQuery(new Term("TYPE", "cm:content"));
+        OpenBitSet bits = (OpenBitSet) new SegmentCachingFilter(query, query, true).getDocIdSet(reader);
+        assertEquals(3, bits.cardinality());
+        assertTrue(bits.get(0));
+        assertTrue(bits.get(3));
+        assertTrue(bits.get(4));
+        assertEquals(0, statistics.getHits());
+        assertEquals(2, statistics.getMisses());
+        assertEquals(2, statistics.getEntries());
+        assertTrue(statistics.getMemoryUsed() > 0);
+
+        // An equal clause finds both segments cached, even beneath a different composite reader
+        IndexReader third = createReader(new String[] { "cm:content" });
+        reader = new MultiReader(new IndexReader[] { first, second, third });
+        TermQuery same = new TermQuery(new Term("TYPE", "cm:content"));
+        bits = (OpenBitSet) new SegmentCachingFilter(same, same, true).getDocIdSet(reader);
+        assertEquals(4, bits.cardinality());
+        assertTrue(bits.get(5));
+        assertEquals(2, statistics.getHits());
+        assertEquals(2, statistics.getMisses());
+        assertEquals(0.5d, statistics.getHitRate(), 0.0001d);
+    }
+
+    public void testCachedFilterQueryMatchesClause() throws Exception
+    {
+        IndexReader first = ReferenceCountingReadOnlyIndexReaderFactory.createReader("first", createReader(new String[] { "cm:content", "cm:folder" }), true, config);
+        IndexReader second = createReader(new String[] { "cm:folder", "cm:content" });
+        IndexSearcher searcher = new IndexSearcher(new MultiReader(new IndexReader[] { first, second }));
+
+        TermQuery query = new TermQuery(new Term("TYPE", "cm:folder"));
+        Hits expected = searcher.search(query);
+        Hits actual = searcher.search(new ConstantScoreQuery(new SegmentCachingFilter(query, query, true)));
+        assertEquals(expected.length(), actual.length());
+        assertEquals(2, actual.length());
+    }
+
+    /**
+     * Nodes deleted or updated by a later delta or by the current transaction are masked from the cached segment
+     * results by the filtering readers above the segments, as they are from the clause itself
+     */
+    public void testDeletionsAboveCachedSegments() throws Exception
+    {
+        IndexReader main = ReferenceCountingReadOnlyIndexReaderFactory.createReader("main", createReader(new String[] { "n1", "n2", "n3", "n4" },
+                new String[] { "cm:content", "cm:content", "cm:folder", "cm:folder" }), true, config);
+        TermQuery content = new TermQuery(new Term("TYPE", "cm:content"));
+        TermQuery folder = new TermQuery(new Term("TYPE", "cm:folder"));
+        // Cache the segment results before any deletions
+        assertEquals(2, ((OpenBitSet) new SegmentCachingFilter(content, content, true).getDocIdSet(main)).cardinality());
+        assertEquals(2, ((OpenBitSet) new SegmentCachingFilter(folder, folder, true).getDocIdSet(main)).cardinality());
+
+        // A committed delta deletes n1 and updates n2 to a folder
+        IndexReader delta = createReader(new String[] { "n2" }, new String[] { "cm:folder" });
+        IndexReader committed = new MultiReader(new IndexReader[] {
+                new FilterIndexReaderByStringId("delta", main, new HashSet<String>(Arrays.asList("n1", "n2")), false), delta });
+        // The current transaction deletes n4 and updates n3 to content
+        IndexReader transaction = createReader(new String[] { "n3" }, new String[] { "cm:content" });
+        Set<String> transactionDeletions = new HashSet<String>(Arrays.asList("n3", "n4"));
+        IndexReader reader = new MultiReader(new IndexReader[] {
+                new FilterIndexReaderByStringId("main+id", committed, transactionDeletions, false), transaction });
+
+        assertEquals(Collections.singleton("n3"), search(reader, content));
+        assertEquals(Collections.singleton("n2"), search(reader, folder));
+        assertEquals(search(reader, content), search(reader, new ConstantScoreQuery(new SegmentCachingFilter(content, content, true))));
+        assertEquals(search(reader, folder), search(reader, new ConstantScoreQuery(new SegmentCachingFilter(folder, folder, true))));
+        // Both main index clauses came from the cache
+        assertEquals(2, statistics.getMisses());
+        assertEquals(2, statistics.getHits());
+    }
+
+    private Set<String> search(IndexReader reader, Query query) throws IOException
+    {
+        Hits hits = new IndexSearcher(reader).search(query);
+        Set<String> ids = new HashSet<String>();
+        for (int i = 0; i < hits.length(); i++)
+        {
+            ids.add(hits.doc(i).get("ID"));
+        }
+        assertEquals(hits.length(), ids.size());
+        return ids;
+    }
+
+    private IndexReader createReader(String[] types) throws IOException
+    {
+        return createReader(null, types);
+    }
+
+    private IndexReader createReader(String[] ids, String[] types) throws IOException
+    {
+        RAMDirectory directory = new RAMDirectory();
+        IndexWriter writer = new IndexWriter(directory, new WhitespaceAnalyzer(), true, IndexWriter.MaxFieldLength.UNLIMITED);
+        for (int i = 0; i < types.length; i++)
+        {
+            Document document = new Document();
+            if (ids != null)
+            {
+                document.add(new Field("ID", ids[i], Field.Store.YES, Field.Index.NO_NORMS, Field.TermVector.NO));
+            }
+            document.add(new Field("TYPE", types[i], Field.Store.YES, Field.Index.NO_NORMS, Field.TermVector.NO));
+            writer.addDocument(document);
+        }
+        writer.close();
+        return IndexReader.open(directory);
+    }
+}
@@ -21,6 +21,8 @@ package org.alfresco.repo.search.impl.lucene.index;
 import java.io.IOException;
 
 import org.apache.lucene.index.TermDocs;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.util.OpenBitSet;
 
 /**
  * 
@@ -47,4 +49,15 @@ public interface CachingIndexReader
     
     public TermDocs getNodeDocs() throws IOException;
     
+    /**
+     * Get the documents in this reader matched by a query, cached against the key while the reader is in use.
+     * Deleted documents may be included.
+     * 
+     * @param key the key identifying the query
+     * @param query the query to evaluate against this reader
+     * @return the matching documents
+     * @throws IOException
+     */
+    public OpenBitSet getFilterBits(Object key, Query query) throws IOException;
+    
 }
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2005-2010 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.repo.search.impl.lucene.index;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters for the filters (type, aspect and path clauses) cached against index readers.
+ */
+public class FilterCacheStatistics
+{
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong evictions = new AtomicLong();
+
+    private final AtomicLong entries = new AtomicLong();
+
+    private final AtomicLong memoryUsed = new AtomicLong();
+
+    void recordHit()
+    {
+        hits.incrementAndGet();
+    }
+
+    void recordMiss()
+    {
+        misses.incrementAndGet();
+    }
+
+    void recordAdded(long bytes)
+    {
+        entries.incrementAndGet();
+        memoryUsed.addAndGet(bytes);
+    }
+
+    void recordRemoved(long bytes, boolean evicted)
+    {
+        entries.decrementAndGet();
+        memoryUsed.addAndGet(-bytes);
+        if (evicted)
+        {
+            evictions.incrementAndGet();
+        }
+    }
+
+    /**
+     * @return the number of filters found in a reader cache
+     */
+    public long getHits()
+    {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of filters that had to be built
+     */
+    public long getMisses()
+    {
+        return misses.get();
+    }
+
+    /**
+     * @return hits as a fraction of all lookups
+     */
+    public double getHitRate()
+    {
+        long h = hits.get();
+        long total = h + misses.get();
+        return (total == 0) ? 0.0d : ((double) h) / total;
+    }
+
+    /**
+     * @return the number of filters removed to keep a reader cache within its size limit
+     */
+    public long getEvictions()
+    {
+        return evictions.get();
+    }
+
+    /**
+     * @return the number of filters currently cached
+     */
+    public long getEntries()
+    {
+        return entries.get();
+    }
+
+    /**
+     * @return the approximate number of bytes used by cached filters
+     */
+    public long getMemoryUsed()
+    {
+        return memoryUsed.get();
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2005-2010 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.repo.search.impl.lucene.index;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters for the stages of background full text search indexing of an index: the dirty documents found by the
+ * reader, the nodes waiting for and passing through text transformation and the nodes waiting to be written to the
+ * delta.
+ */
+public class FullTextSearchStatistics
+{
+    private final AtomicLong pendingDocuments = new AtomicLong();
+
+    private final AtomicLong transformQueueDepth = new AtomicLong();
+
+    private final AtomicLong writeQueueDepth = new AtomicLong();
+
+    private final AtomicLong nodesTransformed = new AtomicLong();
+
+    private final AtomicLong transformTime = new AtomicLong();
+
+    private final AtomicLong documentsWritten = new AtomicLong();
+
+    private final AtomicLong writeTime = new AtomicLong();
+
+    /**
+     * @param count the number of documents last found to need full text indexing
+     */
+    public void recordPendingDocuments(long count)
+    {
+        pendingDocuments.set(count);
+    }
+
+    /**
+     * A node has been handed to the transformation workers
+     */
+    public void recordTransformQueued()
+    {
+        transformQueueDepth.incrementAndGet();
+    }
+
+    /**
+     * A worker has taken a queued node
+     */
+    public void recordTransformStarted()
+    {
+        transformQueueDepth.decrementAndGet();
+    }
+
+    /**
+     * A queued node was dropped before a worker took it
+     */
+    public void recordTransformAbandoned()
+    {
+        transformQueueDepth.decrementAndGet();
+    }
+
+    /**
+     * The documents for a node are ready for the writer
+     *
+     * @param elapsed the time taken in milliseconds
+     */
+    public void recordTransformCompleted(long elapsed)
+    {
+        nodesTransformed.incrementAndGet();
+        transformTime.addAndGet(elapsed);
+        writeQueueDepth.incrementAndGet();
+    }
+
+    /**
+     * Documents ready for the writer were dropped
+     */
+    public void recordWriteAbandoned()
+    {
+        writeQueueDepth.decrementAndGet();
+    }
+
+    /**
+     * The writer has added the documents for a node to the delta
+     *
+     * @param documents the number of documents written
+     * @param elapsed the time taken in milliseconds
+     */
+    public void recordWritten(int documents, long elapsed)
+    {
+        writeQueueDepth.decrementAndGet();
+        documentsWritten.addAndGet(documents);
+        writeTime.addAndGet(elapsed);
+    }
+
+    /**
+     * @return the current counter values by name
+     */
+    public Map<String, Long> toMap()
+    {
+        Map<String, Long> map = new LinkedHashMap<String, Long>(11);
+        map.put("PendingDocuments", pendingDocuments.get());
+        map.put("TransformQueueDepth", transformQueueDepth.get());
+        map.put("WriteQueueDepth", writeQueueDepth.get());
+        map.put("NodesTransformed", nodesTransformed.get());
+        map.put("TransformTimeMs", transformTime.get());
+        map.put("DocumentsWritten", documentsWritten.get());
+        map.put("WriteTimeMs", writeTime.get());
+        return map;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "FullTextSearchStatistics" + toMap();
+    }
+}
@@ -350,6 +350,8 @@ public class IndexInfo implements IndexMonitor
 
     private List<ApplicationListener> applicationListeners = new LinkedList<ApplicationListener>();
 
+    private final FullTextSearchStatistics fullTextSearchStatistics = new FullTextSearchStatistics();
+
     static
     {
         // We do not require any of the lucene in-built locking.
@@ -4336,6 +4338,26 @@ public class IndexInfo implements IndexMonitor
         this.applicationListeners.add(listener);
     }
 
+    /*
+     * (non-Javadoc)
+     * 
+     * @see org.alfresco.repo.search.impl.lucene.index.IndexMonitor#getFullTextSearchStatistics()
+     */
+    public Map<String, Long> getFullTextSearchStatistics()
+    {
+        return fullTextSearchStatistics.toMap();
+    }
+
+    /**
+     * Gets the counters updated by the background full text search indexer of this index.
+     * 
+     * @return the counters
+     */
+    public FullTextSearchStatistics getFullTextSearchCounters()
+    {
+        return fullTextSearchStatistics;
+    }
+
     private long sizeRecurse(File fileOrDir)
     {
         long size = 0;
@@ -91,6 +91,14 @@ public interface IndexMonitor
      */
     public int getNumberOfIndexedFields() throws IOException;
 
+    /**
+     * Gets the state of the background full text search indexing pipeline: the number of documents waiting for full
+     * text indexing, the depth of the transformation and write queues and the work done by each stage.
+     * 
+     * @return a map of statistic names to values
+     */
+    public Map<String, Long> getFullTextSearchStatistics();
+
     /**
      * Registers a listener for events on this index.
      * 
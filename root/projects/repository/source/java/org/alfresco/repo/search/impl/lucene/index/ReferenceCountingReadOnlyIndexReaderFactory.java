@@ -22,7 +22,9 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -41,6 +43,9 @@ import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.index.TermDocs;
 import org.apache.lucene.index.TermEnum;
+import org.apache.lucene.search.HitCollector;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
 import org.apache.lucene.util.OpenBitSet;
 
 public class ReferenceCountingReadOnlyIndexReaderFactory
@@ -64,6 +69,29 @@ public class ReferenceCountingReadOnlyIndexReaderFactory
         return rc;
     }
 
+    /**
+     * Find the documents in a reader that match a query
+     * 
+     * @param reader
+     * @param query
+     * @return the matching documents
+     * @throws IOException
+     */
+    public static OpenBitSet createFilterBits(IndexReader reader, Query query) throws IOException
+    {
+        final OpenBitSet bits = new OpenBitSet(reader.maxDoc());
+        IndexSearcher searcher = new IndexSearcher(reader);
+        searcher.search(query, new HitCollector()
+        {
+            @Override
+            public void collect(int doc, float score)
+            {
+                bits.fastSet(doc);
+            }
+        });
+        return bits;
+    }
+
     public static String getState(String id)
     {
         if (s_logger.isDebugEnabled())
@@ -117,6 +145,31 @@ public class ReferenceCountingReadOnlyIndexReaderFactory
 
         private LuceneConfig config;
 
+        /**
+         * Node ids by document, filled in as they are read
+         */
+        private volatile String[] idColumn;
+
+        private int maxFilterCacheSize;
+
+        private FilterCacheStatistics filterCacheStatistics;
+
+        private final Map<Object, OpenBitSet> filterCache = new LinkedHashMap<Object, OpenBitSet>(16, 0.75f, true)
+        {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Object, OpenBitSet> eldest)
+            {
+                if ((maxFilterCacheSize > 0) && (size() > maxFilterCacheSize))
+                {
+                    filterCacheStatistics.recordRemoved(getSizeInBytes(eldest.getValue()), true);
+                    return true;
+                }
+                return false;
+            }
+        };
+
         static
         {
             Class<IndexReader> c = IndexReader.class;
@@ -145,6 +198,15 @@ public class ReferenceCountingReadOnlyIndexReaderFactory
                 this.enableCaching = config.isCacheEnabled();
             }
             this.config = config;
+            if (config != null)
+            {
+                this.maxFilterCacheSize = config.getMaxFilterCacheSize();
+                this.filterCacheStatistics = config.getFilterCacheStatistics();
+            }
+            if (filterCacheStatistics == null)
+            {
+                filterCacheStatistics = new FilterCacheStatistics();
+            }
         }
         
         @Override
@@ -205,6 +267,8 @@ public class ReferenceCountingReadOnlyIndexReaderFactory
                 {
                     // No tidy up
                 }
+                clearFilterCache();
+                idColumn = null;
                 // Pass on the last decRef
                 super.decRef();
 
@@ -482,11 +546,48 @@ public class ReferenceCountingReadOnlyIndexReaderFactory
         }
 
         public String getId(int n) throws IOException
+        {
+            String[] ids = getIdColumn();
+            if (ids == null)
+            {
+                return loadId(n);
+            }
+            String id = ids[n];
+            if (id == null)
+            {
+                id = loadId(n);
+                ids[n] = id;
+            }
+            return id;
+        }
+
+        private String loadId(int n) throws IOException
         {
             Document d = document(n, new SingleFieldSelector("ID", true));
             return d.getField("ID").stringValue();
         }
 
+        private String[] getIdColumn()
+        {
+            if (!enableCaching || !config.isIdColumnCacheEnabled() || wrapper_closed)
+            {
+                return null;
+            }
+            String[] ids = idColumn;
+            if (ids == null)
+            {
+                synchronized (this)
+                {
+                    if (idColumn == null)
+                    {
+                        idColumn = new String[maxDoc()];
+                    }
+                    ids = idColumn;
+                }
+            }
+            return ids;
+        }
+
         public String getPathLinkId(int n) throws IOException
         {
             Document document = document(n, new SingleFieldSelector("ID", true));
@@ -585,6 +686,60 @@ public class ReferenceCountingReadOnlyIndexReaderFactory
             }
             return new TermDocSet(nodes);
         }
+
+        public OpenBitSet getFilterBits(Object key, Query query) throws IOException
+        {
+            if (maxFilterCacheSize == 0)
+            {
+                return createFilterBits(this, query);
+            }
+            OpenBitSet bits;
+            synchronized (filterCache)
+            {
+                bits = filterCache.get(key);
+            }
+            if (bits != null)
+            {
+                filterCacheStatistics.recordHit();
+                return bits;
+            }
+            filterCacheStatistics.recordMiss();
+            bits = createFilterBits(this, query);
+            synchronized (this)
+            {
+                // Readers that will not be reused do not keep filters
+                if (!invalidForReuse && !wrapper_closed)
+                {
+                    synchronized (filterCache)
+                    {
+                        OpenBitSet previous = filterCache.put(key, bits);
+                        if (previous != null)
+                        {
+                            filterCacheStatistics.recordRemoved(getSizeInBytes(previous), false);
+                        }
+                        filterCacheStatistics.recordAdded(getSizeInBytes(bits));
+                    }
+                }
+            }
+            return bits;
+        }
+
+        private void clearFilterCache()
+        {
+            synchronized (filterCache)
+            {
+                for (OpenBitSet bits : filterCache.values())
+                {
+                    filterCacheStatistics.recordRemoved(getSizeInBytes(bits), false);
+                }
+                filterCache.clear();
+            }
+        }
+
+        private long getSizeInBytes(OpenBitSet bits)
+        {
+            return bits.getBits().length * 8L;
+        }
     }
 
     static class WithUseCount<T> implements Comparable<WithUseCount<T>>
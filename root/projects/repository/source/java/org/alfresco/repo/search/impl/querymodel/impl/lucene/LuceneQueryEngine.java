@@ -27,6 +27,7 @@ import java.util.Set;
 
 import org.alfresco.repo.search.SearcherException;
 import org.alfresco.repo.search.impl.lucene.ClosingIndexSearcher;
+import org.alfresco.repo.search.impl.lucene.CollectedHits;
 import org.alfresco.repo.search.impl.lucene.LuceneIndexerAndSearcher;
 import org.alfresco.repo.search.impl.lucene.LuceneResultSet;
 import org.alfresco.repo.search.impl.lucene.LuceneSearcher;
@@ -47,7 +48,6 @@ import org.alfresco.service.cmr.search.SearchParameters;
 import org.alfresco.service.cmr.search.SearchService;
 import org.alfresco.service.namespace.NamespaceService;
 import org.apache.lucene.queryParser.ParseException;
-import org.apache.lucene.search.Hits;
 import org.apache.lucene.search.Sort;
 
 /**
@@ -181,16 +181,7 @@ public class LuceneQueryEngine implements QueryEngine
 
                     Sort sort = builder.buildSort(selectorGroup, luceneContext, functionContext);
 
-                    Hits hits;
-
-                    if (sort == null)
-                    {
-                        hits = searcher.search(luceneQuery);
-                    }
-                    else
-                    {
-                        hits = searcher.search(luceneQuery, sort);
-                    }
+                    CollectedHits hits = CollectedHits.collect(searcher, luceneQuery, null, sort);
 
                     LuceneResultSet result = new LuceneResultSet(hits, searcher, nodeService, tenantService, searchParameters, indexAndSearcher);
                     ResultSet rs = new PagingLuceneResultSet(result, searchParameters, nodeService);
@@ -18,6 +18,8 @@
  */
 package org.alfresco.repo.security.permissions;
 
+import java.util.BitSet;
+import java.util.List;
 import java.util.Set;
 
 import org.alfresco.service.cmr.repository.NodeRef;
@@ -77,6 +79,17 @@ public interface PermissionServiceSPI extends PermissionService
      */
     public AccessStatus hasPermission(NodeRef nodeRef, PermissionReference perm);
 
+    /**
+     * Check that the current authentication has a particular permission for each of the given nodes. The nodes are
+     * loaded in bulk and each distinct ACL is evaluated once for each set of authorities that applies to it. Null
+     * node refs have no permissions to test and are allowed.
+     * 
+     * @param nodeRefs
+     * @param perm
+     * @return the set of indexes, into the given list, of the nodes for which the permission is allowed
+     */
+    public BitSet hasPermissions(List<NodeRef> nodeRefs, String perm);
+
     /**
      * Where is the permission set that controls the behaviour for the given
      * permission for the given authentication to access the specified name.
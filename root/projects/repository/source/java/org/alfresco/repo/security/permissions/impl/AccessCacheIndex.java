@@ -0,0 +1,510 @@
+/*
+ * Copyright (C) 2005-2010 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.repo.security.permissions.impl;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.alfresco.repo.cache.SimpleCache;
+import org.alfresco.repo.transaction.AlfrescoTransactionSupport;
+import org.alfresco.repo.transaction.TransactionListenerAdapter;
+import org.alfresco.repo.transaction.AlfrescoTransactionSupport.TxnReadState;
+import org.alfresco.service.cmr.security.AccessStatus;
+import org.alfresco.util.PropertyCheck;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Front for the permissions access cache that remembers which ACLs each cached access decision was derived from, so
+ * that a change to an ACL removes only the decisions that depend on it rather than clearing the whole cache.
+ * <p>
+ * Entries evaluated against an ACL id are indexed under that id (and the store ACL, if any). Entries evaluated by
+ * walking the node hierarchy (old style permissions) can not be tied to a single ACL and are indexed together; they
+ * are dropped on any permission change made through the permission service.
+ * <p>
+ * Invalidation removes the cache entries and drops their keys from the index. If the invalidating transaction rolls
+ * back the entries stay in the cache, so their keys are indexed again. When the number of indexed keys reaches
+ * {@link #setMaxIndexedKeys(int) maxIndexedKeys} the index and the cache are cleared together.
+ * <p>
+ * The {@link #getGeneration() generation} changes whenever ACL based decisions may have changed (on invalidation and
+ * again when the invalidating transaction completes) so that structures derived from these decisions can be dropped.
+ * <p>
+ * In a {@link #setClusterName(String) cluster} each server indexes the decisions it put, and the removals it makes are
+ * replicated to the other servers. A server can not remove the decisions that other servers put under keys it has
+ * not indexed, so it also removes the marker of the invalidated ACL from the replicated
+ * {@link #setMarkerCache(SimpleCache) marker cache}. A server that finds the marker of an ACL it has indexed missing
+ * when it next looks up a decision for that ACL drops its own decisions for it; a missing generation marker moves the
+ * generation on in the same way.
+ */
+public class AccessCacheIndex
+{
+    private static Log logger = LogFactory.getLog(AccessCacheIndex.class);
+
+    private static final Boolean PRESENT = Boolean.TRUE;
+
+    private static final String GENERATION_MARKER_KEY = "AccessCacheIndex.generationMarker";
+
+    private static final String NODES_MARKER_KEY = "AccessCacheIndex.nodesMarker";
+
+    /** a transactionally-safe cache to be injected */
+    private SimpleCache<Serializable, AccessStatus> accessCache;
+
+    /** a transactionally-safe, replicated cache to be injected when clustered */
+    private SimpleCache<Serializable, Boolean> markerCache;
+
+    private int maxIndexedKeys = 100000;
+
+    private boolean clustered = false;
+
+    private final ConcurrentMap<Long, ConcurrentMap<Serializable, Boolean>> keysByAcl = new ConcurrentHashMap<Long, ConcurrentMap<Serializable, Boolean>>();
+
+    private final ConcurrentMap<Serializable, Boolean> nodeKeys = new ConcurrentHashMap<Serializable, Boolean>();
+
+    private final AtomicInteger indexedKeys = new AtomicInteger();
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong evictions = new AtomicLong();
+
+    private final AtomicLong aclInvalidations = new AtomicLong();
+
+    private final AtomicLong clears = new AtomicLong();
+
+    private final AtomicLong generation = new AtomicLong();
+
+    private final GenerationTransactionListener generationTransactionListener = new GenerationTransactionListener();
+
+    /**
+     * Set the permissions access cache.
+     *
+     * @param accessCache
+     *            a transactionally safe cache
+     */
+    public void setAccessCache(SimpleCache<Serializable, AccessStatus> accessCache)
+    {
+        this.accessCache = accessCache;
+    }
+
+    /**
+     * Set the cache of the ACLs, and the node hierarchy, that have not been invalidated since this or another server
+     * cached decisions for them. Only used when clustered.
+     *
+     * @param markerCache
+     *            a transactionally safe cache, replicated to the other servers in the cluster
+     */
+    public void setMarkerCache(SimpleCache<Serializable, Boolean> markerCache)
+    {
+        this.markerCache = markerCache;
+    }
+
+    /**
+     * Set the number of keys that may be indexed before the index (and the cache) is reset.
+     *
+     * @param maxIndexedKeys
+     */
+    public void setMaxIndexedKeys(int maxIndexedKeys)
+    {
+        this.maxIndexedKeys = maxIndexedKeys;
+    }
+
+    /**
+     * Set the name of the cluster that this server is in.
+     *
+     * @param clusterName
+     *            the cluster name, or empty if the server is not clustered
+     */
+    public void setClusterName(String clusterName)
+    {
+        this.clustered = PropertyCheck.isValidPropertyString(clusterName);
+    }
+
+    /**
+     * @return <tt>true</tt> if invalidations are passed on to the other servers through the marker cache
+     */
+    public boolean isClustered()
+    {
+        return clustered;
+    }
+
+    /**
+     * Get a cached access decision, counting hits and misses
+     *
+     * @param key
+     * @return the cached status or <tt>null</tt>
+     */
+    public AccessStatus get(Serializable key)
+    {
+        if (clustered && !nodeKeys.isEmpty() && (markerCache.get(NODES_MARKER_KEY) == null))
+        {
+            // Another server has changed permissions since the node hierarchy decisions were cached
+            remove(null, nodeKeys);
+        }
+        AccessStatus status = accessCache.get(key);
+        if (status == null)
+        {
+            misses.incrementAndGet();
+        }
+        else
+        {
+            hits.incrementAndGet();
+        }
+        return status;
+    }
+
+    /**
+     * Get a cached access decision that was evaluated against the given ACLs, counting hits and misses
+     *
+     * @param key
+     * @param aclId
+     *            the ACL the decision was evaluated against
+     * @param storeAclId
+     *            the store ACL also used, may be null
+     * @return the cached status or <tt>null</tt>
+     */
+    public AccessStatus getForAcl(Serializable key, Long aclId, Long storeAclId)
+    {
+        if (clustered)
+        {
+            checkMarker(aclId);
+            if (storeAclId != null)
+            {
+                checkMarker(storeAclId);
+            }
+        }
+        return get(key);
+    }
+
+    /**
+     * Cache an access decision that was evaluated against the given ACLs
+     *
+     * @param key
+     * @param status
+     * @param aclId
+     *            the ACL the decision was evaluated against
+     * @param storeAclId
+     *            the store ACL also used, may be null
+     */
+    public void putForAcl(Serializable key, AccessStatus status, Long aclId, Long storeAclId)
+    {
+        ensureCapacity();
+        index(key, aclId);
+        if (storeAclId != null)
+        {
+            index(key, storeAclId);
+        }
+        if (clustered)
+        {
+            mark(aclId);
+            if (storeAclId != null)
+            {
+                mark(storeAclId);
+            }
+        }
+        accessCache.put(key, status);
+    }
+
+    /**
+     * Cache an access decision that was evaluated by walking the node hierarchy
+     *
+     * @param key
+     * @param status
+     */
+    public void putForNode(Serializable key, AccessStatus status)
+    {
+        ensureCapacity();
+        if (nodeKeys.putIfAbsent(key, PRESENT) == null)
+        {
+            indexedKeys.incrementAndGet();
+        }
+        if (clustered)
+        {
+            mark(NODES_MARKER_KEY);
+        }
+        accessCache.put(key, status);
+    }
+
+    /**
+     * Remove all cached decisions that were evaluated against the given ACL
+     *
+     * @param aclId
+     */
+    public void invalidateAcl(Long aclId)
+    {
+        if (aclId == null)
+        {
+            return;
+        }
+        aclInvalidations.incrementAndGet();
+        nextGeneration();
+        ConcurrentMap<Serializable, Boolean> keys = keysByAcl.get(aclId);
+        if (keys != null)
+        {
+            remove(aclId, keys);
+        }
+        if (clustered)
+        {
+            markerCache.remove(aclId);
+            markerCache.remove(GENERATION_MARKER_KEY);
+        }
+    }
+
+    /**
+     * Remove all cached decisions that were evaluated by walking the node hierarchy
+     */
+    public void invalidateNodes()
+    {
+        remove(null, nodeKeys);
+        if (clustered)
+        {
+            markerCache.remove(NODES_MARKER_KEY);
+        }
+    }
+
+    /**
+     * Clear the cache and the index
+     */
+    public void clear()
+    {
+        clears.incrementAndGet();
+        nextGeneration();
+        keysByAcl.clear();
+        nodeKeys.clear();
+        indexedKeys.set(0);
+        accessCache.clear();
+        if (clustered)
+        {
+            markerCache.clear();
+        }
+    }
+
+    /**
+     * @return the number of cache lookups that found a decision
+     */
+    public long getHits()
+    {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of cache lookups that did not find a decision
+     */
+    public long getMisses()
+    {
+        return misses.get();
+    }
+
+    /**
+     * @return the number of cached decisions removed by targeted invalidation
+     */
+    public long getEvictions()
+    {
+        return evictions.get();
+    }
+
+    /**
+     * @return the number of ACL invalidations received
+     */
+    public long getAclInvalidations()
+    {
+        return aclInvalidations.get();
+    }
+
+    /**
+     * @return the number of times the whole cache has been cleared
+     */
+    public long getClears()
+    {
+        return clears.get();
+    }
+
+    /**
+     * @return the number of keys currently indexed
+     */
+    public int getIndexedKeys()
+    {
+        return indexedKeys.get();
+    }
+
+    /**
+     * @return a number that changes whenever cached ACL based decisions may have changed
+     */
+    public long getGeneration()
+    {
+        if (clustered && (markerCache.get(GENERATION_MARKER_KEY) == null))
+        {
+            // An ACL has been invalidated, here or by another server, since the marker was put
+            generation.incrementAndGet();
+            markerCache.put(GENERATION_MARKER_KEY, PRESENT);
+        }
+        return generation.get();
+    }
+
+    private void nextGeneration()
+    {
+        generation.incrementAndGet();
+        if (AlfrescoTransactionSupport.getTransactionReadState() != TxnReadState.TXN_NONE)
+        {
+            // Decisions may be recalculated against the uncommitted state before the transaction completes
+            AlfrescoTransactionSupport.bindListener(generationTransactionListener);
+        }
+    }
+
+    private void index(Serializable key, Long aclId)
+    {
+        ConcurrentMap<Serializable, Boolean> keys = keysByAcl.get(aclId);
+        if (keys == null)
+        {
+            keys = new ConcurrentHashMap<Serializable, Boolean>();
+            ConcurrentMap<Serializable, Boolean> existing = keysByAcl.putIfAbsent(aclId, keys);
+            if (existing != null)
+            {
+                keys = existing;
+            }
+        }
+        if (keys.putIfAbsent(key, PRESENT) == null)
+        {
+            indexedKeys.incrementAndGet();
+        }
+    }
+
+    private void ensureCapacity()
+    {
+        if (indexedKeys.get() >= maxIndexedKeys)
+        {
+            if (logger.isDebugEnabled())
+            {
+                logger.debug("Access cache index reached " + maxIndexedKeys + " keys - clearing");
+            }
+            clear();
+        }
+    }
+
+    private void mark(Serializable markerKey)
+    {
+        // Only put missing markers: replacing one is replicated as a removal
+        if (markerCache.get(markerKey) == null)
+        {
+            markerCache.put(markerKey, PRESENT);
+        }
+    }
+
+    private void checkMarker(Long aclId)
+    {
+        ConcurrentMap<Serializable, Boolean> keys = keysByAcl.get(aclId);
+        if ((keys != null) && !keys.isEmpty() && (markerCache.get(aclId) == null))
+        {
+            // Another server has invalidated the ACL since this server cached decisions for it
+            remove(aclId, keys);
+        }
+    }
+
+    /**
+     * Remove the cached decisions for the keys and drop the keys from the index
+     *
+     * @param aclId
+     *            the ACL the keys are indexed under, or <tt>null</tt> for the node hierarchy decisions
+     * @param keys
+     */
+    private void remove(Long aclId, ConcurrentMap<Serializable, Boolean> keys)
+    {
+        List<Serializable> removed = new ArrayList<Serializable>();
+        for (Serializable key : keys.keySet())
+        {
+            if (keys.remove(key) == null)
+            {
+                // Removed by a concurrent invalidation
+                continue;
+            }
+            indexedKeys.decrementAndGet();
+            removed.add(key);
+            if (accessCache.get(key) != null)
+            {
+                accessCache.remove(key);
+                evictions.incrementAndGet();
+            }
+        }
+        if (!removed.isEmpty() && (AlfrescoTransactionSupport.getTransactionReadState() != TxnReadState.TXN_NONE))
+        {
+            // The removals from the cache are only made if the transaction commits
+            AlfrescoTransactionSupport.bindListener(new ReindexTransactionListener(aclId, removed));
+        }
+    }
+
+    private void reindex(Long aclId, List<Serializable> keys)
+    {
+        for (Serializable key : keys)
+        {
+            if (aclId == null)
+            {
+                if (nodeKeys.putIfAbsent(key, PRESENT) == null)
+                {
+                    indexedKeys.incrementAndGet();
+                }
+            }
+            else
+            {
+                index(key, aclId);
+            }
+        }
+    }
+
+    private class GenerationTransactionListener extends TransactionListenerAdapter
+    {
+        @Override
+        public void afterCommit()
+        {
+            generation.incrementAndGet();
+        }
+
+        @Override
+        public void afterRollback()
+        {
+            generation.incrementAndGet();
+        }
+    }
+
+    /**
+     * Indexes the removed keys again if the invalidating transaction rolls back and leaves their entries in the cache
+     */
+    private class ReindexTransactionListener extends TransactionListenerAdapter
+    {
+        private final Long aclId;
+
+        private final List<Serializable> keys;
+
+        ReindexTransactionListener(Long aclId, List<Serializable> keys)
+        {
+            this.aclId = aclId;
+            this.keys = keys;
+        }
+
+        @Override
+        public void afterRollback()
+        {
+            reindex(aclId, keys);
+        }
+    }
+}
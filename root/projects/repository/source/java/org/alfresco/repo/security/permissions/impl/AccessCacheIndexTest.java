@@ -0,0 +1,221 @@
+/*
+ * Copyright (C) 2005-2010 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.repo.security.permissions.impl;
+
+import java.io.Serializable;
+
+import junit.framework.TestCase;
+
+import org.alfresco.repo.cache.MemoryCache;
+import org.alfresco.service.cmr.security.AccessStatus;
+
+/**
+ * @see org.alfresco.repo.security.permissions.impl.AccessCacheIndex
+ */
+public class AccessCacheIndexTest extends TestCase
+{
+    private MemoryCache<Serializable, AccessStatus> cache;
+    private MemoryCache<Serializable, Boolean> markerCache;
+    private AccessCacheIndex index;
+
+    public void setUp() throws Exception
+    {
+        cache = new MemoryCache<Serializable, AccessStatus>();
+        markerCache = new MemoryCache<Serializable, Boolean>();
+        index = new AccessCacheIndex();
+        index.setAccessCache(cache);
+        index.setMarkerCache(markerCache);
+    }
+
+    public void testInvalidateOnlyAffectedAcl() throws Exception
+    {
+        index.putForAcl("a", AccessStatus.ALLOWED, 1L, null);
+        index.putForAcl("b", AccessStatus.DENIED, 2L, null);
+        index.putForNode("c", AccessStatus.ALLOWED);
+
+        index.invalidateAcl(1L);
+
+        assertNull(index.get("a"));
+        assertEquals(AccessStatus.DENIED, index.get("b"));
+        assertEquals(AccessStatus.ALLOWED, index.get("c"));
+        assertEquals(2, index.getHits());
+        assertEquals(1, index.getMisses());
+        assertEquals(1, index.getEvictions());
+    }
+
+    public void testInvalidateStoreAcl() throws Exception
+    {
+        index.putForAcl("a", AccessStatus.ALLOWED, 1L, 10L);
+        index.putForAcl("b", AccessStatus.ALLOWED, 2L, null);
+
+        index.invalidateAcl(10L);
+
+        assertNull(index.get("a"));
+        assertEquals(AccessStatus.ALLOWED, index.get("b"));
+    }
+
+    public void testInvalidateNodes() throws Exception
+    {
+        index.putForAcl("a", AccessStatus.ALLOWED, 1L, null);
+        index.putForNode("c", AccessStatus.ALLOWED);
+
+        index.invalidateNodes();
+
+        assertEquals(AccessStatus.ALLOWED, index.get("a"));
+        assertNull(index.get("c"));
+    }
+
+    public void testGenerationChanges() throws Exception
+    {
+        long start = index.getGeneration();
+        index.putForAcl("a", AccessStatus.ALLOWED, 1L, null);
+        index.invalidateNodes();
+        assertEquals(start, index.getGeneration());
+
+        index.invalidateAcl(1L);
+        long afterInvalidate = index.getGeneration();
+        assertTrue(afterInvalidate != start);
+
+        index.clear();
+        assertTrue(index.getGeneration() != afterInvalidate);
+    }
+
+    public void testInvalidatedKeysLeaveIndex() throws Exception
+    {
+        index.putForAcl("a", AccessStatus.ALLOWED, 1L, null);
+        index.putForAcl("b", AccessStatus.ALLOWED, 1L, null);
+        index.putForNode("c", AccessStatus.ALLOWED);
+        assertEquals(3, index.getIndexedKeys());
+
+        index.invalidateAcl(1L);
+        assertEquals(1, index.getIndexedKeys());
+        assertEquals(2, index.getEvictions());
+
+        // Nothing is left to remove
+        index.invalidateAcl(1L);
+        assertEquals(1, index.getIndexedKeys());
+        assertEquals(2, index.getEvictions());
+
+        index.invalidateNodes();
+        assertEquals(0, index.getIndexedKeys());
+        assertEquals(3, index.getEvictions());
+    }
+
+    public void testEvictionsCountOnlyCachedDecisions() throws Exception
+    {
+        index.putForAcl("a", AccessStatus.ALLOWED, 1L, null);
+        index.putForAcl("b", AccessStatus.ALLOWED, 1L, null);
+        // Gone from the cache already, for instance evicted for size
+        cache.remove("b");
+
+        index.invalidateAcl(1L);
+
+        assertEquals(1, index.getEvictions());
+        assertEquals(0, index.getIndexedKeys());
+    }
+
+    public void testClusteredInvalidationByKey() throws Exception
+    {
+        index.setClusterName("cluster");
+        index.putForAcl("a", AccessStatus.ALLOWED, 1L, null);
+        index.putForAcl("b", AccessStatus.DENIED, 2L, null);
+        index.putForNode("c", AccessStatus.ALLOWED);
+
+        index.invalidateAcl(1L);
+
+        assertNull(index.getForAcl("a", 1L, null));
+        assertEquals(AccessStatus.DENIED, index.getForAcl("b", 2L, null));
+        assertEquals(AccessStatus.ALLOWED, index.get("c"));
+        assertEquals(0, index.getClears());
+        assertEquals(2, index.getIndexedKeys());
+        // The other servers are told through the markers, not through the decisions
+        assertNull(markerCache.get(1L));
+        assertEquals(Boolean.TRUE, markerCache.get(2L));
+        for (Serializable key : cache.getKeys())
+        {
+            assertNotNull(cache.get(key));
+        }
+    }
+
+    public void testClusteredRemoteAclInvalidation() throws Exception
+    {
+        index.setClusterName("cluster");
+        index.putForAcl("a", AccessStatus.ALLOWED, 1L, 10L);
+        index.putForAcl("b", AccessStatus.ALLOWED, 2L, null);
+        index.putForNode("c", AccessStatus.ALLOWED);
+
+        // Another server changes ACL 1: its replicated removals can not reach "a", which it has not indexed
+        markerCache.remove(1L);
+
+        assertNull(index.getForAcl("a", 1L, 10L));
+        assertNull(cache.get("a"));
+        assertEquals(AccessStatus.ALLOWED, index.getForAcl("b", 2L, null));
+        // "a" is still indexed under the store ACL
+        assertEquals(3, index.getIndexedKeys());
+
+        // And then changes the permissions on some node
+        markerCache.remove("AccessCacheIndex.nodesMarker");
+
+        assertNull(index.get("c"));
+        assertEquals(2, index.getIndexedKeys());
+        assertEquals(AccessStatus.ALLOWED, index.getForAcl("b", 2L, null));
+
+        // Decisions cached again are kept until the next invalidation
+        index.putForAcl("a", AccessStatus.DENIED, 1L, 10L);
+        assertEquals(AccessStatus.DENIED, index.getForAcl("a", 1L, 10L));
+        markerCache.remove(10L);
+        assertNull(index.getForAcl("a", 1L, 10L));
+    }
+
+    public void testClusteredGenerationFollowsRemoteInvalidation() throws Exception
+    {
+        index.setClusterName("cluster");
+        long generation = index.getGeneration();
+        assertEquals(generation, index.getGeneration());
+        // The marker is not kept with the access decisions
+        assertEquals(0, cache.getKeys().size());
+
+        // Another server changes an ACL
+        markerCache.remove("AccessCacheIndex.generationMarker");
+
+        assertTrue(index.getGeneration() != generation);
+        generation = index.getGeneration();
+        assertEquals(generation, index.getGeneration());
+
+        // As does this one
+        index.invalidateAcl(1L);
+        assertTrue(index.getGeneration() != generation);
+    }
+
+    public void testResetWhenIndexIsFull() throws Exception
+    {
+        index.setMaxIndexedKeys(2);
+        index.putForAcl("a", AccessStatus.ALLOWED, 1L, null);
+        index.putForAcl("b", AccessStatus.ALLOWED, 1L, null);
+        assertEquals(2, index.getIndexedKeys());
+        assertEquals(0, index.getClears());
+
+        index.putForAcl("c", AccessStatus.ALLOWED, 2L, null);
+
+        assertEquals(1, index.getClears());
+        assertEquals(1, index.getIndexedKeys());
+        assertNull(index.get("a"));
+        assertEquals(AccessStatus.ALLOWED, index.get("c"));
+    }
+}
@@ -19,6 +19,9 @@
 package org.alfresco.repo.security.permissions.impl;
 
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashSet;
 import java.util.List;
@@ -32,7 +35,7 @@ import net.sf.acegisecurity.providers.dao.User;
 import org.alfresco.model.ContentModel;
 import org.alfresco.repo.avm.AVMNodeConverter;
 import org.alfresco.repo.avm.AVMRepository;
-import org.alfresco.repo.cache.SimpleCache;
+import org.alfresco.repo.node.NodeBulkLoader;
 import org.alfresco.repo.policy.JavaBehaviour;
 import org.alfresco.repo.policy.PolicyComponent;
 import org.alfresco.repo.security.authentication.AuthenticationUtil;
@@ -83,8 +86,8 @@ public class PermissionServiceImpl extends AbstractLifecycleBean implements Perm
 
     private static Log log = LogFactory.getLog(PermissionServiceImpl.class);
 
-    /** a transactionally-safe cache to be injected */
-    private SimpleCache<Serializable, AccessStatus> accessCache;
+    /** the ACL indexed front to the transactionally-safe access cache */
+    private AccessCacheIndex accessCache;
 
     /*
      * Access to the model
@@ -125,6 +128,8 @@ public class PermissionServiceImpl extends AbstractLifecycleBean implements Perm
 
     private AclDaoComponent aclDaoComponent;
     
+    private NodeBulkLoader nodeBulkLoader;
+    
     private PermissionReference allPermissionReference;
 
     /**
@@ -217,13 +222,23 @@ public class PermissionServiceImpl extends AbstractLifecycleBean implements Perm
         this.aclDaoComponent = aclDaoComponent;
     }
 
+    /**
+     * Set the component used to pre-load nodes for bulk permission checks - optional
+     * 
+     * @param nodeBulkLoader
+     */
+    public void setNodeBulkLoader(NodeBulkLoader nodeBulkLoader)
+    {
+        this.nodeBulkLoader = nodeBulkLoader;
+    }
+
     /**
      * Set the permissions access cache.
      * 
      * @param accessCache
-     *            a transactionally safe cache
+     *            the ACL indexed front to a transactionally safe cache
      */
-    public void setAccessCache(SimpleCache<Serializable, AccessStatus> accessCache)
+    public void setAccessCache(AccessCacheIndex accessCache)
     {
         this.accessCache = accessCache;
     }
@@ -246,7 +261,7 @@ public class PermissionServiceImpl extends AbstractLifecycleBean implements Perm
      */
     public void onMoveNode(ChildAssociationRef oldChildAssocRef, ChildAssociationRef newChildAssocRef)
     {
-        accessCache.clear();
+        accessCache.invalidateNodes();
     }
 
     @Override
@@ -472,7 +487,7 @@ public class PermissionServiceImpl extends AbstractLifecycleBean implements Perm
         final Serializable key = generateKey(authorisations, nodeRef, perm, CacheType.HAS_PERMISSION);
         if (!(available.contains(perm)))
         {
-            accessCache.put(key, AccessStatus.DENIED);
+            accessCache.putForNode(key, AccessStatus.DENIED);
             return AccessStatus.DENIED;
         }
 
@@ -514,13 +529,127 @@ public class PermissionServiceImpl extends AbstractLifecycleBean implements Perm
                 }
 
                 status = result ? AccessStatus.ALLOWED : AccessStatus.DENIED;
-                accessCache.put(key, status);
+                accessCache.putForNode(key, status);
                 return status;
             }
         }, AuthenticationUtil.getSystemUserName());
 
     }
 
+    public BitSet hasPermissions(List<NodeRef> nodeRefs, String perm)
+    {
+        return hasPermissions(nodeRefs, getPermissionReference(perm));
+    }
+
+    /**
+     * Bulk permission check. The nodes (and so their ACL ids, types and aspects) are loaded in batches and nodes with
+     * the same ACL, type, aspects and dynamic authorities share a single evaluation. Anything that can not be evaluated
+     * against an ACL falls back to the single node check.
+     */
+    private BitSet hasPermissions(List<NodeRef> nodeRefs, PermissionReference permIn)
+    {
+        int size = nodeRefs.size();
+        BitSet allowed = new BitSet(size);
+
+        if (AuthenticationUtil.getRunAsUser() == null || permIn == null)
+        {
+            for (int i = 0; i < size; i++)
+            {
+                if (nodeRefs.get(i) == null)
+                {
+                    allowed.set(i);
+                }
+            }
+            return allowed;
+        }
+        if (AuthenticationUtil.isRunAsUserTheSystemUser())
+        {
+            allowed.set(0, size);
+            return allowed;
+        }
+
+        final PermissionReference perm;
+        if (permIn.equals(OLD_ALL_PERMISSIONS_REFERENCE))
+        {
+            perm = getAllPermissionReference();
+        }
+        else
+        {
+            perm = permIn;
+        }
+
+        List<NodeRef> toLoad = new ArrayList<NodeRef>(size);
+        for (NodeRef nodeRef : nodeRefs)
+        {
+            if ((nodeRef != null) && !nodeRef.getStoreRef().getProtocol().equals(StoreRef.PROTOCOL_AVM))
+            {
+                toLoad.add(tenantService.getName(nodeRef));
+            }
+        }
+        if ((nodeBulkLoader != null) && (toLoad.size() > 0))
+        {
+            nodeBulkLoader.cacheNodes(toLoad);
+        }
+
+        Authentication auth = AuthenticationUtil.getRunAsAuthentication();
+        String user = AuthenticationUtil.getRunAsUser();
+        Map<List<Object>, AccessStatus> evaluated = new HashMap<List<Object>, AccessStatus>();
+        for (int i = 0; i < size; i++)
+        {
+            NodeRef passedNodeRef = nodeRefs.get(i);
+            AccessStatus status;
+            if ((passedNodeRef == null)
+                    || passedNodeRef.getStoreRef().getProtocol().equals(StoreRef.PROTOCOL_AVM)
+                    || isVersionNodeRef(passedNodeRef)
+                    || !nodeService.exists(passedNodeRef))
+            {
+                status = hasPermission(passedNodeRef, perm);
+            }
+            else
+            {
+                NodeRef nodeRef = tenantService.getName(passedNodeRef);
+                AccessControlListProperties properties = permissionsDaoComponent.getAccessControlListProperties(nodeRef);
+                if ((properties == null) || (properties.getAclType() == null) || (properties.getAclType() == ACLType.OLD))
+                {
+                    status = hasPermission(passedNodeRef, perm);
+                }
+                else
+                {
+                    QName typeQname = nodeService.getType(nodeRef);
+                    Set<QName> aspectQNames = nodeService.getAspects(nodeRef);
+                    Set<String> dynamicAuthorities = getNodeDynamicAuthorities(auth, nodeRef, perm);
+
+                    List<Object> evaluationKey = new ArrayList<Object>(4);
+                    evaluationKey.add(properties.getId());
+                    evaluationKey.add(typeQname);
+                    evaluationKey.add(aspectQNames);
+                    evaluationKey.add(dynamicAuthorities);
+                    status = evaluated.get(evaluationKey);
+                    if (status == null)
+                    {
+                        PermissionContext context = new PermissionContext(typeQname);
+                        context.getAspects().addAll(aspectQNames);
+                        for (String dynamicAuthority : dynamicAuthorities)
+                        {
+                            context.addDynamicAuthorityAssignment(user, dynamicAuthority);
+                        }
+                        status = hasPermission(properties.getId(), context, perm);
+                        evaluated.put(evaluationKey, status);
+                    }
+                }
+            }
+            if (status == AccessStatus.ALLOWED)
+            {
+                allowed.set(i);
+            }
+        }
+        if (log.isDebugEnabled())
+        {
+            log.debug("Bulk permission check for <" + perm + "> on " + size + " nodes made " + evaluated.size() + " ACL evaluations");
+        }
+        return allowed;
+    }
+
     private AccessStatus doAvmCan(NodeRef nodeRef, PermissionReference permission)
     {
         org.alfresco.util.Pair<Integer, String> avmVersionPath = AVMNodeConverter.ToAVMVersionPath(nodeRef);
@@ -631,6 +760,13 @@ public class PermissionServiceImpl extends AbstractLifecycleBean implements Perm
             permission = getAllPermissionReference();
         }
 
+        Serializable key = generateKey(authorisations, aclId, context, permission);
+        AccessStatus status = accessCache.getForAcl(key, aclId, context.getStoreAcl());
+        if (status != null)
+        {
+            return status;
+        }
+
         boolean result;
         if (context.getStoreAcl() == null)
         {
@@ -643,13 +779,14 @@ public class PermissionServiceImpl extends AbstractLifecycleBean implements Perm
             AclTest aclTest = new AclTest(permission, typeQname, aspectQNames);
             result = aclTest.evaluate(authorisations, aclId, context) && aclTest.evaluate(storeAuthorisations, context.getStoreAcl(), context);
         }
-        AccessStatus status = result ? AccessStatus.ALLOWED : AccessStatus.DENIED;
+        status = result ? AccessStatus.ALLOWED : AccessStatus.DENIED;
+        accessCache.putForAcl(key, status, aclId, context.getStoreAcl());
         return status;
 
     }
 
     /**
-     * Control permissions cache - only used when we do old style permission evaluations 
+     * Control permissions cache - the node types are only used when we do old style permission evaluations 
      * - which should only be in DM stores where no permissions have been set 
      * 
      * @author andyh
@@ -657,6 +794,10 @@ public class PermissionServiceImpl extends AbstractLifecycleBean implements Perm
      */
     enum CacheType
     {
+        /**
+         * Cache a check against an ACL id - invalidated when the ACL changes
+         */
+        ACL_PERMISSION,
         /**
          * cache full check
          */
@@ -685,6 +826,23 @@ public class PermissionServiceImpl extends AbstractLifecycleBean implements Perm
         return key;
     }
 
+    /**
+     * Key for a cache object evaluated against an ACL. The result depends only on the ACL (and any store ACL), the
+     * authorities, the permission and the type and aspects used to resolve the permission model; it is indexed by the
+     * ACL ids so it can be invalidated when either ACL changes.
+     */
+    static Serializable generateKey(Set<String> auths, Long aclId, PermissionContext context, PermissionReference perm)
+    {
+        LinkedHashSet<Serializable> key = new LinkedHashSet<Serializable>();
+        key.add(perm.toString());
+        key.addAll(auths);
+        key.add(new org.alfresco.util.Pair<Long, Long>(aclId, context.getStoreAcl()));
+        key.add(context.getType());
+        key.add(new HashSet<QName>(context.getAspects()));
+        key.add(CacheType.ACL_PERMISSION);
+        return key;
+    }
+
     /**
      * Get the authorisations for the currently authenticated user
      * 
@@ -721,6 +879,21 @@ public class PermissionServiceImpl extends AbstractLifecycleBean implements Perm
     }
 
     private Set<String> getDynamicAuthorities(Authentication auth, NodeRef nodeRef, PermissionReference required)
+    {
+        Set<String> auths = getNodeDynamicAuthorities(auth, nodeRef, required);
+        if (auth == null)
+        {
+            return auths;
+        }
+        User user = (User) auth.getPrincipal();
+        auths.addAll(authorityService.getAuthoritiesForUser(user.getUsername()));
+        return auths;
+    }
+
+    /**
+     * Get just the dynamic authorities the current authentication has for the node
+     */
+    private Set<String> getNodeDynamicAuthorities(Authentication auth, NodeRef nodeRef, PermissionReference required)
     {
         HashSet<String> auths = new HashSet<String>(64);
 
@@ -749,7 +922,6 @@ public class PermissionServiceImpl extends AbstractLifecycleBean implements Perm
                 }
             }
         }
-        auths.addAll(authorityService.getAuthoritiesForUser(user.getUsername()));
         return auths;
     }
 
@@ -797,7 +969,7 @@ public class PermissionServiceImpl extends AbstractLifecycleBean implements Perm
     public void clearPermission(StoreRef storeRef, String authority)
     {
         permissionsDaoComponent.deletePermissions(storeRef, authority);
-        accessCache.clear();
+        accessCache.invalidateNodes();
     }
 
     public void deletePermission(StoreRef storeRef, String authority, String perm)
@@ -808,13 +980,13 @@ public class PermissionServiceImpl extends AbstractLifecycleBean implements Perm
     private void deletePermission(StoreRef storeRef, String authority, PermissionReference perm)
     {
         permissionsDaoComponent.deletePermission(storeRef, authority, perm);
-        accessCache.clear();
+        accessCache.invalidateNodes();
     }
 
     public void deletePermissions(StoreRef storeRef)
     {
         permissionsDaoComponent.deletePermissions(storeRef);
-        accessCache.clear();
+        accessCache.invalidateNodes();
     }
 
     public void setPermission(StoreRef storeRef, String authority, String perm, boolean allow)
@@ -825,20 +997,20 @@ public class PermissionServiceImpl extends AbstractLifecycleBean implements Perm
     private void setPermission(StoreRef storeRef, String authority, PermissionReference permission, boolean allow)
     {
         permissionsDaoComponent.setPermission(storeRef, authority, permission, allow);
-        accessCache.clear();
+        accessCache.invalidateNodes();
 
     }
 
     public void deletePermissions(NodeRef nodeRef)
     {
         permissionsDaoComponent.deletePermissions(tenantService.getName(nodeRef));
-        accessCache.clear();
+        accessCache.invalidateNodes();
     }
 
     public void deletePermissions(NodePermissionEntry nodePermissionEntry)
     {
         permissionsDaoComponent.deletePermissions(tenantService.getName(nodePermissionEntry.getNodeRef()));
-        accessCache.clear();
+        accessCache.invalidateNodes();
     }
 
     /**
@@ -855,40 +1027,40 @@ public class PermissionServiceImpl extends AbstractLifecycleBean implements Perm
     private void deletePermission(NodeRef nodeRef, String authority, PermissionReference perm)
     {
         permissionsDaoComponent.deletePermission(tenantService.getName(nodeRef), authority, perm);
-        accessCache.clear();
+        accessCache.invalidateNodes();
     }
 
     public void clearPermission(NodeRef nodeRef, String authority)
     {
         permissionsDaoComponent.deletePermissions(tenantService.getName(nodeRef), authority);
-        accessCache.clear();
+        accessCache.invalidateNodes();
     }
 
     private void setPermission(NodeRef nodeRef, String authority, PermissionReference perm, boolean allow)
     {
         permissionsDaoComponent.setPermission(tenantService.getName(nodeRef), authority, perm, allow);
-        accessCache.clear();
+        accessCache.invalidateNodes();
     }
 
     public void setPermission(PermissionEntry permissionEntry)
     {
         // TODO - not MT-enabled nodeRef - currently only used by tests
         permissionsDaoComponent.setPermission(permissionEntry);
-        accessCache.clear();
+        accessCache.invalidateNodes();
     }
 
     public void setPermission(NodePermissionEntry nodePermissionEntry)
     {
         // TODO - not MT-enabled nodeRef- currently only used by tests
         permissionsDaoComponent.setPermission(nodePermissionEntry);
-        accessCache.clear();
+        accessCache.invalidateNodes();
     }
 
     public void setInheritParentPermissions(NodeRef nodeRef, boolean inheritParentPermissions)
     {
         NodeRef actualRef = tenantService.getName(nodeRef);
         permissionsDaoComponent.setInheritParentPermissions(actualRef, inheritParentPermissions);
-        accessCache.clear();
+        accessCache.invalidateNodes();
     }
 
     /**
@@ -954,7 +1126,7 @@ public class PermissionServiceImpl extends AbstractLifecycleBean implements Perm
     public void deletePermissions(String recipient)
     {
         permissionsDaoComponent.deletePermissions(recipient);
-        accessCache.clear();
+        accessCache.invalidateNodes();
     }
 
     //
@@ -1196,7 +1368,7 @@ public class PermissionServiceImpl extends AbstractLifecycleBean implements Perm
 
             if (checkGlobalPermissions(authorisations))
             {
-                accessCache.put(key, AccessStatus.ALLOWED);
+                accessCache.putForNode(key, AccessStatus.ALLOWED);
                 return true;
             }
 
@@ -1241,7 +1413,7 @@ public class PermissionServiceImpl extends AbstractLifecycleBean implements Perm
             {
                 if (key != null)
                 {
-                    accessCache.put(key, AccessStatus.ALLOWED);
+                    accessCache.putForNode(key, AccessStatus.ALLOWED);
                 }
                 return true;
             }
@@ -1260,7 +1432,7 @@ public class PermissionServiceImpl extends AbstractLifecycleBean implements Perm
                     {
                         if (key != null)
                         {
-                            accessCache.put(key, AccessStatus.ALLOWED);
+                            accessCache.putForNode(key, AccessStatus.ALLOWED);
                         }
                         return true;
                     }
@@ -1268,7 +1440,7 @@ public class PermissionServiceImpl extends AbstractLifecycleBean implements Perm
                     {
                         if (key != null)
                         {
-                            accessCache.put(key, AccessStatus.DENIED);
+                            accessCache.putForNode(key, AccessStatus.DENIED);
                         }
                         return false;
                     }
@@ -1277,7 +1449,7 @@ public class PermissionServiceImpl extends AbstractLifecycleBean implements Perm
                 {
                     if (key != null)
                     {
-                        accessCache.put(key, AccessStatus.DENIED);
+                        accessCache.putForNode(key, AccessStatus.DENIED);
                     }
                     return false;
                 }
@@ -1286,7 +1458,7 @@ public class PermissionServiceImpl extends AbstractLifecycleBean implements Perm
             {
                 if (key != null)
                 {
-                    accessCache.put(key, AccessStatus.DENIED);
+                    accessCache.putForNode(key, AccessStatus.DENIED);
                 }
                 return false;
             }
@@ -41,6 +41,7 @@ import org.alfresco.repo.search.SimpleResultSetMetaData;
 import org.alfresco.repo.search.impl.lucene.PagingLuceneResultSet;
 import org.alfresco.repo.search.impl.querymodel.QueryEngineResults;
 import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.repo.security.permissions.PermissionServiceSPI;
 import org.alfresco.repo.security.permissions.impl.SimplePermissionReference;
 import org.alfresco.service.cmr.model.FileInfo;
 import org.alfresco.service.cmr.repository.ChildAssociationRef;
@@ -82,6 +83,8 @@ public class ACLEntryAfterInvocationProvider implements AfterInvocationProvider,
     private int maxPermissionChecks;
 
     private long maxPermissionCheckTimeMillis;
+
+    private int permissionCheckBatchSize = 256;
     
     private Set<QName> unfilteredForClassQNames = new HashSet<QName>();
     
@@ -187,6 +190,16 @@ public class ACLEntryAfterInvocationProvider implements AfterInvocationProvider,
         this.maxPermissionCheckTimeMillis = maxPermissionCheckTimeMillis;
     }
 
+    /**
+     * Set the number of result set rows checked together when the permission service supports bulk checks
+     * 
+     * @param permissionCheckBatchSize
+     */
+    public void setPermissionCheckBatchSize(int permissionCheckBatchSize)
+    {
+        this.permissionCheckBatchSize = permissionCheckBatchSize;
+    }
+
     /**
      * Types and aspects for which we will abstain on voting if they are present.
      * @param abstainFor
@@ -568,6 +581,11 @@ public class ACLEntryAfterInvocationProvider implements AfterInvocationProvider,
         filteringResultSet.setResultSetMetaData(new SimpleResultSetMetaData(LimitBy.UNLIMITED, PermissionEvaluationMode.EAGER, returnedObject.getResultSetMetaData()
                 .getSearchParameters()));
 
+        if (permissionService instanceof PermissionServiceSPI)
+        {
+            return decide(filteringResultSet, supportedDefinitions, (PermissionServiceSPI) permissionService, maxSize, maxChecks, startTimeMillis, maxCheckTime);
+        }
+
         for (int i = 0; i < returnedObject.length(); i++)
         {
             long currentTimeMillis = System.currentTimeMillis();
@@ -617,6 +635,71 @@ public class ACLEntryAfterInvocationProvider implements AfterInvocationProvider,
         return filteringResultSet;
     }
 
+    /**
+     * Filter the result set in batches using bulk permission checks. The limits are applied as for the row by row
+     * check except that the time limit is checked at the start of each batch.
+     */
+    private ResultSet decide(FilteringResultSet filteringResultSet, List<ConfigAttributeDefintion> supportedDefinitions, PermissionServiceSPI bulkPermissionService,
+            Integer maxSize, int maxChecks, long startTimeMillis, long maxCheckTime)
+    {
+        ResultSet returnedObject = filteringResultSet.getUnFilteredResultSet();
+        int length = returnedObject.length();
+        int end;
+        for (int start = 0; start < length; start = end)
+        {
+            long currentTimeMillis = System.currentTimeMillis();
+            if (start >= maxChecks || (currentTimeMillis - startTimeMillis) > maxCheckTime)
+            {
+                filteringResultSet.setResultSetMetaData(new SimpleResultSetMetaData(LimitBy.NUMBER_OF_PERMISSION_EVALUATIONS, PermissionEvaluationMode.EAGER, returnedObject
+                        .getResultSetMetaData().getSearchParameters()));
+                break;
+            }
+            // The last batch stops at the check limit, so the next pass sets the limit flag if rows are left
+            end = Math.min(Math.min(length, maxChecks), start + permissionCheckBatchSize);
+
+            // All permission checks must pass
+            filteringResultSet.setIncluded(start, end, true);
+
+            for (ConfigAttributeDefintion cad : supportedDefinitions)
+            {
+                List<NodeRef> testNodeRefs = new ArrayList<NodeRef>(end - start);
+                for (int i = start; i < end; i++)
+                {
+                    NodeRef testNodeRef = null;
+                    if (cad.typeString.equals(AFTER_ACL_NODE))
+                    {
+                        testNodeRef = returnedObject.getNodeRef(i);
+                    }
+                    else if (cad.typeString.equals(AFTER_ACL_PARENT))
+                    {
+                        testNodeRef = returnedObject.getChildAssocRef(i).getParentRef();
+                    }
+
+                    if ((testNodeRef != null) && (!filteringResultSet.getIncluded(i) || isUnfitered(testNodeRef)))
+                    {
+                        // Nothing to check
+                        testNodeRef = null;
+                    }
+                    testNodeRefs.add(testNodeRef);
+                }
+
+                BitSet allowed = bulkPermissionService.hasPermissions(testNodeRefs, cad.required.toString());
+                filteringResultSet.retainIncluded(start, end, allowed);
+            }
+
+            // Bug out if we are limiting by size
+            if ((maxSize != null) && (filteringResultSet.length() > maxSize.intValue()))
+            {
+                // Remove the extra matches to fix the correct size
+                filteringResultSet.truncate(maxSize.intValue());
+                filteringResultSet.setResultSetMetaData(new SimpleResultSetMetaData(LimitBy.FINAL_SIZE, PermissionEvaluationMode.EAGER, returnedObject.getResultSetMetaData()
+                        .getSearchParameters()));
+                break;
+            }
+        }
+        return filteringResultSet;
+    }
+
     private QueryEngineResults decide(Authentication authentication, Object object, ConfigAttributeDefinition config, QueryEngineResults returnedObject)
             throws AccessDeniedException
 
@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2005-2010 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.repo.security.permissions.impl.acegi;
+
+import static org.mockito.Matchers.anyList;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+import junit.framework.TestCase;
+import net.sf.acegisecurity.ConfigAttributeDefinition;
+import net.sf.acegisecurity.SecurityConfig;
+
+import org.alfresco.repo.search.results.ChildAssocRefResultSet;
+import org.alfresco.repo.security.permissions.PermissionServiceSPI;
+import org.alfresco.service.cmr.repository.ChildAssociationRef;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.service.cmr.repository.StoreRef;
+import org.alfresco.service.cmr.search.LimitBy;
+import org.alfresco.service.cmr.search.ResultSet;
+import org.alfresco.service.namespace.NamespacePrefixResolver;
+import org.alfresco.service.namespace.NamespaceService;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+/**
+ * Checks the batched filtering of result sets through {@link PermissionServiceSPI#hasPermissions(List, String)},
+ * without a repository.
+ *
+ * @see ACLEntryAfterInvocationProvider
+ */
+public class ACLEntryAfterInvocationProviderTest extends TestCase
+{
+    private static final StoreRef STORE_REF = new StoreRef("protocol", "test");
+
+    private PermissionServiceSPI permissionService;
+    private ACLEntryAfterInvocationProvider provider;
+    private ConfigAttributeDefinition config;
+    private List<Integer> batchSizes;
+    private BitSet denied;
+
+    @SuppressWarnings("unchecked")
+    @Override
+    protected void setUp() throws Exception
+    {
+        batchSizes = new ArrayList<Integer>();
+        denied = new BitSet();
+
+        permissionService = mock(PermissionServiceSPI.class);
+        when(permissionService.hasPermissions(anyList(), anyString())).thenAnswer(new Answer<BitSet>()
+        {
+            public BitSet answer(InvocationOnMock invocation) throws Throwable
+            {
+                List<NodeRef> nodeRefs = (List<NodeRef>) invocation.getArguments()[0];
+                batchSizes.add(nodeRefs.size());
+                BitSet allowed = new BitSet(nodeRefs.size());
+                for (int i = 0; i < nodeRefs.size(); i++)
+                {
+                    NodeRef nodeRef = nodeRefs.get(i);
+                    if (nodeRef == null || !denied.get(Integer.parseInt(nodeRef.getId())))
+                    {
+                        allowed.set(i);
+                    }
+                }
+                return allowed;
+            }
+        });
+        NamespacePrefixResolver nspr = mock(NamespacePrefixResolver.class);
+        when(nspr.getNamespaceURI(NamespaceService.SYSTEM_MODEL_PREFIX)).thenReturn(NamespaceService.SYSTEM_MODEL_1_0_URI);
+
+        provider = new ACLEntryAfterInvocationProvider();
+        provider.setPermissionService(permissionService);
+        provider.setNamespacePrefixResolver(nspr);
+        provider.setNodeService(mock(NodeService.class));
+        provider.setPermissionCheckBatchSize(256);
+        provider.afterPropertiesSet();
+
+        config = new ConfigAttributeDefinition();
+        config.addConfigAttribute(new SecurityConfig("AFTER_ACL_NODE.sys:base.Read"));
+    }
+
+    private ResultSet createResultSet(int length)
+    {
+        List<ChildAssociationRef> cars = new ArrayList<ChildAssociationRef>(length);
+        for (int i = 0; i < length; i++)
+        {
+            cars.add(new ChildAssociationRef(null, null, null, new NodeRef(STORE_REF, Integer.toString(i))));
+        }
+        return new ChildAssocRefResultSet(null, cars);
+    }
+
+    public void testBatchedUnlimited() throws Exception
+    {
+        for (int i = 0; i < 400; i += 2)
+        {
+            denied.set(i);
+        }
+        ResultSet filtered = (ResultSet) provider.decide(null, null, config, createResultSet(400));
+
+        assertEquals(2, batchSizes.size());
+        assertEquals(256, batchSizes.get(0).intValue());
+        assertEquals(144, batchSizes.get(1).intValue());
+        assertEquals(200, filtered.length());
+        for (int i = 0; i < filtered.length(); i++)
+        {
+            assertEquals(Integer.toString(2 * i + 1), filtered.getNodeRef(i).getId());
+        }
+        assertEquals(LimitBy.UNLIMITED, filtered.getResultSetMetaData().getLimitedBy());
+    }
+
+    /**
+     * The check limit falls part way through the second batch, which is then the last one evaluated
+     */
+    public void testBatchedCheckLimitWithinBatch() throws Exception
+    {
+        provider.setMaxPermissionChecks(300);
+        ResultSet filtered = (ResultSet) provider.decide(null, null, config, createResultSet(400));
+
+        assertEquals(2, batchSizes.size());
+        assertEquals(256, batchSizes.get(0).intValue());
+        assertEquals(44, batchSizes.get(1).intValue());
+        assertEquals(300, filtered.length());
+        assertEquals("299", filtered.getNodeRef(299).getId());
+        assertEquals(LimitBy.NUMBER_OF_PERMISSION_EVALUATIONS, filtered.getResultSetMetaData().getLimitedBy());
+    }
+
+    public void testBatchedCheckLimitOnBatchBoundary() throws Exception
+    {
+        provider.setMaxPermissionChecks(256);
+        ResultSet filtered = (ResultSet) provider.decide(null, null, config, createResultSet(400));
+
+        assertEquals(1, batchSizes.size());
+        assertEquals(256, filtered.length());
+        assertEquals(LimitBy.NUMBER_OF_PERMISSION_EVALUATIONS, filtered.getResultSetMetaData().getLimitedBy());
+    }
+
+    public void testBatchedCheckLimitNotReached() throws Exception
+    {
+        provider.setMaxPermissionChecks(400);
+        ResultSet filtered = (ResultSet) provider.decide(null, null, config, createResultSet(400));
+
+        assertEquals(400, filtered.length());
+        assertEquals(LimitBy.UNLIMITED, filtered.getResultSetMetaData().getLimitedBy());
+    }
+}
@@ -72,6 +72,41 @@ public class FilteringResultSet extends ACLEntryAfterInvocationProvider implemen
         return inclusionMask.get(i);
     }
 
+    /* package */void setIncluded(int fromIndex, int toIndex, boolean included)
+    {
+        inclusionMask.set(fromIndex, toIndex, included);
+    }
+
+    /**
+     * Exclude the rows in the range that are not in the allowed set, which is indexed from the start of the range
+     */
+    /* package */void retainIncluded(int fromIndex, int toIndex, BitSet allowed)
+    {
+        for (int i = inclusionMask.nextSetBit(fromIndex); (i >= 0) && (i < toIndex); i = inclusionMask.nextSetBit(i + 1))
+        {
+            if (!allowed.get(i - fromIndex))
+            {
+                inclusionMask.clear(i);
+            }
+        }
+    }
+
+    /**
+     * Exclude all rows after the first maxLength included rows
+     */
+    /* package */void truncate(int maxLength)
+    {
+        int count = 0;
+        for (int i = inclusionMask.nextSetBit(0); i >= 0; i = inclusionMask.nextSetBit(i + 1))
+        {
+            if (++count > maxLength)
+            {
+                inclusionMask.clear(i, unfiltered.length());
+                return;
+            }
+        }
+    }
+
     public int length()
     {
         return inclusionMask.cardinality();
@@ -19,6 +19,7 @@
 package org.alfresco.repo.security.permissions.impl.acegi;
 
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.ListIterator;
 
 import junit.framework.TestCase;
@@ -123,5 +124,35 @@ public class FilteringResultSetTest extends TestCase
          
         }
     }
+
+    public void testBatchInclusion()
+    {
+        StoreRef storeRef = new StoreRef("protocol", "test");
+        ArrayList<ChildAssociationRef> cars = new ArrayList<ChildAssociationRef>();
+        for (int i = 0; i < 6; i++)
+        {
+            cars.add(new ChildAssociationRef(null, null, null, new NodeRef(storeRef, "n" + i)));
+        }
+        ResultSet in = new ChildAssocRefResultSet(null, cars);
+
+        FilteringResultSet filtering = new FilteringResultSet(in);
+        filtering.setIncluded(2, 6, true);
+        assertEquals(4, filtering.length());
+
+        // allowed is indexed from the start of the range
+        BitSet allowed = new BitSet();
+        allowed.set(0);
+        allowed.set(2);
+        allowed.set(3);
+        filtering.retainIncluded(2, 6, allowed);
+        assertEquals(3, filtering.length());
+        assertEquals("n2", filtering.getNodeRef(0).getId());
+        assertEquals("n4", filtering.getNodeRef(1).getId());
+        assertEquals("n5", filtering.getNodeRef(2).getId());
+
+        filtering.truncate(2);
+        assertEquals(2, filtering.length());
+        assertEquals("n4", filtering.getNodeRef(1).getId());
+    }
     
 }
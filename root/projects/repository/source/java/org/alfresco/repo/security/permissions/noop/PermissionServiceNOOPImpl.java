@@ -18,8 +18,10 @@
  */
 package org.alfresco.repo.security.permissions.noop;
 
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -215,6 +217,16 @@ public class PermissionServiceNOOPImpl
         return AccessStatus.ALLOWED;
     }
 
+    /* (non-Javadoc)
+     * @see org.alfresco.repo.security.permissions.PermissionServiceSPI#hasPermissions(java.util.List, java.lang.String)
+     */
+    public BitSet hasPermissions(List<NodeRef> nodeRefs, String perm)
+    {
+        BitSet allowed = new BitSet(nodeRefs.size());
+        allowed.set(0, nodeRefs.size());
+        return allowed;
+    }
+
     /* (non-Javadoc)
      * @see org.alfresco.service.cmr.security.PermissionService#hasPermission(java.lang.Long, java.lang.String, java.lang.String)
      */
@@ -546,6 +546,15 @@ public class NodeServiceImpl implements NodeService, VersionModel
         throw new UnsupportedOperationException(MSG_UNSUPPORTED);
     }
 
+    /**
+     * @throws UnsupportedOperationException always
+     */
+    public List<ChildAssociationRef> getChildAssocs(NodeRef nodeRef, Set<QName> childNodeTypeQNames, QName sortProp, boolean sortAscending, int skipCount, int maxItems)
+    {
+        // This operation is not supported for a version store
+        throw new UnsupportedOperationException(MSG_UNSUPPORTED);
+    }
+
     /**
      * @throws UnsupportedOperationException always
      */
@@ -64,6 +64,36 @@ public interface FileFolderService
      */
     @Auditable(key = Auditable.Key.ARG_0, parameters = {"contextNodeRef"})
     public List<FileInfo> listFolders(NodeRef contextNodeRef);
+    
+    /**
+     * Lists a page of the immediate child files and/or folders of the given context node, sorted by
+     * a property.  Only the children on the page are read and checked for permissions, so large folders
+     * can be browsed a page at a time.  Children that cannot be read are left out.
+     * <p>
+     * The continuation token marks where the page ended in the sorted listing.  Files added or removed
+     * while the folder is being paged through may move the following pages along.
+     * 
+     * @param contextNodeRef the node to start searching in
+     * @param files true to include files
+     * @param folders true to include folders
+     * @param sortProp <b>cm:name</b>, <b>cm:created</b>, <b>cm:modified</b>, <b>cm:content</b> (by size)
+     *      or <tt>null</tt> for no particular order
+     * @param sortAscending true to sort in ascending order
+     * @param continuationToken the token given with the previous page or <tt>null</tt> for the first page
+     * @param maxItems the most files and folders to return
+     * @return Returns the page of files and folders
+     * 
+     * @since 3.3
+     */
+    @Auditable(key = Auditable.Key.ARG_0, parameters = {"contextNodeRef", "files", "folders", "sortProp", "sortAscending", "continuationToken", "maxItems"})
+    public FileInfoPage listPage(
+            NodeRef contextNodeRef,
+            boolean files,
+            boolean folders,
+            QName sortProp,
+            boolean sortAscending,
+            String continuationToken,
+            int maxItems);
 
     /**
      * Get a simple list of nodes that have the given name within the parent node
@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2005-2010 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.service.cmr.model;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * A page of the files and folders in a folder, with the token to get the next page.
+ * 
+ * @see FileFolderService#listPage(org.alfresco.service.cmr.repository.NodeRef, boolean, boolean, org.alfresco.service.namespace.QName, boolean, String, int)
+ * 
+ * @since 3.3
+ */
+public class FileInfoPage implements Serializable
+{
+    private static final long serialVersionUID = 4190276536187437310L;
+    
+    private final List<FileInfo> page;
+    private final String continuationToken;
+    
+    public FileInfoPage(List<FileInfo> page, String continuationToken)
+    {
+        this.page = page;
+        this.continuationToken = continuationToken;
+    }
+    
+    /**
+     * @return Returns the files and folders on the page, in order
+     */
+    public List<FileInfo> getPage()
+    {
+        return page;
+    }
+    
+    /**
+     * @return Returns the token to pass to get the next page or <tt>null</tt> if this is the last page
+     */
+    public String getContinuationToken()
+    {
+        return continuationToken;
+    }
+    
+    /**
+     * @return Returns <tt>true</tt> if there is another page
+     */
+    public boolean hasMoreItems()
+    {
+        return continuationToken != null;
+    }
+    
+    @Override
+    public String toString()
+    {
+        return "FileInfoPage[size=" + page.size() + ", continuation=" + continuationToken + "]";
+    }
+}
@@ -552,6 +552,32 @@ public interface NodeService
     @Auditable(key = Auditable.Key.ARG_0 ,parameters = {"nodeRef", "childNodeTypes"})
     public List<ChildAssociationRef> getChildAssocs(NodeRef nodeRef, Set<QName> childNodeTypeQNames);
     
+    /**
+     * Retrieve a page of the immediate children of a given node, where the child nodes are of the given types,
+     * sorted by a property of the children.  Where the store allows, only the children on the page are read.
+     * 
+     * @param nodeRef           the parent node - usually a <b>container</b>
+     * @param childNodeTypes    the types that the children may be.  Subtypes are not automatically calculated
+     *                          and the list must therefore be exhaustive.
+     * @param sortProp          <b>cm:name</b>, <b>cm:created</b>, <b>cm:modified</b> or <b>cm:content</b>
+     *                          (sorts by content size) or <tt>null</tt> for the natural order of the children
+     * @param sortAscending     <tt>true</tt> to sort in ascending order
+     * @param skipCount         the number of children to skip
+     * @param maxItems          the most children to return or <tt>-1</tt> for all the rest
+     * @return                  Returns a list of <code>ChildAssociationRef</code> instances, in order.
+     * @throws InvalidNodeRefException      if the node could not be found
+     * 
+     * @since 3.3
+     */
+    @Auditable(key = Auditable.Key.ARG_0 ,parameters = {"nodeRef", "childNodeTypes", "sortProp", "sortAscending", "skipCount", "maxItems"})
+    public List<ChildAssociationRef> getChildAssocs(
+            NodeRef nodeRef,
+            Set<QName> childNodeTypeQNames,
+            QName sortProp,
+            boolean sortAscending,
+            int skipCount,
+            int maxItems);
+    
     /**
      * Get the node with the given name within the context of the parent node.  The name
      * is case-insensitive as Alfresco has to support case-insensitive clients as standard.
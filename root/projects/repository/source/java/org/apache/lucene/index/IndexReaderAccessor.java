@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2005-2010 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.apache.lucene.index;
+
+import java.util.List;
+
+/**
+ * Exposes the reader structure hidden by Lucene 2.4 so that per segment state can be cached beneath a composite
+ * reader.
+ */
+public class IndexReaderAccessor
+{
+    /**
+     * @param reader
+     * @return the sub readers of a {@link MultiReader} or <code>null</code> for any other reader
+     */
+    public static IndexReader[] getSubReaders(IndexReader reader)
+    {
+        if (reader instanceof MultiReader)
+        {
+            return ((MultiReader) reader).getSubReaders();
+        }
+        return null;
+    }
+
+    /**
+     * @param reader
+     * @return the reader wrapped by a {@link FilterIndexReader}
+     */
+    public static IndexReader getDelegate(FilterIndexReader reader)
+    {
+        return reader.in;
+    }
+
+    /**
+     * Find the segment readers (and their doc number offsets) beneath a composite reader. Composite and filtering
+     * readers are descended; any other reader is a segment.
+     */
+    public static void collectSegments(IndexReader reader, int start, List<IndexReader> segments, List<Integer> starts)
+    {
+        IndexReader[] subReaders = getSubReaders(reader);
+        if (subReaders != null)
+        {
+            int offset = start;
+            for (IndexReader subReader : subReaders)
+            {
+                collectSegments(subReader, offset, segments, starts);
+                offset += subReader.maxDoc();
+            }
+            return;
+        }
+        if (reader instanceof FilterIndexReader)
+        {
+            IndexReader delegate = getDelegate((FilterIndexReader) reader);
+            if ((getSubReaders(delegate) != null) || (delegate instanceof FilterIndexReader))
+            {
+                collectSegments(delegate, start, segments, starts);
+                return;
+            }
+        }
+        segments.add(reader);
+        starts.add(start);
+    }
+}